@@ -18,6 +18,8 @@ package dk.dma.navnet.client.connection;
 import static java.util.Objects.requireNonNull;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
@@ -29,6 +31,7 @@ import dk.dma.enav.maritimecloud.ClosingCode;
 import dk.dma.enav.maritimecloud.MaritimeCloudConnection.Listener;
 import dk.dma.enav.model.geometry.PositionTime;
 import dk.dma.navnet.client.ClientContainer;
+import dk.dma.navnet.messages.Capabilities;
 import dk.dma.navnet.messages.TransportMessage;
 import dk.dma.navnet.messages.auxiliary.ConnectedMessage;
 import dk.dma.navnet.messages.auxiliary.HelloMessage;
@@ -96,11 +99,36 @@ class ClientConnectFuture implements Runnable {
     void onMessage(TransportMessage m) {
         if (!receivedHelloMessage) {
             if (m instanceof WelcomeMessage) {
+                WelcomeMessage wm = (WelcomeMessage) m;
                 ClientContainer client = connection.connectionManager.client;
                 PositionTime pt = client.readCurrentPosition();
                 String connectName = connection.connectionId == null ? "" : connection.connectionId;
+                // only ask for binary frames and batching if the server supports them, older servers only understand
+                // a single text message per frame
+                boolean binary = Capabilities.contains(wm.getCapabilities(), Capabilities.BINARY);
+                boolean batching = Capabilities.contains(wm.getCapabilities(), Capabilities.BATCH);
+                boolean acks = Capabilities.contains(wm.getCapabilities(), Capabilities.ACK);
+                boolean json = Capabilities.contains(wm.getCapabilities(), Capabilities.JSON);
+                List<String> capabilities = new ArrayList<>();
+                if (binary) {
+                    capabilities.add(Capabilities.BINARY);
+                }
+                if (batching) {
+                    capabilities.add(Capabilities.BATCH);
+                }
+                if (acks) {
+                    capabilities.add(Capabilities.ACK);
+                }
+                if (json) {
+                    capabilities.add(Capabilities.JSON);
+                }
                 transport.sendText(new HelloMessage(client.getLocalId(), "enavClient/1.0", connectName, reconnectId, pt
-                        .getLatitude(), pt.getLongitude()).toJSON());
+                        .getLatitude(), pt.getLongitude(), capabilities.toArray(new String[capabilities.size()]))
+                        .toJSON());
+                transport.binary = binary;
+                transport.batching = batching;
+                transport.acks = acks;
+                transport.json = json;
                 receivedHelloMessage = true;
             } else {
                 String err = "Expected a welcome message, but was: " + m.getClass().getSimpleName();
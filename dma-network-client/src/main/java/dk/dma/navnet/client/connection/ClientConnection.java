@@ -22,6 +22,8 @@ import org.slf4j.LoggerFactory;
 
 import dk.dma.enav.maritimecloud.ClosingCode;
 import dk.dma.navnet.messages.ConnectionMessage;
+import dk.dma.navnet.messages.auxiliary.AckMessage;
+import dk.dma.navnet.messages.util.BufferPool;
 
 /**
  * 
@@ -44,6 +46,9 @@ public class ClientConnection {
 
     final ReentrantLock sendLock = new ReentrantLock();
 
+    /** The buffers binary frames are encoded into, kept over reconnects. Only a single frame is written at a time. */
+    final BufferPool bufferPool = new BufferPool(BufferPool.DEFAULT_BUFFER_SIZE, 2);
+
     /* State managed objects */
     volatile ClientTransport transport;
 
@@ -148,6 +153,15 @@ public class ClientConnection {
         }
     }
 
+    void ackReceive(ClientTransport transport, AckMessage m) {
+        retrieveLock.lock();
+        try {
+            worker.ackReceived(m);
+        } finally {
+            retrieveLock.unlock();
+        }
+    }
+
     public ConnectionMessageBus getBus() {
         return connectionManager.hub;
     }
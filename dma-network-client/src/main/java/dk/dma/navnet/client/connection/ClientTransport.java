@@ -19,13 +19,18 @@ import static java.util.Objects.requireNonNull;
 
 import java.io.IOException;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import dk.dma.enav.maritimecloud.ClosingCode;
 import dk.dma.navnet.messages.ConnectionMessage;
+import dk.dma.navnet.messages.MessageBatch;
 import dk.dma.navnet.messages.TransportMessage;
+import dk.dma.navnet.messages.auxiliary.AckMessage;
+import dk.dma.navnet.messages.util.BufferPool;
 
 /**
  * 
@@ -42,6 +47,18 @@ public abstract class ClientTransport {
     /** non-null while connecting. */
     ClientConnectFuture connectFuture;
 
+    /** Whether or not connection messages are sent as binary frames, negotiated via the welcome message. */
+    volatile boolean binary;
+
+    /** Whether or not several connection messages may be sent in a frame, negotiated via the welcome message. */
+    volatile boolean batching;
+
+    /** Whether or not standalone acks may be sent, negotiated via the welcome message. */
+    volatile boolean acks;
+
+    /** Whether or not payloads are embedded as JSON in text messages, negotiated via the welcome message. */
+    volatile boolean json;
+
     ClientTransport(ClientConnectFuture connectFuture, ClientConnection connection) {
         this.connectFuture = requireNonNull(connectFuture);
         this.connection = requireNonNull(connection);
@@ -50,18 +67,40 @@ public abstract class ClientTransport {
     abstract void doClose(final ClosingCode reason);
 
     public void onTextMessage(String textMessage) {
-        TransportMessage msg;
+        List<TransportMessage> msgs;
         System.out.println("Received: " + textMessage);
         try {
-            msg = TransportMessage.parseMessage(textMessage);
+            msgs = MessageBatch.parse(textMessage);
         } catch (Exception e) {
             e.printStackTrace();
             LOG.error("Failed to parse incoming message", e);
             doClose(ClosingCode.WRONG_MESSAGE.withMessage(e.getMessage()));
             return;
         }
+        for (TransportMessage msg : msgs) {
+            onMessage(msg);
+        }
+    }
+
+    public void onBinaryMessage(ByteBuffer binaryMessage) {
+        List<TransportMessage> msgs;
+        try {
+            msgs = MessageBatch.parse(binaryMessage);
+        } catch (Exception e) {
+            LOG.error("Failed to parse incoming message", e);
+            doClose(ClosingCode.WRONG_MESSAGE.withMessage(e.getMessage()));
+            return;
+        }
+        for (TransportMessage msg : msgs) {
+            onMessage(msg);
+        }
+    }
+
+    private void onMessage(TransportMessage msg) {
         if (connectFuture != null) {
             connectFuture.onMessage(msg);
+        } else if (msg instanceof AckMessage) {
+            connection.ackReceive(this, (AckMessage) msg);
         } else if (msg instanceof ConnectionMessage) {
             ConnectionMessage m = (ConnectionMessage) msg;
             connection.messageReceive(this, m);
@@ -72,6 +111,51 @@ public abstract class ClientTransport {
         }
     }
 
+    /**
+     * Sends the specified batch of connection messages as a single frame.
+     * 
+     * @param batch
+     *            the batch to send, must have been created in the format that was negotiated with the server
+     */
+    void send(MessageBatch batch) {
+        if (batch.isBinary()) {
+            BufferPool pool = connection.bufferPool;
+            sendBinary(batch.toBinary(pool), pool);
+        } else {
+            sendText(batch.toText());
+        }
+    }
+
+    /**
+     * Sends a standalone ack.
+     * 
+     * @param latestReceivedId
+     *            the id of the latest message received from the server
+     */
+    void sendAck(long latestReceivedId) {
+        AckMessage ack = new AckMessage(latestReceivedId);
+        if (binary) {
+            sendBinary(ack.toBinary());
+        } else {
+            sendText(ack.toJSON());
+        }
+    }
+
+    public void sendBinary(ByteBuffer buffer) {
+        sendBinary(buffer, null);
+    }
+
+    /**
+     * Sends a binary frame.
+     * 
+     * @param buffer
+     *            the frame to send
+     * @param pool
+     *            the pool the buffer was acquired from, the buffer is released to it once it has been written. Or null
+     *            if the buffer is not pooled
+     */
+    abstract void sendBinary(ByteBuffer buffer, BufferPool pool);
+
     public abstract void sendText(String text);
 
     abstract void connect(URI uri) throws IOException;
@@ -32,6 +32,7 @@ import dk.dma.enav.maritimecloud.MaritimeCloudClientConfiguration;
 import dk.dma.enav.maritimecloud.MaritimeCloudConnection;
 import dk.dma.navnet.client.ClientContainer;
 import dk.dma.navnet.client.util.ThreadManager;
+import dk.dma.navnet.messages.util.FrameStatistics;
 
 /**
  * 
@@ -62,6 +63,9 @@ public class ConnectionManager implements MaritimeCloudConnection, Startable {
 
     final ThreadManager threadManager;
 
+    /** Statistics about the frames sent to the server. */
+    final FrameStatistics statistics = new FrameStatistics();
+
     /** The URI to connect to. Is constant. */
     final URI uri;
 
@@ -17,6 +17,7 @@ package dk.dma.navnet.client.connection;
 
 import java.io.IOException;
 import java.net.URI;
+import java.nio.ByteBuffer;
 
 import javax.websocket.ClientEndpoint;
 import javax.websocket.CloseReason;
@@ -26,6 +27,8 @@ import javax.websocket.DeploymentException;
 import javax.websocket.OnClose;
 import javax.websocket.OnMessage;
 import javax.websocket.OnOpen;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
 import javax.websocket.Session;
 import javax.websocket.WebSocketContainer;
 
@@ -33,6 +36,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import dk.dma.enav.maritimecloud.ClosingCode;
+import dk.dma.navnet.messages.util.BufferPool;
 
 /**
  * The client implementation of a transport. Every time the client connects to a server a new transport is created.
@@ -89,6 +93,32 @@ public final class JavaxWebsocketTransport extends ClientTransport {
         super.onTextMessage(textMessage);
     }
 
+    @OnMessage
+    public void onBinaryMessage(ByteBuffer binaryMessage) {
+        super.onBinaryMessage(binaryMessage);
+    }
+
+    /** {@inheritDoc} */
+    void sendBinary(final ByteBuffer buffer, final BufferPool pool) {
+        Session session = this.session;
+        if (session == null) {
+            if (pool != null) {
+                pool.release(buffer);
+            }
+        } else if (pool == null) {
+            session.getAsyncRemote().sendBinary(buffer);
+        } else {
+            session.getAsyncRemote().sendBinary(buffer, new SendHandler() {
+                public void onResult(SendResult result) {
+                    pool.release(buffer);
+                    if (!result.isOK()) {
+                        LOG.error("Failed to send message", result.getException());
+                    }
+                }
+            });
+        }
+    }
+
     public void sendText(String text) {
         Session session = this.session;
         if (session != null) {
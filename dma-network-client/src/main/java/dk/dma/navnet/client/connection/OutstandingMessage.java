@@ -30,6 +30,9 @@ public class OutstandingMessage {
 
     final ConnectionMessage cm;
 
+    /** The time in nanoseconds the message was queued. */
+    final long created = System.nanoTime();
+
     long id;
 
     OutstandingMessage(ConnectionMessage cm) {
@@ -16,9 +16,11 @@
 package dk.dma.navnet.client.connection;
 
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
 import dk.dma.navnet.messages.ConnectionMessage;
+import dk.dma.navnet.messages.auxiliary.AckMessage;
 
 /**
  * 
@@ -26,6 +28,12 @@ import dk.dma.navnet.messages.ConnectionMessage;
  */
 public class Worker implements Runnable {
 
+    /** Put in the queue to wake up the worker when a transport is attached or the worker is shutdown. */
+    static final Object WAKE_UP = new Object();
+
+    /** Used instead of a message when received messages must be acknowledged, if they have not been already. */
+    static final Object ACK_TIMEOUT = new Object();
+
     private final ReentrantLock sendLock = new ReentrantLock();
 
     private final ReentrantLock receiveLock = new ReentrantLock();
@@ -44,6 +52,11 @@ public class Worker implements Runnable {
         this.connection = connection;
     }
 
+    /** Returns the transport currently used by the connection, or null if the connection is not connected. */
+    ClientTransport currentTransport() {
+        return connection.getTransport();
+    }
+
     public OutstandingMessage messageSend(ConnectionMessage message) {
         sendLock.lock();
         try {
@@ -69,6 +82,18 @@ public class Worker implements Runnable {
             receiveLock.unlock();
             sendLock.unlock();
         }
+        q.add(WAKE_UP);
+    }
+
+    void ackReceived(AckMessage message) {
+        receiveLock.lock();
+        try {
+            if (!isShutdown) {
+                q.add(message);
+            }
+        } finally {
+            receiveLock.unlock();
+        }
     }
 
     public void messageReceived(ConnectionMessage message) {
@@ -85,30 +110,33 @@ public class Worker implements Runnable {
     /** {@inheritDoc} */
     @Override
     public void run() {
-        boolean sleepLong = true;
+        Object o = null;
         while (!isShutdown) {
-            Object o = null;
-            if (sleepLong) {
-                try {
-                    o = q.take();
-                } catch (InterruptedException ignore) {}
-            } else {
-                o = q.poll();
-            }
-
-            if (o != null) {
-                wi.fromQueue(o);
+            boolean more;
+            long nanosUntilAck;
+            workLock.lock();
+            try {
+                if (o != null) {
+                    wi.fromQueue(o);
+                }
                 while ((o = q.poll()) != null) {
                     wi.fromQueue(o);
                 }
-            }
-
-            workLock.lock();
-            try {
-                sleepLong = wi.processNext();
+                more = wi.processNext();
+                nanosUntilAck = wi.nanosUntilAck();
             } finally {
                 workLock.unlock();
             }
+            if (!more) {
+                // Nothing can be done until a message is queued, a transport is attached or an ack is due
+                try {
+                    if (nanosUntilAck < 0) {
+                        o = q.take();
+                    } else if ((o = q.poll(nanosUntilAck, TimeUnit.NANOSECONDS)) == null) {
+                        o = ACK_TIMEOUT;
+                    }
+                } catch (InterruptedException ignore) {}
+            }
         }
     }
 
@@ -123,5 +151,6 @@ public class Worker implements Runnable {
             receiveLock.unlock();
             sendLock.unlock();
         }
+        q.add(WAKE_UP);
     }
 }
@@ -17,9 +17,14 @@ package dk.dma.navnet.client.connection;
 
 import static java.util.Objects.requireNonNull;
 
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
 
 import dk.dma.navnet.messages.ConnectionMessage;
+import dk.dma.navnet.messages.MessageBatch;
+import dk.dma.navnet.messages.auxiliary.AckMessage;
+import dk.dma.navnet.messages.util.FrameStatistics;
+import dk.dma.navnet.messages.util.RetransmitBuffer;
 
 /**
  * 
@@ -29,11 +34,12 @@ public class WorkerInner {
 
     private boolean nextIsReceived = false;
 
-    private final LinkedList<OutstandingMessage> unwritten = new LinkedList<>();
+    private final ArrayDeque<OutstandingMessage> unwritten = new ArrayDeque<>();
 
-    private final LinkedList<OutstandingMessage> written = new LinkedList<>();
+    /** Messages that have been written but not acknowledged, by message id. */
+    private final RetransmitBuffer<OutstandingMessage> written = new RetransmitBuffer<>();
 
-    private final LinkedList<ConnectionMessage> received = new LinkedList<>();
+    private final ArrayDeque<ConnectionMessage> received = new ArrayDeque<>();
 
     final Worker worker;
 
@@ -43,6 +49,12 @@ public class WorkerInner {
 
     long latestReceivedMessageId;
 
+    /** The number of received messages that the server has not been told we have received. */
+    int unacked;
+
+    /** The time in nanoseconds when received messages must have been acknowledged, only valid if unacked > 0. */
+    long ackDeadline;
+
     WorkerInner(Worker worker) {
         this.worker = requireNonNull(worker);
     }
@@ -50,13 +62,15 @@ public class WorkerInner {
     ClientTransport transport;
 
     public void onConnect(ClientTransport transport, long id, boolean isReconnected) {
-        LinkedList<Long> idsToResend = new LinkedList<>();
-        while (!written.isEmpty()) {
-            OutstandingMessage om = written.pollLast();
-            if (om.id > id) {
-                idsToResend.addFirst(om.id);
-                unwritten.addFirst(om);
-            }
+        // the remote end has received everything up to id, the rest must be resent in the same order
+        OutstandingMessage om;
+        while ((om = written.pollAcked(id)) != null) {
+            om.acked().complete(null);
+        }
+        ArrayDeque<Long> idsToResend = new ArrayDeque<>();
+        while ((om = written.pollLast()) != null) {
+            idsToResend.addFirst(om.id);
+            unwritten.addFirst(om);
         }
         if (isReconnected) {
             nextSendId = id + 1;
@@ -66,33 +80,51 @@ public class WorkerInner {
             System.out.println("Resending messages with id(s): " + idsToResend);
         }
         this.transport = transport;
+        unacked = 0; // the hello message contains the latest received id
         while (processNext()) {}
     }
 
     public void fromQueue(Object o) {
         if (o instanceof OutstandingMessage) {
             unwritten.add((OutstandingMessage) o);
-        } else {
+        } else if (o instanceof AckMessage) {
+            acked(((AckMessage) o).getLatestReceivedId());
+        } else if (o == Worker.ACK_TIMEOUT) {
+            sendAck();
+        } else if (o != Worker.WAKE_UP) {
             received.add((ConnectionMessage) o);
         }
     }
 
     /**
-     * @return false if there are no messages to process
+     * Returns the time in nanoseconds until received messages must be acknowledged.
+     * 
+     * @return the time in nanoseconds until received messages must be acknowledged, or -1 if there are no messages
+     *         waiting to be acknowledged or no transport to send the ack on. In which case the hello message sent when
+     *         reconnecting tells the server the latest received id
+     */
+    long nanosUntilAck() {
+        return unacked == 0 || !isConnected() ? -1 : Math.max(0, ackDeadline - System.nanoTime());
+    }
+
+    /**
+     * @return false if there are no messages that can be processed
      */
     boolean processNext() {
         boolean nextIsReceived = this.nextIsReceived;
         this.nextIsReceived = !nextIsReceived;
+        // Unwritten messages stay in the queue while we are disconnected, until Worker.onConnect wakes us up
+        boolean canWrite = unwritten.size() > 0 && isConnected();
         if (nextIsReceived) {
             if (received.size() > 0) {
                 processReceived();
-            } else if (unwritten.size() > 0) {
+            } else if (canWrite) {
                 processWritten();
             } else {
                 return false;
             }
         } else {
-            if (unwritten.size() > 0) {
+            if (canWrite) {
                 processWritten();
             } else if (received.size() > 0) {
                 processReceived();
@@ -103,39 +135,58 @@ public class WorkerInner {
         return true;
     }
 
+    private boolean isConnected() {
+        ClientTransport transport = worker.currentTransport();
+        return transport != null && transport == this.transport;
+    }
 
     private void processReceived() {
         ConnectionMessage cm = received.poll();
         // System.out.println("GOT MSG with " + cm.getLatestReceivedId() + " " + cm.toJSON());
         latestReceivedMessageId = cm.getMessageId();
-        latestAck = cm.getLatestReceivedId();
         worker.connection.getBus().onMsg(cm);
-        for (;;) {
-            OutstandingMessage m = written.peek();
-            if (m == null || m.id > latestAck) {
-                return;
+        acked(cm.getLatestReceivedId());
+        if (isConnected() && transport.acks) {
+            if (++unacked >= AckMessage.DEFAULT_MAX_UNACKED) {
+                sendAck();
+            } else if (unacked == 1) {
+                ackDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(AckMessage.DEFAULT_DELAY_MS);
             }
+        }
+    }
+
+    /** Completes all written messages up to and including the specified id. */
+    private void acked(long id) {
+        latestAck = Math.max(latestAck, id);
+        OutstandingMessage m;
+        while ((m = written.pollAcked(latestAck)) != null) {
             m.acked().complete(null);
-            written.poll();
+        }
+    }
+
+    /** Sends a standalone ack if there are any received messages that have not been acknowledged. */
+    private void sendAck() {
+        if (unacked > 0 && isConnected()) {
+            transport.sendAck(latestReceivedMessageId);
+            unacked = 0;
         }
     }
 
     private void processWritten() {
-        ClientTransport transport = worker.connection.getTransport();
-        if (transport != null && transport == this.transport) {
+        // if batching has been negotiated drain as many messages as the limits allow into a single frame
+        MessageBatch batch = new MessageBatch(transport.binary, transport.json);
+        FrameStatistics statistics = worker.connection.connectionManager.statistics;
+        long now = System.nanoTime();
+        do {
             OutstandingMessage om = unwritten.poll();
-            ConnectionMessage cm = om.cm;
             om.id = nextSendId++;
-            cm.setMessageId(om.id);
-            cm.setLatestReceivedId(latestReceivedMessageId);
-            String message = cm.toJSON();
-            written.add(om);
-            // System.out.println("Adding " + om.id + " to written");
-            transport.sendText(message);
-        } else {
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException ignore) {}
-        }
+            written.add(om.id, om);
+            batch.add(om.cm, om.id, latestReceivedMessageId);
+            statistics.latency(now - om.created);
+        } while (transport.batching && !unwritten.isEmpty() && batch.count() < MessageBatch.DEFAULT_MAX_MESSAGES
+                && batch.size() < MessageBatch.DEFAULT_MAX_BYTES);
+        transport.send(batch);
+        statistics.frameSent(batch.count());
+        unacked = 0; // every message carries the latest received id
     }
 }
@@ -20,8 +20,6 @@ import static java.util.Objects.requireNonNull;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-
 import dk.dma.enav.maritimecloud.service.ServiceLocator;
 import dk.dma.enav.maritimecloud.service.invocation.InvocationCallback;
 import dk.dma.enav.maritimecloud.service.registration.ServiceRegistration;
@@ -33,6 +31,7 @@ import dk.dma.navnet.client.connection.ConnectionMessageBus;
 import dk.dma.navnet.client.connection.OnMessage;
 import dk.dma.navnet.client.util.DefaultConnectionFuture;
 import dk.dma.navnet.client.util.ThreadManager;
+import dk.dma.navnet.messages.CodecContext;
 import dk.dma.navnet.messages.c2c.service.InvokeService;
 import dk.dma.navnet.messages.c2c.service.InvokeServiceResult;
 import dk.dma.navnet.messages.s2c.service.FindService;
@@ -109,9 +108,7 @@ public class ClientServiceManager {
         if (f != null) {
             Object o = null;
             try {
-                Class<?> mt = Class.forName(m.getReplyType());
-                ObjectMapper om = new ObjectMapper();
-                o = om.readValue(m.getMessage(), mt);
+                o = CodecContext.read(m.getMessage(), m.getReplyType());
                 f.complete(o);
             } catch (Exception e) {
                 e.printStackTrace();
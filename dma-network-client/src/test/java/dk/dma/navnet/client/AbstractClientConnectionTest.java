@@ -105,12 +105,4 @@ public class AbstractClientConnectionTest {
             throw new IllegalArgumentException("Could not be persisted", e);
         }
     }
-
-    protected static String escape(String s) {
-        return s.replace("\\", "\\\\").replace("\"", "\\\"");
-    }
-
-    protected static String persistAndEscape(Object o) {
-        return escape(persist(o));
-    }
 }
@@ -69,11 +69,11 @@ public class BroadcastTest extends AbstractClientConnectionTest {
         // the first message should not be send to the handler
         HelloWorld2 hw2 = new HelloWorld2("NOTNT");
         BroadcastDeliver m = new BroadcastDeliver(ID3, PositionTime.create(1, 1, 1),
-                HelloWorld2.class.getCanonicalName(), persistAndEscape(hw2));
+                HelloWorld2.class.getCanonicalName(), persist(hw2));
 
         HelloWorld hw = new HelloWorld("foo$\\\n");
         m = new BroadcastDeliver(ID2, PositionTime.create(1, 1, 1), HelloWorld.class.getCanonicalName(),
-                persistAndEscape(hw));
+                persist(hw));
         t.send(m);
 
         assertTrue(cdl.await(2, TimeUnit.SECONDS));
@@ -109,11 +109,11 @@ public class BroadcastTest extends AbstractClientConnectionTest {
         // the first message should not be send to the handler
         HelloWorld2 hw2 = new HelloWorld2("NOTNT");
         BroadcastDeliver m = new BroadcastDeliver(ID3, PositionTime.create(2, 1, 4),
-                HelloWorld2.class.getCanonicalName(), persistAndEscape(hw2));
+                HelloWorld2.class.getCanonicalName(), persist(hw2));
 
         HelloWorld hw = new HelloWorld("foo$\\\n");
         m = new BroadcastDeliver(ID2, PositionTime.create(1, 1, 1), HelloWorld.class.getCanonicalName(),
-                persistAndEscape(hw));
+                persist(hw));
         t.send(m);
 
         assertTrue(cdl.await(2, TimeUnit.SECONDS));
@@ -93,7 +93,7 @@ public class Reconnect2Test extends AbstractClientConnectionTest {
         });
 
         BroadcastDeliver bd = new BroadcastDeliver(ID2, PositionTime.create(1, 1, 1),
-                HelloWorld.class.getCanonicalName(), persistAndEscape(new HelloWorld("foo")));
+                HelloWorld.class.getCanonicalName(), persist(new HelloWorld("foo")));
         bd.setMessageId(1);
         bd.setLatestReceivedId(1);
         t.send(bd);
@@ -142,7 +142,7 @@ public class Reconnect2Test extends AbstractClientConnectionTest {
         });
 
         BroadcastDeliver bd = new BroadcastDeliver(ID2, PositionTime.create(1, 1, 1),
-                HelloWorld.class.getCanonicalName(), persistAndEscape(new HelloWorld("foo")));
+                HelloWorld.class.getCanonicalName(), persist(new HelloWorld("foo")));
         bd.setMessageId(1);
         bd.setLatestReceivedId(0);
         t.send(bd);
@@ -83,7 +83,7 @@ public class ReconnectTest extends AbstractClientConnectionTest {
         });
 
         BroadcastDeliver bm = new BroadcastDeliver(ID3, PositionTime.create(2, 1, 4),
-                HelloWorld.class.getCanonicalName(), persistAndEscape(new HelloWorld("A")));
+                HelloWorld.class.getCanonicalName(), persist(new HelloWorld("A")));
         bm.setLatestReceivedId(0);
         bm.setMessageId(1);
         t.send(bm);
@@ -122,7 +122,7 @@ public class ReconnectTest extends AbstractClientConnectionTest {
             if (ThreadLocalRandom.current().nextBoolean()) {
                 // server send message
                 BroadcastDeliver bm = new BroadcastDeliver(ID3, PositionTime.create(2, 1, 4),
-                        HelloWorld.class.getCanonicalName(), persistAndEscape(new HelloWorld("A")));
+                        HelloWorld.class.getCanonicalName(), persist(new HelloWorld("A")));
                 bm.setLatestReceivedId(0);
                 bm.setMessageId(++lastestOut);
                 t.send(bm);
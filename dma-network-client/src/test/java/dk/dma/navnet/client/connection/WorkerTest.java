@@ -0,0 +1,61 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.client.connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author Kasper Nielsen
+ */
+public class WorkerTest {
+
+    /** A worker whose connection has lost its transport. */
+    static Worker disconnectedWorker() {
+        return new Worker(null) {
+            ClientTransport currentTransport() {
+                return null;
+            }
+        };
+    }
+
+    @Test
+    public void blocksWhileDisconnectedWithPendingAcks() throws Exception {
+        Worker worker = disconnectedWorker();
+        // fewer than AckMessage.DEFAULT_MAX_UNACKED messages received, and the ack is already due
+        worker.wi.unacked = 5;
+        worker.wi.ackDeadline = System.nanoTime();
+        Thread t = new Thread(worker);
+        t.setDaemon(true);
+        t.start();
+        try {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (t.getState() != Thread.State.WAITING) {
+                assertTrue("The worker did not block", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            Thread.sleep(100);
+            assertEquals(Thread.State.WAITING, t.getState());
+            assertEquals(-1, worker.wi.nanosUntilAck());
+        } finally {
+            worker.shutdown();
+            t.join(5000);
+        }
+    }
+}
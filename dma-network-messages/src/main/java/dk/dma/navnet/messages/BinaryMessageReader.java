@@ -0,0 +1,175 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.messages;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads a message that was written by {@link BinaryMessageWriter}.
+ * 
+ * @author Kasper Nielsen
+ */
+public class BinaryMessageReader extends MessageReader {
+
+    private final ByteBuffer buffer;
+
+    public BinaryMessageReader(ByteBuffer buffer) {
+        this.buffer = requireNonNull(buffer);
+    }
+
+    private void require(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            throw new IOException("Unexpected end of message, needed " + bytes + " bytes, but only "
+                    + buffer.remaining() + " was available");
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    void retainBody(ConnectionMessage message) {
+        // the buffer might be reused once the message has been read, so the fields are copied
+        byte[] body = new byte[buffer.remaining()];
+        buffer.duplicate().get(body);
+        message.retainReceivedBody(body);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean hasMore() {
+        return buffer.hasRemaining();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean takeBoolean() throws IOException {
+        require(1);
+        byte b = buffer.get();
+        if (b != 0 && b != 1) {
+            throw new IOException("Expected a boolean, but was " + b);
+        }
+        return b == 1;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public double takeDouble() throws IOException {
+        require(8);
+        return buffer.getDouble();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int takeInt() throws IOException {
+        long v = readVarint();
+        if (v >>> 32 != 0) {
+            throw new IOException("Expected an integer, but was " + v);
+        }
+        int n = (int) v;
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long takeLong() throws IOException {
+        long v = readVarint();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String takeString() throws IOException {
+        long v = readVarint();
+        if (v == 0) {
+            return null;
+        }
+        int length = requireLength(v - 1);
+        String s;
+        if (buffer.hasArray()) {
+            s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String takeJson() throws IOException {
+        return takeString(); // always length prefixed, never escaped
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void skipJson() throws IOException {
+        skipString();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void skipString() throws IOException {
+        long v = readVarint();
+        if (v != 0) {
+            buffer.position(buffer.position() + requireLength(v - 1));
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String[] takeStringArray() throws IOException {
+        // each string takes at least one byte
+        String[] result = new String[requireLength(readVarint())];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = takeString();
+        }
+        return result;
+    }
+
+    /**
+     * Checks a length read from the message. Varints are unsigned, so a malformed length might be negative when read
+     * as a long.
+     * 
+     * @return the length
+     * @throws IOException
+     *             if the length is negative or larger than the number of bytes remaining
+     */
+    private int requireLength(long length) throws IOException {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Expected a length of at most " + buffer.remaining() + " bytes, but was "
+                    + length);
+        }
+        return (int) length;
+    }
+
+    private long readVarint() throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            require(1);
+            byte b = buffer.get();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -0,0 +1,252 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.messages;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Writes a message in the compact binary format. Integers and longs are written as zigzag encoded varints, doubles as 8
+ * byte IEEE 754 values in big-endian order, and strings as their UTF-8 encoding prefixed with the length plus one as
+ * a varint. A length prefix of zero denotes a null string.
+ * 
+ * @author Kasper Nielsen
+ * @see BinaryMessageReader
+ */
+public class BinaryMessageWriter extends MessageWriter {
+
+    private byte[] buf;
+
+    private int pos;
+
+    public BinaryMessageWriter() {
+        this(64);
+    }
+
+    public BinaryMessageWriter(int initialCapacity) {
+        buf = new byte[Math.max(16, initialCapacity)];
+    }
+
+    private void ensureCapacity(int extra) {
+        if (pos + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length << 1, pos + extra));
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public BinaryMessageWriter writeBoolean(boolean b) {
+        ensureCapacity(1);
+        buf[pos++] = (byte) (b ? 1 : 0);
+        return this;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public BinaryMessageWriter writeDouble(double d) {
+        ensureCapacity(8);
+        long bits = Double.doubleToLongBits(d);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buf[pos++] = (byte) (bits >>> shift);
+        }
+        return this;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public BinaryMessageWriter writeInt(int i) {
+        writeVarint(((i << 1) ^ (i >> 31)) & 0xFFFFFFFFL);
+        return this;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public BinaryMessageWriter writeLong(long l) {
+        writeVarint((l << 1) ^ (l >> 63));
+        return this;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public BinaryMessageWriter writeString(String s) {
+        if (s == null) {
+            writeVarint(0);
+            return this;
+        }
+        int length = s.length();
+        int utf8Length = utf8Length(s);
+        writeVarint(utf8Length + 1L);
+        ensureCapacity(utf8Length);
+        byte[] buf = this.buf;
+        int pos = this.pos;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buf[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xC0 | c >> 6);
+                buf[pos++] = (byte) (0x80 | c & 0x3F);
+            } else if (!Character.isSurrogate(c)) {
+                buf[pos++] = (byte) (0xE0 | c >> 12);
+                buf[pos++] = (byte) (0x80 | c >> 6 & 0x3F);
+                buf[pos++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[pos++] = (byte) (0xF0 | cp >> 18);
+                buf[pos++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                buf[pos++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                buf[pos++] = (byte) (0x80 | cp & 0x3F);
+            } else {
+                buf[pos++] = '?'; // unpaired surrogate, same as String.getBytes(UTF_8)
+            }
+        }
+        this.pos = pos;
+        return this;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public BinaryMessageWriter writeJson(String json) {
+        return writeString(json); // always length prefixed, never escaped
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public BinaryMessageWriter writeStringArray(String... s) {
+        writeVarint(s.length);
+        for (String str : s) {
+            writeString(str);
+        }
+        return this;
+    }
+
+    /**
+     * Writes the specified bytes as they are, without any length prefix.
+     * 
+     * @param bytes
+     *            the bytes to write
+     * @return this writer
+     */
+    BinaryMessageWriter writeRawBytes(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buf, pos, bytes.length);
+        pos += bytes.length;
+        return this;
+    }
+
+    /**
+     * Writes the remaining bytes of the specified buffer as they are, without any length prefix.
+     * 
+     * @param bytes
+     *            the bytes to write
+     * @return this writer
+     */
+    BinaryMessageWriter writeRawBytes(ByteBuffer bytes) {
+        int length = bytes.remaining();
+        ensureCapacity(length);
+        bytes.get(buf, pos, length);
+        pos += length;
+        return this;
+    }
+
+    private void writeVarint(long v) {
+        ensureCapacity(10);
+        while ((v & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[pos++] = (byte) v;
+    }
+
+    /**
+     * Writes a long as a zigzag encoded varint directly into the specified buffer, the same way as
+     * {@link #writeLong(long)} and {@link #writeInt(int)}.
+     *
+     * @param target
+     *            the buffer to write to
+     * @param l
+     *            the value to write
+     */
+    static void writeLong(ByteBuffer target, long l) {
+        long v = (l << 1) ^ (l >> 63);
+        while ((v & ~0x7FL) != 0) {
+            target.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        target.put((byte) v);
+    }
+
+    /**
+     * Returns the number of bytes {@link #writeLong(long)} or {@link #writeInt(int)} writes for the specified value.
+     *
+     * @param l
+     *            the value
+     * @return the number of bytes the value is encoded as
+     */
+    static int sizeOfLong(long l) {
+        long v = (l << 1) ^ (l >> 63);
+        return v == 0 ? 1 : (63 - Long.numberOfLeadingZeros(v)) / 7 + 1;
+    }
+
+    /**
+     * Returns the number of bytes that has been written.
+     * 
+     * @return the number of bytes that has been written
+     */
+    public int size() {
+        return pos;
+    }
+
+    /**
+     * Returns a copy of the bytes that has been written.
+     * 
+     * @return a copy of the bytes that has been written
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, pos);
+    }
+
+    /**
+     * Returns a buffer wrapping the bytes that has been written. The writer should not be used after this method has
+     * been invoked.
+     * 
+     * @return a buffer wrapping the bytes that has been written
+     */
+    public ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(buf, 0, pos);
+    }
+
+    static int utf8Length(String s) {
+        int length = s.length();
+        int result = length;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    result += 1;
+                } else if (!Character.isSurrogate(c)) {
+                    result += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < length
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    result += 2; // 4 bytes for the 2 chars
+                    i++;
+                } // else an unpaired surrogate is written as a single '?'
+
+            }
+        }
+        return result;
+    }
+}
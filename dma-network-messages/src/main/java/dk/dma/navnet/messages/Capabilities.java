@@ -0,0 +1,62 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.messages;
+
+/**
+ * Optional protocol features that are negotiated when connecting. The server lists the capabilities it supports in
+ * the welcome message. The client replies with the subset it wants to use in the hello message. Peers that do not
+ * know about capabilities never send them, and will only use the features of the original protocol.
+ * 
+ * @author Kasper Nielsen
+ */
+public final class Capabilities {
+
+    /** Messages may be sent as binary WebSocket frames using {@link BinaryMessageWriter}. */
+    public static final String BINARY = "binary";
+
+    /** Several connection messages may be sent in a single WebSocket frame using {@link MessageBatch}. */
+    public static final String BATCH = "batch";
+
+    /**
+     * The payloads of broadcasts and service invocations may be embedded as JSON in text messages, instead of as
+     * escaped strings. Peers that have negotiated this still read payloads sent as strings.
+     */
+    public static final String JSON = "json";
+
+    /** Received messages may be acknowledged with a standalone {@link dk.dma.navnet.messages.auxiliary.AckMessage}. */
+    public static final String ACK = "ack";
+
+    /** Cannot instantiate. */
+    private Capabilities() {}
+
+    /**
+     * Returns whether or not the specified capabilities contains the specified capability.
+     * 
+     * @param capabilities
+     *            the capabilities
+     * @param capability
+     *            the capability to look for
+     * @return whether or not the capabilities contains the capability
+     */
+    public static boolean contains(String[] capabilities, String capability) {
+        for (String c : capabilities) {
+            if (capability.equals(c)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,171 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.messages;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * The Jackson state that is shared by all message codecs. Creating a JSON factory or an object mapper is expensive and
+ * throws away the serializers and deserializers Jackson has already built. So a single mapper is shared by all
+ * threads, and the immutable object readers and writers created from it are cached per class.
+ * <p>
+ * Broadcast channels and service types are transmitted as class names. Readers are also cached by class name, so
+ * decoding a payload does not need to look up the class every time.
+ * 
+ * @author Kasper Nielsen
+ */
+public final class CodecContext {
+
+    /** The shared mapper. Must not be reconfigured after it has been created. */
+    private static final ObjectMapper MAPPER = new ObjectMapper().disable(SerializationFeature.FAIL_ON_EMPTY_BEANS);
+
+    /** Readers by class. */
+    private static final ConcurrentHashMap<Class<?>, ObjectReader> READERS = new ConcurrentHashMap<>();
+
+    /** Readers by the name of the class, only names of classes that could be loaded are cached. */
+    private static final ConcurrentHashMap<String, ObjectReader> READERS_BY_NAME = new ConcurrentHashMap<>();
+
+    /** Writers by class. */
+    private static final ConcurrentHashMap<Class<?>, ObjectWriter> WRITERS = new ConcurrentHashMap<>();
+
+    /** Cannot instantiate. */
+    private CodecContext() {}
+
+    /**
+     * Creates a new parser for the specified text using the shared JSON factory.
+     * 
+     * @param text
+     *            the text to parse
+     * @return a new parser
+     * @throws IOException
+     *             if the parser could not be created
+     */
+    public static JsonParser createParser(String text) throws IOException {
+        return MAPPER.getFactory().createJsonParser(text);
+    }
+
+    /**
+     * Returns a reader for the specified type.
+     * 
+     * @param type
+     *            the type to read
+     * @return a reader for the specified type
+     */
+    public static ObjectReader reader(Class<?> type) {
+        ObjectReader r = READERS.get(requireNonNull(type));
+        if (r == null) {
+            r = MAPPER.reader(type);
+            ObjectReader existing = READERS.putIfAbsent(type, r);
+            r = existing == null ? r : existing;
+        }
+        return r;
+    }
+
+    /**
+     * Returns a reader for the class with the specified name.
+     * 
+     * @param className
+     *            the name of the class to read
+     * @return a reader for the class with the specified name
+     * @throws ClassNotFoundException
+     *             if the class could not be found
+     */
+    public static ObjectReader reader(String className) throws ClassNotFoundException {
+        ObjectReader r = READERS_BY_NAME.get(requireNonNull(className));
+        if (r == null) {
+            r = reader(Class.forName(className));
+            ObjectReader existing = READERS_BY_NAME.putIfAbsent(className, r);
+            r = existing == null ? r : existing;
+        }
+        return r;
+    }
+
+    /**
+     * Returns a writer for the specified type.
+     * 
+     * @param type
+     *            the type to write
+     * @return a writer for the specified type
+     */
+    public static ObjectWriter writer(Class<?> type) {
+        ObjectWriter w = WRITERS.get(requireNonNull(type));
+        if (w == null) {
+            w = MAPPER.writerWithType(type);
+            ObjectWriter existing = WRITERS.putIfAbsent(type, w);
+            w = existing == null ? w : existing;
+        }
+        return w;
+    }
+
+    /**
+     * Reads an object of the specified type from the specified JSON text.
+     * 
+     * @param json
+     *            the text to read from
+     * @param type
+     *            the type of object to read
+     * @return the object that was read
+     * @throws IOException
+     *             if the object could not be read
+     */
+    public static <T> T read(String json, Class<T> type) throws IOException {
+        return type.cast(reader(type).readValue(json));
+    }
+
+    /**
+     * Reads an object from the specified JSON text, the type of the object is the class with the specified name.
+     * 
+     * @param json
+     *            the text to read from
+     * @param className
+     *            the name of the class of the object
+     * @return the object that was read
+     * @throws IOException
+     *             if the object could not be read
+     * @throws ClassNotFoundException
+     *             if the class could not be found
+     */
+    public static Object read(String json, String className) throws IOException, ClassNotFoundException {
+        return reader(className).readValue(json);
+    }
+
+    /**
+     * Writes the specified object as JSON text.
+     * 
+     * @param o
+     *            the object to write
+     * @return the JSON text
+     * @throws IllegalArgumentException
+     *             if the object could not be written
+     */
+    public static String write(Object o) {
+        try {
+            return writer(o.getClass()).writeValueAsString(o);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Could not be persisted", e);
+        }
+    }
+}
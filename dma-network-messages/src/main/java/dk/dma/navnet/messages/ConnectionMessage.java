@@ -16,6 +16,7 @@
 package dk.dma.navnet.messages;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * 
@@ -29,6 +30,27 @@ public abstract class ConnectionMessage extends TransportMessage {
     /** The last message id that was received by the remote end. */
     private long latestReceivedId;
 
+    /** The encoded fields following the header, lazily created by {@link #encodedBody()}. */
+    private volatile String encodedBody;
+
+    /** The encoded fields following the header with payloads embedded as JSON, see {@link #encodedJsonBody()}. */
+    private volatile String encodedJsonBody;
+
+    /** The binary encoded fields following the header, lazily created by {@link #encodedBinaryBody()}. */
+    private volatile byte[] encodedBinaryBody;
+
+    /** The text the message was received as, if the fields following the header are passed on exactly as received. */
+    private volatile String receivedText;
+
+    /** The part of {@link #receivedText} holding the fields following the header. */
+    private int receivedBodyStart, receivedBodyEnd;
+
+    /** Whether or not {@link #receivedText} might embed payloads as JSON, in which case not every peer can read it. */
+    private volatile boolean receivedJson;
+
+    /** The binary encoded fields following the header as they were received, if kept. */
+    private volatile byte[] receivedBinaryBody;
+
     // options
     // boolean fastack <- receiver should send some kind of ack immediatly
     /**
@@ -38,10 +60,70 @@ public abstract class ConnectionMessage extends TransportMessage {
         super(messageType);
     }
 
-    public ConnectionMessage(MessageType messageType, TextMessageReader pr) throws IOException {
+    public ConnectionMessage(MessageType messageType, MessageReader pr) throws IOException {
         super(messageType);
         this.messageId = pr.takeLong();
         this.latestReceivedId = pr.takeLong();
+        if (retainsReceivedBody()) {
+            pr.retainBody(this);
+        }
+    }
+
+    /**
+     * Returns whether or not the fields following the header should be kept as they were received when the message is
+     * read. In which case the message can be sent on by only writing a new header, without encoding the fields again.
+     * Only worth it for messages that are passed on without being changed, or that only read some of their fields
+     * when they are accessed.
+     *
+     * @return whether or not to keep the fields following the header as they were received
+     */
+    protected boolean retainsReceivedBody() {
+        return false;
+    }
+
+    /** Invoked by a text reader to keep the fields following the header as they were received. */
+    final void retainReceivedBody(String text, int start, int end, boolean json) {
+        receivedJson = json;
+        receivedBodyStart = start;
+        receivedBodyEnd = end;
+        receivedText = text;
+    }
+
+    /** Invoked by a binary reader to keep the fields following the header as they were received. */
+    final void retainReceivedBody(byte[] body) {
+        receivedBinaryBody = encodedBinaryBody = body;
+    }
+
+    /**
+     * Returns whether or not the fields following the header have been kept as they were received.
+     *
+     * @return whether or not the fields following the header have been kept as they were received
+     * @see #receivedBodyReader()
+     */
+    protected final boolean hasReceivedBody() {
+        return receivedText != null || receivedBinaryBody != null;
+    }
+
+    /**
+     * Returns a reader of the fields following the header as they were received. Used by messages that only read some
+     * of their fields when they are accessed.
+     *
+     * @return a reader of the fields following the header, or null if they were not kept or the message has been
+     *         changed since it was received
+     * @throws IOException
+     *             if the message could not be read
+     */
+    protected final MessageReader receivedBodyReader() throws IOException {
+        String text = receivedText;
+        if (text != null) {
+            TextMessageReader r = new TextMessageReader(text);
+            r.takeInt();
+            r.takeLong();
+            r.takeLong();
+            return r;
+        }
+        byte[] body = receivedBinaryBody;
+        return body == null ? null : new BinaryMessageReader(ByteBuffer.wrap(body));
     }
 
     /**
@@ -68,13 +150,251 @@ public abstract class ConnectionMessage extends TransportMessage {
         return this;
     }
 
+    /**
+     * Must be invoked by subclasses whenever a field that is written by {@link #write0(MessageWriter)} is changed
+     * after the message has been created.
+     */
+    protected final void invalidateEncoding() {
+        receivedText = null;
+        receivedJson = false;
+        receivedBinaryBody = null;
+        encodedBody = null;
+        encodedJsonBody = null;
+        encodedBinaryBody = null;
+    }
+
+    /**
+     * Returns the fields of the message following the message id and latest received id. The fields are only encoded
+     * once, so the same message can be sent to many connections without being serialized for each of them.
+     *
+     * @return the encoded fields of the message
+     */
+    final String encodedBody() {
+        String body = encodedBody;
+        if (body == null) {
+            String text = receivedText;
+            if (text != null && !receivedJson) {
+                body = text.substring(receivedBodyStart, receivedBodyEnd);
+            } else {
+                TextMessageWriter w = new TextMessageWriter(true);
+                write0(w);
+                body = w.sb.toString();
+            }
+            encodedBody = body;
+        }
+        return body;
+    }
+
+    /**
+     * Returns the fields of the message following the message id and latest received id, with payloads embedded as
+     * JSON.
+     *
+     * @return the encoded fields of the message
+     * @see #encodedBody()
+     */
+    final String encodedJsonBody() {
+        String body = encodedJsonBody;
+        if (body == null) {
+            String text = receivedText;
+            if (text != null) {
+                body = text.substring(receivedBodyStart, receivedBodyEnd);
+            } else {
+                TextMessageWriter w = new TextMessageWriter(true, true);
+                write0(w);
+                body = w.sb.toString();
+            }
+            encodedJsonBody = body;
+        }
+        return body;
+    }
+
+    /**
+     * Returns the approximate number of bytes the message takes up once encoded. Used for limiting how much is queued
+     * for a connection. Uses the fields of the message as they were received or have already been encoded, in either
+     * format. Only encodes the fields if they are not available in any format.
+     *
+     * @return the approximate number of bytes the message takes up once encoded
+     */
+    public int getEncodedSize() {
+        String text = receivedText;
+        if (text != null) {
+            return receivedBodyEnd - receivedBodyStart + 48;
+        }
+        String body = encodedBody;
+        if (body != null) {
+            return body.length() + 48;
+        }
+        // a message received in a binary frame is not decoded just to find its size
+        byte[] binary = encodedBinaryBody;
+        return (binary != null ? binary.length : encodedBody().length()) + 48;
+    }
+
+    /**
+     * Returns the approximate number of bytes the message takes up once encoded in the specified format. A binary
+     * size encodes the binary fields, which are then reused when the message is sent. A text size is the same as
+     * {@link #getEncodedSize()}.
+     *
+     * @param binary
+     *            whether the message is going to be sent in a binary frame
+     * @return the approximate number of bytes the message takes up once encoded
+     */
+    public int getEncodedSize(boolean binary) {
+        return binary ? encodedBinaryBody().length + 22 : getEncodedSize();
+    }
+
+    /**
+     * Returns the binary encoded fields of the message following the message id and latest received id.
+     *
+     * @return the binary encoded fields of the message
+     * @see #encodedBody()
+     */
+    final byte[] encodedBinaryBody() {
+        byte[] body = encodedBinaryBody;
+        if (body == null) {
+            BinaryMessageWriter w = new BinaryMessageWriter();
+            write0(w);
+            encodedBinaryBody = body = w.toByteArray();
+        }
+        return body;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toJSON() {
+        return toJSON(messageId, latestReceivedId);
+    }
+
+    /**
+     * Encodes the message using the specified message id and latest received id instead of the ones set on the
+     * message. Unlike {@link #setMessageId(long)} and {@link #setLatestReceivedId(long)} this does not change the
+     * message. So it is safe to use when the same message instance is sent to multiple connections.
+     *
+     * @param messageId
+     *            the id of the message
+     * @param latestReceivedId
+     *            the last message id that was received by the remote end
+     * @return the encoded message
+     */
+    public String toJSON(long messageId, long latestReceivedId) {
+        return toJSON(messageId, latestReceivedId, false);
+    }
+
+    /**
+     * Encodes the message using the specified message id and latest received id instead of the ones set on the
+     * message.
+     *
+     * @param messageId
+     *            the id of the message
+     * @param latestReceivedId
+     *            the last message id that was received by the remote end
+     * @param json
+     *            whether or not to embed payloads as JSON, only if the receiver has negotiated
+     *            {@link Capabilities#JSON}
+     * @return the encoded message
+     * @see #toJSON(long, long)
+     */
+    public String toJSON(long messageId, long latestReceivedId, boolean json) {
+        return appendJSON(new StringBuilder(0), messageId, latestReceivedId, json).toString();
+    }
+
+    /**
+     * Appends the encoded message to the specified builder. Used for encoding several messages into a single frame
+     * without creating a string for each of them.
+     *
+     * @param sb
+     *            the builder to append to
+     * @param messageId
+     *            the id of the message
+     * @param latestReceivedId
+     *            the last message id that was received by the remote end
+     * @param json
+     *            whether or not to embed payloads as JSON
+     * @return the specified builder
+     * @see #toJSON(long, long, boolean)
+     */
+    final StringBuilder appendJSON(StringBuilder sb, long messageId, long latestReceivedId, boolean json) {
+        // a received message that is passed on only has its header rewritten, the fields are copied as received
+        String text = receivedText;
+        int start = 0;
+        int end;
+        if (text != null && (json || !receivedJson)) {
+            start = receivedBodyStart;
+            end = receivedBodyEnd;
+        } else {
+            text = json ? encodedJsonBody() : encodedBody();
+            end = text.length();
+        }
+        sb.ensureCapacity(sb.length() + end - start + 48);
+        sb.append('[').append(getMessageType().type);
+        sb.append(", ").append(messageId);
+        sb.append(", ").append(latestReceivedId);
+        return sb.append(text, start, end).append(']');
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public ByteBuffer toBinary() {
+        return toBinary(messageId, latestReceivedId);
+    }
+
+    /**
+     * Binary encodes the message using the specified message id and latest received id instead of the ones set on
+     * the message.
+     *
+     * @param messageId
+     *            the id of the message
+     * @param latestReceivedId
+     *            the last message id that was received by the remote end
+     * @return the encoded message
+     * @see #toJSON(long, long)
+     */
+    public ByteBuffer toBinary(long messageId, long latestReceivedId) {
+        ByteBuffer bb = ByteBuffer.allocate(binarySize(messageId, latestReceivedId));
+        writeBinary(bb, messageId, latestReceivedId);
+        bb.flip();
+        return bb;
+    }
+
+    /**
+     * Returns the number of bytes the message takes up when binary encoded with the specified ids.
+     *
+     * @param messageId
+     *            the id of the message
+     * @param latestReceivedId
+     *            the last message id that was received by the remote end
+     * @return the number of bytes the message takes up when binary encoded
+     * @see #writeBinary(ByteBuffer, long, long)
+     */
+    final int binarySize(long messageId, long latestReceivedId) {
+        return BinaryMessageWriter.sizeOfLong(getMessageType().type) + BinaryMessageWriter.sizeOfLong(messageId)
+                + BinaryMessageWriter.sizeOfLong(latestReceivedId) + encodedBinaryBody().length;
+    }
+
+    /**
+     * Binary encodes the message directly into the specified buffer, which must have at least
+     * {@link #binarySize(long, long)} bytes remaining.
+     *
+     * @param target
+     *            the buffer to write to
+     * @param messageId
+     *            the id of the message
+     * @param latestReceivedId
+     *            the last message id that was received by the remote end
+     */
+    final void writeBinary(ByteBuffer target, long messageId, long latestReceivedId) {
+        BinaryMessageWriter.writeLong(target, getMessageType().type);
+        BinaryMessageWriter.writeLong(target, messageId);
+        BinaryMessageWriter.writeLong(target, latestReceivedId);
+        target.put(encodedBinaryBody());
+    }
+
     /** {@inheritDoc} */
     @Override
-    protected final void write(TextMessageWriter w) {
+    protected final void write(MessageWriter w) {
         w.writeLong(messageId);
         w.writeLong(latestReceivedId);
         write0(w);
     }
 
-    protected abstract void write0(TextMessageWriter w);
+    protected abstract void write0(MessageWriter w);
 }
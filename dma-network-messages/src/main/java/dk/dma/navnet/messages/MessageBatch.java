@@ -0,0 +1,309 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.messages;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import dk.dma.navnet.messages.util.BufferPool;
+
+/**
+ * A number of connection messages that are sent in a single WebSocket frame. Sending many small messages, such as
+ * position reports and acks, one frame at a time means the per frame overhead dominates.
+ * <p>
+ * A text frame holds the messages separated by a newline. A message never contains a raw newline, as
+ * {@link TextMessageWriter} escapes them. A binary frame starts with the type id {@value #BINARY_BATCH}, which is
+ * never used by a message, followed by the number of messages, and the length and bytes of each message. A batch with
+ * a single message is sent exactly like a message that is not batched. So the receiving end can always use
+ * {@link #parse(String)} or {@link #parse(ByteBuffer)}, whether or not batching has been negotiated.
+ * 
+ * @author Kasper Nielsen
+ */
+public class MessageBatch {
+
+    /** The type id that marks a binary frame holding several messages. */
+    static final int BINARY_BATCH = 0;
+
+    /** The default maximum number of messages in a batch. */
+    public static final int DEFAULT_MAX_MESSAGES = 64;
+
+    /** The default maximum number of bytes (characters for text frames) in a batch. */
+    public static final int DEFAULT_MAX_BYTES = 32 * 1024;
+
+    /** Whether or not this is a binary batch. */
+    private final boolean binary;
+
+    /** Whether or not payloads are embedded as JSON in a text batch. */
+    private final boolean json;
+
+    /** The number of messages in the batch. */
+    private int count;
+
+    /** The messages of a text batch, each message is encoded directly into it. */
+    private StringBuilder text;
+
+    /** The messages of a binary batch, they are not encoded until the frame is written. */
+    private ConnectionMessage[] messages;
+
+    /** The message id and latest received id of each message in a binary batch. */
+    private long[] ids;
+
+    /** The size of the first message of a binary batch. */
+    private int firstSize;
+
+    /** The size of the length prefixed messages of a binary batch. */
+    private int binarySize;
+
+    /**
+     * Creates a new empty batch.
+     * 
+     * @param binary
+     *            whether or not to create a binary batch
+     */
+    public MessageBatch(boolean binary) {
+        this(binary, false);
+    }
+
+    /**
+     * Creates a new empty batch.
+     * 
+     * @param binary
+     *            whether or not to create a binary batch
+     * @param json
+     *            whether or not to embed payloads as JSON in a text batch, only if {@link Capabilities#JSON} has been
+     *            negotiated
+     */
+    public MessageBatch(boolean binary, boolean json) {
+        this.binary = binary;
+        this.json = json;
+    }
+
+    /**
+     * Adds the specified message to this batch.
+     * 
+     * @param message
+     *            the message to add
+     * @param messageId
+     *            the id of the message
+     * @param latestReceivedId
+     *            the id of the latest message received from the remote end
+     * @return this batch
+     */
+    public MessageBatch add(ConnectionMessage message, long messageId, long latestReceivedId) {
+        if (binary) {
+            if (count == 0) {
+                messages = new ConnectionMessage[4];
+                ids = new long[8];
+            } else if (count == messages.length) {
+                messages = Arrays.copyOf(messages, count * 2);
+                ids = Arrays.copyOf(ids, count * 4);
+            }
+            messages[count] = message;
+            ids[2 * count] = messageId;
+            ids[2 * count + 1] = latestReceivedId;
+            int size = message.binarySize(messageId, latestReceivedId);
+            if (count == 0) {
+                firstSize = size;
+            }
+            binarySize += BinaryMessageWriter.sizeOfLong(size) + size;
+        } else {
+            if (count == 0) {
+                text = new StringBuilder(0);
+            } else {
+                text.append('\n');
+            }
+            message.appendJSON(text, messageId, latestReceivedId, json);
+        }
+        count++;
+        return this;
+    }
+
+    /**
+     * Returns the number of messages in this batch.
+     * 
+     * @return the number of messages in this batch
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Returns whether or not this is a binary batch.
+     * 
+     * @return whether or not this is a binary batch
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Returns the current size of the batch, in bytes for binary batches and in characters for text batches.
+     * 
+     * @return the current size of the batch
+     */
+    public int size() {
+        if (count == 0) {
+            return 0;
+        } else if (!binary) {
+            return text.length();
+        }
+        return count == 1 ? firstSize : BinaryMessageWriter.sizeOfLong(BINARY_BATCH)
+                + BinaryMessageWriter.sizeOfLong(count) + binarySize;
+    }
+
+    /**
+     * Returns the text frame of this batch.
+     * 
+     * @return the text frame of this batch
+     * @throws IllegalStateException
+     *             if this is a binary batch or the batch is empty
+     */
+    public String toText() {
+        if (binary || count == 0) {
+            throw new IllegalStateException();
+        }
+        return text.toString();
+    }
+
+    /**
+     * Returns the binary frame of this batch.
+     * 
+     * @return the binary frame of this batch
+     * @throws IllegalStateException
+     *             if this is a text batch or the batch is empty
+     */
+    public ByteBuffer toBinary() {
+        return writeBinary(ByteBuffer.allocate(frameSize()));
+    }
+
+    /**
+     * Encodes the binary frame of this batch directly into a buffer acquired from the specified pool. The buffer must
+     * be released to the pool once it has been sent.
+     * 
+     * @param pool
+     *            the pool to acquire the buffer from
+     * @return the binary frame of this batch
+     * @throws IllegalStateException
+     *             if this is a text batch or the batch is empty
+     */
+    public ByteBuffer toBinary(BufferPool pool) {
+        return writeBinary(pool.acquire(frameSize()));
+    }
+
+    /** Returns the size of the binary frame of this batch. */
+    private int frameSize() {
+        if (!binary || count == 0) {
+            throw new IllegalStateException();
+        }
+        return size();
+    }
+
+    private ByteBuffer writeBinary(ByteBuffer target) {
+        if (count == 1) {
+            messages[0].writeBinary(target, ids[0], ids[1]);
+        } else {
+            BinaryMessageWriter.writeLong(target, BINARY_BATCH);
+            BinaryMessageWriter.writeLong(target, count);
+            for (int i = 0; i < count; i++) {
+                long messageId = ids[2 * i];
+                long latestReceivedId = ids[2 * i + 1];
+                BinaryMessageWriter.writeLong(target, messages[i].binarySize(messageId, latestReceivedId));
+                messages[i].writeBinary(target, messageId, latestReceivedId);
+            }
+        }
+        target.flip();
+        return target;
+    }
+
+    /**
+     * Parses a text frame that holds one or more messages.
+     * 
+     * @param frame
+     *            the frame to parse
+     * @return the messages of the frame
+     * @throws IOException
+     *             if the frame could not be parsed
+     */
+    public static List<TransportMessage> parse(String frame) throws IOException {
+        return parse(frame, false);
+    }
+
+    /**
+     * Parses a text frame that holds one or more messages.
+     * 
+     * @param frame
+     *            the frame to parse
+     * @param json
+     *            whether or not the messages might embed payloads as JSON, which is the case if they were received
+     *            from a peer that has negotiated {@link Capabilities#JSON}
+     * @return the messages of the frame
+     * @throws IOException
+     *             if the frame could not be parsed
+     */
+    public static List<TransportMessage> parse(String frame, boolean json) throws IOException {
+        int end = frame.indexOf('\n');
+        if (end < 0) {
+            return Collections.singletonList(TransportMessage.parseMessage(frame, json));
+        }
+        List<TransportMessage> result = new ArrayList<>();
+        int start = 0;
+        while (end >= 0) {
+            result.add(TransportMessage.parseMessage(frame.substring(start, end), json));
+            start = end + 1;
+            end = frame.indexOf('\n', start);
+        }
+        result.add(TransportMessage.parseMessage(frame.substring(start), json));
+        return result;
+    }
+
+    /**
+     * Parses a binary frame that holds one or more messages.
+     * 
+     * @param frame
+     *            the frame to parse
+     * @return the messages of the frame
+     * @throws IOException
+     *             if the frame could not be parsed
+     */
+    public static List<TransportMessage> parse(ByteBuffer frame) throws IOException {
+        // the type id is a varint, so 0 is encoded as a single 0 byte
+        if (!frame.hasRemaining() || frame.get(frame.position()) != BINARY_BATCH) {
+            return Collections.singletonList(TransportMessage.parseMessage(frame));
+        }
+        BinaryMessageReader r = new BinaryMessageReader(frame);
+        r.takeInt();
+        int count = r.takeInt();
+        if (count < 0) {
+            throw new IOException("Invalid number of messages in batch, was " + count);
+        }
+        List<TransportMessage> result = new ArrayList<>(Math.min(count, DEFAULT_MAX_MESSAGES));
+        for (int i = 0; i < count; i++) {
+            int length = r.takeInt();
+            if (length < 0 || length > frame.remaining()) {
+                throw new IOException("Invalid message length in batch, was " + length);
+            }
+            ByteBuffer message = frame.duplicate();
+            message.limit(frame.position() + length);
+            frame.position(frame.position() + length);
+            result.add(TransportMessage.parseMessage(message));
+        }
+        return result;
+    }
+}
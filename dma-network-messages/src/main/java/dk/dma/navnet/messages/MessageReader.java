@@ -0,0 +1,105 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.messages;
+
+import java.io.IOException;
+
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * Reads the fields of a message in the order they where written by a {@link MessageWriter}.
+ * 
+ * @author Kasper Nielsen
+ * @see TextMessageReader
+ * @see BinaryMessageReader
+ */
+public abstract class MessageReader {
+
+    /**
+     * Returns whether or not there are more fields to read. Used for reading fields that have been added to a message
+     * in later versions of the protocol, and which older peers do not send.
+     * 
+     * @return whether or not there are more fields to read
+     * @throws IOException
+     *             if the message could not be read
+     */
+    public abstract boolean hasMore() throws IOException;
+
+    public abstract boolean takeBoolean() throws IOException;
+
+    public abstract double takeDouble() throws IOException;
+
+    public abstract int takeInt() throws IOException;
+
+    /**
+     * Reads a position written by {@link MessageWriter#writePositionTime(PositionTime)}.
+     * 
+     * @return the position that was read
+     * @throws IOException
+     *             if the message could not be read
+     */
+    public PositionTime takePositionTime() throws IOException {
+        return PositionTime.create(takeDouble(), takeDouble(), takeLong());
+    }
+
+    public abstract long takeLong() throws IOException;
+
+    /**
+     * Reads a string, which may be null.
+     * 
+     * @return the string that was read
+     * @throws IOException
+     *             if the message could not be read
+     */
+    public abstract String takeString() throws IOException;
+
+    public abstract String[] takeStringArray() throws IOException;
+
+    /**
+     * Reads a payload written by {@link MessageWriter#writeJson(String)}, whether or not it was embedded as JSON.
+     * 
+     * @return the JSON text of the payload, or null
+     * @throws IOException
+     *             if the message could not be read
+     */
+    public abstract String takeJson() throws IOException;
+
+    /**
+     * Skips a payload written by {@link MessageWriter#writeJson(String)} without decoding it.
+     * 
+     * @throws IOException
+     *             if the message could not be read
+     */
+    public abstract void skipJson() throws IOException;
+
+    /**
+     * Skips a string, which may be null, without decoding it.
+     * 
+     * @throws IOException
+     *             if the message could not be read
+     */
+    public abstract void skipString() throws IOException;
+
+    /**
+     * Keeps the fields that have not yet been read as the encoded body of the specified message, so it can be sent on
+     * without encoding them again. Does nothing by default.
+     * 
+     * @param message
+     *            the message that is being read
+     * @see ConnectionMessage#retainsReceivedBody()
+     */
+    void retainBody(ConnectionMessage message) {}
+}
@@ -17,9 +17,11 @@ package dk.dma.navnet.messages;
 
 import static java.util.Objects.requireNonNull;
 
+import java.io.IOException;
 import java.util.Map.Entry;
 import java.util.TreeMap;
 
+import dk.dma.navnet.messages.auxiliary.AckMessage;
 import dk.dma.navnet.messages.auxiliary.ConnectedMessage;
 import dk.dma.navnet.messages.auxiliary.HelloMessage;
 import dk.dma.navnet.messages.auxiliary.PositionReportMessage;
@@ -46,16 +48,39 @@ public enum MessageType {
     // 0 - 9 : lifecycle, connect/reconnect/disconnect.. keep/alive
 
     /** This is the first message sent by the server to client. Whenever a Websocket connection has been created. */
-    WELCOME(1, WelcomeMessage.class), // 1. message from server 2 client
+    WELCOME(1, WelcomeMessage.class) {
+        WelcomeMessage read(MessageReader pr) throws IOException {
+            return new WelcomeMessage(pr);
+        }
+    }, // 1. message from server 2 client
 
     /** This is the first message from the client to server. Contains an optional reconnect token. */
-    HELLO(2, HelloMessage.class), // 1. message from client 2 server
+    HELLO(2, HelloMessage.class) {
+        HelloMessage read(MessageReader pr) throws IOException {
+            return new HelloMessage(pr);
+        }
+    }, // 1. message from client 2 server
 
     /** The final handshake massage from the server, contains the connection id */
-    CONNECTED(3, ConnectedMessage.class), // 2. message from server 2 client
+    CONNECTED(3, ConnectedMessage.class) {
+        ConnectedMessage read(MessageReader pr) throws IOException {
+            return new ConnectedMessage(pr);
+        }
+    }, // 2. message from server 2 client
+
+    /** Acknowledges received messages, when there are no outgoing messages to piggyback the ack on. */
+    ACK(4, AckMessage.class) {
+        AckMessage read(MessageReader pr) throws IOException {
+            return new AckMessage(pr);
+        }
+    },
 
     /** A keep alive message sent periodically. Contains current position/time. */
-    POSITION_REPORT(9, PositionReportMessage.class),
+    POSITION_REPORT(9, PositionReportMessage.class) {
+        PositionReportMessage read(MessageReader pr) throws IOException {
+            return new PositionReportMessage(pr);
+        }
+    },
 
     // Channel Switched + men er jo naesten det samme som reconnect
     // nej lige saa snart man er connected, starter man med at sende beskeder der
@@ -67,44 +92,100 @@ public enum MessageType {
     /* ******************** Communication client<->server ******************* */
 
     /** Registers a service with server. (client->server) */
-    REGISTER_SERVICE(100, RegisterService.class), // throws ServiceRegisterException
-    REGISTER_SERVICE_RESULT(101, RegisterServiceResult.class), // just an ack of the service???
+    REGISTER_SERVICE(100, RegisterService.class) {
+        RegisterService read(MessageReader pr) throws IOException {
+            return new RegisterService(pr);
+        }
+    }, // throws ServiceRegisterException
+    REGISTER_SERVICE_RESULT(101, RegisterServiceResult.class) {
+        RegisterServiceResult read(MessageReader pr) throws IOException {
+            return new RegisterServiceResult(pr);
+        }
+    }, // just an ack of the service???
 
     // servicen der skal unregistreres
-    UNREGISTER_SERVICE(110, RegisterService.class), //
-    UNREGISTER_SERVICE_ACK(111, RegisterServiceResult.class), // throws ServiceUnregisterException
+    UNREGISTER_SERVICE(110, RegisterService.class) {
+        RegisterService read(MessageReader pr) throws IOException {
+            return new RegisterService(pr);
+        }
+    },
+    UNREGISTER_SERVICE_ACK(111, RegisterServiceResult.class) {
+        RegisterServiceResult read(MessageReader pr) throws IOException {
+            return new RegisterServiceResult(pr);
+        }
+    }, // throws ServiceUnregisterException
 
-    FIND_SERVICE(120, FindService.class), //
-    FIND_SERVICE_ACK(121, FindServiceResult.class), // throws ServiceFindException
+    FIND_SERVICE(120, FindService.class) {
+        FindService read(MessageReader pr) throws IOException {
+            return new FindService(pr);
+        }
+    },
+    FIND_SERVICE_ACK(121, FindServiceResult.class) {
+        FindServiceResult read(MessageReader pr) throws IOException {
+            return new FindServiceResult(pr);
+        }
+    }, // throws ServiceFindException
 
     /* Broadcast */
 
     /** Broadcasts a message (client->server). */
-    BROADCAST_SEND(150, BroadcastSend.class), // client->server
+    BROADCAST_SEND(150, BroadcastSend.class) {
+        BroadcastSend read(MessageReader pr) throws IOException {
+            return new BroadcastSend(pr);
+        }
+    }, // client->server
 
     /** Acknowledgment of broadcast message (server->client). */
-    BROADCAST_SEND_ACK(151, BroadcastSendAck.class),
+    BROADCAST_SEND_ACK(151, BroadcastSendAck.class) {
+        BroadcastSendAck read(MessageReader pr) throws IOException {
+            return new BroadcastSendAck(pr);
+        }
+    },
 
     /** Relay of broadcast from server (server->client). */
-    BROADCAST_DELIVER(152, BroadcastDeliver.class),
+    BROADCAST_DELIVER(152, BroadcastDeliver.class) {
+        BroadcastDeliver read(MessageReader pr) throws IOException {
+            return new BroadcastDeliver(pr);
+        }
+    },
 
     /** Acknowledgment of successful broadcast for each client (server->client). */
-    BROADCAST_DELIVER_ACK(153, BroadcastAck.class),
+    BROADCAST_DELIVER_ACK(153, BroadcastAck.class) {
+        BroadcastAck read(MessageReader pr) throws IOException {
+            return new BroadcastAck(pr);
+        }
+    },
 
     /** The standard error message sent for an invalid request from the client */
-    REQUEST_ERROR(199, ServerRequestError.class), // <- requestId, int error_code, String message
+    REQUEST_ERROR(199, ServerRequestError.class) {
+        ServerRequestError read(MessageReader pr) throws IOException {
+            return new ServerRequestError(pr);
+        }
+    }, // <- requestId, int error_code, String message
 
     /* ******************** Communication client<->client ******************* */
 
     /* Service invocation */
     /** Invokes a service. */
-    SERVICE_INVOKE(200, InvokeService.class), //
+    SERVICE_INVOKE(200, InvokeService.class) {
+        InvokeService read(MessageReader pr) throws IOException {
+            return new InvokeService(pr);
+        }
+    },
 
     /** The successful result of invoking a service. */
-    SERVICE_INVOKE_RESULT(201, InvokeServiceResult.class), //
+    SERVICE_INVOKE_RESULT(201, InvokeServiceResult.class) {
+        InvokeServiceResult read(MessageReader pr) throws IOException {
+            return new InvokeServiceResult(pr);
+        }
+    },
 
     /** Invoking a service failed. */
-    SERVICE_INVOKE_ERROR(255, ServerRequestError.class);// indeholder lidt additional info taenker jeg
+    SERVICE_INVOKE_ERROR(255, ServerRequestError.class) {
+        ServerRequestError read(MessageReader pr) throws IOException {
+            return new ServerRequestError(pr);
+        }
+    }; // indeholder lidt additional info taenker jeg
 
     final Class<? extends TransportMessage> cl;
 
@@ -118,10 +199,39 @@ public enum MessageType {
         this.cl = requireNonNull(cl);
     }
 
+    /**
+     * Reads a message of this type. The reader must be positioned just after the type of the message.
+     * 
+     * @param pr
+     *            the reader to read the message from
+     * @return the message that was read
+     * @throws IOException
+     *             if the message could not be read
+     */
+    abstract TransportMessage read(MessageReader pr) throws IOException;
+
     public static Class<? extends TransportMessage> getType(int type) {
         return HelperHolder.TYPES[type].cl;
     }
 
+    /**
+     * Returns the message type with the specified id.
+     * 
+     * @param type
+     *            the id of the message type
+     * @return the message type with the specified id
+     * @throws IOException
+     *             if there is no message type with the specified id
+     */
+    static MessageType fromType(int type) throws IOException {
+        MessageType[] types = HelperHolder.TYPES;
+        MessageType mt = type > 0 && type < types.length ? types[type] : null;
+        if (mt == null) {
+            throw new IOException("Unknown message type " + type);
+        }
+        return mt;
+    }
+
     /** A little initialization-on-demand holder idiom helper class */
     private static class HelperHolder {
         static MessageType[] TYPES;
@@ -0,0 +1,86 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.messages;
+
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * Writes the fields of a message in order. Messages only write through this class, so they can be encoded with any
+ * of the wire formats.
+ * 
+ * @author Kasper Nielsen
+ * @see TextMessageWriter
+ * @see BinaryMessageWriter
+ */
+public abstract class MessageWriter {
+
+    public abstract MessageWriter writeBoolean(boolean b);
+
+    public abstract MessageWriter writeDouble(double d);
+
+    /**
+     * Writes a latitude or a longitude. Text writers only write the 7 decimals that are needed for a precision of
+     * about 1 cm, instead of every digit of the double.
+     * 
+     * @param degrees
+     *            the latitude or longitude in degrees
+     * @return this writer
+     * @see MessageReader#takeDouble()
+     */
+    public MessageWriter writeCoordinate(double degrees) {
+        return writeDouble(degrees);
+    }
+
+    /**
+     * Writes the latitude, longitude and time of the specified position.
+     * 
+     * @param positionTime
+     *            the position to write
+     * @return this writer
+     * @see MessageReader#takePositionTime()
+     */
+    public MessageWriter writePositionTime(PositionTime positionTime) {
+        writeCoordinate(positionTime.getLatitude());
+        writeCoordinate(positionTime.getLongitude());
+        return writeLong(positionTime.getTime());
+    }
+
+    public abstract MessageWriter writeInt(int i);
+
+    public abstract MessageWriter writeLong(long l);
+
+    /**
+     * Writes the specified string. The string may be null.
+     * 
+     * @param s
+     *            the string to write
+     * @return this writer
+     */
+    public abstract MessageWriter writeString(String s);
+
+    public abstract MessageWriter writeStringArray(String... s);
+
+    /**
+     * Writes a payload that has been serialized to JSON, such as a broadcast or the argument of a service invocation.
+     * Writers that embed payloads as JSON write it as is, others write it as a string. The payload may be null.
+     * 
+     * @param json
+     *            the JSON text to write
+     * @return this writer
+     * @see MessageReader#takeJson()
+     */
+    public abstract MessageWriter writeJson(String json);
+}
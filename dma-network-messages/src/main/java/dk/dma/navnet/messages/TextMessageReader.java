@@ -20,29 +20,75 @@ import static java.util.Objects.requireNonNull;
 import java.io.IOException;
 import java.util.ArrayList;
 
-import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
 
 /**
+ * Reads a message that was written by {@link TextMessageWriter}.
  * 
  * @author Kasper Nielsen
  */
-public class TextMessageReader {
+public class TextMessageReader extends MessageReader {
+
+    /** Powers of ten that are exact doubles, used by {@link #parseDecimal(char[], int, int)}. */
+    private static final double[] POW10 = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13,
+            1e14, 1e15 };
 
     private final JsonParser jp;
 
+    /** The message that is read. */
+    private final String message;
+
+    /** Whether or not the message might embed payloads as JSON. */
+    private final boolean json;
+
+    /** A token that has been read by {@link #hasMore()} but not yet consumed, or null. */
+    private JsonToken peeked;
+
     public TextMessageReader(String message) throws IOException {
-        requireNonNull(message);
-        JsonFactory jsonF = new JsonFactory();
-        jp = jsonF.createJsonParser(message);
+        this(message, false);
+    }
+
+    /**
+     * Creates a new reader.
+     * 
+     * @param message
+     *            the message to read
+     * @param json
+     *            whether or not the message might embed payloads as JSON, which is the case if it was received from a
+     *            peer that has negotiated {@link Capabilities#JSON}
+     * @throws IOException
+     *             if the message could not be read
+     */
+    public TextMessageReader(String message, boolean json) throws IOException {
+        this.message = requireNonNull(message);
+        this.json = json;
+        jp = CodecContext.createParser(message);
         if (jp.nextToken() != JsonToken.START_ARRAY) {
             throw new IOException("Expected the start of a JSON array, but was '" + jp.getText() + "'");
         }
     }
 
+    private JsonToken nextToken() throws IOException {
+        JsonToken t = peeked;
+        if (t != null) {
+            peeked = null;
+            return t;
+        }
+        return jp.nextToken();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean hasMore() throws IOException {
+        if (peeked == null) {
+            peeked = jp.nextToken();
+        }
+        return peeked != null && peeked != JsonToken.END_ARRAY;
+    }
+
     public boolean takeBoolean() throws IOException {
-        JsonToken t = jp.nextToken();
+        JsonToken t = nextToken();
         if (t != JsonToken.VALUE_FALSE && t != JsonToken.VALUE_TRUE) {
             throw new IOException("Expected a boolean, but was '" + jp.getText() + "'");
         }
@@ -50,41 +96,143 @@ public class TextMessageReader {
     }
 
     public int takeInt() throws IOException {
-        if (jp.nextToken() != JsonToken.VALUE_NUMBER_INT) {
+        if (nextToken() != JsonToken.VALUE_NUMBER_INT) {
             throw new IOException("Expected an integer, but was '" + jp.getText() + "'");
         }
         return jp.getIntValue();
     }
 
     public long takeLong() throws IOException {
-        if (jp.nextToken() != JsonToken.VALUE_NUMBER_INT) {
+        if (nextToken() != JsonToken.VALUE_NUMBER_INT) {
             throw new IOException("Expected an long, but was '" + jp.getText() + "'");
         }
         return jp.getLongValue();
     }
 
     public double takeDouble() throws IOException {
-        if (jp.nextToken() != JsonToken.VALUE_NUMBER_FLOAT) {
-            throw new IOException("Expected an integer, but was '" + jp.getText() + "'");
+        JsonToken t = nextToken();
+        if (t != JsonToken.VALUE_NUMBER_FLOAT && t != JsonToken.VALUE_NUMBER_INT) {
+            throw new IOException("Expected a double, but was '" + jp.getText() + "'");
+        }
+        // Jackson creates a string for every floating point number it parses
+        double d = parseDecimal(jp.getTextCharacters(), jp.getTextOffset(), jp.getTextLength());
+        return Double.isNaN(d) ? jp.getDoubleValue() : d;
+    }
+
+    /**
+     * Parses a plain decimal number, such as a coordinate written by {@link TextMessageWriter#writeCoordinate(double)},
+     * without creating a string. Only numbers with at most 15 digits and no exponent are parsed. Both the digits and
+     * the power of ten they are divided by are then exact doubles, so the quotient is correctly rounded.
+     * 
+     * @param chars
+     *            the characters holding the number
+     * @param offset
+     *            the index of the first character of the number
+     * @param length
+     *            the number of characters in the number
+     * @return the number, or NaN if it must be parsed the slow way
+     */
+    static double parseDecimal(char[] chars, int offset, int length) {
+        int end = offset + length;
+        boolean negative = length > 0 && chars[offset] == '-';
+        long digits = 0;
+        int count = 0;
+        int decimals = -1;
+        for (int i = negative ? offset + 1 : offset; i < end; i++) {
+            char c = chars[i];
+            if (c >= '0' && c <= '9') {
+                if (++count > 15) {
+                    return Double.NaN;
+                }
+                digits = digits * 10 + c - '0';
+                if (decimals >= 0) {
+                    decimals++;
+                }
+            } else if (c == '.' && decimals < 0) {
+                decimals = 0;
+            } else {
+                return Double.NaN;
+            }
         }
-        return jp.getDoubleValue();
+        if (count == 0) {
+            return Double.NaN;
+        }
+        double d = decimals > 0 ? digits / POW10[decimals] : digits;
+        return negative ? -d : d;
     }
 
     public String takeString() throws IOException {
-        if (jp.nextToken() != JsonToken.VALUE_STRING) {
+        JsonToken t = nextToken();
+        if (t == JsonToken.VALUE_NULL) {
+            return null;
+        } else if (t != JsonToken.VALUE_STRING) {
+            throw new IOException("Expected an String, but was '" + jp.getText() + "'");
+        }
+        return jp.getText();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void skipString() throws IOException {
+        // the parser only decodes the characters of a string when its text is requested
+        JsonToken t = nextToken();
+        if (t != JsonToken.VALUE_NULL && t != JsonToken.VALUE_STRING) {
             throw new IOException("Expected an String, but was '" + jp.getText() + "'");
         }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String takeJson() throws IOException {
+        JsonToken t = nextToken();
+        if (t == JsonToken.START_OBJECT || t == JsonToken.START_ARRAY) {
+            int start = (int) jp.getTokenLocation().getCharOffset();
+            jp.skipChildren();
+            return message.substring(start, (int) jp.getCurrentLocation().getCharOffset());
+        } else if (t == JsonToken.VALUE_NULL) {
+            return null;
+        } else if (t != JsonToken.VALUE_STRING) {
+            throw new IOException("Expected JSON, but was '" + jp.getText() + "'");
+        }
         return jp.getText();
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public void skipJson() throws IOException {
+        JsonToken t = nextToken();
+        if (t == JsonToken.START_OBJECT || t == JsonToken.START_ARRAY) {
+            jp.skipChildren();
+        } else if (t != JsonToken.VALUE_NULL && t != JsonToken.VALUE_STRING) {
+            throw new IOException("Expected JSON, but was '" + jp.getText() + "'");
+        }
+    }
+
     public String[] takeStringArray() throws IOException {
-        if (jp.nextToken() != JsonToken.START_ARRAY) {
+        if (nextToken() != JsonToken.START_ARRAY) {
             throw new IOException("Expected an String, but was '" + jp.getText() + "'");
         }
         ArrayList<String> result = new ArrayList<>();
-        while (jp.nextToken() != JsonToken.END_ARRAY) {
-            result.add(jp.getText());
+        JsonToken t;
+        while ((t = jp.nextToken()) != JsonToken.END_ARRAY) {
+            result.add(t == JsonToken.VALUE_NULL ? null : jp.getText());
         }
         return result.toArray(new String[result.size()]);
     }
+
+    /** {@inheritDoc} */
+    @Override
+    void retainBody(ConnectionMessage m) {
+        if (peeked == null) {
+            int end = message.lastIndexOf(']');
+            int start = (int) jp.getCurrentLocation().getCharOffset();
+            while (start < end && Character.isWhitespace(message.charAt(start))) {
+                start++;
+            }
+            // like an encoded body the fields must start with a separator, otherwise they are encoded again
+            if (start < end && message.charAt(start) == ',') {
+                m.retainReceivedBody(message, start, end, json);
+            }
+        }
+    }
 }
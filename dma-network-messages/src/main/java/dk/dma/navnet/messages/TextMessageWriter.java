@@ -19,16 +19,52 @@ import java.util.Arrays;
 import java.util.Iterator;
 
 /**
+ * Writes a message as a JSON array.
  * 
  * @author Kasper Nielsen
  */
-public class TextMessageWriter {
+public class TextMessageWriter extends MessageWriter {
+
+    /** Hex digits used for escaping control characters. */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /** The number of decimals coordinates are written with, a precision of about 1 cm. */
+    static final int COORDINATE_DECIMALS = 7;
+
+    /** 10 to the power of {@link #COORDINATE_DECIMALS}. */
+    private static final long COORDINATE_SCALE = 10_000_000;
+
+    /** Powers of ten below {@link #COORDINATE_SCALE}. */
+    private static final int[] POW10 = { 1, 10, 100, 1000, 10_000, 100_000, 1_000_000 };
+
     public final StringBuilder sb = new StringBuilder();
 
     boolean notFirst;
 
+    /** Whether or not payloads are embedded as JSON instead of as strings. */
+    private final boolean json;
+
     public TextMessageWriter() {
-        sb.append("[");
+        this(false);
+    }
+
+    TextMessageWriter(boolean continuation) {
+        this(continuation, false);
+    }
+
+    /**
+     * @param continuation
+     *            if true, the writer continues an existing message. No opening bracket is written and every value,
+     *            including the first, is prefixed with a separator
+     * @param json
+     *            whether or not payloads are embedded as JSON, only if {@link Capabilities#JSON} has been negotiated
+     */
+    TextMessageWriter(boolean continuation, boolean json) {
+        if (!continuation) {
+            sb.append("[");
+        }
+        notFirst = continuation;
+        this.json = json;
     }
 
     void checkFirst() {
@@ -65,30 +101,139 @@ public class TextMessageWriter {
 
     public TextMessageWriter writeDouble(double d) {
         checkFirst();
-        // TODO quote string
         sb.append(d);
         return this;
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public TextMessageWriter writeCoordinate(double degrees) {
+        checkFirst();
+        appendCoordinate(sb, degrees);
+        return this;
+    }
+
     public TextMessageWriter writeBoolean(boolean d) {
         checkFirst();
-        // TODO quote string
         sb.append(d);
         return this;
     }
 
     public TextMessageWriter writeString(String s) {
         checkFirst();
-        // TODO escape string
         w(s);
         return this;
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public TextMessageWriter writeJson(String s) {
+        // JSON strings and numbers are written as strings. So a string read back is always the text of the payload.
+        // Objects and arrays with control characters are too, as a raw newline in pretty printed JSON splits a batch
+        if (json && s != null && !s.isEmpty() && (s.charAt(0) == '{' || s.charAt(0) == '[')
+                && !hasControlCharacter(s)) {
+            checkFirst();
+            sb.append(s);
+            return this;
+        }
+        return writeString(s);
+    }
+
+    /** Returns whether or not the specified string contains a character that must be escaped in a JSON string. */
+    static boolean hasControlCharacter(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) < 0x20) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private void w(String s) {
         if (s == null) {
-            sb.append("\\\"\"");
+            sb.append("null");
         } else {
-            sb.append('"').append(s).append('"');
+            sb.append('"');
+            escape(sb, s);
+            sb.append('"');
+        }
+    }
+
+    /**
+     * Appends the specified coordinate rounded to {@value #COORDINATE_DECIMALS} decimals, without trailing zeros.
+     * Unlike {@link StringBuilder#append(double)} it never writes more than 7 decimals or an exponent, and does not
+     * allocate. The value is always written with a decimal point, as older readers do not accept an integer where they
+     * expect a double.
+     * 
+     * @param sb
+     *            the builder to append to
+     * @param d
+     *            the coordinate to append
+     */
+    static void appendCoordinate(StringBuilder sb, double d) {
+        // values that are this large, infinite or NaN are not coordinates, and might overflow the scaled value
+        if (!(Math.abs(d) < 1e9)) {
+            sb.append(d);
+            return;
+        }
+        long scaled = Math.round(d * COORDINATE_SCALE);
+        if (scaled < 0) {
+            sb.append('-');
+            scaled = -scaled;
+        }
+        sb.append(scaled / COORDINATE_SCALE).append('.');
+        int fraction = (int) (scaled % COORDINATE_SCALE);
+        if (fraction == 0) {
+            sb.append('0');
+            return;
+        }
+        int digits = COORDINATE_DECIMALS;
+        while (fraction % 10 == 0) {
+            fraction /= 10;
+            digits--;
+        }
+        for (int i = digits - 1; i >= 0; i--) {
+            sb.append((char) ('0' + fraction / POW10[i] % 10));
+        }
+    }
+
+    /**
+     * Appends the specified string to the builder, escaped as the contents of a JSON string.
+     * 
+     * @param sb
+     *            the builder to append to
+     * @param s
+     *            the string to escape
+     */
+    static void escape(StringBuilder sb, String s) {
+        int start = 0;
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x20 || c == '"' || c == '\\') {
+                sb.append(s, start, i);
+                start = i + 1;
+                switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    sb.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+                }
+            }
         }
+        sb.append(s, start, length);
     }
 }
@@ -18,12 +18,9 @@ package dk.dma.navnet.messages;
 import static java.util.Objects.requireNonNull;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Objects;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
-
 /**
  * A text only message.
  * 
@@ -81,37 +78,53 @@ public abstract class TransportMessage {
         return s;
     }
 
-    protected abstract void write(TextMessageWriter w);
+    /**
+     * Encodes the message in the binary format.
+     * 
+     * @return the encoded message
+     * @see BinaryMessageWriter
+     */
+    public ByteBuffer toBinary() {
+        BinaryMessageWriter w = new BinaryMessageWriter();
+        w.writeInt(getMessageType().type);
+        write(w);
+        return w.toByteBuffer();
+    }
+
+    protected abstract void write(MessageWriter w);
 
     public static TransportMessage parseMessage(String msg) throws IOException {
-        TextMessageReader pr = new TextMessageReader(msg);
-        int type = pr.takeInt();
-        try {
-            Class<? extends TransportMessage> cl = MessageType.getType(type);
-            TransportMessage message = cl.getConstructor(TextMessageReader.class).newInstance(pr);
-            message.rawMessage = msg;// for debugging purposes
-            return message;
-        } catch (ReflectiveOperationException e) {
-            throw new IOException(e);
-        }
+        return parseMessage(msg, false);
     }
 
-    protected static String persist(Object o) {
-        ObjectMapper om = new ObjectMapper();
-        om.disable(SerializationFeature.FAIL_ON_EMPTY_BEANS);
-        try {
-            return om.writeValueAsString(o);
-        } catch (JsonProcessingException e) {
-            throw new IllegalArgumentException("Could not be persisted", e);
-        }
+    /**
+     * Parses a text message.
+     * 
+     * @param msg
+     *            the message to parse
+     * @param json
+     *            whether or not the message might embed payloads as JSON, which is the case if it was received from a
+     *            peer that has negotiated {@link Capabilities#JSON}
+     * @return the message
+     * @throws IOException
+     *             if the message could not be parsed
+     */
+    public static TransportMessage parseMessage(String msg, boolean json) throws IOException {
+        TransportMessage message = parseMessage(new TextMessageReader(msg, json));
+        message.rawMessage = msg;// for debugging purposes
+        return message;
+    }
+
+    public static TransportMessage parseMessage(ByteBuffer msg) throws IOException {
+        return parseMessage(new BinaryMessageReader(msg));
     }
 
-    protected static String escape(String s) {
-        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    private static TransportMessage parseMessage(MessageReader pr) throws IOException {
+        return MessageType.fromType(pr.takeInt()).read(pr);
     }
 
-    protected static String persistAndEscape(Object o) {
-        return escape(persist(o));
+    protected static String persist(Object o) {
+        return CodecContext.write(o);
     }
 
     public String toString() {
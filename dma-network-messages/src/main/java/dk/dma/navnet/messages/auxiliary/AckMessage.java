@@ -0,0 +1,67 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.messages.auxiliary;
+
+import java.io.IOException;
+
+import dk.dma.navnet.messages.MessageReader;
+import dk.dma.navnet.messages.MessageType;
+import dk.dma.navnet.messages.MessageWriter;
+import dk.dma.navnet.messages.TransportMessage;
+
+/**
+ * Acknowledges all connection messages up to and including the specified message id. Acks normally piggyback on the
+ * next connection message that is sent. But an endpoint that only receives messages never sends any, so it sends this
+ * message instead. Either after {@link #DEFAULT_MAX_UNACKED} messages has been received without being acknowledged, or
+ * {@link #DEFAULT_DELAY_MS} milliseconds after the first such message was received, whatever comes first.
+ * <p>
+ * This is not a connection message, it does not have a message id and is never acknowledged itself. It is only sent
+ * if both ends have the {@link dk.dma.navnet.messages.Capabilities#ACK} capability.
+ * 
+ * @author Kasper Nielsen
+ */
+public class AckMessage extends TransportMessage {
+
+    /** The default number of unacknowledged messages that trigger an ack. */
+    public static final int DEFAULT_MAX_UNACKED = 32;
+
+    /** The default maximum delay in milliseconds from a message is received until it is acknowledged. */
+    public static final long DEFAULT_DELAY_MS = 500;
+
+    private final long latestReceivedId;
+
+    public AckMessage(long latestReceivedId) {
+        super(MessageType.ACK);
+        this.latestReceivedId = latestReceivedId;
+    }
+
+    public AckMessage(MessageReader pr) throws IOException {
+        this(pr.takeLong());
+    }
+
+    /**
+     * @return the id of the latest message received
+     */
+    public long getLatestReceivedId() {
+        return latestReceivedId;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void write(MessageWriter w) {
+        w.writeLong(latestReceivedId);
+    }
+}
@@ -19,9 +19,9 @@ import static java.util.Objects.requireNonNull;
 
 import java.io.IOException;
 
+import dk.dma.navnet.messages.MessageReader;
 import dk.dma.navnet.messages.MessageType;
-import dk.dma.navnet.messages.TextMessageReader;
-import dk.dma.navnet.messages.TextMessageWriter;
+import dk.dma.navnet.messages.MessageWriter;
 import dk.dma.navnet.messages.TransportMessage;
 
 /**
@@ -43,7 +43,7 @@ public class ConnectedMessage extends TransportMessage {
         this.lastReceivedMessageId = lastReceivedMessageId;
     }
 
-    public ConnectedMessage(TextMessageReader pr) throws IOException {
+    public ConnectedMessage(MessageReader pr) throws IOException {
         this(pr.takeString(), pr.takeLong());
     }
 
@@ -60,7 +60,7 @@ public class ConnectedMessage extends TransportMessage {
 
     /** {@inheritDoc} */
     @Override
-    public void write(TextMessageWriter w) {
+    public void write(MessageWriter w) {
         w.writeString(connectionId);
         w.writeLong(lastReceivedMessageId);
     }
@@ -20,9 +20,10 @@ import static java.util.Objects.requireNonNull;
 import java.io.IOException;
 
 import dk.dma.enav.model.MaritimeId;
+import dk.dma.navnet.messages.Capabilities;
+import dk.dma.navnet.messages.MessageReader;
 import dk.dma.navnet.messages.MessageType;
-import dk.dma.navnet.messages.TextMessageReader;
-import dk.dma.navnet.messages.TextMessageWriter;
+import dk.dma.navnet.messages.MessageWriter;
 import dk.dma.navnet.messages.TransportMessage;
 
 /**
@@ -44,6 +45,9 @@ public class HelloMessage extends TransportMessage {
 
     private final long lastReceivedMessageId;
 
+    /** The optional protocol features the client wants to use. Not sent by older clients. */
+    private final String[] capabilities;
+
     /**
      * @return the lastReceivedMessageId
      */
@@ -55,8 +59,9 @@ public class HelloMessage extends TransportMessage {
      * @param messageType
      */
     public HelloMessage(MaritimeId clientId, String clientInfo, String reconnectId, long lastReceivedMessageId,
-            double lat, double lon) {
+            double lat, double lon, String... capabilities) {
         super(MessageType.HELLO);
+        this.capabilities = requireNonNull(capabilities);
         this.clientId = requireNonNull(clientId);
         this.clientInfo = requireNonNull(clientInfo);
         this.reconnectId = reconnectId;
@@ -65,9 +70,17 @@ public class HelloMessage extends TransportMessage {
         this.lastReceivedMessageId = lastReceivedMessageId;
     }
 
-    public HelloMessage(TextMessageReader pr) throws IOException {
+    public HelloMessage(MessageReader pr) throws IOException {
         this(MaritimeId.create(pr.takeString()), pr.takeString(), pr.takeString(), pr.takeLong(), pr.takeDouble(), pr
-                .takeDouble());
+                .takeDouble(), pr.hasMore() ? pr.takeStringArray() : new String[0]);
+    }
+
+    /**
+     * @return the capabilities the client wants to use
+     * @see Capabilities
+     */
+    public String[] getCapabilities() {
+        return capabilities;
     }
 
     /**
@@ -107,12 +120,13 @@ public class HelloMessage extends TransportMessage {
 
     /** {@inheritDoc} */
     @Override
-    protected void write(TextMessageWriter w) {
+    protected void write(MessageWriter w) {
         w.writeString(clientId.toString());
         w.writeString(clientInfo);
         w.writeString(reconnectId);
         w.writeLong(lastReceivedMessageId);
-        w.writeDouble(lat);
-        w.writeDouble(lon);
+        w.writeCoordinate(lat);
+        w.writeCoordinate(lon);
+        w.writeStringArray(capabilities);
     }
 }
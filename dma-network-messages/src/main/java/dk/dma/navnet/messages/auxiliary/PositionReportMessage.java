@@ -21,10 +21,10 @@ import java.io.IOException;
 
 import dk.dma.enav.model.geometry.PositionTime;
 import dk.dma.navnet.messages.ConnectionMessage;
+import dk.dma.navnet.messages.MessageReader;
 import dk.dma.navnet.messages.MessageType;
+import dk.dma.navnet.messages.MessageWriter;
 import dk.dma.navnet.messages.PositionTimeMessage;
-import dk.dma.navnet.messages.TextMessageReader;
-import dk.dma.navnet.messages.TextMessageWriter;
 
 /**
  * 
@@ -47,9 +47,9 @@ public class PositionReportMessage extends ConnectionMessage implements Position
         this.positionTime = requireNonNull(position);
     }
 
-    public PositionReportMessage(TextMessageReader pr) throws IOException {
+    public PositionReportMessage(MessageReader pr) throws IOException {
         super(MessageType.POSITION_REPORT, pr);
-        this.positionTime = PositionTime.create(pr.takeDouble(), pr.takeDouble(), pr.takeLong());
+        this.positionTime = pr.takePositionTime();
     }
 
     /**
@@ -61,9 +61,7 @@ public class PositionReportMessage extends ConnectionMessage implements Position
 
     /** {@inheritDoc} */
     @Override
-    protected void write0(TextMessageWriter w) {
-        w.writeDouble(positionTime.getLatitude());
-        w.writeDouble(positionTime.getLongitude());
-        w.writeLong(positionTime.getTime());
+    protected void write0(MessageWriter w) {
+        w.writePositionTime(positionTime);
     }
 }
@@ -21,9 +21,10 @@ import java.io.IOException;
 
 import dk.dma.enav.model.MaritimeId;
 import dk.dma.enav.model.shore.ServerId;
+import dk.dma.navnet.messages.Capabilities;
+import dk.dma.navnet.messages.MessageReader;
 import dk.dma.navnet.messages.MessageType;
-import dk.dma.navnet.messages.TextMessageReader;
-import dk.dma.navnet.messages.TextMessageWriter;
+import dk.dma.navnet.messages.MessageWriter;
 import dk.dma.navnet.messages.TransportMessage;
 
 /**
@@ -39,18 +40,31 @@ public class WelcomeMessage extends TransportMessage {
 
     private final String serverInfo;
 
-    public WelcomeMessage(TextMessageReader pr) throws IOException {
-        this(pr.takeInt(), new ServerId(pr.takeString()), pr.takeString());
+    /** The optional protocol features supported by the server. Not sent by older servers. */
+    private final String[] capabilities;
+
+    public WelcomeMessage(MessageReader pr) throws IOException {
+        this(pr.takeInt(), new ServerId(pr.takeString()), pr.takeString(), pr.hasMore() ? pr.takeStringArray()
+                : new String[0]);
     }
 
     /**
      * @param messageType
      */
-    public WelcomeMessage(int protocolVersion, MaritimeId serverId, String serverInfo) {
+    public WelcomeMessage(int protocolVersion, MaritimeId serverId, String serverInfo, String... capabilities) {
         super(MessageType.WELCOME);
         this.protocolVersion = 1;
         this.serverId = requireNonNull(serverId);
         this.serverInfo = requireNonNull(serverInfo);
+        this.capabilities = requireNonNull(capabilities);
+    }
+
+    /**
+     * @return the capabilities supported by the server
+     * @see Capabilities
+     */
+    public String[] getCapabilities() {
+        return capabilities;
     }
 
     /**
@@ -76,9 +90,10 @@ public class WelcomeMessage extends TransportMessage {
 
     /** {@inheritDoc} */
     @Override
-    public void write(TextMessageWriter w) {
+    public void write(MessageWriter w) {
         w.writeInt(protocolVersion);
         w.writeString(serverId.toString());
         w.writeString(serverInfo);
+        w.writeStringArray(capabilities);
     }
 }
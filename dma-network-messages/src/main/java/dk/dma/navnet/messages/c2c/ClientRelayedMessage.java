@@ -19,11 +19,14 @@ import java.io.IOException;
 
 import dk.dma.enav.model.MaritimeId;
 import dk.dma.navnet.messages.ConnectionMessage;
+import dk.dma.navnet.messages.MessageReader;
 import dk.dma.navnet.messages.MessageType;
-import dk.dma.navnet.messages.TextMessageReader;
-import dk.dma.navnet.messages.TextMessageWriter;
+import dk.dma.navnet.messages.MessageWriter;
 
 /**
+ * A message from one client to another that is relayed by the server. Only the header and the routing fields are
+ * read when a message is received. The remaining fields are read by {@link #read1(MessageReader)} the first time they
+ * are accessed, so the server never decodes the payload of the messages it relays.
  * 
  * @author Kasper Nielsen
  */
@@ -33,6 +36,9 @@ public abstract class ClientRelayedMessage extends ConnectionMessage {
 
     String source;
 
+    /** Whether or not the fields following the routing fields have been read. */
+    private volatile boolean decoded = true;
+
     /**
      * @param messageType
      */
@@ -40,10 +46,40 @@ public abstract class ClientRelayedMessage extends ConnectionMessage {
         super(messageType);
     }
 
-    public ClientRelayedMessage(MessageType messageType, TextMessageReader pr) throws IOException {
+    public ClientRelayedMessage(MessageType messageType, MessageReader pr) throws IOException {
         super(messageType, pr);
         this.source = pr.takeString();
         this.destination = pr.takeString();
+        if (!hasReceivedBody()) {
+            read1(pr);
+        } else {
+            decoded = false;
+        }
+    }
+
+    /**
+     * Reads the remaining fields of the message, if they have not already been read. Must be invoked by subclasses
+     * before accessing any of the fields read by {@link #read1(MessageReader)}.
+     * 
+     * @throws IllegalStateException
+     *             if the fields could not be read
+     */
+    protected final void ensureDecoded() {
+        if (!decoded) {
+            synchronized (this) {
+                if (!decoded) {
+                    try {
+                        MessageReader pr = receivedBodyReader();
+                        pr.skipString();
+                        pr.skipString();
+                        read1(pr);
+                    } catch (IOException e) {
+                        throw new IllegalStateException("Could not read the message", e);
+                    }
+                    decoded = true;
+                }
+            }
+        }
     }
 
     /**
@@ -65,16 +101,27 @@ public abstract class ClientRelayedMessage extends ConnectionMessage {
     }
 
     public void setDestination(String destination) {
+        ensureDecoded(); // the fields as received are discarded
         this.destination = destination;
+        invalidateEncoding();
     }
 
     public void setSource(String source) {
+        ensureDecoded();
         this.source = source;
+        invalidateEncoding();
+    }
+
+    /** Returns true, relayed messages are passed on by the server with a new header but otherwise as received. */
+    @Override
+    protected boolean retainsReceivedBody() {
+        return true;
     }
 
     /** {@inheritDoc} */
     @Override
-    protected final void write0(TextMessageWriter w) {
+    protected final void write0(MessageWriter w) {
+        ensureDecoded();
         w.writeString(source);
         w.writeString(destination);
         write1(w);
@@ -82,5 +129,16 @@ public abstract class ClientRelayedMessage extends ConnectionMessage {
 
     public abstract ClientRelayedMessage cloneIt();
 
-    protected abstract void write1(TextMessageWriter w);
+    /**
+     * Reads the fields following the routing fields. Invoked while the message is constructed, or later by
+     * {@link #ensureDecoded()}. So fields that are read must not have initializers in subclasses.
+     * 
+     * @param pr
+     *            the reader to read the fields from
+     * @throws IOException
+     *             if the fields could not be read
+     */
+    protected abstract void read1(MessageReader pr) throws IOException;
+
+    protected abstract void write1(MessageWriter w);
 }
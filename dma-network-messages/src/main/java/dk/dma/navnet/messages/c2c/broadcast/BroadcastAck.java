@@ -22,9 +22,9 @@ import java.io.IOException;
 import dk.dma.enav.model.MaritimeId;
 import dk.dma.enav.model.geometry.PositionTime;
 import dk.dma.navnet.messages.ConnectionMessage;
+import dk.dma.navnet.messages.MessageReader;
 import dk.dma.navnet.messages.MessageType;
-import dk.dma.navnet.messages.TextMessageReader;
-import dk.dma.navnet.messages.TextMessageWriter;
+import dk.dma.navnet.messages.MessageWriter;
 
 /**
  * 
@@ -49,11 +49,11 @@ public class BroadcastAck extends ConnectionMessage {
      * @param messageType
      * @throws IOException
      */
-    public BroadcastAck(TextMessageReader pr) throws IOException {
+    public BroadcastAck(MessageReader pr) throws IOException {
         super(MessageType.BROADCAST_DELIVER_ACK, pr);
         this.broadcastId = pr.takeLong();
         this.id = requireNonNull(MaritimeId.create(pr.takeString()));
-        this.positionTime = requireNonNull(PositionTime.create(pr.takeDouble(), pr.takeDouble(), pr.takeLong()));
+        this.positionTime = requireNonNull(pr.takePositionTime());
 
     }
 
@@ -80,12 +80,10 @@ public class BroadcastAck extends ConnectionMessage {
 
     /** {@inheritDoc} */
     @Override
-    protected void write0(TextMessageWriter w) {
+    protected void write0(MessageWriter w) {
         w.writeLong(broadcastId);
         w.writeString(id.toString());
-        w.writeDouble(positionTime.getLatitude());
-        w.writeDouble(positionTime.getLongitude());
-        w.writeLong(positionTime.getTime());
+        w.writePositionTime(positionTime);
     }
 
 }
@@ -19,15 +19,14 @@ import static java.util.Objects.requireNonNull;
 
 import java.io.IOException;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-
 import dk.dma.enav.maritimecloud.broadcast.BroadcastMessage;
 import dk.dma.enav.model.MaritimeId;
 import dk.dma.enav.model.geometry.PositionTime;
+import dk.dma.navnet.messages.CodecContext;
 import dk.dma.navnet.messages.ConnectionMessage;
+import dk.dma.navnet.messages.MessageReader;
 import dk.dma.navnet.messages.MessageType;
-import dk.dma.navnet.messages.TextMessageReader;
-import dk.dma.navnet.messages.TextMessageWriter;
+import dk.dma.navnet.messages.MessageWriter;
 
 /**
  * This message is send from the server to the client because the client was in proximity of broadcast that was sent to
@@ -61,16 +60,16 @@ public class BroadcastDeliver extends ConnectionMessage {
      * @param messageType
      * @throws IOException
      */
-    public BroadcastDeliver(TextMessageReader pr) throws IOException {
+    public BroadcastDeliver(MessageReader pr) throws IOException {
         super(MessageType.BROADCAST_DELIVER, pr);
         this.id = requireNonNull(MaritimeId.create(pr.takeString()));
-        this.positionTime = requireNonNull(PositionTime.create(pr.takeDouble(), pr.takeDouble(), pr.takeLong()));
+        this.positionTime = requireNonNull(pr.takePositionTime());
         this.channel = requireNonNull(pr.takeString());
-        this.message = requireNonNull(pr.takeString());
+        this.message = requireNonNull(pr.takeJson());
     }
 
     public BroadcastDeliver cloneIt() {
-        return new BroadcastDeliver(id, positionTime, channel, escape(message));
+        return new BroadcastDeliver(id, positionTime, channel, message);
     }
 
     /**
@@ -107,23 +106,19 @@ public class BroadcastDeliver extends ConnectionMessage {
     }
 
     public BroadcastMessage tryRead() throws Exception {
-        Class<BroadcastMessage> cl = getClassFromChannel();
-        ObjectMapper om = new ObjectMapper();
-        return om.readValue(getMessage(), cl);
+        return (BroadcastMessage) CodecContext.read(getMessage(), channel);
     }
 
     /** {@inheritDoc} */
     @Override
-    protected void write0(TextMessageWriter w) {
+    protected void write0(MessageWriter w) {
         w.writeString(id.toString());
-        w.writeDouble(positionTime.getLatitude());
-        w.writeDouble(positionTime.getLongitude());
-        w.writeLong(positionTime.getTime());
+        w.writePositionTime(positionTime);
         w.writeString(channel);
-        w.writeString(message);
+        w.writeJson(message);
     }
 
     public static BroadcastDeliver create(MaritimeId sender, PositionTime position, String channel, String message) {
-        return new BroadcastDeliver(sender, position, channel, escape(message));
+        return new BroadcastDeliver(sender, position, channel, message);
     }
 }
@@ -19,16 +19,15 @@ import static java.util.Objects.requireNonNull;
 
 import java.io.IOException;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-
 import dk.dma.enav.maritimecloud.broadcast.BroadcastMessage;
 import dk.dma.enav.maritimecloud.broadcast.BroadcastOptions;
 import dk.dma.enav.model.MaritimeId;
 import dk.dma.enav.model.geometry.PositionTime;
+import dk.dma.navnet.messages.CodecContext;
+import dk.dma.navnet.messages.MessageReader;
 import dk.dma.navnet.messages.MessageType;
+import dk.dma.navnet.messages.MessageWriter;
 import dk.dma.navnet.messages.PositionTimeMessage;
-import dk.dma.navnet.messages.TextMessageReader;
-import dk.dma.navnet.messages.TextMessageWriter;
 import dk.dma.navnet.messages.s2c.ServerRequestMessage;
 
 /**
@@ -45,7 +44,8 @@ public class BroadcastSend extends ServerRequestMessage<BroadcastSendAck> implem
 
     final MaritimeId id;
 
-    final String message;
+    /** The message, read the first time it is accessed if the broadcast was received. */
+    volatile String message;
 
     final PositionTime positionTime;
 
@@ -76,12 +76,17 @@ public class BroadcastSend extends ServerRequestMessage<BroadcastSendAck> implem
      * @param messageType
      * @throws IOException
      */
-    public BroadcastSend(TextMessageReader pr) throws IOException {
+    public BroadcastSend(MessageReader pr) throws IOException {
         super(MessageType.BROADCAST_SEND, pr);
         this.id = requireNonNull(MaritimeId.create(pr.takeString()));
-        this.positionTime = requireNonNull(PositionTime.create(pr.takeDouble(), pr.takeDouble(), pr.takeLong()));
+        this.positionTime = requireNonNull(pr.takePositionTime());
         this.channel = requireNonNull(pr.takeString());
-        this.message = requireNonNull(pr.takeString());
+        // the server only needs the message if there are receivers of the broadcast
+        if (hasReceivedBody()) {
+            pr.skipJson();
+        } else {
+            this.message = requireNonNull(pr.takeJson());
+        }
         this.distance = pr.takeInt();
         this.receiverAck = pr.takeBoolean();
     }
@@ -95,7 +100,7 @@ public class BroadcastSend extends ServerRequestMessage<BroadcastSendAck> implem
 
     //
     // public BroadcastSend cloneIt() {
-    // return new BroadcastSend(id, positionTime, channel, escape(message));
+    // return new BroadcastSend(id, positionTime, channel, message);
     // }
 
     @SuppressWarnings("unchecked")
@@ -121,7 +126,27 @@ public class BroadcastSend extends ServerRequestMessage<BroadcastSendAck> implem
      * @return the message
      */
     public String getMessage() {
-        return message;
+        String m = message;
+        if (m == null) {
+            message = m = readMessage();
+        }
+        return m;
+    }
+
+    /** Reads the message from the fields as they were received. */
+    private String readMessage() {
+        try {
+            MessageReader pr = receivedBodyReader();
+            pr.takeLong(); // reply to
+            pr.skipString();
+            pr.takeDouble();
+            pr.takeDouble();
+            pr.takeLong();
+            pr.skipString();
+            return requireNonNull(pr.takeJson());
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read the message", e);
+        }
     }
 
     /**
@@ -132,31 +157,41 @@ public class BroadcastSend extends ServerRequestMessage<BroadcastSendAck> implem
     }
 
     public BroadcastMessage tryRead() throws Exception {
-        Class<BroadcastMessage> cl = getClassFromChannel();
-        ObjectMapper om = new ObjectMapper();
-        return om.readValue(getMessage(), cl);
+        return (BroadcastMessage) CodecContext.read(getMessage(), channel);
     }
 
     public <T extends BroadcastMessage> T tryRead(Class<T> type) throws Exception {
         return type.cast(tryRead());
     }
 
+    /** Returns true, so the message is only read when it is accessed. */
+    @Override
+    protected boolean retainsReceivedBody() {
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public BroadcastSend setReplyTo(long replyTo) {
+        getMessage(); // the fields as received are discarded
+        super.setReplyTo(replyTo);
+        return this;
+    }
+
     /** {@inheritDoc} */
     @Override
-    protected void write1(TextMessageWriter w) {
+    protected void write1(MessageWriter w) {
         w.writeString(id.toString());
-        w.writeDouble(positionTime.getLatitude());
-        w.writeDouble(positionTime.getLongitude());
-        w.writeLong(positionTime.getTime());
+        w.writePositionTime(positionTime);
         w.writeString(channel);
-        w.writeString(message);
+        w.writeJson(getMessage());
         w.writeInt(distance);
         w.writeBoolean(receiverAck);
     }
 
     public static BroadcastSend create(MaritimeId sender, PositionTime position, BroadcastMessage message,
             BroadcastOptions options) {
-        return new BroadcastSend(sender, position, message.channel(), persistAndEscape(message),
+        return new BroadcastSend(sender, position, message.channel(), persist(message),
                 options.getBroadcastRadius(), options.isReceiverAckEnabled());
     }
 
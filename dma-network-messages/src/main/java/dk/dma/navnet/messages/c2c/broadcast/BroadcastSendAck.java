@@ -17,8 +17,8 @@ package dk.dma.navnet.messages.c2c.broadcast;
 
 import java.io.IOException;
 
+import dk.dma.navnet.messages.MessageReader;
 import dk.dma.navnet.messages.MessageType;
-import dk.dma.navnet.messages.TextMessageReader;
 import dk.dma.navnet.messages.s2c.ServerResponseMessage;
 
 /**
@@ -31,7 +31,7 @@ public class BroadcastSendAck extends ServerResponseMessage {
      * @param messageType
      * @throws IOException
      */
-    public BroadcastSendAck(TextMessageReader pr) throws IOException {
+    public BroadcastSendAck(MessageReader pr) throws IOException {
         super(MessageType.BROADCAST_SEND_ACK, pr);
     }
 
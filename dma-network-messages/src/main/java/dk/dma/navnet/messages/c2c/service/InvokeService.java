@@ -17,11 +17,10 @@ package dk.dma.navnet.messages.c2c.service;
 
 import java.io.IOException;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-
+import dk.dma.navnet.messages.CodecContext;
+import dk.dma.navnet.messages.MessageReader;
 import dk.dma.navnet.messages.MessageType;
-import dk.dma.navnet.messages.TextMessageReader;
-import dk.dma.navnet.messages.TextMessageWriter;
+import dk.dma.navnet.messages.MessageWriter;
 import dk.dma.navnet.messages.c2c.ClientRelayedMessage;
 
 /**
@@ -30,18 +29,18 @@ import dk.dma.navnet.messages.c2c.ClientRelayedMessage;
  */
 public class InvokeService extends ClientRelayedMessage {
 
-    final String conversationId;
+    String conversationId;
 
-    final String message;
+    String message;
 
-    final String messageType;
+    String messageType;
 
-    final String serviceType;
+    String serviceType;
 
-    final int status;
+    int status;
 
     public InvokeService(int status, String conversationId, String serviceType, String messageType, Object o) {
-        this(status, conversationId, serviceType, messageType, persistAndEscape(o));
+        this(status, conversationId, serviceType, messageType, persist(o));
     }
 
     /**
@@ -64,19 +63,25 @@ public class InvokeService extends ClientRelayedMessage {
      * @param messageType
      * @throws IOException
      */
-    public InvokeService(TextMessageReader pr) throws IOException {
+    public InvokeService(MessageReader pr) throws IOException {
         super(MessageType.SERVICE_INVOKE, pr);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void read1(MessageReader pr) throws IOException {
         status = pr.takeInt();
         conversationId = pr.takeString();
         serviceType = pr.takeString();
         messageType = pr.takeString();
-        message = pr.takeString();
+        message = pr.takeJson();
     }
 
     /** {@inheritDoc} */
     @Override
     public ClientRelayedMessage cloneIt() {
-        InvokeService is = new InvokeService(status, conversationId, serviceType, messageType, escape(message));
+        ensureDecoded();
+        InvokeService is = new InvokeService(status, conversationId, serviceType, messageType, message);
         is.setDestination(super.getDestination());
         is.setSource(super.getSource());
         return is;
@@ -86,7 +91,8 @@ public class InvokeService extends ClientRelayedMessage {
      * @param result
      */
     public InvokeServiceResult createReply(Object result) {
-        InvokeServiceResult isa = new InvokeServiceResult(conversationId, persistAndEscape(result), result.getClass()
+        ensureDecoded();
+        InvokeServiceResult isa = new InvokeServiceResult(conversationId, persist(result), result.getClass()
                 .getName());
         isa.setDestination(getSource());
         isa.setSource(getDestination());
@@ -94,15 +100,14 @@ public class InvokeService extends ClientRelayedMessage {
     }
 
     public Object parseMessage() throws Exception {
-        Class<?> mt = Class.forName(getServiceType());
-        ObjectMapper om = new ObjectMapper();
-        return om.readValue(getMessage(), mt);
+        return CodecContext.read(getMessage(), getServiceType());
     }
 
     /**
      * @return the conversationId
      */
     public String getConversationId() {
+        ensureDecoded();
         return conversationId;
     }
 
@@ -110,6 +115,7 @@ public class InvokeService extends ClientRelayedMessage {
      * @return the message
      */
     public String getMessage() {
+        ensureDecoded();
         return message;
     }
 
@@ -117,6 +123,7 @@ public class InvokeService extends ClientRelayedMessage {
      * @return the messageType
      */
     public String getServiceMessageType() {
+        ensureDecoded();
         return messageType;
     }
 
@@ -124,6 +131,7 @@ public class InvokeService extends ClientRelayedMessage {
      * @return the serviceType
      */
     public String getServiceType() {
+        ensureDecoded();
         return serviceType;
     }
 
@@ -131,12 +139,14 @@ public class InvokeService extends ClientRelayedMessage {
      * @return the status
      */
     public int getStatus() {
+        ensureDecoded();
         return status;
     }
 
     /** {@inheritDoc} */
     @Override
     public String toString() {
+        ensureDecoded();
         return "InvokeService [conversationId=" + conversationId + ", message=" + message + ", messageType="
                 + messageType + ", serviceType=" + serviceType + ", status=" + status + ", destination="
                 + getDestination() + ", source=" + getSource() + "]";
@@ -144,11 +154,11 @@ public class InvokeService extends ClientRelayedMessage {
 
     /** {@inheritDoc} */
     @Override
-    protected void write1(TextMessageWriter w) {
+    protected void write1(MessageWriter w) {
         w.writeInt(status);
         w.writeString(conversationId);
         w.writeString(serviceType);
         w.writeString(messageType);
-        w.writeString(message);
+        w.writeJson(message);
     }
 }
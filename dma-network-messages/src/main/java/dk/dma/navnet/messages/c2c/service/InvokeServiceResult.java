@@ -19,9 +19,9 @@ import static java.util.Objects.requireNonNull;
 
 import java.io.IOException;
 
+import dk.dma.navnet.messages.MessageReader;
 import dk.dma.navnet.messages.MessageType;
-import dk.dma.navnet.messages.TextMessageReader;
-import dk.dma.navnet.messages.TextMessageWriter;
+import dk.dma.navnet.messages.MessageWriter;
 import dk.dma.navnet.messages.c2c.ClientRelayedMessage;
 
 /**
@@ -30,16 +30,21 @@ import dk.dma.navnet.messages.c2c.ClientRelayedMessage;
  */
 public class InvokeServiceResult extends ClientRelayedMessage {
 
-    final String message;
+    String message;
 
-    final String replyType;
+    String replyType;
 
-    final String uuid;
+    String uuid;
 
-    public InvokeServiceResult(TextMessageReader pr) throws IOException {
+    public InvokeServiceResult(MessageReader pr) throws IOException {
         super(MessageType.SERVICE_INVOKE_RESULT, pr);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void read1(MessageReader pr) throws IOException {
         this.uuid = requireNonNull(pr.takeString());
-        this.message = requireNonNull(pr.takeString());
+        this.message = requireNonNull(pr.takeJson());
         this.replyType = requireNonNull(pr.takeString());
     }
 
@@ -57,6 +62,7 @@ public class InvokeServiceResult extends ClientRelayedMessage {
      * @return the message
      */
     public String getMessage() {
+        ensureDecoded();
         return message;
     }
 
@@ -64,6 +70,7 @@ public class InvokeServiceResult extends ClientRelayedMessage {
      * @return the replyType
      */
     public String getReplyType() {
+        ensureDecoded();
         return replyType;
     }
 
@@ -71,21 +78,23 @@ public class InvokeServiceResult extends ClientRelayedMessage {
      * @return the uuid
      */
     public String getUuid() {
+        ensureDecoded();
         return uuid;
     }
 
     /** {@inheritDoc} */
     @Override
-    protected void write1(TextMessageWriter w) {
+    protected void write1(MessageWriter w) {
         w.writeString(uuid);
-        w.writeString(message);
+        w.writeJson(message);
         w.writeString(replyType);
     }
 
     /** {@inheritDoc} */
     @Override
     public ClientRelayedMessage cloneIt() {
-        InvokeServiceResult is = new InvokeServiceResult(uuid, escape(message), replyType);
+        ensureDecoded();
+        InvokeServiceResult is = new InvokeServiceResult(uuid, message, replyType);
         is.setDestination(super.getDestination());
         is.setSource(super.getSource());
         return is;
@@ -15,9 +15,12 @@
  */
 package dk.dma.navnet.messages.errors;
 
+import java.io.IOException;
+
 import dk.dma.navnet.messages.ConnectionMessage;
+import dk.dma.navnet.messages.MessageReader;
 import dk.dma.navnet.messages.MessageType;
-import dk.dma.navnet.messages.TextMessageWriter;
+import dk.dma.navnet.messages.MessageWriter;
 
 /**
  * 
@@ -32,6 +35,10 @@ public class ServerRequestError extends ConnectionMessage {
         super(MessageType.REQUEST_ERROR);
     }
 
+    public ServerRequestError(MessageReader pr) throws IOException {
+        super(MessageType.REQUEST_ERROR, pr);
+    }
+
     long inResponseToMessageId;
 
     int errorCode;
@@ -40,5 +47,5 @@ public class ServerRequestError extends ConnectionMessage {
 
     /** {@inheritDoc} */
     @Override
-    protected void write0(TextMessageWriter w) {}
+    protected void write0(MessageWriter w) {}
 }
@@ -18,9 +18,9 @@ package dk.dma.navnet.messages.s2c;
 import java.io.IOException;
 
 import dk.dma.navnet.messages.ConnectionMessage;
+import dk.dma.navnet.messages.MessageReader;
 import dk.dma.navnet.messages.MessageType;
-import dk.dma.navnet.messages.TextMessageReader;
-import dk.dma.navnet.messages.TextMessageWriter;
+import dk.dma.navnet.messages.MessageWriter;
 
 /**
  * 
@@ -30,7 +30,7 @@ public abstract class ServerRequestMessage<T extends ServerResponseMessage> exte
 
     long replyTo;
 
-    public ServerRequestMessage(MessageType messageType, TextMessageReader pr) throws IOException {
+    public ServerRequestMessage(MessageType messageType, MessageReader pr) throws IOException {
         super(messageType, pr);
         this.replyTo = pr.takeLong();
     }
@@ -44,6 +44,7 @@ public abstract class ServerRequestMessage<T extends ServerResponseMessage> exte
 
     public ServerRequestMessage<T> setReplyTo(long replyTo) {
         this.replyTo = replyTo;
+        invalidateEncoding();
         return this;
     }
 
@@ -53,10 +54,10 @@ public abstract class ServerRequestMessage<T extends ServerResponseMessage> exte
 
     /** {@inheritDoc} */
     @Override
-    protected final void write0(TextMessageWriter w) {
+    protected final void write0(MessageWriter w) {
         w.writeLong(replyTo);
         write1(w);
     }
 
-    protected abstract void write1(TextMessageWriter w);
+    protected abstract void write1(MessageWriter w);
 }
@@ -18,9 +18,9 @@ package dk.dma.navnet.messages.s2c;
 import java.io.IOException;
 
 import dk.dma.navnet.messages.ConnectionMessage;
+import dk.dma.navnet.messages.MessageReader;
 import dk.dma.navnet.messages.MessageType;
-import dk.dma.navnet.messages.TextMessageReader;
-import dk.dma.navnet.messages.TextMessageWriter;
+import dk.dma.navnet.messages.MessageWriter;
 
 /**
  * 
@@ -38,7 +38,7 @@ public abstract class ServerResponseMessage extends ConnectionMessage {
         this.messageAck = messageAck;
     }
 
-    public ServerResponseMessage(MessageType type, TextMessageReader pr) throws IOException {
+    public ServerResponseMessage(MessageType type, MessageReader pr) throws IOException {
         super(type, pr);
         this.messageAck = pr.takeLong();
     }
@@ -49,10 +49,10 @@ public abstract class ServerResponseMessage extends ConnectionMessage {
 
     /** {@inheritDoc} */
     @Override
-    protected final void write0(TextMessageWriter w) {
+    protected final void write0(MessageWriter w) {
         w.writeLong(messageAck);
         write1(w);
     }
 
-    protected void write1(TextMessageWriter w) {};
+    protected void write1(MessageWriter w) {};
 }
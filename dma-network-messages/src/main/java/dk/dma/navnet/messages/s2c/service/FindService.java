@@ -19,9 +19,9 @@ import static java.util.Objects.requireNonNull;
 
 import java.io.IOException;
 
+import dk.dma.navnet.messages.MessageReader;
 import dk.dma.navnet.messages.MessageType;
-import dk.dma.navnet.messages.TextMessageReader;
-import dk.dma.navnet.messages.TextMessageWriter;
+import dk.dma.navnet.messages.MessageWriter;
 import dk.dma.navnet.messages.s2c.ServerRequestMessage;
 
 /**
@@ -43,7 +43,7 @@ public class FindService extends ServerRequestMessage<FindServiceResult> {
 
     final int max;
 
-    public FindService(TextMessageReader pr) throws IOException {
+    public FindService(MessageReader pr) throws IOException {
         super(MessageType.FIND_SERVICE, pr);
         this.serviceName = requireNonNull(pr.takeString());
         this.meters = pr.takeInt();
@@ -71,7 +71,7 @@ public class FindService extends ServerRequestMessage<FindServiceResult> {
 
     /** {@inheritDoc} */
     @Override
-    protected void write1(TextMessageWriter w) {
+    protected void write1(MessageWriter w) {
         w.writeString(serviceName);
         w.writeInt(meters);
         w.writeInt(max);
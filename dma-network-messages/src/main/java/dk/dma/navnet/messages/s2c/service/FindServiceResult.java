@@ -19,9 +19,9 @@ import static java.util.Objects.requireNonNull;
 
 import java.io.IOException;
 
+import dk.dma.navnet.messages.MessageReader;
 import dk.dma.navnet.messages.MessageType;
-import dk.dma.navnet.messages.TextMessageReader;
-import dk.dma.navnet.messages.TextMessageWriter;
+import dk.dma.navnet.messages.MessageWriter;
 import dk.dma.navnet.messages.s2c.ServerResponseMessage;
 
 /**
@@ -32,7 +32,7 @@ public class FindServiceResult extends ServerResponseMessage {
 
     final String[] maritimeIds;
 
-    public FindServiceResult(TextMessageReader pr) throws IOException {
+    public FindServiceResult(MessageReader pr) throws IOException {
         super(MessageType.FIND_SERVICE_ACK, pr);
         this.maritimeIds = requireNonNull(pr.takeStringArray());
     }
@@ -56,7 +56,7 @@ public class FindServiceResult extends ServerResponseMessage {
 
     /** {@inheritDoc} */
     @Override
-    protected void write1(TextMessageWriter w) {
+    protected void write1(MessageWriter w) {
         w.writeStringArray(maritimeIds);
     }
 }
@@ -19,9 +19,9 @@ import static java.util.Objects.requireNonNull;
 
 import java.io.IOException;
 
+import dk.dma.navnet.messages.MessageReader;
 import dk.dma.navnet.messages.MessageType;
-import dk.dma.navnet.messages.TextMessageReader;
-import dk.dma.navnet.messages.TextMessageWriter;
+import dk.dma.navnet.messages.MessageWriter;
 import dk.dma.navnet.messages.s2c.ServerRequestMessage;
 
 /**
@@ -33,7 +33,7 @@ public class RegisterService extends ServerRequestMessage<RegisterServiceResult>
     final String serviceName;
 
     // Area
-    public RegisterService(TextMessageReader pr) throws IOException {
+    public RegisterService(MessageReader pr) throws IOException {
         super(MessageType.REGISTER_SERVICE, pr);
         this.serviceName = requireNonNull(pr.takeString());
     }
@@ -52,7 +52,7 @@ public class RegisterService extends ServerRequestMessage<RegisterServiceResult>
 
     /** {@inheritDoc} */
     @Override
-    protected void write1(TextMessageWriter w) {
+    protected void write1(MessageWriter w) {
         w.writeString(serviceName);
     }
 
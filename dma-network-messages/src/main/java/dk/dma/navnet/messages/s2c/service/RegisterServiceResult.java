@@ -17,8 +17,8 @@ package dk.dma.navnet.messages.s2c.service;
 
 import java.io.IOException;
 
+import dk.dma.navnet.messages.MessageReader;
 import dk.dma.navnet.messages.MessageType;
-import dk.dma.navnet.messages.TextMessageReader;
 import dk.dma.navnet.messages.s2c.ServerResponseMessage;
 
 /**
@@ -28,7 +28,7 @@ import dk.dma.navnet.messages.s2c.ServerResponseMessage;
 public class RegisterServiceResult extends ServerResponseMessage {
 
     // Area
-    public RegisterServiceResult(TextMessageReader pr) throws IOException {
+    public RegisterServiceResult(MessageReader pr) throws IOException {
         super(MessageType.REGISTER_SERVICE_RESULT, pr);
     }
 
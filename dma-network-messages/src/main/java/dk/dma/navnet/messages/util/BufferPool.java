@@ -0,0 +1,105 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.messages.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A pool of direct byte buffers that outgoing frames are encoded into. Handing a heap buffer to the websocket means it
+ * is copied to a direct buffer before it is written to the socket, and a new buffer is allocated for every frame. A
+ * buffer that is acquired from the pool must be released once the websocket has written it. This class is
+ * thread-safe.
+ * <p>
+ * Frames larger than the size of the buffers in the pool are encoded into plain heap buffers, releasing such a buffer
+ * is a no-op.
+ * 
+ * @author Kasper Nielsen
+ */
+public class BufferPool {
+
+    /** The default size of the buffers in the pool. */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /** The default maximum number of idle buffers in the pool. */
+    public static final int DEFAULT_MAX_IDLE = 64;
+
+    /** The size of each buffer in the pool. */
+    private final int bufferSize;
+
+    /** The idle buffers, buffers released when it is full are left to the garbage collector. */
+    private final ArrayBlockingQueue<ByteBuffer> idle;
+
+    public BufferPool() {
+        this(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_IDLE);
+    }
+
+    /**
+     * @param bufferSize
+     *            the size of each buffer in the pool
+     * @param maxIdle
+     *            the maximum number of idle buffers kept in the pool
+     */
+    public BufferPool(int bufferSize, int maxIdle) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive, was " + bufferSize);
+        }
+        this.bufferSize = bufferSize;
+        this.idle = new ArrayBlockingQueue<>(Math.max(1, maxIdle));
+    }
+
+    /**
+     * Returns a buffer with the specified number of bytes remaining. The position of the buffer is 0 and the limit is
+     * the specified size.
+     * 
+     * @param size
+     *            the number of bytes that are going to be written
+     * @return the buffer
+     */
+    public ByteBuffer acquire(int size) {
+        if (size > bufferSize) {
+            return ByteBuffer.allocate(size);
+        }
+        ByteBuffer b = idle.poll();
+        if (b == null) {
+            b = ByteBuffer.allocateDirect(bufferSize);
+        }
+        b.clear();
+        b.limit(size);
+        return b;
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must not be used after it has been released.
+     * 
+     * @param buffer
+     *            a buffer acquired from {@link #acquire(int)}
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.isDirect() && buffer.capacity() == bufferSize) {
+            idle.offer(buffer);
+        }
+    }
+
+    /**
+     * Returns the number of idle buffers in the pool.
+     * 
+     * @return the number of idle buffers in the pool
+     */
+    public int idleCount() {
+        return idle.size();
+    }
+}
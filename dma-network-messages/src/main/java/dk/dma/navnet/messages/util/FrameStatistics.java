@@ -0,0 +1,146 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.messages.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Statistics about the frames that are sent. Keeps track of the number of frames and messages sent, and of the latency
+ * from a message is queued until it is written. Makes the trade-off of batching several messages in a single frame
+ * visible. This class is thread-safe.
+ * <p>
+ * Latencies are recorded in a histogram where every power of two is divided into 8 buckets, so percentiles are
+ * accurate within 12.5%.
+ * 
+ * @author Kasper Nielsen
+ */
+public class FrameStatistics {
+
+    /** The number of buckets per power of two. */
+    private static final int SUB_BUCKETS = 8;
+
+    /** Log2 of SUB_BUCKETS. */
+    private static final int SUB_BUCKET_BITS = 3;
+
+    /** The number of frames sent. */
+    private final AtomicLong frames = new AtomicLong();
+
+    /** The number of messages sent. */
+    private final AtomicLong messages = new AtomicLong();
+
+    /** The latency histogram in nanoseconds. */
+    private final AtomicLongArray latencies = new AtomicLongArray(bucketOf(Long.MAX_VALUE) + 1);
+
+    static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) Math.max(0, nanos);
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /** Returns the largest value that falls in the specified bucket. */
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exp = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long upper = (SUB_BUCKETS + sub + 1) << (exp - SUB_BUCKET_BITS);
+        return upper <= 0 ? Long.MAX_VALUE : upper - 1;
+    }
+
+    /**
+     * Records that a frame has been sent.
+     * 
+     * @param messageCount
+     *            the number of messages in the frame
+     */
+    public void frameSent(int messageCount) {
+        frames.incrementAndGet();
+        messages.addAndGet(messageCount);
+    }
+
+    /**
+     * Records the latency of a message that has been sent.
+     * 
+     * @param nanos
+     *            the time in nanoseconds from the message was queued until it was sent
+     */
+    public void latency(long nanos) {
+        latencies.incrementAndGet(bucketOf(nanos));
+    }
+
+    /**
+     * Returns the number of frames sent.
+     * 
+     * @return the number of frames sent
+     */
+    public long getFrameCount() {
+        return frames.get();
+    }
+
+    /**
+     * Returns the number of messages sent.
+     * 
+     * @return the number of messages sent
+     */
+    public long getMessageCount() {
+        return messages.get();
+    }
+
+    /**
+     * Returns the latency that the specified fraction of messages has been sent within.
+     * 
+     * @param percentile
+     *            the percentile, for example 0.99
+     * @param unit
+     *            the unit of the result
+     * @return the latency, or 0 if no latencies has been recorded
+     */
+    public long getLatencyPercentile(double percentile, TimeUnit unit) {
+        if (percentile < 0 || percentile > 1) {
+            throw new IllegalArgumentException("Percentile must be in the range [0,1], was " + percentile);
+        }
+        long[] counts = new long[latencies.length()];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            total += counts[i] = latencies.get(i);
+        }
+        long rank = (long) Math.ceil(percentile * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen > 0 && seen >= rank) {
+                return unit.convert(upperBoundOf(i), TimeUnit.NANOSECONDS);
+            }
+        }
+        return 0;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        long f = getFrameCount();
+        long m = getMessageCount();
+        return "frames=" + f + ", messages=" + m + ", messages/frame=" + (f == 0 ? 0 : (double) m / f)
+                + ", latency p50=" + getLatencyPercentile(0.5, TimeUnit.MICROSECONDS) + "us, p99="
+                + getLatencyPercentile(0.99, TimeUnit.MICROSECONDS) + "us";
+    }
+}
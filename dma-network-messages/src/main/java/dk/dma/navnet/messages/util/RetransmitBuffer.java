@@ -0,0 +1,177 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.messages.util;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.NoSuchElementException;
+
+/**
+ * A growable ring buffer of messages that have been written but not yet acknowledged by the remote end. Messages are
+ * added with consecutive ids, so the position of a message in the buffer is given by its id. Unlike a linked list no
+ * node is allocated per message, and acknowledging a message only advances the head of the buffer.
+ * <p>
+ * This class is not thread-safe.
+ * 
+ * @param <E>
+ *            the type of messages
+ * @author Kasper Nielsen
+ */
+public class RetransmitBuffer<E> {
+
+    /** The elements, the length is always a power of two. */
+    private Object[] elements;
+
+    /** The index of the first element. */
+    private int head;
+
+    /** The number of elements. */
+    private int size;
+
+    /** The id of the first element, only valid if size > 0. */
+    private long firstId;
+
+    public RetransmitBuffer() {
+        this(16);
+    }
+
+    /**
+     * Creates a new buffer.
+     * 
+     * @param initialCapacity
+     *            the initial number of messages that can be held before the buffer grows
+     */
+    public RetransmitBuffer(int initialCapacity) {
+        if (initialCapacity <= 0) {
+            throw new IllegalArgumentException("Initial capacity must be positive, was " + initialCapacity);
+        }
+        elements = new Object[Integer.highestOneBit(Math.max(2, initialCapacity - 1)) << 1];
+    }
+
+    /**
+     * Adds a message to the end of the buffer.
+     * 
+     * @param id
+     *            the id of the message, must be one larger than the id of the last message in the buffer
+     * @param message
+     *            the message to add
+     * @throws IllegalArgumentException
+     *             if the id does not follow the id of the last message
+     */
+    public void add(long id, E message) {
+        requireNonNull(message);
+        if (size == 0) {
+            firstId = id;
+        } else if (id != firstId + size) {
+            throw new IllegalArgumentException("Expected id " + (firstId + size) + ", but was " + id);
+        }
+        if (size == elements.length) {
+            grow();
+        }
+        elements[(head + size) & (elements.length - 1)] = message;
+        size++;
+    }
+
+    private void grow() {
+        Object[] a = new Object[elements.length << 1];
+        int firstPart = elements.length - head;
+        System.arraycopy(elements, head, a, 0, firstPart);
+        System.arraycopy(elements, 0, a, firstPart, head);
+        elements = a;
+        head = 0;
+    }
+
+    /**
+     * Returns the message with the specified id, or null if the buffer does not contain it.
+     * 
+     * @param id
+     *            the id of the message
+     * @return the message with the specified id, or null if the buffer does not contain it
+     */
+    @SuppressWarnings("unchecked")
+    public E get(long id) {
+        long offset = id - firstId;
+        return size == 0 || offset < 0 || offset >= size ? null : (E) elements[index(offset)];
+    }
+
+    /**
+     * Returns the id of the first message in the buffer.
+     * 
+     * @return the id of the first message in the buffer
+     * @throws NoSuchElementException
+     *             if the buffer is empty
+     */
+    public long firstId() {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        return firstId;
+    }
+
+    private int index(long offset) {
+        return (int) (head + offset) & (elements.length - 1);
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Removes and returns the first message if its id is less than or equal to the specified id. Used for completing
+     * the messages that have been acknowledged by the remote end.
+     * 
+     * @param id
+     *            the latest id that has been acknowledged
+     * @return the first message, or null if the buffer is empty or the first message has a larger id
+     */
+    @SuppressWarnings("unchecked")
+    public E pollAcked(long id) {
+        if (size == 0 || firstId > id) {
+            return null;
+        }
+        E e = (E) elements[head];
+        elements[head] = null;
+        head = (head + 1) & (elements.length - 1);
+        firstId++;
+        size--;
+        return e;
+    }
+
+    /**
+     * Removes and returns the last message in the buffer, or null if the buffer is empty.
+     * 
+     * @return the last message in the buffer, or null if the buffer is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E pollLast() {
+        if (size == 0) {
+            return null;
+        }
+        int i = index(--size);
+        E e = (E) elements[i];
+        elements[i] = null;
+        return e;
+    }
+
+    /**
+     * Returns the number of messages in the buffer.
+     * 
+     * @return the number of messages in the buffer
+     */
+    public int size() {
+        return size;
+    }
+}
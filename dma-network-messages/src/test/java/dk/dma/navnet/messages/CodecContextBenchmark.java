@@ -0,0 +1,89 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.messages;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import dk.dma.enav.maritimecloud.broadcast.BroadcastMessage;
+import dk.dma.enav.model.MaritimeId;
+import dk.dma.enav.model.geometry.PositionTime;
+import dk.dma.navnet.messages.c2c.broadcast.BroadcastDeliver;
+
+/**
+ * Compares receiving a broadcast using a new object mapper for every message, which is what the codecs used to do,
+ * against using the shared {@link CodecContext}. Run with {@code -prof gc} to see the allocation rate, or run the main
+ * method to print the number of bytes allocated per broadcast.
+ * 
+ * @author Kasper Nielsen
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CodecContextBenchmark {
+
+    String text;
+
+    @Setup
+    public void setup() {
+        BroadcastDeliver bd = new BroadcastDeliver(MaritimeId.create("mmsi://219012345"), PositionTime.create(
+                55.6761234, 12.5683371, 1370000000000L), HelloBroadcast.class.getName(),
+                CodecContext.write(new HelloBroadcast("Vessel not under command near Drogden lighthouse", 3)));
+        text = bd.toJSON(123456, 123400);
+    }
+
+    @Benchmark
+    public Object newMapper() throws Exception {
+        BroadcastDeliver bd = (BroadcastDeliver) TransportMessage.parseMessage(text);
+        return new ObjectMapper().readValue(bd.getMessage(), bd.getClassFromChannel());
+    }
+
+    @Benchmark
+    public BroadcastMessage shared() throws Exception {
+        BroadcastDeliver bd = (BroadcastDeliver) TransportMessage.parseMessage(text);
+        return bd.tryRead();
+    }
+
+    public static void main(String[] args) throws Exception {
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        CodecContextBenchmark b = new CodecContextBenchmark();
+        b.setup();
+        int count = 100_000;
+        for (int round = 0; round < 3; round++) {
+            long start = mx.getThreadAllocatedBytes(Thread.currentThread().getId());
+            for (int i = 0; i < count; i++) {
+                b.newMapper();
+            }
+            long middle = mx.getThreadAllocatedBytes(Thread.currentThread().getId());
+            for (int i = 0; i < count; i++) {
+                b.shared();
+            }
+            long end = mx.getThreadAllocatedBytes(Thread.currentThread().getId());
+            System.out.println("new mapper " + (middle - start) / count + " bytes/broadcast, shared "
+                    + (end - middle) / count + " bytes/broadcast");
+        }
+    }
+}
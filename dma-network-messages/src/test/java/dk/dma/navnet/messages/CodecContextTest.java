@@ -0,0 +1,63 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.messages;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import dk.dma.enav.model.MaritimeId;
+import dk.dma.enav.model.geometry.PositionTime;
+import dk.dma.navnet.messages.c2c.broadcast.BroadcastDeliver;
+
+/**
+ * Tests {@link CodecContext}.
+ * 
+ * @author Kasper Nielsen
+ */
+public class CodecContextTest {
+
+    @Test
+    public void cached() throws Exception {
+        assertSame(CodecContext.reader(HelloBroadcast.class), CodecContext.reader(HelloBroadcast.class));
+        assertSame(CodecContext.reader(HelloBroadcast.class), CodecContext.reader(HelloBroadcast.class.getName()));
+        assertSame(CodecContext.writer(HelloBroadcast.class), CodecContext.writer(HelloBroadcast.class));
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        String json = CodecContext.write(new HelloBroadcast("hello", 3));
+        HelloBroadcast hb = CodecContext.read(json, HelloBroadcast.class);
+        assertEquals("hello", hb.getMessage());
+        assertEquals(3, hb.getSeverity());
+        hb = (HelloBroadcast) CodecContext.read(json, HelloBroadcast.class.getName());
+        assertEquals("hello", hb.getMessage());
+    }
+
+    @Test
+    public void broadcast() throws Exception {
+        BroadcastDeliver bd = new BroadcastDeliver(MaritimeId.create("mmsi://1"), PositionTime.create(1, 2, 3),
+                HelloBroadcast.class.getName(), CodecContext.write(new HelloBroadcast("hello", 3)));
+        BroadcastDeliver read = (BroadcastDeliver) TransportMessage.parseMessage(bd.toJSON());
+        assertEquals("hello", ((HelloBroadcast) read.tryRead()).getMessage());
+    }
+
+    @Test(expected = ClassNotFoundException.class)
+    public void unknownClass() throws Exception {
+        CodecContext.read("{}", "dk.dma.navnet.messages.DoesNotExist");
+    }
+}
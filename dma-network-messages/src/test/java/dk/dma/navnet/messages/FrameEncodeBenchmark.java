@@ -0,0 +1,98 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.messages;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import dk.dma.enav.model.MaritimeId;
+import dk.dma.enav.model.geometry.PositionTime;
+import dk.dma.navnet.messages.c2c.broadcast.BroadcastDeliver;
+import dk.dma.navnet.messages.util.BufferPool;
+
+/**
+ * Measures encoding a frame of broadcasts the way the worker of a connection does. The messages are created up front,
+ * as a broadcast is encoded once and then sent to many connections. Compares a text frame, a binary frame encoded into
+ * a new heap buffer and a binary frame encoded into a pooled direct buffer.
+ * <p>
+ * Run with <tt>-prof gc</tt> to see the allocation per frame, which should be close to zero for the pooled frame.
+ * 
+ * @author Kasper Nielsen
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FrameEncodeBenchmark {
+
+    @Param({ "1", "16" })
+    int messages;
+
+    @Param({ "256", "4096" })
+    int payloadSize;
+
+    ConnectionMessage[] broadcasts;
+
+    final BufferPool pool = new BufferPool();
+
+    @Setup
+    public void setup() {
+        char[] payload = new char[payloadSize];
+        Arrays.fill(payload, 'x');
+        MaritimeId id = MaritimeId.create("mmsi://123456789");
+        PositionTime pos = PositionTime.create(55.6761, 12.5683, 1370000000000L);
+        broadcasts = new ConnectionMessage[messages];
+        for (int i = 0; i < messages; i++) {
+            broadcasts[i] = new BroadcastDeliver(id, pos, "channel", new String(payload));
+        }
+    }
+
+    MessageBatch batch(boolean binary) {
+        MessageBatch b = new MessageBatch(binary);
+        for (int i = 0; i < broadcasts.length; i++) {
+            b.add(broadcasts[i], 1000 + i, 500);
+        }
+        return b;
+    }
+
+    @Benchmark
+    public String text() {
+        return batch(false).toText();
+    }
+
+    @Benchmark
+    public ByteBuffer binaryHeap() {
+        return batch(true).toBinary();
+    }
+
+    @Benchmark
+    public int binaryPooled() {
+        ByteBuffer bb = batch(true).toBinary(pool);
+        int size = bb.remaining();
+        // released by the send handler once the websocket has written it
+        pool.release(bb);
+        return size;
+    }
+}
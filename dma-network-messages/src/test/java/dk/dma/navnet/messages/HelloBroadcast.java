@@ -0,0 +1,67 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.messages;
+
+import dk.dma.enav.maritimecloud.broadcast.BroadcastMessage;
+
+/**
+ * A broadcast used for testing the codecs.
+ * 
+ * @author Kasper Nielsen
+ */
+public class HelloBroadcast extends BroadcastMessage {
+
+    private String message;
+
+    private int severity;
+
+    public HelloBroadcast() {}
+
+    public HelloBroadcast(String message, int severity) {
+        this.message = message;
+        this.severity = severity;
+    }
+
+    /**
+     * @return the message
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return the severity
+     */
+    public int getSeverity() {
+        return severity;
+    }
+
+    /**
+     * @param message
+     *            the message to set
+     */
+    public void setMessage(String message) {
+        this.message = message;
+    }
+
+    /**
+     * @param severity
+     *            the severity to set
+     */
+    public void setSeverity(int severity) {
+        this.severity = severity;
+    }
+}
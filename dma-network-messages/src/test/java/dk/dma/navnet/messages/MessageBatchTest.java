@@ -0,0 +1,131 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.messages;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import dk.dma.navnet.messages.c2c.service.InvokeService;
+import dk.dma.navnet.messages.util.BufferPool;
+
+/**
+ * Tests {@link MessageBatch}.
+ * 
+ * @author Kasper Nielsen
+ */
+public class MessageBatchTest {
+
+    static List<ConnectionMessage> connectionMessages() {
+        List<ConnectionMessage> result = new ArrayList<>();
+        for (TransportMessage m : MessageCodecTest.samples()) {
+            if (m instanceof ConnectionMessage) {
+                result.add((ConnectionMessage) m);
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void text() throws Exception {
+        List<ConnectionMessage> messages = connectionMessages();
+        MessageBatch b = new MessageBatch(false);
+        for (int i = 0; i < messages.size(); i++) {
+            b.add(messages.get(i), i + 1, 42);
+        }
+        assertEquals(messages.size(), b.count());
+        assertEquals(b.toText().length(), b.size());
+        List<TransportMessage> read = MessageBatch.parse(b.toText());
+        assertEquals(messages.size(), read.size());
+        for (int i = 0; i < messages.size(); i++) {
+            assertEquals(messages.get(i).toJSON(i + 1, 42), read.get(i).toJSON());
+        }
+    }
+
+    @Test
+    public void binary() throws Exception {
+        List<ConnectionMessage> messages = connectionMessages();
+        MessageBatch b = new MessageBatch(true);
+        for (int i = 0; i < messages.size(); i++) {
+            b.add(messages.get(i), i + 1, 42);
+        }
+        List<TransportMessage> read = MessageBatch.parse(b.toBinary());
+        assertEquals(messages.size(), read.size());
+        for (int i = 0; i < messages.size(); i++) {
+            assertEquals(messages.get(i).getClass(), read.get(i).getClass());
+            assertEquals(messages.get(i).toJSON(i + 1, 42), read.get(i).toJSON());
+        }
+    }
+
+    /** Pretty printed JSON payloads are escaped, as a raw newline would split the message. */
+    @Test
+    public void multiLineJson() throws Exception {
+        String payload = "{\n  \"name\" : \"x\",\n  \"list\" : [ 1, 2 ]\n}";
+        InvokeService is = new InvokeService(1, "c", "s", "m", payload);
+        is.setSource("mmsi://1");
+        is.setDestination("mmsi://2");
+        MessageBatch b = new MessageBatch(false, true).add(is, 1, 2).add(is, 2, 2);
+        String text = b.toText();
+        assertEquals(text.indexOf('\n'), text.lastIndexOf('\n'));
+        List<TransportMessage> read = MessageBatch.parse(text, true);
+        assertEquals(2, read.size());
+        for (TransportMessage m : read) {
+            assertEquals(payload, ((InvokeService) m).getMessage());
+        }
+    }
+
+    /** A frame encoded into a pooled buffer must be identical to one encoded into a heap buffer. */
+    @Test
+    public void pooled() throws Exception {
+        List<ConnectionMessage> messages = connectionMessages();
+        BufferPool pool = new BufferPool(1024, 1);
+        MessageBatch b = new MessageBatch(true);
+        for (int i = 0; i < messages.size(); i++) {
+            b.add(messages.get(i), Long.MAX_VALUE - i, i * 1000L);
+            ByteBuffer bb = b.toBinary(pool);
+            assertTrue(bb.isDirect());
+            assertEquals(b.size(), bb.remaining());
+            assertEquals(b.toBinary(), bb);
+            pool.release(bb);
+        }
+        assertEquals(1, pool.idleCount());
+    }
+
+    /** A batch with a single message must be readable by peers that do not know about batching. */
+    @Test
+    public void single() throws Exception {
+        ConnectionMessage m = connectionMessages().get(0);
+        assertEquals(m.toJSON(1, 2), new MessageBatch(false).add(m, 1, 2).toText());
+        ByteBuffer bb = new MessageBatch(true).add(m, 1, 2).toBinary();
+        assertEquals(m.toJSON(1, 2), TransportMessage.parseMessage(bb).toJSON());
+        assertEquals(1, MessageBatch.parse(m.toJSON(1, 2)).size());
+        assertEquals(1, MessageBatch.parse(m.toBinary(1, 2)).size());
+    }
+
+    @Test(expected = IOException.class)
+    public void truncated() throws Exception {
+        List<ConnectionMessage> messages = connectionMessages();
+        ByteBuffer bb = new MessageBatch(true).add(messages.get(0), 1, 2).add(messages.get(1), 2, 2).toBinary();
+        bb.limit(bb.limit() - 1);
+        MessageBatch.parse(bb);
+    }
+}
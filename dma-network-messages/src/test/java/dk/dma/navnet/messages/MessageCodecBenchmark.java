@@ -0,0 +1,109 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.messages;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import dk.dma.enav.model.MaritimeId;
+import dk.dma.enav.model.geometry.PositionTime;
+import dk.dma.navnet.messages.auxiliary.PositionReportMessage;
+import dk.dma.navnet.messages.c2c.broadcast.BroadcastDeliver;
+
+/**
+ * Compares encoding and decoding messages with the JSON text codec against the binary codec. Run the main method to
+ * print the number of bytes each codec puts on the wire.
+ * 
+ * @author Kasper Nielsen
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MessageCodecBenchmark {
+
+    @Param({ "POSITION_REPORT", "BROADCAST_DELIVER" })
+    String type;
+
+    ConnectionMessage message;
+
+    String text;
+
+    byte[] binary;
+
+    static ConnectionMessage create(String type) {
+        PositionTime pt = PositionTime.create(55.6761234, 12.5683371, 1370000000000L);
+        switch (type) {
+        case "POSITION_REPORT":
+            return new PositionReportMessage(pt);
+        case "BROADCAST_DELIVER":
+            return new BroadcastDeliver(MaritimeId.create("mmsi://219012345"), pt,
+                    "dk.dma.enav.maritimecloud.broadcast.SafetyBroadcast",
+                    "{\"message\":\"Vessel not under command near Drogden lighthouse\",\"severity\":3}");
+        default:
+            throw new IllegalArgumentException(type);
+        }
+    }
+
+    @Setup
+    public void setup() {
+        message = create(type);
+        text = message.toJSON(123456, 123400);
+        ByteBuffer bb = message.toBinary(123456, 123400);
+        binary = new byte[bb.remaining()];
+        bb.get(binary);
+    }
+
+    @Benchmark
+    public String encodeText() {
+        // a new message every time, so the cached encoding is not used
+        return create(type).toJSON(123456, 123400);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeBinary() {
+        return create(type).toBinary(123456, 123400);
+    }
+
+    @Benchmark
+    public TransportMessage decodeText() throws IOException {
+        return TransportMessage.parseMessage(text);
+    }
+
+    @Benchmark
+    public TransportMessage decodeBinary() throws IOException {
+        return TransportMessage.parseMessage(ByteBuffer.wrap(binary));
+    }
+
+    public static void main(String[] args) {
+        for (String type : new String[] { "POSITION_REPORT", "BROADCAST_DELIVER" }) {
+            ConnectionMessage m = create(type);
+            int text = m.toJSON(123456, 123400).getBytes(StandardCharsets.UTF_8).length;
+            int binary = m.toBinary(123456, 123400).remaining();
+            System.out.println(type + ": text " + text + " bytes, binary " + binary + " bytes");
+        }
+    }
+}
@@ -0,0 +1,366 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.messages;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import dk.dma.enav.model.MaritimeId;
+import dk.dma.enav.model.geometry.PositionTime;
+import dk.dma.enav.model.shore.ServerId;
+import dk.dma.navnet.messages.auxiliary.AckMessage;
+import dk.dma.navnet.messages.auxiliary.ConnectedMessage;
+import dk.dma.navnet.messages.auxiliary.HelloMessage;
+import dk.dma.navnet.messages.auxiliary.PositionReportMessage;
+import dk.dma.navnet.messages.auxiliary.WelcomeMessage;
+import dk.dma.navnet.messages.c2c.broadcast.BroadcastAck;
+import dk.dma.navnet.messages.c2c.broadcast.BroadcastDeliver;
+import dk.dma.navnet.messages.c2c.broadcast.BroadcastSend;
+import dk.dma.navnet.messages.c2c.broadcast.BroadcastSendAck;
+import dk.dma.navnet.messages.c2c.service.InvokeService;
+import dk.dma.navnet.messages.c2c.service.InvokeServiceResult;
+import dk.dma.navnet.messages.errors.ServerRequestError;
+import dk.dma.navnet.messages.s2c.service.FindService;
+import dk.dma.navnet.messages.s2c.service.FindServiceResult;
+import dk.dma.navnet.messages.s2c.service.RegisterService;
+import dk.dma.navnet.messages.s2c.service.RegisterServiceResult;
+
+/**
+ * Tests that messages survive a round trip through both the text and the binary codec.
+ * 
+ * @author Kasper Nielsen
+ */
+public class MessageCodecTest {
+
+    static final String TRICKY = "q\"uote b\\ackslash\nnewline \u0001 \u00e6\u00f8\u00e5 \u20ac \ud83d\udea2";
+
+    static final MaritimeId ID = MaritimeId.create("mmsi://123456789");
+
+    static final PositionTime POS = PositionTime.create(55.6761, 12.5683, 1370000000000L);
+
+    static List<TransportMessage> samples() {
+        List<TransportMessage> l = new ArrayList<>();
+        l.add(new WelcomeMessage(1, new ServerId(1), "enavServer/1.0", Capabilities.BINARY));
+        l.add(new HelloMessage(ID, "enavClient/1.0", "", 12, POS.getLatitude(), POS.getLongitude(),
+                Capabilities.BINARY));
+        l.add(new ConnectedMessage("connection", 13));
+        l.add(new AckMessage(Long.MAX_VALUE));
+        l.add(new PositionReportMessage(POS));
+        l.add(new RegisterService("service").setReplyTo(1));
+        l.add(new RegisterServiceResult(2));
+        l.add(new FindService("service", 1000, 10).setReplyTo(3));
+        l.add(new FindServiceResult(4, new String[] { "mmsi://1", "mmsi://2" }));
+        l.add(new BroadcastSend(ID, POS, "channel", TRICKY, 1000, true).setReplyTo(5));
+        l.add(new BroadcastSendAck(6));
+        l.add(new BroadcastDeliver(ID, POS, "channel", TRICKY));
+        l.add(new BroadcastAck(7, ID, POS));
+        InvokeService is = new InvokeService(1, "conversation", "serviceType", "messageType", TRICKY);
+        is.setSource("mmsi://1");
+        is.setDestination("mmsi://2");
+        l.add(is);
+        InvokeServiceResult isr = new InvokeServiceResult("uuid", TRICKY, "replyType");
+        isr.setSource("mmsi://2");
+        isr.setDestination("mmsi://1");
+        l.add(isr);
+        l.add(new ServerRequestError());
+        for (TransportMessage m : l) {
+            if (m instanceof ConnectionMessage) {
+                ((ConnectionMessage) m).setMessageId(Long.MAX_VALUE).setLatestReceivedId(-1);
+            }
+        }
+        return l;
+    }
+
+    @Test
+    public void textRoundTrip() throws Exception {
+        for (TransportMessage m : samples()) {
+            String json = m.toJSON();
+            assertEquals(json, TransportMessage.parseMessage(json).toJSON());
+        }
+    }
+
+    @Test
+    public void binaryRoundTrip() throws Exception {
+        for (TransportMessage m : samples()) {
+            TransportMessage read = TransportMessage.parseMessage(m.toBinary());
+            assertEquals(m.getClass(), read.getClass());
+            assertEquals(m.toJSON(), read.toJSON());
+        }
+    }
+
+    @Test
+    public void escaping() throws Exception {
+        BroadcastDeliver bd = new BroadcastDeliver(ID, POS, "channel", TRICKY);
+        assertEquals(TRICKY, ((BroadcastDeliver) TransportMessage.parseMessage(bd.toJSON())).getMessage());
+        assertEquals(TRICKY, ((BroadcastDeliver) TransportMessage.parseMessage(bd.toBinary())).getMessage());
+    }
+
+    @Test
+    public void relayedBodyIsKept() throws Exception {
+        // unusual but valid spacing, which would be lost if the fields were encoded again
+        String body = ",\"mmsi://1\" ,\"mmsi://2\",1,\"c\",\"s\",\"m\",\"x\\ty\"";
+        String type = "[" + MessageType.SERVICE_INVOKE.type;
+        InvokeService is = (InvokeService) TransportMessage.parseMessage(type + ",1,2 " + body + "]");
+        assertEquals("x\ty", is.getMessage());
+        assertEquals(type + ", 3, 4" + body + "]", is.toJSON(3, 4));
+
+        // the binary encoding is not affected
+        InvokeService expected = new InvokeService(1, "c", "s", "m", "x\ty");
+        expected.setSource("mmsi://1");
+        expected.setDestination("mmsi://2");
+        assertEquals(expected.toJSON(3, 4), TransportMessage.parseMessage(is.toBinary(3, 4)).toJSON());
+
+        // changing a field discards the received body
+        expected.setDestination("mmsi://3");
+        is.setDestination("mmsi://3");
+        assertEquals(expected.toJSON(3, 4), is.toJSON(3, 4));
+    }
+
+    @Test
+    public void payloadIsReadWhenAccessed() throws Exception {
+        // the payload is a number, which is only detected when it is accessed
+        String json = ", 1, 2, \"mmsi://1\", \"mmsi://2\", 1, \"c\", \"s\", \"m\", 3]";
+        InvokeService is = (InvokeService) TransportMessage.parseMessage("[" + MessageType.SERVICE_INVOKE.type + json);
+        assertEquals("mmsi://2", is.getDestination());
+        try {
+            is.getMessage();
+            fail();
+        } catch (IllegalStateException ok) {}
+
+        BroadcastSend bs = new BroadcastSend(ID, POS, "channel", TRICKY, 1000, true);
+        BroadcastSend read = (BroadcastSend) TransportMessage.parseMessage(bs.toJSON());
+        read.setReplyTo(42);
+        assertEquals(TRICKY, read.getMessage());
+        assertEquals(bs.setReplyTo(42).toJSON(), read.toJSON());
+        assertEquals(TRICKY, ((BroadcastSend) TransportMessage.parseMessage(bs.toBinary())).getMessage());
+    }
+
+    /** Messages are sized in the format they are sent in. */
+    @Test
+    public void encodedSizes() throws Exception {
+        for (TransportMessage m : samples()) {
+            if (m instanceof ConnectionMessage) {
+                ConnectionMessage cm = (ConnectionMessage) m;
+                assertTrue(cm.toBinary(Long.MAX_VALUE, Long.MAX_VALUE).remaining() <= cm.getEncodedSize(true));
+                assertTrue(cm.toJSON(Long.MAX_VALUE, Long.MAX_VALUE).length() <= cm.getEncodedSize(false));
+            }
+        }
+    }
+
+    /** A relayed message received in a binary frame is sized for the queue and sent on without being decoded. */
+    @Test
+    public void binaryRelayIsNotDecoded() throws Exception {
+        InvokeService is = new InvokeService(1, "c", "s", "m", "payload");
+        is.setSource("mmsi://1");
+        is.setDestination("mmsi://2");
+        ByteBuffer bb = is.toBinary(1, 2);
+        int headerSize = bb.remaining() - ((ConnectionMessage) is).encodedBinaryBody().length;
+        // a truncated payload can only be detected by decoding the message
+        bb.limit(bb.limit() - 1);
+        int bodySize = bb.remaining() - headerSize;
+        InvokeService read = (InvokeService) TransportMessage.parseMessage(bb);
+        assertEquals(bodySize + 48, read.getEncodedSize());
+        assertEquals(bodySize + headerSize, read.toBinary(1, 2).remaining());
+        try {
+            read.getMessage();
+            fail();
+        } catch (IllegalStateException ok) {}
+    }
+
+    @Test
+    public void jsonPayloads() throws Exception {
+        String payload = "{\"name\":\"q\\\"uote\",\"list\":[1,{}]}";
+        InvokeService is = new InvokeService(1, "c", "s", "m", payload);
+        is.setSource("mmsi://1");
+        is.setDestination("mmsi://2");
+        String legacy = is.toJSON(3, 4);
+        String json = is.toJSON(3, 4, true);
+        assertTrue(json.endsWith(", " + payload + "]"));
+        assertTrue(json.length() < legacy.length());
+
+        // peers read both forms
+        assertEquals(payload, ((InvokeService) TransportMessage.parseMessage(json)).getMessage());
+        assertEquals(payload, ((InvokeService) TransportMessage.parseMessage(legacy, true)).getMessage());
+
+        // a message received with a JSON payload is encoded again for peers that have not negotiated it
+        InvokeService read = (InvokeService) TransportMessage.parseMessage(json, true);
+        assertEquals(json, read.toJSON(3, 4, true));
+        assertEquals(legacy, read.toJSON(3, 4));
+        assertEquals(legacy, TransportMessage.parseMessage(read.toBinary(3, 4)).toJSON());
+
+        // payloads that are not objects or arrays are always written as strings
+        BroadcastDeliver bd = new BroadcastDeliver(ID, POS, "channel", TRICKY);
+        assertEquals(bd.toJSON(1, 2), bd.toJSON(1, 2, true));
+        BroadcastSend bs = new BroadcastSend(ID, POS, "channel", payload, 1000, true);
+        BroadcastSend bsRead = (BroadcastSend) TransportMessage.parseMessage(bs.toJSON(1, 2, true), true);
+        assertEquals(payload, bsRead.getMessage());
+    }
+
+    @Test
+    public void nullStrings() throws Exception {
+        BinaryMessageWriter bw = new BinaryMessageWriter();
+        bw.writeString(null).writeString("");
+        BinaryMessageReader br = new BinaryMessageReader(bw.toByteBuffer());
+        assertNull(br.takeString());
+        assertEquals("", br.takeString());
+
+        TextMessageWriter tw = new TextMessageWriter();
+        tw.writeString(null).writeString("");
+        TextMessageReader tr = new TextMessageReader(tw.sb.append("]").toString());
+        assertNull(tr.takeString());
+        assertEquals("", tr.takeString());
+    }
+
+    /** Older peers do not send capabilities. */
+    @Test
+    public void missingCapabilities() throws Exception {
+        WelcomeMessage wm = (WelcomeMessage) TransportMessage
+                .parseMessage("[1, 1, \"server://1\", \"enavServer/1.0\"]");
+        assertArrayEquals(new String[0], wm.getCapabilities());
+        HelloMessage hm = (HelloMessage) TransportMessage
+                .parseMessage("[2, \"mmsi://1\", \"enavClient/1.0\", \"\", 0, 1.0, 2.0]");
+        assertArrayEquals(new String[0], hm.getCapabilities());
+    }
+
+    @Test
+    public void everyTypeHasASample() {
+        EnumSet<MessageType> types = EnumSet.allOf(MessageType.class);
+        for (TransportMessage m : samples()) {
+            types.remove(m.getMessageType());
+        }
+        // these reuse the class of another type, which always reports that other type
+        types.remove(MessageType.SERVICE_INVOKE_ERROR);
+        types.remove(MessageType.UNREGISTER_SERVICE);
+        types.remove(MessageType.UNREGISTER_SERVICE_ACK);
+        assertEquals(EnumSet.noneOf(MessageType.class), types);
+    }
+
+    @Test(expected = IOException.class)
+    public void unknownType() throws Exception {
+        TransportMessage.parseMessage("[42, 1, 2]");
+    }
+
+    @Test(expected = IOException.class)
+    public void negativeType() throws Exception {
+        BinaryMessageWriter w = new BinaryMessageWriter();
+        w.writeInt(-1);
+        TransportMessage.parseMessage(w.toByteBuffer());
+    }
+
+    @Test(expected = IOException.class)
+    public void negativeStringLength() throws Exception {
+        BinaryMessageWriter w = new BinaryMessageWriter();
+        w.writeInt(MessageType.REGISTER_SERVICE.type).writeLong(1).writeLong(0);
+        w.writeLong(Long.MIN_VALUE); // zigzag encoded as the 10 byte varint of -1 when read unsigned
+        TransportMessage.parseMessage(w.toByteBuffer());
+    }
+
+    @Test
+    public void malformedLengths() throws Exception {
+        for (long length : new long[] { Long.MIN_VALUE, Long.MAX_VALUE, Integer.MIN_VALUE }) {
+            for (int method = 0; method < 3; method++) {
+                BinaryMessageWriter w = new BinaryMessageWriter();
+                w.writeLong(length);
+                w.writeString("padding");
+                BinaryMessageReader r = new BinaryMessageReader(w.toByteBuffer());
+                try {
+                    if (method == 0) {
+                        r.takeString();
+                    } else if (method == 1) {
+                        r.skipString();
+                    } else {
+                        r.takeStringArray();
+                    }
+                    fail("Expected an IOException for length " + length);
+                } catch (IOException expected) {}
+            }
+        }
+    }
+
+    @Test
+    public void varints() throws Exception {
+        long[] longs = { 0, 1, -1, 63, -64, 64, 127, 128, Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE,
+                Long.MIN_VALUE };
+        BinaryMessageWriter w = new BinaryMessageWriter();
+        for (long l : longs) {
+            w.writeLong(l);
+            w.writeInt((int) l);
+        }
+        BinaryMessageReader r = new BinaryMessageReader(w.toByteBuffer());
+        for (long l : longs) {
+            assertEquals(l, r.takeLong());
+            assertEquals((int) l, r.takeInt());
+        }
+        assertEquals(false, r.hasMore());
+    }
+
+    @Test
+    public void coordinates() throws Exception {
+        assertEquals("55.6761", coordinate(55.6761));
+        assertEquals("-12.5683", coordinate(-12.5683));
+        assertEquals("12.0", coordinate(12));
+        assertEquals("0.0000001", coordinate(1e-7));
+        assertEquals("0.0", coordinate(-1e-8));
+        assertEquals("-179.9999999", coordinate(-179.99999994));
+        assertEquals("180.0", coordinate(179.99999996));
+        assertEquals("55.6761283", coordinate(33405677 / 600000d)); // an AIS position in 1/10000 minutes
+
+        Random r = new Random(1);
+        TextMessageWriter w = new TextMessageWriter();
+        double[] values = new double[1000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (r.nextDouble() - 0.5) * 360;
+            w.writeCoordinate(values[i]);
+            w.writeDouble(values[i]);
+        }
+        TextMessageReader tr = new TextMessageReader(w.sb.append("]").toString());
+        for (double d : values) {
+            double c = tr.takeDouble();
+            assertTrue(Math.abs(c - d) <= 0.5e-7);
+            assertEquals(c, Double.parseDouble(coordinate(d)), 0); // the fast parser is correctly rounded
+            assertEquals(d, tr.takeDouble(), 0);
+        }
+    }
+
+    /** Numbers the fast parser does not handle are parsed by Jackson. */
+    @Test
+    public void doubles() throws Exception {
+        TextMessageReader r = new TextMessageReader("[1.0E-5, -2.5e3, 12, 0.1234567890123456789, -0.0]");
+        assertEquals(1e-5, r.takeDouble(), 0);
+        assertEquals(-2500, r.takeDouble(), 0);
+        assertEquals(12, r.takeDouble(), 0);
+        assertEquals(0.1234567890123456789, r.takeDouble(), 0);
+        assertEquals(Double.doubleToLongBits(-0.0), Double.doubleToLongBits(r.takeDouble()));
+    }
+
+    private static String coordinate(double d) {
+        StringBuilder sb = new StringBuilder();
+        TextMessageWriter.appendCoordinate(sb, d);
+        return sb.toString();
+    }
+}
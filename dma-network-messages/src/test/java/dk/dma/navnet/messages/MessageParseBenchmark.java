@@ -0,0 +1,75 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.messages;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the parse throughput of {@link TransportMessage#parseMessage(String)} and
+ * {@link TransportMessage#parseMessage(ByteBuffer)} for each type of message.
+ * 
+ * @author Kasper Nielsen
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MessageParseBenchmark {
+
+    @Param({ "WELCOME", "HELLO", "CONNECTED", "ACK", "POSITION_REPORT", "REGISTER_SERVICE", "REGISTER_SERVICE_RESULT",
+            "FIND_SERVICE", "FIND_SERVICE_ACK", "BROADCAST_SEND", "BROADCAST_SEND_ACK", "BROADCAST_DELIVER",
+            "BROADCAST_DELIVER_ACK", "REQUEST_ERROR", "SERVICE_INVOKE", "SERVICE_INVOKE_RESULT" })
+    String type;
+
+    String text;
+
+    byte[] binary;
+
+    @Setup
+    public void setup() {
+        MessageType mt = MessageType.valueOf(type);
+        for (TransportMessage m : MessageCodecTest.samples()) {
+            if (m.getMessageType() == mt) {
+                text = m.toJSON();
+                ByteBuffer bb = m.toBinary();
+                binary = new byte[bb.remaining()];
+                bb.get(binary);
+                return;
+            }
+        }
+        throw new IllegalArgumentException("No sample for " + type);
+    }
+
+    @Benchmark
+    public TransportMessage parseText() throws IOException {
+        return TransportMessage.parseMessage(text);
+    }
+
+    @Benchmark
+    public TransportMessage parseBinary() throws IOException {
+        return TransportMessage.parseMessage(ByteBuffer.wrap(binary));
+    }
+}
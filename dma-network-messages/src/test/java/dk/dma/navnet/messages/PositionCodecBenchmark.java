@@ -0,0 +1,106 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.messages;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures writing and reading the coordinates of positions in the text format. Compares
+ * {@link TextMessageWriter#writeCoordinate(double)} against {@link TextMessageWriter#writeDouble(double)}, and the
+ * fast decimal parser of {@link TextMessageReader} against letting Jackson parse the numbers, which it does for the
+ * full length doubles. The positions are AIS positions, which are reported in 1/10000 minutes, so most of them have 16
+ * or 17 significant digits as a double.
+ * <p>
+ * The setup prints the number of characters a position takes up with either encoding. Run with <tt>-prof gc</tt> to
+ * see the allocation per position.
+ * 
+ * @author Kasper Nielsen
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PositionCodecBenchmark {
+
+    static final int POSITIONS = 1024;
+
+    final double[] coordinates = new double[2 * POSITIONS];
+
+    String doubles;
+
+    String fixed;
+
+    @Setup
+    public void setup() {
+        Random r = new Random(1);
+        for (int i = 0; i < POSITIONS; i++) {
+            coordinates[2 * i] = (r.nextInt(90 * 600_000 * 2) - 90 * 600_000) / 600_000d;
+            coordinates[2 * i + 1] = (r.nextInt(180 * 600_000 * 2) - 180 * 600_000) / 600_000d;
+        }
+        doubles = writeDoubles();
+        fixed = writeCoordinates();
+        System.out.printf("%nCharacters per position: writeDouble %.1f, writeCoordinate %.1f%n",
+                (double) doubles.length() / POSITIONS, (double) fixed.length() / POSITIONS);
+    }
+
+    @Benchmark
+    public String writeDoubles() {
+        TextMessageWriter w = new TextMessageWriter();
+        w.sb.ensureCapacity(64 * POSITIONS);
+        for (double d : coordinates) {
+            w.writeDouble(d);
+        }
+        return w.sb.append(']').toString();
+    }
+
+    @Benchmark
+    public String writeCoordinates() {
+        TextMessageWriter w = new TextMessageWriter();
+        w.sb.ensureCapacity(64 * POSITIONS);
+        for (double d : coordinates) {
+            w.writeCoordinate(d);
+        }
+        return w.sb.append(']').toString();
+    }
+
+    @Benchmark
+    public double readDoubles() throws IOException {
+        return read(doubles);
+    }
+
+    @Benchmark
+    public double readCoordinates() throws IOException {
+        return read(fixed);
+    }
+
+    static double read(String text) throws IOException {
+        TextMessageReader r = new TextMessageReader(text);
+        double sum = 0;
+        while (r.hasMore()) {
+            sum += r.takeDouble();
+        }
+        return sum;
+    }
+}
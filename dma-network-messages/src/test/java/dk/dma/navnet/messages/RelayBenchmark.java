@@ -0,0 +1,78 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.messages;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import dk.dma.navnet.messages.c2c.ClientRelayedMessage;
+import dk.dma.navnet.messages.c2c.service.InvokeService;
+
+/**
+ * Measures relaying a received {@link InvokeService} the way the server does, by parsing it and encoding it with a
+ * new header. Compares passing on the fields as received against copying the message with
+ * {@link ClientRelayedMessage#cloneIt()}, which encodes the payload again.
+ * <p>
+ * Run with <tt>-prof gc</tt> to see the allocation per relayed message.
+ * 
+ * @author Kasper Nielsen
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RelayBenchmark {
+
+    @Param({ "1024", "65536" })
+    int payloadSize;
+
+    String text;
+
+    @Setup
+    public void setup() {
+        char[] payload = new char[payloadSize];
+        Arrays.fill(payload, 'x');
+        // a few characters that must be escaped
+        for (int i = 0; i < payload.length; i += 64) {
+            payload[i] = '"';
+        }
+        InvokeService is = new InvokeService(1, "conversation", "serviceType", "messageType", new String(payload));
+        is.setSource("mmsi://1");
+        is.setDestination("mmsi://2");
+        text = is.toJSON(12, 34);
+    }
+
+    @Benchmark
+    public String relay() throws IOException {
+        ClientRelayedMessage m = (ClientRelayedMessage) TransportMessage.parseMessage(text);
+        return m.toJSON(123456, 123400);
+    }
+
+    @Benchmark
+    public String cloneAndRelay() throws IOException {
+        ClientRelayedMessage m = (ClientRelayedMessage) TransportMessage.parseMessage(text);
+        return m.cloneIt().toJSON(123456, 123400);
+    }
+}
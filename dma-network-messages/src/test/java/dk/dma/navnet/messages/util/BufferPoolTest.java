@@ -0,0 +1,72 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.messages.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link BufferPool}.
+ * 
+ * @author Kasper Nielsen
+ */
+public class BufferPoolTest {
+
+    @Test
+    public void reuse() {
+        BufferPool pool = new BufferPool(128, 1);
+        ByteBuffer b = pool.acquire(100);
+        assertTrue(b.isDirect());
+        assertEquals(0, b.position());
+        assertEquals(100, b.limit());
+        b.put(new byte[100]).flip();
+        pool.release(b);
+        assertEquals(1, pool.idleCount());
+
+        ByteBuffer c = pool.acquire(10);
+        assertSame(b, c);
+        assertEquals(0, c.position());
+        assertEquals(10, c.limit());
+        assertEquals(0, pool.idleCount());
+    }
+
+    @Test
+    public void bounded() {
+        BufferPool pool = new BufferPool(128, 1);
+        ByteBuffer b = pool.acquire(1);
+        ByteBuffer c = pool.acquire(1);
+        pool.release(b);
+        pool.release(c);
+        assertEquals(1, pool.idleCount());
+    }
+
+    /** Frames larger than the buffers in the pool are not pooled. */
+    @Test
+    public void oversized() {
+        BufferPool pool = new BufferPool(128, 1);
+        ByteBuffer b = pool.acquire(129);
+        assertFalse(b.isDirect());
+        assertEquals(129, b.remaining());
+        pool.release(b);
+        assertEquals(0, pool.idleCount());
+    }
+}
@@ -0,0 +1,58 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.messages.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link FrameStatistics}.
+ * 
+ * @author Kasper Nielsen
+ */
+public class FrameStatisticsTest {
+
+    @Test
+    public void buckets() {
+        for (long v = 0; v < 100_000; v++) {
+            int b = FrameStatistics.bucketOf(v);
+            assertTrue(v <= FrameStatistics.upperBoundOf(b));
+            assertTrue(b == 0 || v > FrameStatistics.upperBoundOf(b - 1));
+        }
+        assertEquals(Long.MAX_VALUE, FrameStatistics.upperBoundOf(FrameStatistics.bucketOf(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void percentiles() {
+        FrameStatistics s = new FrameStatistics();
+        assertEquals(0, s.getLatencyPercentile(0.99, TimeUnit.NANOSECONDS));
+        for (int i = 1; i <= 1000; i++) {
+            s.latency(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+        s.frameSent(600);
+        s.frameSent(400);
+        assertEquals(2, s.getFrameCount());
+        assertEquals(1000, s.getMessageCount());
+        long p50 = s.getLatencyPercentile(0.5, TimeUnit.MICROSECONDS);
+        long p99 = s.getLatencyPercentile(0.99, TimeUnit.MICROSECONDS);
+        assertTrue("p50 was " + p50, p50 >= 500 && p50 <= 500 * 1.125);
+        assertTrue("p99 was " + p99, p99 >= 990 && p99 <= 990 * 1.125);
+    }
+}
@@ -0,0 +1,81 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.messages.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link RetransmitBuffer}.
+ * 
+ * @author Kasper Nielsen
+ */
+public class RetransmitBufferTest {
+
+    @Test
+    public void ackAndGrow() {
+        RetransmitBuffer<String> b = new RetransmitBuffer<>(2);
+        // wrap around a couple of times while growing
+        long next = 1;
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 7; i++) {
+                b.add(next, "m" + next);
+                next++;
+            }
+            long first = b.firstId();
+            assertEquals("m" + (first + 3), b.get(first + 3));
+            assertNull(b.get(first - 1));
+            assertNull(b.get(next));
+            assertEquals("m" + first, b.pollAcked(first + 4));
+            for (long id = first + 1; id <= first + 4; id++) {
+                assertEquals("m" + id, b.pollAcked(first + 4));
+            }
+            assertNull(b.pollAcked(first + 4));
+            assertEquals(first + 5, b.firstId());
+        }
+        assertEquals(10, b.size());
+    }
+
+    @Test
+    public void resend() {
+        RetransmitBuffer<String> b = new RetransmitBuffer<>();
+        for (long id = 10; id < 15; id++) {
+            b.add(id, "m" + id);
+        }
+        // the remote end received up to 12
+        assertEquals("m10", b.pollAcked(12));
+        assertEquals("m11", b.pollAcked(12));
+        assertEquals("m12", b.pollAcked(12));
+        assertNull(b.pollAcked(12));
+        assertEquals("m14", b.pollLast());
+        assertEquals("m13", b.pollLast());
+        assertNull(b.pollLast());
+        assertTrue(b.isEmpty());
+        // a new sequence can start at any id once empty
+        b.add(1, "m1");
+        assertEquals(1, b.firstId());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nonConsecutive() {
+        RetransmitBuffer<String> b = new RetransmitBuffer<>();
+        b.add(1, "a");
+        b.add(3, "b");
+    }
+}
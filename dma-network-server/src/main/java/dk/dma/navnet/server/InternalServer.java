@@ -25,11 +25,17 @@ import org.picocontainer.DefaultPicoContainer;
 import org.picocontainer.behaviors.Caching;
 
 import dk.dma.enav.model.shore.ServerId;
+import dk.dma.navnet.messages.util.FrameStatistics;
 import dk.dma.navnet.server.broadcast.BroadcastManager;
+import dk.dma.navnet.server.cluster.ClusterManager;
 import dk.dma.navnet.server.connection.ConnectionManager;
 import dk.dma.navnet.server.connection.WebSocketServer;
+import dk.dma.navnet.server.connection.WireTrace;
 import dk.dma.navnet.server.requests.ServerMessageBus;
 import dk.dma.navnet.server.services.ServiceManager;
+import dk.dma.navnet.server.store.MessageStore;
+import dk.dma.navnet.server.store.SpoolManager;
+import dk.dma.navnet.server.store.StoreAndForward;
 import dk.dma.navnet.server.targets.TargetManager;
 import dk.dma.navnet.server.util.ThreadManager;
 
@@ -85,6 +91,12 @@ public class InternalServer {
 
         picoContainer.addComponent(ServerInfo.class);
         picoContainer.addComponent(ThreadManager.class);
+        picoContainer.addComponent(FrameStatistics.class);
+        picoContainer.addComponent(WireTrace.class);
+        picoContainer.addComponent(MessageStore.class);
+        picoContainer.addComponent(SpoolManager.class);
+        picoContainer.addComponent(StoreAndForward.class);
+        picoContainer.addComponent(ClusterManager.class);
         picoContainer.addComponent(TargetManager.class);
         picoContainer.addComponent(ConnectionManager.class);
         picoContainer.addComponent(WebSocketServer.class);
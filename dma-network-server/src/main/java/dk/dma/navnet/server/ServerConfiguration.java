@@ -15,9 +15,17 @@
  */
 package dk.dma.navnet.server;
 
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import com.beust.jcommander.Parameter;
 
 import dk.dma.enav.model.shore.ServerId;
+import dk.dma.navnet.server.connection.SlowConsumerPolicy;
+import dk.dma.navnet.server.targets.GeoShards;
 
 /**
  * 
@@ -31,6 +39,30 @@ public class ServerConfiguration {
     /** The default port the web server is running on. */
     public static final int DEFAULT_WEBSERVER_PORT = 8080;
 
+    /** The default maximum number of messages that can be queued for a single connection. */
+    public static final int DEFAULT_MAX_QUEUED_MESSAGES = 10_000;
+
+    /** The default maximum number of bytes that can be queued for a single connection. */
+    public static final long DEFAULT_MAX_QUEUED_BYTES = 4 * 1024 * 1024;
+
+    /** The default size of each segment file of the message store. */
+    public static final int DEFAULT_STORE_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /** The default number of seconds before the message store starts a new segment file. */
+    public static final int DEFAULT_STORE_ROLL_INTERVAL = 60 * 60;
+
+    /** The default number of segment files kept by the message store, a week of files at the default roll interval. */
+    public static final int DEFAULT_STORE_RETAINED_SEGMENTS = 7 * 24;
+
+    /** The default number of seconds messages to disconnected targets are held before they expire. */
+    public static final int DEFAULT_FORWARD_TTL = 60 * 60;
+
+    /** The default maximum number of bytes that can be held for a single disconnected target. */
+    public static final long DEFAULT_FORWARD_MAX_BYTES = 1024 * 1024;
+
+    /** The default maximum number of bytes held in memory for all disconnected targets. */
+    public static final long DEFAULT_FORWARD_MEMORY = 16 * 1024 * 1024;
+
     /** The id of the server, hard coded for now */
     ServerId id = new ServerId(1);
 
@@ -40,6 +72,60 @@ public class ServerConfiguration {
     @Parameter(names = "-adminport", description = "The webserver port for the administrative interface")
     int webserverport = ServerConfiguration.DEFAULT_WEBSERVER_PORT;
 
+    @Parameter(names = "-batching", description = "Offer clients to send several messages in a single frame")
+    boolean batching;
+
+    @Parameter(names = "-eventloops", description = "The number of threads processing messages, 0 for one per core")
+    int eventLoops;
+
+    @Parameter(names = "-wiretrace", description = "Trace all frames sent and received, can be changed at runtime")
+    boolean wireTrace;
+
+    @Parameter(names = "-store", description = "The directory to store all messages in, none if not specified")
+    String storeDirectory;
+
+    @Parameter(names = "-storeSegmentSize", description = "The maximum size in bytes of each file in the store")
+    int storeSegmentSize = DEFAULT_STORE_SEGMENT_SIZE;
+
+    @Parameter(names = "-storeRollInterval", description = "The number of seconds before a new file in the store")
+    int storeRollInterval = DEFAULT_STORE_ROLL_INTERVAL;
+
+    @Parameter(names = "-storeRetainedSegments", description = "The number of files kept in the store")
+    int storeRetainedSegments = DEFAULT_STORE_RETAINED_SEGMENTS;
+
+    @Parameter(names = "-spool", description = "The directory to spool undelivered messages in, none if not specified")
+    String spoolDirectory;
+
+    @Parameter(names = "-forwardTtl", description = "The number of seconds messages to offline targets are held")
+    int forwardTtl = DEFAULT_FORWARD_TTL;
+
+    @Parameter(names = "-forwardMaxBytes", description = "The maximum number of bytes held per offline target")
+    long forwardMaxBytes = DEFAULT_FORWARD_MAX_BYTES;
+
+    @Parameter(names = "-forwardMemory", description = "The maximum number of bytes held in memory for all targets")
+    long forwardMemory = DEFAULT_FORWARD_MEMORY;
+
+    @Parameter(names = "-forwardDirectory", description = "The directory held messages spill to, none if not specified")
+    String forwardDirectory;
+
+    @Parameter(names = "-cluster", description = "The host:port to listen for other cluster nodes on, if any")
+    String clusterAddress;
+
+    @Parameter(names = "-clusterPeers", description = "The host:port of the other cluster nodes, comma separated")
+    List<String> clusterPeers = new ArrayList<>();
+
+    @Parameter(names = "-shardSize", description = "The size in degrees of the region of each shard of targets")
+    double shardSize = GeoShards.DEFAULT_SHARD_SIZE;
+
+    @Parameter(names = "-maxQueuedMessages", description = "The maximum number of queued messages per connection")
+    int maxQueuedMessages = DEFAULT_MAX_QUEUED_MESSAGES;
+
+    @Parameter(names = "-maxQueuedBytes", description = "The maximum number of queued bytes per connection")
+    long maxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+
+    @Parameter(names = "-slowConsumerPolicy", description = "What to do when the queue of a connection is full")
+    SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DROP_OLDEST_BROADCAST;
+
     /**
      * @return the id
      */
@@ -47,6 +133,132 @@ public class ServerConfiguration {
         return id;
     }
 
+    /**
+     * @return whether or not clients are offered to send several messages in a single frame
+     */
+    public boolean isBatching() {
+        return batching;
+    }
+
+    /**
+     * @return the number of event loops, 0 for one per available processor
+     */
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    /**
+     * @return the directory messages are stored in, or null if messages are not stored
+     */
+    public String getStoreDirectory() {
+        return storeDirectory;
+    }
+
+    /**
+     * @return the maximum size in bytes of each segment file of the message store
+     */
+    public int getStoreSegmentSize() {
+        return storeSegmentSize;
+    }
+
+    /**
+     * @return the number of seconds before the message store starts a new segment file
+     */
+    public int getStoreRollInterval() {
+        return storeRollInterval;
+    }
+
+    /**
+     * @return the number of segment files kept by the message store, older files are deleted
+     */
+    public int getStoreRetainedSegments() {
+        return storeRetainedSegments;
+    }
+
+    /**
+     * @return the directory undelivered messages are spooled in, or null if messages are not spooled
+     */
+    public String getSpoolDirectory() {
+        return spoolDirectory;
+    }
+
+    /**
+     * @return the number of seconds messages to disconnected targets are held before they expire
+     */
+    public int getForwardTtl() {
+        return forwardTtl;
+    }
+
+    /**
+     * @return the maximum number of bytes that can be held for a single disconnected target
+     */
+    public long getForwardMaxBytes() {
+        return forwardMaxBytes;
+    }
+
+    /**
+     * @return the maximum number of bytes held in memory for all disconnected targets
+     */
+    public long getForwardMemory() {
+        return forwardMemory;
+    }
+
+    /**
+     * @return the directory held messages spill to when the memory limit is reached, or null if they are not spilled
+     */
+    public String getForwardDirectory() {
+        return forwardDirectory;
+    }
+
+    /**
+     * @return the host:port this node listens for other cluster nodes on, or null if it is not part of a cluster
+     */
+    public String getClusterAddress() {
+        return clusterAddress;
+    }
+
+    /**
+     * @return the host:port of every other node in the cluster
+     */
+    public List<String> getClusterPeers() {
+        return clusterPeers;
+    }
+
+    /**
+     * @return the size in degrees of the region of each geographic shard of targets
+     */
+    public double getShardSize() {
+        return shardSize;
+    }
+
+    /**
+     * @return whether or not all frames are traced when the server starts
+     */
+    public boolean isWireTrace() {
+        return wireTrace;
+    }
+
+    /**
+     * @return the maximum number of messages that can be queued for a single connection
+     */
+    public int getMaxQueuedMessages() {
+        return maxQueuedMessages;
+    }
+
+    /**
+     * @return the maximum number of bytes that can be queued for a single connection
+     */
+    public long getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+    /**
+     * @return what to do when a message is sent to a connection that has reached its limits
+     */
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
     /**
      * @return the serverPort
      */
@@ -70,6 +282,197 @@ public class ServerConfiguration {
         return this;
     }
 
+    /**
+     * @param batching
+     *            whether or not clients are offered to send several messages in a single frame
+     */
+    public ServerConfiguration setBatching(boolean batching) {
+        this.batching = batching;
+        return this;
+    }
+
+    /**
+     * @param eventLoops
+     *            the number of event loops, 0 for one per available processor
+     */
+    public ServerConfiguration setEventLoops(int eventLoops) {
+        this.eventLoops = eventLoops;
+        return this;
+    }
+
+    /**
+     * @param storeDirectory
+     *            the directory messages are stored in, or null if messages should not be stored
+     */
+    public ServerConfiguration setStoreDirectory(String storeDirectory) {
+        this.storeDirectory = storeDirectory;
+        return this;
+    }
+
+    /**
+     * @param storeSegmentSize
+     *            the maximum size in bytes of each segment file of the message store
+     */
+    public ServerConfiguration setStoreSegmentSize(int storeSegmentSize) {
+        if (storeSegmentSize <= 0) {
+            throw new IllegalArgumentException("storeSegmentSize must be positive, was " + storeSegmentSize);
+        }
+        this.storeSegmentSize = storeSegmentSize;
+        return this;
+    }
+
+    /**
+     * @param storeRollInterval
+     *            the number of seconds before the message store starts a new segment file
+     */
+    public ServerConfiguration setStoreRollInterval(int storeRollInterval) {
+        if (storeRollInterval <= 0) {
+            throw new IllegalArgumentException("storeRollInterval must be positive, was " + storeRollInterval);
+        }
+        this.storeRollInterval = storeRollInterval;
+        return this;
+    }
+
+    /**
+     * @param storeRetainedSegments
+     *            the number of segment files kept by the message store, older files are deleted
+     */
+    public ServerConfiguration setStoreRetainedSegments(int storeRetainedSegments) {
+        if (storeRetainedSegments <= 0) {
+            throw new IllegalArgumentException("storeRetainedSegments must be positive, was " + storeRetainedSegments);
+        }
+        this.storeRetainedSegments = storeRetainedSegments;
+        return this;
+    }
+
+    /**
+     * @param spoolDirectory
+     *            the directory undelivered messages are spooled in, or null if messages should not be spooled
+     */
+    public ServerConfiguration setSpoolDirectory(String spoolDirectory) {
+        this.spoolDirectory = spoolDirectory;
+        return this;
+    }
+
+    /**
+     * @param forwardTtl
+     *            the number of seconds messages to disconnected targets are held before they expire
+     */
+    public ServerConfiguration setForwardTtl(int forwardTtl) {
+        if (forwardTtl <= 0) {
+            throw new IllegalArgumentException("forwardTtl must be positive, was " + forwardTtl);
+        }
+        this.forwardTtl = forwardTtl;
+        return this;
+    }
+
+    /**
+     * @param forwardMaxBytes
+     *            the maximum number of bytes that can be held for a single disconnected target
+     */
+    public ServerConfiguration setForwardMaxBytes(long forwardMaxBytes) {
+        if (forwardMaxBytes < 0) {
+            throw new IllegalArgumentException("forwardMaxBytes must be non-negative, was " + forwardMaxBytes);
+        }
+        this.forwardMaxBytes = forwardMaxBytes;
+        return this;
+    }
+
+    /**
+     * @param forwardMemory
+     *            the maximum number of bytes held in memory for all disconnected targets
+     */
+    public ServerConfiguration setForwardMemory(long forwardMemory) {
+        if (forwardMemory < 0) {
+            throw new IllegalArgumentException("forwardMemory must be non-negative, was " + forwardMemory);
+        }
+        this.forwardMemory = forwardMemory;
+        return this;
+    }
+
+    /**
+     * @param forwardDirectory
+     *            the directory held messages spill to when the memory limit is reached, or null if they should not be
+     *            spilled
+     */
+    public ServerConfiguration setForwardDirectory(String forwardDirectory) {
+        this.forwardDirectory = forwardDirectory;
+        return this;
+    }
+
+    /**
+     * @param clusterAddress
+     *            the host:port this node listens for other cluster nodes on, or null if it is not part of a cluster
+     */
+    public ServerConfiguration setClusterAddress(String clusterAddress) {
+        this.clusterAddress = clusterAddress;
+        return this;
+    }
+
+    /**
+     * @param clusterPeers
+     *            the host:port of every other node in the cluster
+     */
+    public ServerConfiguration setClusterPeers(String... clusterPeers) {
+        this.clusterPeers = new ArrayList<>(Arrays.asList(clusterPeers));
+        return this;
+    }
+
+    /**
+     * @param shardSize
+     *            the size in degrees of the region of each geographic shard of targets, must be a multiple of the
+     *            size of the cells of the shards
+     */
+    public ServerConfiguration setShardSize(double shardSize) {
+        if (shardSize <= 0 || shardSize > 90) {
+            throw new IllegalArgumentException("shardSize must be in the range (0,90], was " + shardSize);
+        }
+        this.shardSize = shardSize;
+        return this;
+    }
+
+    /**
+     * @param wireTrace
+     *            whether or not all frames are traced when the server starts
+     */
+    public ServerConfiguration setWireTrace(boolean wireTrace) {
+        this.wireTrace = wireTrace;
+        return this;
+    }
+
+    /**
+     * @param maxQueuedMessages
+     *            the maximum number of messages that can be queued for a single connection
+     */
+    public ServerConfiguration setMaxQueuedMessages(int maxQueuedMessages) {
+        if (maxQueuedMessages <= 0) {
+            throw new IllegalArgumentException("maxQueuedMessages must be positive, was " + maxQueuedMessages);
+        }
+        this.maxQueuedMessages = maxQueuedMessages;
+        return this;
+    }
+
+    /**
+     * @param maxQueuedBytes
+     *            the maximum number of bytes that can be queued for a single connection
+     */
+    public ServerConfiguration setMaxQueuedBytes(long maxQueuedBytes) {
+        if (maxQueuedBytes <= 0) {
+            throw new IllegalArgumentException("maxQueuedBytes must be positive, was " + maxQueuedBytes);
+        }
+        this.maxQueuedBytes = maxQueuedBytes;
+        return this;
+    }
+
+    /**
+     * @param slowConsumerPolicy
+     *            what to do when a message is sent to a connection that has reached its limits
+     */
+    public ServerConfiguration setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+        this.slowConsumerPolicy = requireNonNull(slowConsumerPolicy);
+        return this;
+    }
+
     /**
      * @param serverPort
      *            the serverPort to set
@@ -18,6 +18,7 @@ package dk.dma.navnet.server;
 import static java.util.Objects.requireNonNull;
 import jsr166e.LongAdder;
 import dk.dma.enav.util.function.Consumer;
+import dk.dma.navnet.messages.util.FrameStatistics;
 import dk.dma.navnet.server.targets.Target;
 import dk.dma.navnet.server.targets.TargetManager;
 
@@ -31,8 +32,12 @@ public class ServerInfo {
     /** The target manager. */
     private final TargetManager targetManager;
 
-    public ServerInfo(TargetManager tm) {
+    /** Statistics about the frames sent to clients. */
+    private final FrameStatistics frameStatistics;
+
+    public ServerInfo(TargetManager tm, FrameStatistics frameStatistics) {
         this.targetManager = requireNonNull(tm);
+        this.frameStatistics = requireNonNull(frameStatistics);
     }
 
     /**
@@ -51,4 +56,13 @@ public class ServerInfo {
         });
         return i.intValue();
     }
+
+    /**
+     * Returns statistics about the frames that have been sent to clients.
+     * 
+     * @return statistics about the frames that have been sent to clients
+     */
+    public FrameStatistics getFrameStatistics() {
+        return frameStatistics;
+    }
 }
@@ -16,17 +16,25 @@
 package dk.dma.navnet.server.broadcast;
 
 import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 import jsr166e.CompletableFuture;
 import jsr166e.CompletableFuture.Action;
 import dk.dma.enav.maritimecloud.broadcast.BroadcastMessage;
+import dk.dma.enav.model.MaritimeId;
 import dk.dma.enav.model.geometry.PositionTime;
-import dk.dma.enav.util.function.Consumer;
+import dk.dma.enav.util.function.BiConsumer;
 import org.picocontainer.Startable;
 
 import dk.dma.navnet.messages.c2c.broadcast.BroadcastAck;
 import dk.dma.navnet.messages.c2c.broadcast.BroadcastDeliver;
 import dk.dma.navnet.messages.c2c.broadcast.BroadcastSend;
 import dk.dma.navnet.messages.c2c.broadcast.BroadcastSendAck;
+import dk.dma.navnet.server.cluster.ClusterManager;
 import dk.dma.navnet.server.connection.ServerConnection;
 import dk.dma.navnet.server.requests.RequestException;
 import dk.dma.navnet.server.requests.RequestProcessor;
@@ -43,9 +51,12 @@ public class BroadcastManager implements Startable {
 
     private final ServerMessageBus bus;
 
-    public BroadcastManager(TargetManager tm, ServerMessageBus bus) {
+    private final ClusterManager cluster;
+
+    public BroadcastManager(TargetManager tm, ServerMessageBus bus, ClusterManager cluster) {
         this.tm = requireNonNull(tm);
         this.bus = requireNonNull(bus);
+        this.cluster = requireNonNull(cluster);
     }
 
     BroadcastSendAck broadcast(final ServerConnection source, final BroadcastSend send) throws RequestException {
@@ -54,41 +65,71 @@ public class BroadcastManager implements Startable {
         final Target target = source.getTarget();
         final PositionTime sourcePositionTime = send.getPositionTime();
 
-        tm.forEachTarget(new Consumer<Target>() {
+        // other nodes in the cluster that have targets within the area, they deliver to them themselves
+        final Set<String> nodes = new HashSet<>();
+        final List<ServerConnection> connections = new ArrayList<>();
+        tm.forEachWithinDistance(sourcePositionTime, send.getDistance(), new BiConsumer<Target, PositionTime>() {
             @Override
-            public void accept(Target t) {
-                if (t != target && t.isConnected()) { // do not broadcast to self
-                    PositionTime latest = t.getLatestPosition();
-                    if (latest != null) {
-                        double distance = sourcePositionTime.geodesicDistanceTo(latest);
-                        if (distance < send.getDistance()) {
-
-                            BroadcastDeliver bd = BroadcastDeliver.create(send.getId(), send.getPositionTime(),
-                                    send.getChannel(), send.getMessage());
-
-
-                            final ServerConnection connection = t.getConnection();
-                            CompletableFuture<Void> f = connection.messageSend(bd).protocolAcked();
-                            if (send.isReceiverAck()) {
-                                f.thenAccept(new Action<Void>() {
-                                    public void accept(Void paramA) {
-                                        Target t = connection.getTarget();
-                                        BroadcastAck ba = new BroadcastAck(send.getReplyTo(), t.getId(), t
-                                                .getLatestPosition());
-                                        source.messageSend(ba);
-                                    }
-                                });
-                            }
-                        }
+            public void accept(Target t, PositionTime latest) {
+                String node = t.getNode();
+                if (node != null) {
+                    nodes.add(node);
+                } else if (t != target) { // do not broadcast to self
+                    ServerConnection connection = t.getConnection();
+                    if (connection != null) {
+                        connections.add(connection);
                     }
                 }
             }
         });
-
+        if (nodes.isEmpty() && connections.isEmpty()) {
+            return send.createReply(); // the message of the broadcast is never read
+        }
+
+        // The same message is delivered to every recipient, so it is only serialized once
+        final BroadcastDeliver bd = BroadcastDeliver.create(send.getId(), send.getPositionTime(), send.getChannel(),
+                send.getMessage());
+        for (final ServerConnection connection : connections) {
+            CompletableFuture<Void> f = connection.messageSend(bd).protocolAcked();
+            if (send.isReceiverAck()) {
+                f.thenAccept(new Action<Void>() {
+                    public void accept(Void paramA) {
+                        Target t = connection.getTarget();
+                        BroadcastAck ba = new BroadcastAck(send.getReplyTo(), t.getId(), t.getLatestPosition());
+                        source.messageSend(ba);
+                    }
+                });
+            }
+        }
+        cluster.broadcast(nodes, target.getId(), sourcePositionTime, send.getDistance(), bd);
 
         return send.createReply();
     }
 
+    /**
+     * Delivers a broadcast forwarded by another node in the cluster, to every target connected to this node within
+     * the area of the broadcast.
+     * 
+     * @param source
+     *            the id of the target that sent the broadcast
+     * @param sourcePositionTime
+     *            the position of the source
+     * @param meters
+     *            the radius of the broadcast
+     * @param bd
+     *            the message to deliver
+     */
+    public void deliver(final MaritimeId source, PositionTime sourcePositionTime, double meters,
+            final BroadcastDeliver bd) {
+        tm.forEachWithinDistance(sourcePositionTime, meters, new BiConsumer<Target, PositionTime>() {
+            public void accept(Target t, PositionTime latest) {
+                if (t.getNode() == null && t.isConnected() && !t.getId().equals(source)) {
+                    t.getConnection().messageSend(bd);
+                }
+            }
+        });
+    }
+
     void broadCastTo(BroadcastSend bs, Target target, BroadcastDeliver bd) {
 
     }
@@ -0,0 +1,135 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.server.cluster;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A frame sent between cluster nodes. Every frame is prefixed by its length and starts with its type:
+ * 
+ * <pre>
+ * HELLO      node                                   the id of the node, the first frame in both directions
+ * PRESENCE   target, epoch                          a target has connected to the node
+ * POSITION   target, lat, lon, time                 a target connected to the node has reported its position
+ * SERVICE    target, name                           a target connected to the node has registered a service
+ * RELAY      message                                a message relayed to a target connected to the receiver
+ * BROADCAST  source, lat, lon, time, meters, message  a broadcast to targets connected to the receiver
+ * DISCONNECT target, epoch                          a target has disconnected cleanly from the node
+ * UNREGISTER target, name                           a target connected to the node has unregistered a service
+ * </pre>
+ * 
+ * Messages are encoded as JSON. Only the state of targets connected to the sending node is sent, so every node
+ * receives the state of a target from the node it is connected to.
+ * 
+ * @author Kasper Nielsen
+ */
+final class ClusterFrame {
+
+    static final byte HELLO = 1;
+
+    static final byte PRESENCE = 2;
+
+    static final byte POSITION = 3;
+
+    static final byte SERVICE = 4;
+
+    static final byte RELAY = 5;
+
+    static final byte BROADCAST = 6;
+
+    static final byte DISCONNECT = 7;
+
+    static final byte UNREGISTER = 8;
+
+    /** The maximum size of a frame, anything larger is considered corrupt. */
+    static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+
+    private final DataOutputStream out = new DataOutputStream(bytes);
+
+    ClusterFrame(byte type) {
+        writeByte(type);
+    }
+
+    private void writeByte(byte b) {
+        try {
+            out.writeByte(b);
+        } catch (IOException e) {
+            throw new AssertionError(e); // never thrown by ByteArrayOutputStream
+        }
+    }
+
+    ClusterFrame writeString(String s) {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        try {
+            out.writeInt(b.length);
+            out.write(b);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return this;
+    }
+
+    ClusterFrame writeLong(long l) {
+        try {
+            out.writeLong(l);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return this;
+    }
+
+    ClusterFrame writeDouble(double d) {
+        try {
+            out.writeDouble(d);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return this;
+    }
+
+    byte[] toByteArray() {
+        return bytes.toByteArray();
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] b = new byte[in.readInt()];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /** Writes a frame prefixed by its length. */
+    static void write(DataOutputStream out, byte[] frame) throws IOException {
+        out.writeInt(frame.length);
+        out.write(frame);
+    }
+
+    /** Reads a frame written by {@link #write(DataOutputStream, byte[])}. */
+    static byte[] read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame size " + length);
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return frame;
+    }
+}
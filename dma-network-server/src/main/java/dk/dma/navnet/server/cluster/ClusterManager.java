@@ -0,0 +1,585 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.server.cluster;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jsr166e.ConcurrentHashMapV8;
+
+import org.picocontainer.Startable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.dma.enav.model.MaritimeId;
+import dk.dma.enav.model.geometry.PositionTime;
+import dk.dma.enav.util.function.Consumer;
+import dk.dma.navnet.messages.TransportMessage;
+import dk.dma.navnet.messages.c2c.ClientRelayedMessage;
+import dk.dma.navnet.messages.c2c.broadcast.BroadcastDeliver;
+import dk.dma.navnet.server.InternalServer;
+import dk.dma.navnet.server.ServerConfiguration;
+import dk.dma.navnet.server.broadcast.BroadcastManager;
+import dk.dma.navnet.server.connection.ServerConnection;
+import dk.dma.navnet.server.requests.ServerMessageBus;
+import dk.dma.navnet.server.targets.Target;
+import dk.dma.navnet.server.targets.TargetManager;
+import dk.dma.navnet.server.util.ThreadManager;
+
+/**
+ * Lets several server nodes act as a single server. Every node keeps a connection to every other node, configured as
+ * its peers. Whenever a target connects to a node, reports its position or registers a service, the node sends it to
+ * all its peers. Each node keeps targets connected to other nodes in its own {@link TargetManager}, marked with the
+ * node they are connected to, so lookups by position or service see every target in the cluster.
+ * <p>
+ * Messages relayed to a target connected to another node are forwarded to that node. So are broadcasts that reach
+ * targets connected to other nodes, which each node then delivers to its own targets. A target that reconnects to
+ * another node is owned by the node it connected to most recently, as decided by the epoch of each connection. The
+ * epoch is a logical clock, every node gives a new connection an epoch that is higher than any epoch it has seen, so
+ * the ordering does not depend on the clocks of the nodes. Two connections with the same epoch are ordered by the id
+ * of their nodes. A node that loses a target to another node detaches its own connection to the target, so only a
+ * target that is connected to a node is ever owned by it. When a target disconnects cleanly from a node, or the
+ * connection from a node is lost, the targets are marked as not connected and removed from the service and spatial
+ * indexes, until a node sends their state again.
+ * <p>
+ * Only nodes configured as peers can connect to a node. A connection is accepted if the node id received in its hello
+ * frame is one of the configured peers, and it comes from an address the peer resolves to.
+ * <p>
+ * Acknowledgements from receivers of a broadcast are only sent for receivers connected to the same node as the sender.
+ * 
+ * @author Kasper Nielsen
+ */
+public class ClusterManager implements Startable {
+
+    /** The logger. */
+    static final Logger LOG = LoggerFactory.getLogger(ClusterManager.class);
+
+    /** The host:port of this node, also used as its id, or null if clustering is disabled. */
+    private final String node;
+
+    private final ThreadManager threadManager;
+
+    private final TargetManager targetManager;
+
+    /** Used for looking up services lazily, as some of them depend on the cluster manager. */
+    private final InternalServer server;
+
+    /** The connections to other nodes. */
+    private final List<Peer> peers = new ArrayList<>();
+
+    /** The connections to other nodes, by the id of the node. */
+    private final ConcurrentHashMapV8<String, Peer> nodes = new ConcurrentHashMapV8<>();
+
+    /** Connections from other nodes. */
+    private final Set<Socket> inbound = Collections.newSetFromMap(new ConcurrentHashMapV8<Socket, Boolean>());
+
+    private volatile ServerSocket serverSocket;
+
+    private volatile boolean isStopped;
+
+    /** The highest epoch this node has given or seen for any target. */
+    private final AtomicLong clock = new AtomicLong();
+
+    public ClusterManager(ServerConfiguration configuration, ThreadManager threadManager,
+            TargetManager targetManager, InternalServer server) {
+        this.node = configuration.getClusterAddress();
+        this.threadManager = requireNonNull(threadManager);
+        this.targetManager = requireNonNull(targetManager);
+        this.server = requireNonNull(server);
+        if (node != null) {
+            for (String address : configuration.getClusterPeers()) {
+                peers.add(new Peer(this, address));
+            }
+        }
+    }
+
+    /**
+     * Returns whether or not this server is part of a cluster.
+     * 
+     * @return whether or not this server is part of a cluster
+     */
+    public boolean isEnabled() {
+        return node != null;
+    }
+
+    /**
+     * Returns the id of this node.
+     * 
+     * @return the id of this node, or null if this server is not part of a cluster
+     */
+    public String getNode() {
+        return node;
+    }
+
+    /**
+     * Returns the number of other nodes this node is connected to.
+     * 
+     * @return the number of other nodes this node is connected to
+     */
+    public int getConnectedPeers() {
+        int count = 0;
+        for (Peer p : peers) {
+            if (p.isConnected()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of frames that could not be sent to other nodes because they could not keep up.
+     * 
+     * @return the number of frames that could not be sent to other nodes because they could not keep up
+     */
+    public long getDroppedFrames() {
+        long sum = 0;
+        for (Peer p : peers) {
+            sum += p.dropped.sum();
+        }
+        return sum;
+    }
+
+    boolean isStopped() {
+        return isStopped;
+    }
+
+    /**
+     * Tells the other nodes that the specified target has connected to this node.
+     * 
+     * @param target
+     *            the target that has connected
+     */
+    public void connected(Target target) {
+        target.setNode(null, nextEpoch(target));
+        if (node != null) {
+            for (byte[] frame : state(target)) {
+                sendToAll(frame);
+            }
+        }
+    }
+
+    /**
+     * Tells the other nodes that the specified target has disconnected cleanly from this node, and is not going to
+     * reconnect.
+     * 
+     * @param target
+     *            the target that has disconnected
+     */
+    public void disconnected(Target target) {
+        if (node != null && target.getNode() == null) {
+            sendToAll(new ClusterFrame(ClusterFrame.DISCONNECT).writeString(target.getId().toString())
+                    .writeLong(target.getEpoch()).toByteArray());
+        }
+    }
+
+    /**
+     * Tells the other nodes the latest position of the specified target, which is connected to this node.
+     * 
+     * @param target
+     *            the target that has reported its position
+     */
+    public void positionChanged(Target target) {
+        PositionTime pt = target.getLatestPosition();
+        if (node != null && pt != null && target.getNode() == null) {
+            sendToAll(position(target, pt));
+        }
+    }
+
+    /**
+     * Tells the other nodes that the specified target, which is connected to this node, has registered a service.
+     * 
+     * @param target
+     *            the target that has registered the service
+     * @param serviceName
+     *            the name of the service
+     */
+    public void serviceRegistered(Target target, String serviceName) {
+        if (node != null && target.getNode() == null) {
+            sendToAll(new ClusterFrame(ClusterFrame.SERVICE).writeString(target.getId().toString())
+                    .writeString(serviceName).toByteArray());
+        }
+    }
+
+    /**
+     * Tells the other nodes that the specified target, which is connected to this node, has unregistered a service.
+     * 
+     * @param target
+     *            the target that has unregistered the service
+     * @param serviceName
+     *            the name of the service
+     */
+    public void serviceUnregistered(Target target, String serviceName) {
+        if (node != null && target.getNode() == null) {
+            sendToAll(new ClusterFrame(ClusterFrame.UNREGISTER).writeString(target.getId().toString())
+                    .writeString(serviceName).toByteArray());
+        }
+    }
+
+    /**
+     * Forwards a relayed message to the node its destination is connected to.
+     * 
+     * @param node
+     *            the node the destination is connected to
+     * @param message
+     *            the message to forward
+     * @return false if the message could not be forwarded, because there is no connection to the node
+     */
+    public boolean relay(String node, ClientRelayedMessage message) {
+        Peer p = nodes.get(node);
+        return p != null
+                && p.send(new ClusterFrame(ClusterFrame.RELAY).writeString(message.toJSON(0, 0, true)).toByteArray());
+    }
+
+    /**
+     * Forwards a broadcast to the specified nodes, which deliver it to their own targets within the area of the
+     * broadcast.
+     * 
+     * @param nodes
+     *            the nodes to forward the broadcast to
+     * @param source
+     *            the id of the target that sent the broadcast
+     * @param pt
+     *            the position of the source
+     * @param meters
+     *            the radius of the broadcast
+     * @param message
+     *            the message to deliver
+     */
+    public void broadcast(Collection<String> nodes, MaritimeId source, PositionTime pt, double meters,
+            BroadcastDeliver message) {
+        if (!nodes.isEmpty()) {
+            byte[] frame = new ClusterFrame(ClusterFrame.BROADCAST).writeString(source.toString())
+                    .writeDouble(pt.getLatitude()).writeDouble(pt.getLongitude()).writeLong(pt.getTime())
+                    .writeDouble(meters).writeString(message.toJSON(0, 0, true)).toByteArray();
+            for (String n : nodes) {
+                Peer p = this.nodes.get(n);
+                if (p == null || !p.send(frame)) {
+                    LOG.warn("Could not forward broadcast to cluster node {}", n);
+                }
+            }
+        }
+    }
+
+    private void sendToAll(byte[] frame) {
+        for (Peer p : peers) {
+            p.send(frame);
+        }
+    }
+
+    /** Returns an epoch for a new connection of the target, higher than any epoch seen so far. */
+    private long nextEpoch(Target target) {
+        for (;;) {
+            long current = clock.get();
+            long epoch = Math.max(current, target.getEpoch()) + 1;
+            if (clock.compareAndSet(current, epoch)) {
+                return epoch;
+            }
+        }
+    }
+
+    /** Advances the clock past an epoch received from another node. */
+    private void epochReceived(long epoch) {
+        for (;;) {
+            long current = clock.get();
+            if (current >= epoch || clock.compareAndSet(current, epoch)) {
+                return;
+            }
+        }
+    }
+
+    /** Returns whether a connection of the target to the specified node is more recent than its current one. */
+    private boolean isNewer(Target t, String from, long epoch) {
+        String owner = t.getNode() == null ? node : t.getNode();
+        return epoch > t.getEpoch() || epoch == t.getEpoch() && from.compareTo(owner) > 0;
+    }
+
+    private static byte[] position(Target target, PositionTime pt) {
+        return new ClusterFrame(ClusterFrame.POSITION).writeString(target.getId().toString())
+                .writeDouble(pt.getLatitude()).writeDouble(pt.getLongitude()).writeLong(pt.getTime()).toByteArray();
+    }
+
+    /** Returns the frames describing the state of the specified target. */
+    private static List<byte[]> state(Target target) {
+        List<byte[]> frames = new ArrayList<>();
+        String id = target.getId().toString();
+        frames.add(new ClusterFrame(ClusterFrame.PRESENCE).writeString(id).writeLong(target.getEpoch())
+                .toByteArray());
+        PositionTime pt = target.getLatestPosition();
+        if (pt != null) {
+            frames.add(position(target, pt));
+        }
+        for (String serviceName : target.getServices().getServiceNames()) {
+            frames.add(new ClusterFrame(ClusterFrame.SERVICE).writeString(id).writeString(serviceName)
+                    .toByteArray());
+        }
+        return frames;
+    }
+
+    /** Returns the frames describing the state of every target connected to this node. */
+    Iterable<byte[]> snapshot() {
+        final ConcurrentLinkedQueue<byte[]> frames = new ConcurrentLinkedQueue<>();
+        targetManager.forEachTarget(new Consumer<Target>() {
+            public void accept(Target t) {
+                if (t.getNode() == null && t.isConnected()) {
+                    frames.addAll(state(t));
+                }
+            }
+        });
+        return frames;
+    }
+
+    /**
+     * Reads the id of a node from a hello frame.
+     * 
+     * @throws IOException
+     *             if the frame is not a hello frame
+     */
+    String helloReceived(byte[] frame) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+        if (in.readByte() != ClusterFrame.HELLO) {
+            throw new IOException("Expected a hello frame");
+        }
+        return ClusterFrame.readString(in);
+    }
+
+    /**
+     * Returns whether or not a node connecting from the specified address is one of the configured peers.
+     * 
+     * @param from
+     *            the id the node sent in its hello frame
+     * @param remote
+     *            the address the connection comes from
+     */
+    boolean isPeer(String from, InetAddress remote) {
+        for (Peer p : peers) {
+            if (from.equals(p.address) || from.equals(p.node)) {
+                try {
+                    String host = parse(p.address).getHostString();
+                    return Arrays.asList(InetAddress.getAllByName(host)).contains(remote);
+                } catch (UnknownHostException e) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    void peerConnected(Peer peer) {
+        LOG.info("Connected to cluster node {}", peer);
+        nodes.put(peer.node, peer);
+    }
+
+    /** Reads frames from another node, until the connection is lost. */
+    private void read(Socket s) {
+        String from = null;
+        try {
+            s.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            String hello = helloReceived(ClusterFrame.read(in));
+            if (!isPeer(hello, s.getInetAddress())) {
+                LOG.warn("Rejected connection from {}, {} is not a configured cluster peer", s.getRemoteSocketAddress(),
+                        hello);
+                return;
+            }
+            from = hello;
+            ClusterFrame.write(out, new ClusterFrame(ClusterFrame.HELLO).writeString(node).toByteArray());
+            out.flush();
+            for (;;) {
+                apply(from, new DataInputStream(new ByteArrayInputStream(ClusterFrame.read(in))));
+            }
+        } catch (IOException e) {
+            if (!isStopped) {
+                LOG.debug("Connection from cluster node " + from + " lost", e);
+            }
+        } finally {
+            inbound.remove(s);
+            try {
+                s.close();
+            } catch (IOException ignore) {}
+            if (from != null) {
+                nodeLost(from);
+            }
+        }
+    }
+
+    /** Applies a frame received from the specified node. */
+    void apply(String from, DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        if (type == ClusterFrame.PRESENCE) {
+            Target t = targetManager.getTarget(MaritimeId.create(ClusterFrame.readString(in)));
+            long epoch = in.readLong();
+            epochReceived(epoch);
+            // the target might have reconnected to this node, or another node, in the meantime
+            t.fullyLock();
+            try {
+                if (isNewer(t, from, epoch)) {
+                    ServerConnection local = t.getNode() == null ? t.getConnection() : null;
+                    t.setNode(from, epoch);
+                    if (local != null) {
+                        // the target has moved to the other node, so this node no longer owns it even if it is lost
+                        local.retire();
+                    }
+                }
+            } finally {
+                t.fullyUnlock();
+            }
+        } else if (type == ClusterFrame.POSITION) {
+            Target t = targetManager.getTarget(MaritimeId.create(ClusterFrame.readString(in)));
+            PositionTime pt = PositionTime.create(in.readDouble(), in.readDouble(), in.readLong());
+            PositionTime latest = t.getLatestPosition();
+            if (from.equals(t.getNode()) && (latest == null || pt.getTime() >= latest.getTime())) {
+                t.setLatestPosition(pt);
+            }
+        } else if (type == ClusterFrame.SERVICE) {
+            Target t = targetManager.getTarget(MaritimeId.create(ClusterFrame.readString(in)));
+            String serviceName = ClusterFrame.readString(in);
+            if (from.equals(t.getNode())) {
+                t.getServices().registerService(serviceName);
+            }
+        } else if (type == ClusterFrame.UNREGISTER) {
+            Target t = targetManager.getTarget(MaritimeId.create(ClusterFrame.readString(in)));
+            String serviceName = ClusterFrame.readString(in);
+            if (from.equals(t.getNode())) {
+                t.getServices().unregisterService(serviceName);
+            }
+        } else if (type == ClusterFrame.DISCONNECT) {
+            Target t = targetManager.getTarget(MaritimeId.create(ClusterFrame.readString(in)));
+            // ignored if the target has connected again since
+            if (from.equals(t.getNode()) && in.readLong() == t.getEpoch()) {
+                dropped(t);
+            }
+        } else if (type == ClusterFrame.RELAY) {
+            // nodes always embed payloads as JSON
+            String json = ClusterFrame.readString(in);
+            ClientRelayedMessage m = (ClientRelayedMessage) TransportMessage.parseMessage(json, true);
+            server.getService(ServerMessageBus.class).relayLocally(m);
+        } else if (type == ClusterFrame.BROADCAST) {
+            MaritimeId source = MaritimeId.create(ClusterFrame.readString(in));
+            PositionTime pt = PositionTime.create(in.readDouble(), in.readDouble(), in.readLong());
+            double meters = in.readDouble();
+            BroadcastDeliver bd = (BroadcastDeliver) TransportMessage.parseMessage(ClusterFrame.readString(in), true);
+            server.getService(BroadcastManager.class).deliver(source, pt, meters, bd);
+        } else {
+            throw new IOException("Unknown frame type " + type);
+        }
+    }
+
+    /** Marks every target connected to the specified node as not connected. */
+    private void nodeLost(final String lost) {
+        LOG.info("Lost connection from cluster node {}", lost);
+        targetManager.forEachTarget(new Consumer<Target>() {
+            public void accept(Target t) {
+                if (lost.equals(t.getNode())) {
+                    dropped(t);
+                }
+            }
+        });
+    }
+
+    /** Marks a target connected to another node as not connected, removing it from the service and spatial indexes. */
+    private static void dropped(Target t) {
+        t.setNode(null, t.getEpoch());
+        t.getServices().clear();
+        t.clearLatestPosition();
+    }
+
+    /** Parses an address on the form host:port. */
+    static InetSocketAddress parse(String address) {
+        int i = address.lastIndexOf(':');
+        if (i < 0) {
+            throw new IllegalArgumentException("Expected an address on the form host:port, was " + address);
+        }
+        return new InetSocketAddress(address.substring(0, i), Integer.parseInt(address.substring(i + 1)));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void start() {
+        if (node == null) {
+            return;
+        }
+        try {
+            final ServerSocket ss = new ServerSocket();
+            ss.setReuseAddress(true);
+            ss.bind(parse(node));
+            serverSocket = ss;
+            threadManager.daemonPool.execute(new Runnable() {
+                public void run() {
+                    while (!isStopped) {
+                        try {
+                            final Socket s = ss.accept();
+                            inbound.add(s);
+                            threadManager.daemonPool.execute(new Runnable() {
+                                public void run() {
+                                    read(s);
+                                }
+                            });
+                        } catch (IOException e) {
+                            if (!isStopped) {
+                                LOG.error("Failed to accept connection from cluster node", e);
+                            }
+                        }
+                    }
+                }
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not listen for cluster nodes on " + node, e);
+        }
+        for (Peer p : peers) {
+            threadManager.daemonPool.execute(p);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void stop() {
+        isStopped = true;
+        ServerSocket ss = serverSocket;
+        if (ss != null) {
+            try {
+                ss.close();
+            } catch (IOException ignore) {}
+        }
+        for (Peer p : peers) {
+            p.close();
+        }
+        for (Socket s : inbound) {
+            try {
+                s.close();
+            } catch (IOException ignore) {}
+        }
+    }
+}
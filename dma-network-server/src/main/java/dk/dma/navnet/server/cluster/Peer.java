@@ -0,0 +1,160 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.server.cluster;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import jsr166e.LongAdder;
+
+/**
+ * The connection from this node to another node in the cluster. Frames are only ever sent from this node to the peer
+ * on this connection, the peer uses its own connection to this node for frames in the other direction. If the
+ * connection is lost, it is re-established and the state of every target connected to this node is sent again.
+ * 
+ * @author Kasper Nielsen
+ */
+final class Peer implements Runnable {
+
+    /** The number of frames that can be waiting to be written. */
+    static final int QUEUE_CAPACITY = 64 * 1024;
+
+    /** The number of milliseconds to wait before trying to connect again. */
+    static final long RECONNECT_DELAY = 500;
+
+    /** The number of milliseconds to wait for a connection to be established. */
+    static final int CONNECT_TIMEOUT = 2000;
+
+    /** The address of the peer as configured. */
+    final String address;
+
+    private final ClusterManager cluster;
+
+    private final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+
+    /** The number of frames that could not be sent because the queue was full. */
+    final LongAdder dropped = new LongAdder();
+
+    /** The id of the peer, received when connecting. */
+    volatile String node;
+
+    /** Whether or not frames can be sent. */
+    private volatile boolean isConnected;
+
+    private volatile Socket socket;
+
+    Peer(ClusterManager cluster, String address) {
+        this.cluster = requireNonNull(cluster);
+        this.address = requireNonNull(address);
+    }
+
+    /**
+     * Sends the specified frame to the peer.
+     * 
+     * @param frame
+     *            the frame to send
+     * @return false if the peer is not connected or too many frames are waiting to be sent
+     */
+    boolean send(byte[] frame) {
+        if (isConnected) {
+            if (queue.offer(frame)) {
+                return true;
+            }
+            dropped.increment();
+        }
+        return false;
+    }
+
+    /** Returns whether or not the peer is connected. */
+    boolean isConnected() {
+        return isConnected;
+    }
+
+    /** Connects to the peer, and keeps writing frames to it until the cluster is stopped. */
+    public void run() {
+        while (!cluster.isStopped()) {
+            try (Socket s = new Socket()) {
+                socket = s;
+                s.connect(ClusterManager.parse(address), CONNECT_TIMEOUT);
+                s.setTcpNoDelay(true);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                ClusterFrame.write(out, new ClusterFrame(ClusterFrame.HELLO).writeString(cluster.getNode())
+                        .toByteArray());
+                out.flush();
+                node = cluster.helloReceived(ClusterFrame.read(in));
+                cluster.peerConnected(this);
+
+                // frames queued before we were connected are covered by the snapshot
+                queue.clear();
+                isConnected = true;
+                for (byte[] frame : cluster.snapshot()) {
+                    ClusterFrame.write(out, frame);
+                }
+                out.flush();
+                while (!cluster.isStopped()) {
+                    byte[] frame = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (frame != null) {
+                        ClusterFrame.write(out, frame);
+                        if (!queue.isEmpty()) {
+                            continue; // flush once the queue has been drained
+                        }
+                    }
+                    out.flush();
+                }
+            } catch (IOException e) {
+                if (!cluster.isStopped()) {
+                    ClusterManager.LOG.debug("Connection to cluster node " + address + " failed", e);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                isConnected = false;
+            }
+            try {
+                Thread.sleep(RECONNECT_DELAY);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /** Closes the connection to the peer, making the writer notice that the cluster has been stopped. */
+    void close() {
+        Socket s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException ignore) {}
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return node == null ? address : node;
+    }
+}
@@ -16,6 +16,7 @@
 package dk.dma.navnet.server.connection;
 
 import static java.util.Objects.requireNonNull;
+import dk.dma.navnet.messages.util.BufferPool;
 import dk.dma.navnet.server.InternalServer;
 import dk.dma.navnet.server.targets.TargetManager;
 
@@ -28,6 +29,9 @@ public class ConnectionManager {
 
     final TargetManager targetManager;
 
+    /** The buffers binary frames are encoded into, shared by all connections. */
+    final BufferPool bufferPool = new BufferPool();
+
     /**
      * @param server
      */
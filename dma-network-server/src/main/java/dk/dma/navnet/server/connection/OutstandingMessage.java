@@ -15,6 +15,8 @@
  */
 package dk.dma.navnet.server.connection;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import jsr166e.CompletableFuture;
 import dk.dma.navnet.messages.ConnectionMessage;
 
@@ -24,16 +26,75 @@ import dk.dma.navnet.messages.ConnectionMessage;
  */
 public class OutstandingMessage {
 
+    /** The message has not been written yet. */
+    private static final int QUEUED = 0;
+
+    /** The message has been written at least once. */
+    private static final int WRITTEN = 1;
+
+    /** The message was dropped by the slow consumer policy before it was written. */
+    private static final int DROPPED = 2;
+
     private final CompletableFuture<Void> acked = new CompletableFuture<>();
 
+    /** Whether the message is queued, written or dropped. Written and dropped are final. */
+    private final AtomicInteger state = new AtomicInteger(QUEUED);
+
     volatile boolean isSent;
 
     final ConnectionMessage cm;
 
+    /** The time in nanoseconds the message was queued. */
+    final long created = System.nanoTime();
+
+    /** The approximate number of bytes the message takes up, counted against the limits of the connection. */
+    final int size;
+
     long id;
 
-    OutstandingMessage(ConnectionMessage cm) {
+    /** The sequence number of the message in the spool of the connection, or -1 if it has not been spooled. */
+    long spoolSeq = -1;
+
+    /** Whether or not the message was read from the spool after the server was restarted. */
+    boolean replayed;
+
+    /**
+     * @param cm
+     *            the message
+     * @param binary
+     *            whether the connection sends binary frames, the message is sized in the format it is sent in
+     */
+    OutstandingMessage(ConnectionMessage cm, boolean binary) {
         this.cm = cm;
+        this.size = cm.getEncodedSize(binary);
+    }
+
+    /**
+     * Drops the message, unless it has already been written.
+     * 
+     * @return whether or not the message was dropped
+     */
+    boolean drop() {
+        return state.compareAndSet(QUEUED, DROPPED);
+    }
+
+    /** Returns whether or not the message has been dropped. */
+    boolean isDropped() {
+        return state.get() == DROPPED;
+    }
+
+    /** Returns whether or not the message is still waiting to be written for the first time. */
+    boolean isQueued() {
+        return state.get() == QUEUED;
+    }
+
+    /**
+     * Marks the message as written, unless it has been dropped.
+     * 
+     * @return false if the message has been dropped and must not be written
+     */
+    boolean markWritten() {
+        return state.get() == WRITTEN || state.compareAndSet(QUEUED, WRITTEN);
     }
 
     /**
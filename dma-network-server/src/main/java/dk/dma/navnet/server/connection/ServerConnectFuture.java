@@ -17,14 +17,20 @@ package dk.dma.navnet.server.connection;
 
 import static java.util.Objects.requireNonNull;
 
+import java.io.IOException;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import dk.dma.enav.maritimecloud.ClosingCode;
 import dk.dma.enav.model.geometry.PositionTime;
+import dk.dma.navnet.messages.Capabilities;
 import dk.dma.navnet.messages.TransportMessage;
 import dk.dma.navnet.messages.auxiliary.ConnectedMessage;
 import dk.dma.navnet.messages.auxiliary.HelloMessage;
+import dk.dma.navnet.server.cluster.ClusterManager;
+import dk.dma.navnet.server.store.SpoolReplay;
+import dk.dma.navnet.server.store.StoreAndForward;
 import dk.dma.navnet.server.targets.Target;
 import dk.dma.navnet.server.targets.TargetManager;
 
@@ -48,15 +54,21 @@ class ServerConnectFuture {
 
 
     public void onMessage(HelloMessage hm) {
-        System.out.println("HELLLO " + hm.getLastReceivedMessageId());
+        LOG.debug("Hello received, last received message id {}", hm.getLastReceivedMessageId());
 
         TargetManager tm = serverTransport.cm.targetManager;
         Target target = tm.getTarget(hm.getClientId());
+        serverTransport.binary = Capabilities.contains(hm.getCapabilities(), Capabilities.BINARY);
+        serverTransport.acks = Capabilities.contains(hm.getCapabilities(), Capabilities.ACK);
+        serverTransport.json = Capabilities.contains(hm.getCapabilities(), Capabilities.JSON);
+        serverTransport.batching = serverTransport.offersBatching()
+                && Capabilities.contains(hm.getCapabilities(), Capabilities.BATCH);
 
         // make sure we only have one connection attempt for a target at a time
+        ServerConnection connection;
         target.fullyLock();
         try {
-            ServerConnection connection = target.getConnection();
+            connection = target.getConnection();
             boolean isReconnect = connection != null;
 
             if (isReconnect) {
@@ -73,20 +85,34 @@ class ServerConnectFuture {
             }
             connection.transport = serverTransport;
 
-            long id = connection.worker.getLatestReceivedId();
+            // the first connection after a restart, replay what the server did not deliver before it went down
+            boolean continues = isReconnect;
+            if (!isReconnect && connection.spool != null) {
+                try {
+                    SpoolReplay replay = connection.spool.recover(hm.getLastReceivedMessageId());
+                    if (replay != null) {
+                        connection.worker.replay(replay);
+                        continues = true; // the ids continue from those used before the restart
+                    }
+                } catch (IOException e) {
+                    LOG.error("Could not read the spool of " + target.getId() + ", spooled messages are lost", e);
+                }
+            }
 
-            if (isReconnect) {
+            long id = connection.worker.getLatestReceivedId();
 
-            } else {
-                new Thread(connection.worker).start();
-            }
             serverTransport.sendText(new ConnectedMessage(connection.id, id).toJSON());
             serverTransport.connection = connection;
             serverTransport.connectFuture = null;
-            connection.worker.onConnect(serverTransport, hm.getLastReceivedMessageId(), isReconnect);
+            connection.worker.onConnect(serverTransport, hm.getLastReceivedMessageId(), continues);
+            // tell the other nodes in the cluster where the target is now, while holding the lock so the connection
+            // cannot be retired by an older connection to another node in the meantime
+            serverTransport.server.getService(ClusterManager.class).connected(target);
         } finally {
             target.fullyUnlock();
         }
+        // forward messages relayed to the target while it had no connection
+        serverTransport.server.getService(StoreAndForward.class).release(target.getId(), connection);
     }
 
     /**
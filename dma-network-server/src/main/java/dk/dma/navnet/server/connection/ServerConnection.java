@@ -21,9 +21,17 @@ import java.util.UUID;
 
 import dk.dma.enav.maritimecloud.ClosingCode;
 import dk.dma.navnet.messages.ConnectionMessage;
+import dk.dma.navnet.messages.TransportMessage;
+import dk.dma.navnet.messages.util.FrameStatistics;
 import dk.dma.navnet.server.InternalServer;
+import dk.dma.navnet.server.ServerConfiguration;
+import dk.dma.navnet.server.cluster.ClusterManager;
 import dk.dma.navnet.server.requests.ServerMessageBus;
+import dk.dma.navnet.server.store.MessageStore;
+import dk.dma.navnet.server.store.Spool;
+import dk.dma.navnet.server.store.SpoolManager;
 import dk.dma.navnet.server.targets.Target;
+import dk.dma.navnet.server.util.ThreadManager;
 
 /**
  * 
@@ -41,12 +49,35 @@ public class ServerConnection {
 
     volatile ServerTransport transport;
 
-    final Worker worker = new Worker(this);
+    final Worker worker;
+
+    /** Statistics about the frames sent by all connections. */
+    final FrameStatistics statistics;
+
+    /** Stores every message sent and received. */
+    final MessageStore store;
+
+    /** Messages that have not been delivered to the target, or null if messages are not spooled. */
+    final Spool spool;
 
     ServerConnection(Target target, InternalServer is) {
         this.target = requireNonNull(target);
         this.bus = requireNonNull(is.getService(ServerMessageBus.class));
         this.is = is;
+        this.statistics = requireNonNull(is.getService(FrameStatistics.class));
+        this.store = requireNonNull(is.getService(MessageStore.class));
+        this.spool = is.getService(SpoolManager.class).open(target.getId());
+        ThreadManager tm = is.getService(ThreadManager.class);
+        this.worker = new Worker(this, tm.eventLoops.next(), tm.scheduler, is.getService(ServerConfiguration.class));
+    }
+
+    /**
+     * Returns the id of the connection.
+     * 
+     * @return the id of the connection
+     */
+    public String getId() {
+        return id;
     }
 
     /**
@@ -57,12 +88,18 @@ public class ServerConnection {
     }
 
     /**
+     * Hands a connection message or an ack received by the specified transport to the worker. Messages received by a
+     * transport that has been replaced are ignored, the client resends them after it has reconnected.
+     * 
      * @param serverTransport
+     *            the transport that received the message
      * @param m
+     *            the message that was received
      */
-    void messageReceive(ServerTransport serverTransport, ConnectionMessage m) {
+    void messageReceive(ServerTransport serverTransport, TransportMessage m) {
         if (serverTransport == this.transport) {
-            worker.messageReceived(m);
+            serverTransport.inbound.offer(m);
+            worker.schedule();
         }
     }
 
@@ -71,8 +108,82 @@ public class ServerConnection {
     }
 
     /**
+     * Returns the number of messages that have been sent to the client but not yet acknowledged.
+     * 
+     * @return the number of messages that have been sent to the client but not yet acknowledged
+     */
+    public int getQueuedMessages() {
+        return worker.getQueuedMessages();
+    }
+
+    /**
+     * Returns the approximate number of bytes that have been sent to the client but not yet acknowledged.
+     * 
+     * @return the approximate number of bytes that have been sent to the client but not yet acknowledged
+     */
+    public long getQueuedBytes() {
+        return worker.getQueuedBytes();
+    }
+
+    /**
+     * Returns the number of broadcasts that were dropped because the client could not keep up.
+     * 
+     * @return the number of broadcasts that were dropped because the client could not keep up
+     */
+    public long getDroppedMessages() {
+        return worker.getDroppedMessages();
+    }
+
+    /**
+     * Returns the number of messages that were rejected because the client could not keep up.
+     * 
+     * @return the number of messages that were rejected because the client could not keep up
+     */
+    public long getRejectedMessages() {
+        return worker.getRejectedMessages();
+    }
+
+    /**
+     * Detaches the connection from its target, because the target has connected to another node in the cluster. The
+     * transport is closed if it is still open. Messages relayed to the target from now on are forwarded to the other
+     * node, or held until the target connects again, instead of being queued here. Must be invoked with the target
+     * fully locked.
+     */
+    public void retire() {
+        if (target.getConnection() == this) {
+            target.setConnection(null);
+        }
+        ServerTransport st = transport;
+        if (st != null) {
+            transport = null;
+            st.doClose(ClosingCode.DUPLICATE_CONNECT);
+        }
+    }
+
+    /**
+     * Invoked when a transport has been closed. If the client closed its current transport cleanly, it is not going
+     * to reconnect. The connection is detached from the target, and the other nodes in the cluster are told that the
+     * target has disconnected.
+     * 
      * @param serverTransport
+     *            the transport that was closed
      * @param reason
+     *            the reason the transport was closed
      */
-    void transportDisconnected(ServerTransport serverTransport, ClosingCode reason) {}
+    void transportDisconnected(ServerTransport serverTransport, ClosingCode reason) {
+        if (reason.getId() == ClosingCode.NORMAL.getId()) {
+            target.fullyLock();
+            try {
+                if (serverTransport == this.transport) {
+                    transport = null;
+                    if (target.getConnection() == this) {
+                        target.setConnection(null);
+                    }
+                    is.getService(ClusterManager.class).disconnected(target);
+                }
+            } finally {
+                target.fullyUnlock();
+            }
+        }
+    }
 }
@@ -17,6 +17,10 @@ package dk.dma.navnet.server.connection;
 
 import static java.util.Objects.requireNonNull;
 
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 import javax.websocket.CloseReason;
@@ -24,6 +28,8 @@ import javax.websocket.CloseReason.CloseCode;
 import javax.websocket.OnClose;
 import javax.websocket.OnMessage;
 import javax.websocket.OnOpen;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
 import javax.websocket.Session;
 import javax.websocket.server.ServerEndpoint;
 
@@ -32,12 +38,24 @@ import org.slf4j.LoggerFactory;
 
 import dk.dma.enav.maritimecloud.ClosingCode;
 import dk.dma.enav.model.shore.ServerId;
+import dk.dma.navnet.messages.Capabilities;
 import dk.dma.navnet.messages.ConnectionMessage;
+import dk.dma.navnet.messages.MessageBatch;
 import dk.dma.navnet.messages.TransportMessage;
+import dk.dma.navnet.messages.auxiliary.AckMessage;
 import dk.dma.navnet.messages.auxiliary.WelcomeMessage;
+import dk.dma.navnet.messages.util.BufferPool;
 import dk.dma.navnet.server.InternalServer;
+import dk.dma.navnet.server.ServerConfiguration;
+import dk.dma.navnet.server.util.SpscLinkedQueue;
 
 /**
+ * The server side of a websocket connection to a client.
+ * <p>
+ * The websocket container delivers the messages of a session one at a time. So the only lock on the inbound path is
+ * taken by the container, messages are handed to the worker of the connection via a single-producer/single-consumer
+ * queue. The lifecycle of the transport is a simple state machine updated with CAS. Only sends are serialized with a
+ * lock, as a websocket does not allow concurrent writes.
  * 
  * @author Kasper Nielsen
  */
@@ -47,6 +65,21 @@ public class ServerTransport {
     /** The logger. */
     static final Logger LOG = LoggerFactory.getLogger(ServerTransport.class);
 
+    /** The number of bytes that can be handed to the websocket before the worker stops writing messages. */
+    static final long MAX_PENDING_BYTES = 64 * 1024;
+
+    /** The websocket has not been opened yet. */
+    static final int CONNECTING = 0;
+
+    /** The websocket is open, messages can be sent and received. */
+    static final int OPEN = 1;
+
+    /** We have asked the websocket to close, any messages received from now on are ignored. */
+    static final int CLOSING = 2;
+
+    /** The websocket has been closed. */
+    static final int CLOSED = 3;
+
     final ConnectionManager cm;
 
     /** Whether or not we have received the first hello message from the client. */
@@ -55,115 +88,282 @@ public class ServerTransport {
     /** The connection this transport is attached to, or null, if it is not attached to one. */
     volatile ServerConnection connection;
 
-    private final ReentrantLock readLock = new ReentrantLock();
+    /** Whether or not connection messages are sent as binary frames, negotiated via the hello message. */
+    volatile boolean binary;
+
+    /** Whether or not several connection messages may be sent in a frame, negotiated via the hello message. */
+    volatile boolean batching;
+
+    /** Whether or not standalone acks may be sent, negotiated via the hello message. */
+    volatile boolean acks;
+
+    /** Whether or not payloads are embedded as JSON in text messages, negotiated via the hello message. */
+    volatile boolean json;
 
     final InternalServer server;
 
+    /** Traces frames sent and received. */
+    private final WireTrace trace;
+
     /** The websocket session. */
     private volatile Session session = null;
 
+    /** Serializes writes to the websocket. */
     private final ReentrantLock writeLock = new ReentrantLock();
 
+    /** The state of the transport, one of {@link #CONNECTING}, {@link #OPEN}, {@link #CLOSING} or {@link #CLOSED}. */
+    private final AtomicInteger state = new AtomicInteger(CONNECTING);
+
+    /**
+     * Messages that have been received, but not yet processed. The websocket container is the producer and the worker
+     * of the connection is the consumer.
+     */
+    final SpscLinkedQueue<TransportMessage> inbound = new SpscLinkedQueue<>();
+
+    /**
+     * The approximate number of bytes that have been handed to the websocket, but not yet been written to the
+     * network. Text frames are counted by their number of chars, which for the mostly ASCII JSON is close to the
+     * number of bytes they are encoded as.
+     */
+    private final AtomicLong pendingBytes = new AtomicLong();
+
     ServerTransport(InternalServer server) {
         this.cm = requireNonNull(server.getService(ConnectionManager.class));
         this.server = requireNonNull(server);
+        this.trace = requireNonNull(server.getService(WireTrace.class));
     }
 
     /** {@inheritDoc} */
     void doClose(final ClosingCode reason) {
-        fullyLock();
-        try {
-            Session session = this.session;
-            if (session != null) {
-                CloseReason cr = new CloseReason(new CloseCode() {
-                    public int getCode() {
-                        return reason.getId();
-                    }
-                }, reason.getMessage());
-
-                try {
-                    session.close(cr);
-                } catch (Exception e) {
-                    LOG.error("Failed to close connection", e);
+        // only the first thread to close an open transport does the actual closing
+        Session session = this.session;
+        if (state.compareAndSet(OPEN, CLOSING) && session != null) {
+            CloseReason cr = new CloseReason(new CloseCode() {
+                public int getCode() {
+                    return reason.getId();
                 }
+            }, reason.getMessage());
+
+            try {
+                session.close(cr);
+            } catch (Exception e) {
+                LOG.error("Failed to close connection", e);
             }
-        } finally {
-            fullyUnlock();
         }
     }
 
-    /**
-     * Locks to prevent both puts and takes.
-     */
-    void fullyLock() {
-        writeLock.lock();
-        readLock.lock();
-    }
-
-    /**
-     * Unlocks to allow both puts and takes.
-     */
-    void fullyUnlock() {
-        readLock.unlock();
-        writeLock.unlock();
+    /** Returns whether or not the websocket is open and we have not asked it to close. */
+    boolean isOpen() {
+        return state.get() == OPEN;
     }
 
     /** {@inheritDoc} */
     @OnClose
     public void onClose(CloseReason closeReason) {
-        fullyLock();
-        try {
-            session = null;
-            ClosingCode reason = ClosingCode
-                    .create(closeReason.getCloseCode().getCode(), closeReason.getReasonPhrase());
-            if (connection != null) {
-                connection.transportDisconnected(this, reason);
-            }
-        } finally {
-            fullyUnlock();
+        state.set(CLOSED);
+        session = null;
+        ClosingCode reason = ClosingCode.create(closeReason.getCloseCode().getCode(), closeReason.getReasonPhrase());
+        ServerConnection connection = this.connection;
+        if (connection != null) {
+            connection.transportDisconnected(this, reason);
         }
-
     }
 
     @OnOpen
     public void onOpen(Session session) {
-        fullyLock();
-        try {
-            this.session = session;
+        this.session = session;
+        if (state.compareAndSet(CONNECTING, OPEN)) {
             // send a Welcome message to the client as the first thing
             ServerId id = cm.server.getServerId();
-            sendText(new WelcomeMessage(1, id, "enavServer/1.0").toJSON());
-        } finally {
-            fullyUnlock();
+            String[] capabilities = offersBatching() ? new String[] { Capabilities.BINARY, Capabilities.ACK,
+                    Capabilities.JSON, Capabilities.BATCH } : new String[] { Capabilities.BINARY, Capabilities.ACK,
+                    Capabilities.JSON };
+            sendText(new WelcomeMessage(1, id, "enavServer/1.0", capabilities).toJSON());
         }
     }
 
+    /** Returns whether or not clients are offered to batch messages. */
+    boolean offersBatching() {
+        return server.getService(ServerConfiguration.class).isBatching();
+    }
+
     @OnMessage
     public void onTextMessage(String textMessage) {
-        readLock.lock();
+        if (!isOpen()) {
+            return;
+        }
+        if (trace.isEnabled()) {
+            trace.received(this, textMessage);
+        }
+        List<TransportMessage> msgs;
         try {
-            TransportMessage msg;
-            System.out.println("Received: " + textMessage);
-            try {
-                msg = TransportMessage.parseMessage(textMessage);
-            } catch (Exception e) {
-                e.printStackTrace();
-                LOG.error("Failed to parse incoming message", e);
-                doClose(ClosingCode.WRONG_MESSAGE.withMessage(e.getMessage()));
-                return;
+            msgs = MessageBatch.parse(textMessage, json);
+        } catch (Exception e) {
+            LOG.error("Failed to parse incoming message", e);
+            doClose(ClosingCode.WRONG_MESSAGE.withMessage(e.getMessage()));
+            return;
+        }
+        for (TransportMessage msg : msgs) {
+            onMessage(msg);
+        }
+    }
+
+    @OnMessage
+    public void onBinaryMessage(ByteBuffer binaryMessage) {
+        if (!isOpen()) {
+            return;
+        }
+        if (trace.isEnabled()) {
+            trace.received(this, binaryMessage);
+        }
+        List<TransportMessage> msgs;
+        try {
+            msgs = MessageBatch.parse(binaryMessage);
+        } catch (Exception e) {
+            LOG.error("Failed to parse incoming message", e);
+            doClose(ClosingCode.WRONG_MESSAGE.withMessage(e.getMessage()));
+            return;
+        }
+        for (TransportMessage msg : msgs) {
+            onMessage(msg);
+        }
+    }
+
+    /**
+     * Handles a message that has been received. Must only be invoked by the thread delivering messages from the
+     * websocket.
+     * 
+     * @param msg
+     *            the message that was received
+     */
+    private void onMessage(TransportMessage msg) {
+        if (connectFuture != null) {
+            connectFuture.onMessage(msg);
+        } else if (msg instanceof AckMessage || msg instanceof ConnectionMessage) {
+            connection.messageReceive(this, msg);
+        } else {
+            String err = "Unknown messageType " + msg.getClass().getSimpleName();
+            LOG.error(err);
+            doClose(ClosingCode.WRONG_MESSAGE.withMessage(err));
+        }
+    }
+
+    /**
+     * Sends the specified batch of connection messages as a single frame.
+     * 
+     * @param batch
+     *            the batch to send, must have been created in the format that was negotiated with the client
+     */
+    void send(MessageBatch batch) {
+        if (batch.isBinary()) {
+            BufferPool pool = cm.bufferPool;
+            sendBinary(batch.toBinary(pool), pool);
+        } else {
+            sendText(batch.toText());
+        }
+    }
+
+    /**
+     * Sends a standalone ack.
+     * 
+     * @param latestReceivedId
+     *            the id of the latest message received from the client
+     */
+    void sendAck(long latestReceivedId) {
+        AckMessage ack = new AckMessage(latestReceivedId);
+        if (binary) {
+            sendBinary(ack.toBinary());
+        } else {
+            sendText(ack.toJSON());
+        }
+    }
+
+    /**
+     * Returns whether or not the websocket can take more messages. If the client is on a slow link, we want messages
+     * to stay in the queue of the connection. Where they count against its limits and broadcasts can be dropped.
+     * 
+     * @return whether or not the websocket can take more messages
+     */
+    boolean isWritable() {
+        return pendingBytes.get() < MAX_PENDING_BYTES;
+    }
+
+    /**
+     * Creates a handler that is notified when a frame of the specified size has been written.
+     * 
+     * @param size
+     *            the size of the frame
+     * @return the handler
+     */
+    private SendHandler sent(final int size) {
+        return sent(size, null, null);
+    }
+
+    /**
+     * Creates a handler that is notified when a frame of the specified size has been written, and which releases the
+     * buffer of the frame to the specified pool.
+     * 
+     * @param size
+     *            the size of the frame
+     * @param buffer
+     *            the buffer holding the frame, or null
+     * @param pool
+     *            the pool the buffer was acquired from, or null
+     * @return the handler
+     */
+    private SendHandler sent(final int size, final ByteBuffer buffer, final BufferPool pool) {
+        pendingBytes.addAndGet(size);
+        return new SendHandler() {
+            public void onResult(SendResult result) {
+                if (pool != null) {
+                    pool.release(buffer);
+                }
+                long pending = pendingBytes.addAndGet(-size);
+                if (!result.isOK()) {
+                    LOG.error("Failed to send message", result.getException());
+                }
+                // the worker stopped writing when we went above the limit
+                ServerConnection connection = ServerTransport.this.connection;
+                if (pending + size >= MAX_PENDING_BYTES && pending < MAX_PENDING_BYTES && connection != null) {
+                    connection.worker.schedule();
+                }
             }
-            if (connectFuture != null) {
-                connectFuture.onMessage(msg);
-            } else if (msg instanceof ConnectionMessage) {
-                ConnectionMessage m = (ConnectionMessage) msg;
-                connection.messageReceive(this, m);
-            } else {
-                String err = "Unknown messageType " + msg.getClass().getSimpleName();
-                LOG.error(err);
-                doClose(ClosingCode.WRONG_MESSAGE.withMessage(err));
+        };
+    }
+
+    public void sendBinary(ByteBuffer buffer) {
+        sendBinary(buffer, null);
+    }
+
+    /**
+     * Sends a binary frame.
+     * 
+     * @param buffer
+     *            the frame to send
+     * @param pool
+     *            the pool the buffer was acquired from, the buffer is released to it once it has been written. Or null
+     *            if the buffer is not pooled
+     */
+    void sendBinary(ByteBuffer buffer, BufferPool pool) {
+        writeLock.lock();
+        try {
+            Session session = this.session;
+            if (session != null) {
+                if (trace.isEnabled()) {
+                    trace.sent(this, buffer);
+                }
+                SendHandler handler = sent(buffer.remaining(), buffer, pool);
+                try {
+                    session.getAsyncRemote().sendBinary(buffer, handler);
+                } catch (RuntimeException e) {
+                    // the handler is never notified, for example if the session has been closed
+                    handler.onResult(new SendResult(e));
+                }
+            } else if (pool != null) {
+                pool.release(buffer);
             }
         } finally {
-            readLock.unlock();
+            writeLock.unlock();
         }
     }
 
@@ -172,10 +372,15 @@ public class ServerTransport {
         try {
             Session session = this.session;
             if (session != null) {
-                if (text.length() < 1000) {
-                    System.out.println("Sending " + text);
+                if (trace.isEnabled()) {
+                    trace.sent(this, text);
+                }
+                SendHandler handler = sent(text.length());
+                try {
+                    session.getAsyncRemote().sendText(text, handler);
+                } catch (RuntimeException e) {
+                    handler.onResult(new SendResult(e));
                 }
-                session.getAsyncRemote().sendText(text);
             }
         } finally {
             writeLock.unlock();
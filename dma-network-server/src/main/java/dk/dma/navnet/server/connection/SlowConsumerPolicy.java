@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2008 Kasper Nielsen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.navnet.server.connection;
+
+/**
+ * What to do when a message is sent to a connection that already has the maximum number of messages or bytes queued.
+ * Messages stay queued until they have been acknowledged by the client, so a client on a slow link, or a client that
+ * is disconnected, will eventually hit the limits.
+ * 
+ * @author Kasper Nielsen
+ */
+public enum SlowConsumerPolicy {
+
+    /**
+     * Drops the oldest broadcast that has not yet been written to make room for the new message. If there are no such
+     * broadcasts the new message is rejected. Broadcasts are only relevant for a short while, so a client that cannot
+     * keep up is better off receiving the latest ones.
+     */
+    DROP_OLDEST_BROADCAST,
+
+    /** Rejects the new message, the future returned by {@link OutstandingMessage#protocolAcked()} fails. */
+    REJECT,
+
+    /** Rejects the new message and closes the connection to the client. */
+    DISCONNECT;
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright (c) 2008 Kasper Nielsen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.navnet.server.connection;
+
+import static java.util.Objects.requireNonNull;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jsr166e.ConcurrentHashMapV8;
+import jsr166e.LongAdder;
+
+import org.picocontainer.Startable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.dma.enav.model.MaritimeId;
+import dk.dma.navnet.server.ServerConfiguration;
+import dk.dma.navnet.server.util.ThreadManager;
+
+/**
+ * Traces the frames that are sent and received by the server. Tracing can be switched on at runtime for all
+ * connections, for a single connection or for a single target. As tracing a busy server can easily produce more
+ * output than can be written, traced frames can be sampled and the number of frames traced per second is limited.
+ * <p>
+ * Traced frames are put in a bounded ring buffer and written to the <tt>dk.dma.navnet.server.connection.WireTrace</tt>
+ * logger by a background thread. The thread that sends or receives a frame never waits for the log, if the buffer is
+ * full the frame is not traced. When tracing is switched off the only cost is reading a volatile field.
+ * 
+ * @author Kasper Nielsen
+ */
+public class WireTrace implements Startable {
+
+    /** The logger the frames are written to. */
+    static final Logger LOG = LoggerFactory.getLogger(WireTrace.class);
+
+    /** The number of traced frames that can be waiting to be written. */
+    static final int CAPACITY = 8192;
+
+    /** The maximum number of characters of a text frame that are written. */
+    static final int MAX_TEXT_LENGTH = 1000;
+
+    /** The maximum number of bytes of a binary frame that are written. */
+    static final int MAX_BINARY_LENGTH = 256;
+
+    /** The default maximum number of frames traced per second. */
+    public static final int DEFAULT_MAX_FRAMES_PER_SECOND = 1000;
+
+    /** Traced frames waiting to be written. */
+    private final ArrayBlockingQueue<Frame> buffer = new ArrayBlockingQueue<>(CAPACITY);
+
+    /** The ids of the connections that are traced. */
+    private final Set<String> connections = Collections.newSetFromMap(new ConcurrentHashMapV8<String, Boolean>());
+
+    /** The targets that are traced. */
+    private final Set<MaritimeId> targets = Collections.newSetFromMap(new ConcurrentHashMapV8<MaritimeId, Boolean>());
+
+    /** Whether or not all frames are traced. */
+    private volatile boolean all;
+
+    /** Whether or not anything is traced, checked before doing anything else. */
+    private volatile boolean enabled;
+
+    /** Only every n'th frame matching the filters is traced. */
+    private volatile int sampleRate = 1;
+
+    /** The maximum number of frames that are traced per second. */
+    private volatile int maxFramesPerSecond = DEFAULT_MAX_FRAMES_PER_SECOND;
+
+    /** The number of frames that have matched the filters, used for sampling. */
+    private final AtomicLong matched = new AtomicLong();
+
+    /** The time in nanoseconds the current rate window started. */
+    private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+
+    /** The number of frames traced in the current rate window. */
+    private final AtomicInteger windowCount = new AtomicInteger();
+
+    /** The number of frames that were not traced because of the rate limit or because the buffer was full. */
+    private final LongAdder dropped = new LongAdder();
+
+    private final ThreadManager threadManager;
+
+    private volatile boolean isStopped;
+
+    public WireTrace(ServerConfiguration configuration, ThreadManager threadManager) {
+        this.threadManager = requireNonNull(threadManager);
+        setTraceAll(configuration.isWireTrace());
+    }
+
+    /**
+     * Returns whether or not any frames might be traced. Used for avoiding the call to {@link #received} and
+     * {@link #sent} when tracing is switched off.
+     * 
+     * @return whether or not any frames might be traced
+     */
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    private void updateEnabled() {
+        enabled = all || !connections.isEmpty() || !targets.isEmpty();
+    }
+
+    /**
+     * Switches tracing of all connections on or off.
+     * 
+     * @param all
+     *            whether or not to trace all connections
+     */
+    public void setTraceAll(boolean all) {
+        this.all = all;
+        updateEnabled();
+    }
+
+    /**
+     * Switches tracing of the specified connection on or off.
+     * 
+     * @param connectionId
+     *            the id of the connection
+     * @param trace
+     *            whether or not to trace the connection
+     * @see ServerConnection#getId()
+     */
+    public void setTraceConnection(String connectionId, boolean trace) {
+        if (trace) {
+            connections.add(requireNonNull(connectionId));
+        } else {
+            connections.remove(connectionId);
+        }
+        updateEnabled();
+    }
+
+    /**
+     * Switches tracing of the specified target on or off. The target is traced no matter which connection it uses.
+     * 
+     * @param id
+     *            the id of the target
+     * @param trace
+     *            whether or not to trace the target
+     */
+    public void setTraceTarget(MaritimeId id, boolean trace) {
+        if (trace) {
+            targets.add(requireNonNull(id));
+        } else {
+            targets.remove(id);
+        }
+        updateEnabled();
+    }
+
+    /**
+     * Only traces every n'th frame that would otherwise be traced.
+     * 
+     * @param sampleRate
+     *            the sample rate, 1 to trace every frame
+     */
+    public void setSampleRate(int sampleRate) {
+        if (sampleRate < 1) {
+            throw new IllegalArgumentException("sampleRate must be at least 1, was " + sampleRate);
+        }
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Sets the maximum number of frames that are traced per second.
+     * 
+     * @param maxFramesPerSecond
+     *            the maximum number of frames that are traced per second
+     */
+    public void setMaxFramesPerSecond(int maxFramesPerSecond) {
+        if (maxFramesPerSecond < 1) {
+            throw new IllegalArgumentException("maxFramesPerSecond must be at least 1, was " + maxFramesPerSecond);
+        }
+        this.maxFramesPerSecond = maxFramesPerSecond;
+    }
+
+    /**
+     * Returns the number of frames that were not traced because of the rate limit or because the buffer was full.
+     * 
+     * @return the number of frames that were not traced
+     */
+    public long getDroppedFrames() {
+        return dropped.sum();
+    }
+
+    /** Returns the number of traced frames that are waiting to be written. */
+    int getPendingFrames() {
+        return buffer.size();
+    }
+
+    /**
+     * Traces a frame received by the specified transport, if it matches the filters.
+     * 
+     * @param transport
+     *            the transport that received the frame
+     * @param frame
+     *            a String or a ByteBuffer
+     */
+    void received(ServerTransport transport, Object frame) {
+        trace(transport, false, frame);
+    }
+
+    /**
+     * Traces a frame sent by the specified transport, if it matches the filters.
+     * 
+     * @param transport
+     *            the transport that sent the frame
+     * @param frame
+     *            a String or a ByteBuffer, a ByteBuffer must not be modified afterwards
+     */
+    void sent(ServerTransport transport, Object frame) {
+        trace(transport, true, frame);
+    }
+
+    private void trace(ServerTransport transport, boolean isSent, Object frame) {
+        // frames sent and received before the client has connected can only be traced if everything is traced
+        ServerConnection connection = transport.connection;
+        if (!all
+                && (connection == null || !connections.contains(connection.id) && !targets.contains(connection.target
+                        .getId()))) {
+            return;
+        }
+        int sampleRate = this.sampleRate;
+        if (sampleRate > 1 && matched.getAndIncrement() % sampleRate != 0) {
+            return;
+        }
+        if (!tryAcquire() || !buffer.offer(new Frame(connection, isSent, frame))) {
+            dropped.increment();
+        }
+    }
+
+    /** Returns whether or not another frame can be traced within the rate limit. */
+    private boolean tryAcquire() {
+        long now = System.nanoTime();
+        long start = windowStart.get();
+        if (now - start >= TimeUnit.SECONDS.toNanos(1) && windowStart.compareAndSet(start, now)) {
+            windowCount.set(0);
+        }
+        return windowCount.incrementAndGet() <= maxFramesPerSecond;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void start() {
+        threadManager.daemonPool.execute(new Runnable() {
+            public void run() {
+                while (!isStopped) {
+                    try {
+                        Frame f = buffer.poll(100, TimeUnit.MILLISECONDS);
+                        if (f != null) {
+                            LOG.info(f.toString());
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (RuntimeException e) {
+                        LOG.error("Failed to write traced frame", e);
+                    }
+                }
+            }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void stop() {
+        isStopped = true;
+    }
+
+    /** A traced frame, it is formatted by the thread writing the log. */
+    static class Frame {
+
+        final long timestamp = System.currentTimeMillis();
+
+        /** The id of the connection, or null if the client has not connected yet. */
+        final String connectionId;
+
+        /** The id of the target, or null if the client has not connected yet. */
+        final MaritimeId targetId;
+
+        final boolean isSent;
+
+        /** The text frame, or the first bytes of a binary frame. */
+        final Object frame;
+
+        /** The size of a binary frame. */
+        final int size;
+
+        Frame(ServerConnection connection, boolean isSent, Object frame) {
+            this.connectionId = connection == null ? null : connection.id;
+            this.targetId = connection == null ? null : connection.target.getId();
+            this.isSent = isSent;
+            if (frame instanceof ByteBuffer) {
+                // the buffer is consumed when it is sent, so the bytes are copied
+                ByteBuffer b = ((ByteBuffer) frame).duplicate();
+                this.size = b.remaining();
+                byte[] bytes = new byte[Math.min(size, MAX_BINARY_LENGTH)];
+                b.get(bytes);
+                this.frame = bytes;
+            } else {
+                this.size = 0;
+                this.frame = frame;
+            }
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(128);
+            sb.append(timestamp).append(isSent ? " -> " : " <- ").append(targetId).append(' ').append(connectionId);
+            if (frame instanceof byte[]) {
+                sb.append(" binary ").append(size).append(" bytes ");
+                for (byte b : (byte[]) frame) {
+                    sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+                }
+            } else {
+                String s = frame.toString();
+                sb.append(' ').append(s.length() > MAX_TEXT_LENGTH ? s.substring(0, MAX_TEXT_LENGTH) + "..." : s);
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -15,48 +15,278 @@
  */
 package dk.dma.navnet.server.connection;
 
-import java.util.concurrent.LinkedBlockingQueue;
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
+import jsr166e.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.dma.enav.maritimecloud.ClosingCode;
 import dk.dma.navnet.messages.ConnectionMessage;
+import dk.dma.navnet.messages.auxiliary.AckMessage;
+import dk.dma.navnet.messages.c2c.broadcast.BroadcastDeliver;
+import dk.dma.navnet.server.ServerConfiguration;
+import dk.dma.navnet.server.store.Spool;
+import dk.dma.navnet.server.store.SpoolReplay;
 
 /**
+ * Processes the messages of a single connection. The worker does not own a thread, instead it is run as a task on the
+ * event loop the connection is pinned to. It is only scheduled when there is something to process, so an idle
+ * connection does not use a thread. As the event loop is single threaded messages are processed in order.
+ * <p>
+ * Messages that are sent count against the limits of the connection until they have been acknowledged by the client.
+ * When a limit is reached the {@link SlowConsumerPolicy} of the server decides what happens to new messages.
+ * <p>
+ * If the connection has a {@link Spool}, every message that is accepted is appended to it, and marked as done when it
+ * has been acknowledged or dropped. Messages that were not delivered before the server was restarted are replayed
+ * from the spool before any new messages are written.
  * 
  * @author Kasper Nielsen
  */
 public class Worker implements Runnable {
 
-    private final ReentrantLock sendLock = new ReentrantLock();
+    /** The logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(Worker.class);
+
+    /** The maximum number of messages to process before giving other connections on the event loop a chance. */
+    static final int MAX_BATCH = 64;
 
-    private final ReentrantLock receiveLock = new ReentrantLock();
+    /** Put in the queue when received messages must be acknowledged, if they have not been already. */
+    static final Object ACK_TIMEOUT = new Object();
+
+    /** Used for closing the connection to a client that cannot keep up when the policy is DISCONNECT. */
+    static final ClosingCode SLOW_CONSUMER = ClosingCode.create(4100, "Slow consumer");
+
+    private final ReentrantLock sendLock = new ReentrantLock();
 
     private final ReentrantLock workLock = new ReentrantLock();
 
-    private final LinkedBlockingQueue<Object> q = new LinkedBlockingQueue<>();
+    private final ConcurrentLinkedQueue<Object> q = new ConcurrentLinkedQueue<>();
+
+    /** Whether or not the worker has been submitted to the event loop and has not yet finished running. */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /** The event loop this worker is pinned to. */
+    private final Executor eventLoop;
+
+    /** Used for scheduling delayed acks. */
+    private final ScheduledExecutorService scheduler;
 
     private volatile boolean isShutdown;
 
+    /** The maximum number of messages that can be queued. */
+    private final int maxQueuedMessages;
+
+    /** The maximum number of bytes that can be queued. */
+    private final long maxQueuedBytes;
+
+    private final SlowConsumerPolicy policy;
+
+    /**
+     * Whether the latest transport of the connection sends binary frames. Messages are sized in that format, also
+     * while the client is disconnected.
+     */
+    volatile boolean binary;
+
+    /** The number of messages that have been sent but not acknowledged. */
+    private final AtomicInteger queuedMessages = new AtomicInteger();
+
+    /** The number of bytes that have been sent but not acknowledged. */
+    private final AtomicLong queuedBytes = new AtomicLong();
+
+    /** The number of messages that have been dropped by the slow consumer policy. */
+    private final LongAdder droppedMessages = new LongAdder();
+
+    /** The number of messages that have been rejected by the slow consumer policy. */
+    private final LongAdder rejectedMessages = new LongAdder();
+
+    /** Broadcasts in the order they were queued, only used if the policy is DROP_OLDEST_BROADCAST. */
+    final ConcurrentLinkedQueue<OutstandingMessage> droppable = new ConcurrentLinkedQueue<>();
+
+    /** The number of messages that have been dropped since the worker last removed them from its queue. */
+    private final AtomicInteger unpurged = new AtomicInteger();
+
     final ServerConnection connection;
 
     final WorkerInner wi = new WorkerInner(this);
 
-    public Worker(ServerConnection connection) {
-        this.connection = connection;
+    public Worker(ServerConnection connection, Executor eventLoop, ScheduledExecutorService scheduler,
+            ServerConfiguration configuration) {
+        this.connection = requireNonNull(connection);
+        this.eventLoop = requireNonNull(eventLoop);
+        this.scheduler = requireNonNull(scheduler);
+        this.maxQueuedMessages = configuration.getMaxQueuedMessages();
+        this.maxQueuedBytes = configuration.getMaxQueuedBytes();
+        this.policy = requireNonNull(configuration.getSlowConsumerPolicy());
     }
 
     public OutstandingMessage messageSend(ConnectionMessage message) {
-        System.out.println("Prep to send1 " + message.toJSON());
+        // encodes the message, which we do not want to do while holding the lock
+        OutstandingMessage m = new OutstandingMessage(message, binary);
         sendLock.lock();
         try {
             if (isShutdown) {
 
             }
-            OutstandingMessage m = new OutstandingMessage(message);
-            q.add(m);
-            return m;
+            if (reserve(m)) {
+                spool(m);
+                if (policy == SlowConsumerPolicy.DROP_OLDEST_BROADCAST && message instanceof BroadcastDeliver) {
+                    droppable.add(m);
+                }
+                q.add(m);
+                schedule();
+                return m;
+            }
         } finally {
             sendLock.unlock();
         }
+        rejectedMessages.increment();
+        m.protocolAcked().completeExceptionally(
+                new RejectedExecutionException("Too many messages queued for " + connection.target.getId()));
+        // closing takes the locks of the transport which must never be acquired after the send lock
+        if (policy == SlowConsumerPolicy.DISCONNECT) {
+            ServerTransport transport = connection.transport;
+            if (transport != null) {
+                transport.doClose(SLOW_CONSUMER);
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Counts the specified message against the limits of the connection, dropping older broadcasts if the policy
+     * allows it. A message is always accepted if nothing else is queued, no matter its size. Must be invoked while
+     * holding the send lock.
+     * 
+     * @param m
+     *            the message to reserve room for
+     * @return whether or not there was room for the message
+     */
+    private boolean reserve(OutstandingMessage m) {
+        while (queuedMessages.get() > 0
+                && (queuedMessages.get() >= maxQueuedMessages || queuedBytes.get() + m.size > maxQueuedBytes)) {
+            if (policy != SlowConsumerPolicy.DROP_OLDEST_BROADCAST || !dropOldestBroadcast()) {
+                return false;
+            }
+        }
+        queuedMessages.incrementAndGet();
+        queuedBytes.addAndGet(m.size);
+        return true;
+    }
+
+    /**
+     * Appends the specified message to the spool of the connection, if it has one. Must be invoked while holding the
+     * send lock, so messages are spooled in the order they are queued.
+     */
+    private void spool(OutstandingMessage m) {
+        Spool spool = connection.spool;
+        if (spool != null) {
+            try {
+                m.spoolSeq = spool.append(m.cm);
+            } catch (IOException e) {
+                LOG.error("Could not spool message to " + connection.target.getId(), e);
+            }
+        }
+    }
+
+    /**
+     * Counts a message read from the spool against the limits of the connection. Replayed messages are never
+     * rejected, the worker only reads a few at a time.
+     * 
+     * @param m
+     *            the replayed message
+     */
+    void replayed(OutstandingMessage m) {
+        queuedMessages.incrementAndGet();
+        queuedBytes.addAndGet(m.size);
+    }
+
+    /**
+     * Sets the messages to replay from the spool, before any queued messages are written.
+     * 
+     * @param replay
+     *            the messages to replay
+     */
+    void replay(SpoolReplay replay) {
+        workLock.lock();
+        try {
+            wi.replay = requireNonNull(replay);
+        } finally {
+            workLock.unlock();
+        }
+    }
+
+    /**
+     * Drops the oldest broadcast that has not yet been written.
+     * 
+     * @return whether or not a broadcast was dropped
+     */
+    private boolean dropOldestBroadcast() {
+        OutstandingMessage m;
+        while ((m = droppable.poll()) != null) {
+            // the message stays in the queue, it is skipped when it is about to be written
+            if (m.drop()) {
+                unpurged.incrementAndGet();
+                released(m);
+                droppedMessages.increment();
+                m.protocolAcked().completeExceptionally(
+                        new RejectedExecutionException("Dropped, too many messages queued for "
+                                + connection.target.getId()));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Invoked when a message has been acknowledged by the client or has been dropped. Freeing up room for new
+     * messages.
+     * 
+     * @param m
+     *            the message that no longer counts against the limits
+     */
+    void released(OutstandingMessage m) {
+        queuedMessages.decrementAndGet();
+        queuedBytes.addAndGet(-m.size);
+        if (m.spoolSeq >= 0) {
+            try {
+                connection.spool.done(m.spoolSeq);
+            } catch (IOException e) {
+                LOG.error("Could not write to the spool of " + connection.target.getId(), e);
+            }
+        }
+    }
+
+    /** Returns the number of messages that have been sent but not yet acknowledged by the client. */
+    public int getQueuedMessages() {
+        return queuedMessages.get();
+    }
+
+    /** Returns the number of bytes that have been sent but not yet acknowledged by the client. */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /** Returns the number of queued broadcasts that have been dropped to make room for newer messages. */
+    public long getDroppedMessages() {
+        return droppedMessages.sum();
+    }
+
+    /** Returns the number of messages that have been rejected because the limits were reached. */
+    public long getRejectedMessages() {
+        return rejectedMessages.sum();
     }
 
     public long getLatestReceivedId() {
@@ -65,68 +295,80 @@ public class Worker implements Runnable {
 
     public long onConnect(ServerTransport transport, long id, boolean isReconnected) {
         sendLock.lock();
-        receiveLock.lock();
         workLock.lock();
         try {
+            binary = transport.binary;
             return wi.onConnect(transport, id, isReconnected);
         } finally {
             workLock.unlock();
-            receiveLock.unlock();
             sendLock.unlock();
+            // messages might have been queued while we were disconnected
+            schedule();
         }
     }
 
-    public void messageReceived(ConnectionMessage message) {
-        receiveLock.lock();
-        try {
-            if (!isShutdown) {
-                q.add(message);
+    /** Makes sure any messages received until now are acknowledged within {@link AckMessage#DEFAULT_DELAY_MS}. */
+    void ackTimeoutLater() {
+        scheduler.schedule(new Runnable() {
+            public void run() {
+                if (!isShutdown) {
+                    q.add(ACK_TIMEOUT);
+                    schedule();
+                }
             }
-        } finally {
-            receiveLock.unlock();
+        }, AckMessage.DEFAULT_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Submits this worker to its event loop, unless it has already been submitted. */
+    void schedule() {
+        if (!isShutdown && scheduled.compareAndSet(false, true)) {
+            eventLoop.execute(this);
         }
     }
 
     /** {@inheritDoc} */
     @Override
     public void run() {
-        // System.out.println("STAARAIORHAOIRHAOIRHIOAHRRH_____________");
-        boolean sleepLong = true;
-        while (!isShutdown) {
-            Object o = null;
-            if (sleepLong) {
-                try {
-                    o = q.take();
-                } catch (InterruptedException ignore) {}
-            } else {
-                o = q.poll();
-            }
-
-            if (o != null) {
-                wi.fromQueue(o);
+        boolean more = false;
+        workLock.lock();
+        try {
+            if (!isShutdown) {
+                Object o;
                 while ((o = q.poll()) != null) {
                     wi.fromQueue(o);
                 }
+                // this is the only thread consuming messages received by the transport
+                ServerTransport transport = connection.transport;
+                if (transport != null) {
+                    while ((o = transport.inbound.poll()) != null) {
+                        wi.fromQueue(o);
+                    }
+                }
+                // dropped messages are skipped when they are written, but they pile up if nothing is being written
+                if (unpurged.get() >= MAX_BATCH) {
+                    unpurged.set(0);
+                    wi.purgeDropped();
+                }
+                for (int i = 0; i < MAX_BATCH && (more = wi.processNext()); i++) {}
             }
-
-            workLock.lock();
-            try {
-                sleepLong = wi.processNext();
-            } finally {
-                workLock.unlock();
-            }
+        } finally {
+            workLock.unlock();
+        }
+        scheduled.set(false);
+        // a message might have been added after we drained the queues, but before we cleared the flag
+        ServerTransport transport = connection.transport;
+        if (more || !q.isEmpty() || transport != null && !transport.inbound.isEmpty()) {
+            schedule();
         }
     }
 
     public void shutdown() {
         sendLock.lock();
-        receiveLock.lock();
         workLock.lock();
         try {
             isShutdown = true;
         } finally {
             workLock.unlock();
-            receiveLock.unlock();
             sendLock.unlock();
         }
     }
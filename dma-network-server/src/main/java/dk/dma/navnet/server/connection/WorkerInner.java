@@ -17,9 +17,18 @@ package dk.dma.navnet.server.connection;
 
 import static java.util.Objects.requireNonNull;
 
-import java.util.LinkedList;
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import dk.dma.navnet.messages.ConnectionMessage;
+import dk.dma.navnet.messages.MessageBatch;
+import dk.dma.navnet.messages.auxiliary.AckMessage;
+import dk.dma.navnet.messages.util.FrameStatistics;
+import dk.dma.navnet.messages.util.RetransmitBuffer;
+import dk.dma.navnet.server.store.SpoolReplay;
 
 /**
  * 
@@ -27,13 +36,20 @@ import dk.dma.navnet.messages.ConnectionMessage;
  */
 public class WorkerInner {
 
+    /** The logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(WorkerInner.class);
+
     private boolean nextIsReceived = false;
 
-    private final LinkedList<OutstandingMessage> unwritten = new LinkedList<>();
+    private final ArrayDeque<OutstandingMessage> unwritten = new ArrayDeque<>();
+
+    /** Messages that have been written but not acknowledged, by message id. */
+    private final RetransmitBuffer<OutstandingMessage> written = new RetransmitBuffer<>();
 
-    private final LinkedList<OutstandingMessage> written = new LinkedList<>();
+    private final ArrayDeque<ConnectionMessage> received = new ArrayDeque<>();
 
-    private final LinkedList<ConnectionMessage> received = new LinkedList<>();
+    /** Messages still to be read from the spool, or null if there are none. */
+    SpoolReplay replay;
 
     final Worker worker;
 
@@ -43,6 +59,9 @@ public class WorkerInner {
 
     long latestReceivedMessageId;
 
+    /** The number of received messages that the client has not been told we have received. */
+    int unacked;
+
     /**
      * @return the latestReceivedMessageId
      */
@@ -57,47 +76,74 @@ public class WorkerInner {
     ServerTransport transport;
 
     public long onConnect(ServerTransport transport, long id, boolean isReconnected) {
-        while (!written.isEmpty()) {
-            OutstandingMessage om = written.pollLast();
-            if (om.id > id) {
-                System.out.println("Resending message with id: " + om.id);
-                unwritten.addFirst(om);
-            }
+        // the remote end has received everything up to id, the rest must be resent in the same order
+        OutstandingMessage om;
+        while ((om = written.pollAcked(id)) != null) {
+            worker.released(om);
+            om.protocolAcked().complete(null);
+        }
+        while ((om = written.pollLast()) != null) {
+            LOG.debug("Resending message with id {}", om.id);
+            unwritten.addFirst(om);
         }
         if (isReconnected) {
             nextSendId = id + 1;
             if (!unwritten.isEmpty()) {}
         }
-        System.out.println("======== NextSendId=" + nextSendId + " " + id);
+        LOG.debug("Connected, next send id {}, latest id received by the client {}", nextSendId, id);
         this.transport = transport;
+        unacked = 0; // the connected message contains the latest received id
         while (processNext()) {}
         return latestReceivedMessageId;
     }
 
     public void fromQueue(Object o) {
         if (o instanceof OutstandingMessage) {
-            unwritten.add((OutstandingMessage) o);
+            OutstandingMessage om = (OutstandingMessage) o;
+            if (!om.isDropped()) {
+                unwritten.add(om);
+            }
+        } else if (o instanceof AckMessage) {
+            acked(((AckMessage) o).getLatestReceivedId());
+        } else if (o == Worker.ACK_TIMEOUT) {
+            sendAck();
         } else {
             received.add((ConnectionMessage) o);
         }
     }
 
+    /** Removes messages that were dropped by the slow consumer policy while waiting to be written. */
+    void purgeDropped() {
+        for (int i = unwritten.size(); i > 0; i--) {
+            OutstandingMessage om = unwritten.poll();
+            if (!om.isDropped()) {
+                unwritten.add(om);
+            }
+        }
+    }
+
     /**
-     * @return false if there are no messages to process
+     * @return false if there are no messages that can be processed
      */
     boolean processNext() {
         boolean nextIsReceived = this.nextIsReceived;
         this.nextIsReceived = !nextIsReceived;
+        if (needsReplay() && isConnected()) {
+            replayNext();
+        }
+        // Unwritten messages stay in the queue while we are disconnected, Worker.onConnect reschedules us
+        // Nor do we write while the transport has too many bytes in flight, it reschedules us when it can take more
+        boolean canWrite = unwritten.size() > 0 && isConnected() && transport.isWritable();
         if (nextIsReceived) {
             if (received.size() > 0) {
                 processReceived();
-            } else if (unwritten.size() > 0) {
+            } else if (canWrite) {
                 processWritten();
             } else {
                 return false;
             }
         } else {
-            if (unwritten.size() > 0) {
+            if (canWrite) {
                 processWritten();
             } else if (received.size() > 0) {
                 processReceived();
@@ -108,40 +154,123 @@ public class WorkerInner {
         return true;
     }
 
+    /** Returns whether or not more messages must be read from the spool before the next message can be written. */
+    private boolean needsReplay() {
+        return replay != null && (unwritten.isEmpty() || !unwritten.peek().replayed);
+    }
+
+    /**
+     * Reads the next few messages from the spool and puts them in front of any queued messages, which are newer. Only
+     * a few messages are read at a time, so a large backlog is never kept in memory.
+     */
+    private void replayNext() {
+        ArrayDeque<OutstandingMessage> messages = new ArrayDeque<>();
+        try {
+            ConnectionMessage cm;
+            while (messages.size() < Worker.MAX_BATCH && (cm = replay.next()) != null) {
+                OutstandingMessage om = new OutstandingMessage(cm, worker.binary);
+                om.spoolSeq = replay.getSeq();
+                om.replayed = true;
+                worker.replayed(om);
+                messages.add(om);
+            }
+            if (messages.size() < Worker.MAX_BATCH) {
+                LOG.debug("Finished replaying spooled messages");
+                replay.close();
+                replay = null;
+            }
+        } catch (IOException e) {
+            LOG.error("Could not replay spooled messages, the rest are lost", e);
+            try {
+                replay.close();
+            } catch (IOException ignore) {}
+            replay = null;
+        }
+        OutstandingMessage om;
+        while ((om = messages.pollLast()) != null) {
+            unwritten.addFirst(om);
+        }
+    }
+
+    private boolean isConnected() {
+        ServerTransport transport = worker.connection.transport;
+        return transport != null && transport == this.transport;
+    }
 
     private void processReceived() {
         ConnectionMessage cm = received.poll();
         // System.out.println("GOT MSG with " + cm.getLatestReceivedId() + " " + cm.toJSON());
         latestReceivedMessageId = cm.getMessageId();
-        latestAck = cm.getLatestReceivedId();
+        // only queues the message, it is written by another thread
+        worker.connection.store.storeReceived(worker.connection.id, cm);
         worker.connection.bus.onMessage(worker.connection, cm);
-        for (;;) {
-            OutstandingMessage m = written.peek();
-            if (m == null || m.id > latestAck) {
-                return;
+        acked(cm.getLatestReceivedId());
+        if (isConnected() && transport.acks) {
+            if (++unacked >= AckMessage.DEFAULT_MAX_UNACKED) {
+                sendAck();
+            } else if (unacked == 1) {
+                worker.ackTimeoutLater();
             }
+        }
+    }
+
+    /** Completes all written messages up to and including the specified id. */
+    private void acked(long id) {
+        latestAck = Math.max(latestAck, id);
+        OutstandingMessage m;
+        while ((m = written.pollAcked(latestAck)) != null) {
+            worker.released(m);
             m.protocolAcked().complete(null);
-            written.poll();
+        }
+    }
+
+    /** Sends a standalone ack if there are any received messages that have not been acknowledged. */
+    private void sendAck() {
+        if (unacked > 0 && isConnected()) {
+            transport.sendAck(latestReceivedMessageId);
+            unacked = 0;
         }
     }
 
     private void processWritten() {
-      //  System.out.println("Prep to send");
-        ServerTransport transport = worker.connection.transport;
-        if (transport != null && transport == this.transport) {
+        // if batching has been negotiated drain as many messages as the limits allow into a single frame
+        MessageBatch batch = new MessageBatch(transport.binary, transport.json);
+        FrameStatistics statistics = worker.connection.statistics;
+        long now = System.nanoTime();
+        do {
             OutstandingMessage om = unwritten.poll();
-            ConnectionMessage cm = om.cm;
+            if (!om.markWritten()) {
+                continue; // dropped by the slow consumer policy
+            }
             om.id = nextSendId++;
-            cm.setMessageId(om.id);
-            cm.setLatestReceivedId(latestReceivedMessageId);
-            String message = cm.toJSON();
-            written.add(om);
-            // System.out.println("Adding " + om.id + " to written");
-            transport.sendText(message);
-        } else {
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException ignore) {}
+            written.add(om.id, om);
+            // the message might be shared with other connections, so the ids are not set on it
+            batch.add(om.cm, om.id, latestReceivedMessageId);
+            worker.connection.store.storeSend(worker.connection.id, om.id, latestReceivedMessageId, om.cm);
+            if (om.spoolSeq >= 0) {
+                spoolWritten(om);
+            }
+            statistics.latency(now - om.created);
+        } while (transport.batching && !unwritten.isEmpty() && !needsReplay()
+                && batch.count() < MessageBatch.DEFAULT_MAX_MESSAGES && batch.size() < MessageBatch.DEFAULT_MAX_BYTES);
+        // broadcasts that have been written can no longer be dropped, they are always at the head of the queue
+        OutstandingMessage om;
+        while ((om = worker.droppable.peek()) != null && !om.isQueued()) {
+            worker.droppable.remove(om);
+        }
+        if (batch.count() > 0) {
+            transport.send(batch);
+            statistics.frameSent(batch.count());
+            unacked = 0; // every message carries the latest received id
+        }
+    }
+
+    /** Records the id of the message in the spool, so it is not replayed if the client has already received it. */
+    private void spoolWritten(OutstandingMessage om) {
+        try {
+            worker.connection.spool.written(om.spoolSeq, om.id);
+        } catch (IOException e) {
+            LOG.error("Could not write to the spool of " + worker.connection.target.getId(), e);
         }
     }
 }
@@ -17,13 +17,19 @@ package dk.dma.navnet.server.requests;
 
 import static java.util.Objects.requireNonNull;
 import jsr166e.ConcurrentHashMapV8;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import dk.dma.enav.model.MaritimeId;
 import dk.dma.navnet.messages.ConnectionMessage;
 import dk.dma.navnet.messages.PositionTimeMessage;
 import dk.dma.navnet.messages.c2c.ClientRelayedMessage;
 import dk.dma.navnet.messages.s2c.ServerRequestMessage;
 import dk.dma.navnet.messages.s2c.ServerResponseMessage;
+import dk.dma.navnet.server.cluster.ClusterManager;
 import dk.dma.navnet.server.connection.ServerConnection;
+import dk.dma.navnet.server.store.StoreAndForward;
 import dk.dma.navnet.server.targets.Target;
 import dk.dma.navnet.server.targets.TargetManager;
 
@@ -34,17 +40,29 @@ import dk.dma.navnet.server.targets.TargetManager;
 @SuppressWarnings({ "rawtypes", "unchecked" })
 public class ServerMessageBus {
 
+    /** The logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(ServerMessageBus.class);
+
     private final ConcurrentHashMapV8<Class<?>, RequestProcessor> processors = new ConcurrentHashMapV8<>();
 
     final TargetManager tm;
 
-    public ServerMessageBus(TargetManager tm) {
+    /** Holds relayed messages for targets that are not connected. */
+    final StoreAndForward forward;
+
+    /** Forwards relayed messages to targets connected to other nodes. */
+    final ClusterManager cluster;
+
+    public ServerMessageBus(TargetManager tm, StoreAndForward forward, ClusterManager cluster) {
         this.tm = requireNonNull(tm);
+        this.forward = requireNonNull(forward);
+        this.cluster = requireNonNull(cluster);
     }
 
     public void onMessage(ServerConnection connection, ConnectionMessage message) {
         if (message instanceof PositionTimeMessage) {
             connection.getTarget().setLatestPosition(((PositionTimeMessage) message).getPositionTime());
+            cluster.positionChanged(connection.getTarget());
         }
         if (message instanceof ServerRequestMessage) {
             onServerRequestMessage(connection, (ServerRequestMessage) message);
@@ -55,26 +73,45 @@ public class ServerMessageBus {
 
 
     public void relay(ClientRelayedMessage m) {
-        String d = m.getDestination();
-        Target t = tm.find(MaritimeId.create(d));
-        if (t == null) {
-            System.err.println("Unknown destination " + d);
-            return;
+        Target t = tm.find(MaritimeId.create(m.getDestination()));
+        String node = t == null ? null : t.getNode();
+        if (node == null || !cluster.relay(node, m)) {
+            relayLocally(m);
         }
-        ServerConnection sc = t.getConnection();
-        if (sc == null) {
-            System.err.println("Unknown destination " + d);
-            return;
+    }
+
+    /**
+     * Relays a message to its destination if it is connected to this node, or holds it until it connects. The
+     * received message is not copied, the message id and latest received id are written for each connection. And
+     * every other field is passed on as it was received.
+     * 
+     * @param m
+     *            the message to relay
+     */
+    public void relayLocally(ClientRelayedMessage m) {
+        MaritimeId id = MaritimeId.create(m.getDestination());
+        Target t = tm.find(id);
+        ServerConnection sc = t == null ? null : t.getConnection();
+        if (sc != null) {
+            sc.messageSend(m);
+        } else if (forward.hold(id, m)) {
+            // the target might have connected after we checked, in which case nobody else will release the message
+            t = tm.find(id);
+            sc = t == null ? null : t.getConnection();
+            if (sc != null) {
+                forward.release(id, sc);
+            }
+        } else {
+            LOG.warn("Could not hold message for {}, too many messages are held", id);
         }
-        System.out.println("RELAY");
-        sc.messageSend(m.cloneIt());
     }
 
 
     public void onServerRequestMessage(ServerConnection connection, ServerRequestMessage message) {
         RequestProcessor rp = processors.get(message.getClass());
         if (rp == null) {
-            System.out.println("No processors for: " + message.getClass() + "[" + message.toJSON() + "]");
+            LOG.error("No processors for {}", message.getClass());
+            return;
         }
 
         try {
@@ -84,7 +121,7 @@ public class ServerMessageBus {
         } catch (RequestException e) {
             // send error message
         } catch (Exception e) {
-            e.printStackTrace();
+            LOG.error("Failed to process " + message.getClass(), e);
         }
     }
 
@@ -0,0 +1,97 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.server.services;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.Collections;
+import java.util.Set;
+
+import jsr166e.ConcurrentHashMapV8;
+import jsr166e.ConcurrentHashMapV8.Fun;
+import dk.dma.navnet.server.targets.ProviderGrid;
+import dk.dma.navnet.server.targets.Target;
+import dk.dma.navnet.server.targets.TargetManager;
+
+/**
+ * An index from the name of a service to the targets that provide it. Maintained by {@link TargetServiceManager} when
+ * services are registered and unregistered, so finding the providers of a service does not require looking at every
+ * target. The providers of each service are also indexed spatially in a {@link ProviderGrid}, which is told by
+ * {@link TargetManager} when a target moves, so finding nearby providers does not require looking at every target in
+ * the area either.
+ * 
+ * @author Kasper Nielsen
+ */
+public class ServiceIndex {
+
+    /** The targets providing each service, by the name of the service. */
+    private final ConcurrentHashMapV8<String, ProviderGrid> providers = new ConcurrentHashMapV8<>();
+
+    void add(String serviceName, Target target) {
+        providers.computeIfAbsent(serviceName, new Fun<String, ProviderGrid>() {
+            public ProviderGrid apply(String key) {
+                return new ProviderGrid();
+            }
+        }).add(requireNonNull(target));
+    }
+
+    void remove(String serviceName, Target target) {
+        // empty grids are kept, the number of different services is small
+        ProviderGrid grid = providers.get(serviceName);
+        if (grid != null) {
+            grid.remove(target);
+        }
+    }
+
+    /**
+     * Moves the target within the grid of every service it provides. Invoked by {@link TargetManager} every time the
+     * position of the target has been reported or cleared.
+     * 
+     * @param target
+     *            the target that has moved
+     */
+    public void moved(Target target) {
+        for (String serviceName : target.getServices().getServiceNames()) {
+            ProviderGrid grid = providers.get(serviceName);
+            if (grid != null) {
+                grid.moved(target);
+            }
+        }
+    }
+
+    /**
+     * Returns the targets that provide the specified service. The returned set is a live view.
+     * 
+     * @param serviceName
+     *            the name of the service
+     * @return the targets that provide the specified service
+     */
+    public Set<Target> getProviders(String serviceName) {
+        ProviderGrid grid = providers.get(serviceName);
+        return grid == null ? Collections.<Target> emptySet() : grid.getTargets();
+    }
+
+    /**
+     * Returns the spatial index of the targets that provide the specified service.
+     * 
+     * @param serviceName
+     *            the name of the service
+     * @return the spatial index of the targets that provide the service, or null if it has never been provided
+     */
+    public ProviderGrid getProviderGrid(String serviceName) {
+        return providers.get(serviceName);
+    }
+}
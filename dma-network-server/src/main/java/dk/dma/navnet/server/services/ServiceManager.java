@@ -17,29 +17,30 @@ package dk.dma.navnet.server.services;
 
 import static java.util.Objects.requireNonNull;
 
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map.Entry;
-
-import jsr166e.ConcurrentHashMapV8;
+import java.util.PriorityQueue;
+import java.util.Set;
 
 import org.picocontainer.Startable;
 
-import dk.dma.enav.model.geometry.Area;
-import dk.dma.enav.model.geometry.Circle;
-import dk.dma.enav.model.geometry.CoordinateSystem;
+import dk.dma.enav.model.geometry.Position;
 import dk.dma.enav.model.geometry.PositionTime;
-import dk.dma.enav.util.function.BiConsumer;
+import dk.dma.enav.util.function.Consumer;
 import dk.dma.navnet.messages.s2c.service.FindService;
 import dk.dma.navnet.messages.s2c.service.FindServiceResult;
 import dk.dma.navnet.messages.s2c.service.RegisterService;
 import dk.dma.navnet.messages.s2c.service.RegisterServiceResult;
+import dk.dma.navnet.server.cluster.ClusterManager;
 import dk.dma.navnet.server.connection.ServerConnection;
 import dk.dma.navnet.server.requests.RequestException;
 import dk.dma.navnet.server.requests.RequestProcessor;
 import dk.dma.navnet.server.requests.ServerMessageBus;
+import dk.dma.navnet.server.targets.ProviderGrid;
 import dk.dma.navnet.server.targets.Target;
 import dk.dma.navnet.server.targets.TargetManager;
 
@@ -50,13 +51,29 @@ import dk.dma.navnet.server.targets.TargetManager;
  */
 public class ServiceManager implements Startable {
 
+    /** The radius in meters of the first area searched when looking for the nearest targets. */
+    static final double INITIAL_RADIUS = 50_000;
+
+    /** A distance in meters that is larger than the distance between any two points on the globe. */
+    static final double MAX_DISTANCE = 20_100_000;
+
+    /** Orders the targets found by a search with the farthest one first. */
+    static final Comparator<Neighbour> FARTHEST_FIRST = new Comparator<Neighbour>() {
+        public int compare(Neighbour o1, Neighbour o2) {
+            return Double.compare(o2.distance, o1.distance);
+        }
+    };
+
     final TargetManager tracker;
 
     private final ServerMessageBus bus;
 
-    public ServiceManager(TargetManager tm, ServerMessageBus bus) {
+    private final ClusterManager cluster;
+
+    public ServiceManager(TargetManager tm, ServerMessageBus bus, ClusterManager cluster) {
         this.tracker = requireNonNull(tm);
         this.bus = requireNonNull(bus);
+        this.cluster = requireNonNull(cluster);
     }
 
     /** {@inheritDoc} */
@@ -68,6 +85,7 @@ public class ServiceManager implements Startable {
                     throws RequestException {
                 TargetServiceManager services = connection.getTarget().getServices();
                 services.registerService(message);
+                cluster.serviceRegistered(connection.getTarget(), message.getServiceName());
                 return message.createReply();
             }
         });
@@ -85,6 +103,20 @@ public class ServiceManager implements Startable {
         });
     }
 
+    /**
+     * Unregisters a service provided by a target connected to this node, and tells the other nodes in the cluster. The
+     * service is removed from the service index in the same way as services unregistered at other nodes.
+     * 
+     * @param target
+     *            the target providing the service
+     * @param serviceName
+     *            the name of the service
+     */
+    public void unregisterService(Target target, String serviceName) {
+        target.getServices().unregisterService(serviceName);
+        cluster.serviceUnregistered(target, serviceName);
+    }
+
     /**
      * Finds services in proximity to the specified target.
      * 
@@ -94,38 +126,116 @@ public class ServiceManager implements Startable {
      *            the find service request
      * @return a sorted list of the targets that was found sorted by distance to the target doing the search
      */
-    public List<Entry<Target, PositionTime>> findService(Target target, final FindService request) {
-        final PositionTime pos = target.getLatestPosition();
-        double meters = request.getMeters() <= 0 ? Integer.MAX_VALUE : request.getMeters();
-        Area a = new Circle(pos, meters, CoordinateSystem.GEODETIC);
-        // Find all services with the area
-        final ConcurrentHashMapV8<Target, PositionTime> map = new ConcurrentHashMapV8<>();
-        tracker.forEachWithinArea(a, new BiConsumer<Target, PositionTime>() {
-            public void accept(Target target, PositionTime r) {
-
-                if (target.getServices().hasService(request.getServiceName())) {
-                    map.put(target, r);
+    public List<Entry<Target, PositionTime>> findService(Target target, FindService request) {
+        double meters = request.getMeters() <= 0 ? Double.MAX_VALUE : request.getMeters();
+        return findNearest(tracker, target, target.getLatestPosition(), meters, request.getMax(),
+                request.getServiceName());
+    }
+
+    /**
+     * Finds the targets nearest to the specified position that provide the specified service. The distance to each
+     * candidate is calculated once, and only the best {@code max} candidates are kept in a bounded priority queue.
+     * <p>
+     * Only the targets that provide the service are considered, through the {@link ProviderGrid} of the service. The
+     * grid is searched within a radius that starts at {@link #INITIAL_RADIUS} and is doubled until {@code max} targets
+     * have been found, or the radius exceeds the requested distance. As the area searched grows by a factor of four
+     * each time, revisiting the inner area costs at most a third of the final lookup. Once the area covers more cells
+     * than there are providers, every provider is checked directly instead.
+     * 
+     * @param tm
+     *            the target manager
+     * @param self
+     *            the target doing the search, never included in the result
+     * @param position
+     *            the position to search from
+     * @param meters
+     *            the maximum distance of the targets in meters
+     * @param max
+     *            the maximum number of targets to return
+     * @param serviceName
+     *            the name of the service
+     * @return the targets found sorted by distance to the position
+     */
+    static List<Entry<Target, PositionTime>> findNearest(TargetManager tm, Target self, Position position,
+            double meters, int max, String serviceName) {
+        if (max <= 0 || position == null) {
+            return Collections.emptyList();
+        }
+        PriorityQueue<Neighbour> nearest = new PriorityQueue<>(Math.min(max, 64) + 1, FARTHEST_FIRST);
+        double limit = Math.min(meters, MAX_DISTANCE);
+        ProviderGrid providers = tm.getServiceIndex().getProviderGrid(serviceName);
+        if (providers == null) {
+            return Collections.emptyList();
+        }
+        double radius = Math.min(limit, INITIAL_RADIUS);
+        for (;;) {
+            nearest.clear();
+            Set<Target> targets = providers.getTargets();
+            if (targets.size() <= providers.countCellsWithin(position, radius)) {
+                // Cheaper to check every provider than to visit the cells of the area
+                for (Target t : targets) {
+                    offer(nearest, max, self, position, limit, t);
                 }
+                break;
             }
-        });
-        // We remove ourself
-        map.remove(target);
-
-        // Sort by distance
-        List<Entry<Target, PositionTime>> l = new ArrayList<>(map.entrySet());
-        Collections.sort(l, new Comparator<Entry<Target, PositionTime>>() {
-            public int compare(Entry<Target, PositionTime> o1, Entry<Target, PositionTime> o2) {
-                return Double.compare(o1.getValue().distanceTo(pos, CoordinateSystem.GEODETIC), o2.getValue()
-                        .distanceTo(pos, CoordinateSystem.GEODETIC));
+            visit(providers, nearest, max, self, position, radius);
+            if (radius >= limit || nearest.size() == max) {
+                break;
+            }
+            radius = Math.min(limit, radius * 2);
+        }
+        // The queue has the farthest target at the head
+        Neighbour[] sorted = new Neighbour[nearest.size()];
+        for (int i = sorted.length - 1; i >= 0; i--) {
+            sorted[i] = nearest.poll();
+        }
+        List<Entry<Target, PositionTime>> result = new ArrayList<>(sorted.length);
+        for (Neighbour n : sorted) {
+            result.add(new SimpleImmutableEntry<>(n.target, n.position));
+        }
+        return result;
+    }
+
+    /** Offers every provider within the radius. */
+    private static void visit(ProviderGrid providers, final PriorityQueue<Neighbour> nearest, final int max,
+            final Target self, final Position position, final double radius) {
+        providers.forEachCandidate(position, radius, new Consumer<Target>() {
+            public void accept(Target t) {
+                offer(nearest, max, self, position, radius, t);
             }
         });
+    }
 
-        // If we have a maximum number of results, filter the list
-        if (l.size() > request.getMax()) {
-            l = l.subList(0, request.getMax());
+    /** Adds the target to the queue if it is within the radius and nearer than the farthest target in the queue. */
+    private static void offer(PriorityQueue<Neighbour> nearest, int max, Target self, Position position, double radius,
+            Target t) {
+        PositionTime latest = t.getLatestPosition();
+        if (t != self && latest != null) {
+            double distance = position.geodesicDistanceTo(latest);
+            if (distance < radius) {
+                if (nearest.size() < max) {
+                    nearest.add(new Neighbour(t, latest, distance));
+                } else if (distance < nearest.peek().distance) {
+                    nearest.poll();
+                    nearest.add(new Neighbour(t, latest, distance));
+                }
+            }
         }
+    }
 
-        return l;
+    /** A target found by a search, and its distance to the position searched from. */
+    static final class Neighbour {
+        final Target target;
+
+        final PositionTime position;
+
+        final double distance;
+
+        Neighbour(Target target, PositionTime position, double distance) {
+            this.target = target;
+            this.position = position;
+            this.distance = distance;
+        }
     }
 
     /** {@inheritDoc} */
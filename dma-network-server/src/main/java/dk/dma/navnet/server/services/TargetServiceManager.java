@@ -16,6 +16,10 @@
 package dk.dma.navnet.server.services;
 
 import static java.util.Objects.requireNonNull;
+
+import java.util.Collections;
+import java.util.Set;
+
 import jsr166e.ConcurrentHashMapV8;
 
 import org.slf4j.Logger;
@@ -37,24 +41,65 @@ public class TargetServiceManager {
     /** The client */
     final Target target;
 
-    /** A map of all registered services at the client. */
-    final ConcurrentHashMapV8<String, String> services = new ConcurrentHashMapV8<>();
+    /** A map of all registered services at the client, only changed together with {@link #index}. */
+    private final ConcurrentHashMapV8<String, String> services = new ConcurrentHashMapV8<>();
 
-    public TargetServiceManager(Target target) {
+    /** The index of the targets providing each service. */
+    private final ServiceIndex index;
+
+    public TargetServiceManager(Target target, ServiceIndex index) {
         this.target = requireNonNull(target);
+        this.index = requireNonNull(index);
     }
 
     public void registerService(RegisterService s) {
-        LOG.debug("Registered remote service " + s.getServiceName() + "@" + target.getId());
-        services.put(s.getServiceName(), s.getServiceName());
+        registerService(s.getServiceName());
     }
 
-    public boolean hasService(String name) {
-        for (String c : services.keySet()) {
-            if (c.equals(name)) {
-                return true;
-            }
+    /**
+     * Registers a service by its name. Used both for services registered by a client connected to this node and for
+     * services registered at other nodes in the cluster.
+     * 
+     * @param serviceName
+     *            the name of the service
+     */
+    public void registerService(String serviceName) {
+        LOG.debug("Registered service " + serviceName + "@" + target.getId());
+        services.put(serviceName, serviceName);
+        index.add(serviceName, target);
+    }
+
+    /**
+     * Unregisters a service by its name. Every service is removed through this method, whether it was registered
+     * locally or at another node in the cluster, so the service index always agrees with the registered services.
+     * 
+     * @param serviceName
+     *            the name of the service
+     */
+    public void unregisterService(String serviceName) {
+        if (services.remove(serviceName) != null) {
+            LOG.debug("Unregistered service " + serviceName + "@" + target.getId());
+            index.remove(serviceName, target);
+        }
+    }
+
+    /** Unregisters all services, for example when the target is disconnected or its cluster node is lost. */
+    public void clear() {
+        for (String serviceName : services.keySet()) {
+            unregisterService(serviceName);
         }
-        return false;
+    }
+
+    /**
+     * Returns the names of all registered services.
+     * 
+     * @return the names of all registered services
+     */
+    public Set<String> getServiceNames() {
+        return Collections.unmodifiableSet(services.keySet());
+    }
+
+    public boolean hasService(String name) {
+        return services.containsKey(name);
     }
 }
@@ -0,0 +1,155 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.server.store;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+import dk.dma.enav.util.function.Consumer;
+import dk.dma.navnet.messages.ConnectionMessage;
+import dk.dma.navnet.messages.TransportMessage;
+
+/**
+ * The messages held for a single disconnected target, in the order they were sent. The oldest messages are held in
+ * memory. Once the memory limit of the server has been reached, newer messages are appended to a spill file instead,
+ * and keep being so until the queue has been emptied. All methods must be invoked while synchronized on the queue.
+ * 
+ * @author Kasper Nielsen
+ */
+final class ForwardQueue {
+
+    /** Messages held in memory, oldest first. */
+    final ArrayDeque<Held> memory = new ArrayDeque<>();
+
+    /** The spill file of the queue. */
+    private final File file;
+
+    /** Appends to the spill file, or null if no messages have been spilled. */
+    private DataOutputStream out;
+
+    /** The number of messages in the spill file. */
+    int spilled;
+
+    /** The number of bytes of the messages in the spill file. */
+    long spilledBytes;
+
+    /** The time in milliseconds the newest message in the spill file expires. */
+    long spillExpires;
+
+    /** The number of bytes of all messages in the queue. */
+    long bytes;
+
+    /** Whether or not the queue has been removed from the server, in which case a new one must be created. */
+    boolean isRemoved;
+
+    ForwardQueue(File file) {
+        this.file = file;
+    }
+
+    /** Returns whether or not new messages must be spilled to keep them in order. */
+    boolean isSpilling() {
+        return out != null;
+    }
+
+    /** Appends the specified message to the spill file. */
+    void spill(Held h) throws IOException {
+        if (out == null) {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 8 * 1024));
+        }
+        byte[] json = h.message.toJSON(0, 0).getBytes(StandardCharsets.UTF_8);
+        out.writeLong(h.heldAt);
+        out.writeLong(h.expires);
+        out.writeInt(h.size);
+        out.writeInt(json.length);
+        out.write(json);
+        spilled++;
+        spilledBytes += h.size;
+        spillExpires = h.expires;
+        bytes += h.size;
+    }
+
+    /**
+     * Reads every message in the spill file, oldest first, and deletes it.
+     * 
+     * @param consumer
+     *            the consumer to invoke for each message
+     * @throws IOException
+     *             if the spill file could not be read
+     */
+    void unspill(Consumer<Held> consumer) throws IOException {
+        out.close();
+        try (DataInputStream in = Spool.open(file)) {
+            for (int i = 0; i < spilled; i++) {
+                long heldAt = in.readLong();
+                long expires = in.readLong();
+                int size = in.readInt();
+                byte[] json = new byte[in.readInt()];
+                in.readFully(json);
+                ConnectionMessage cm = (ConnectionMessage) TransportMessage.parseMessage(new String(json,
+                        StandardCharsets.UTF_8));
+                consumer.accept(new Held(cm, heldAt, expires, size));
+            }
+        } catch (EOFException e) {
+            throw new IOException("Spill file " + file + " is truncated", e);
+        } finally {
+            deleteSpill();
+        }
+    }
+
+    /** Deletes the spill file and forgets all messages in it. */
+    void deleteSpill() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+        bytes -= spilledBytes;
+        spilled = 0;
+        spilledBytes = 0;
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not delete spill file " + file);
+        }
+    }
+
+    /** A message that is held until its target connects. */
+    static final class Held {
+
+        /** The message to forward. */
+        final ConnectionMessage message;
+
+        /** The time in nanoseconds the message was held. */
+        final long heldAt;
+
+        /** The time in milliseconds the message expires. */
+        final long expires;
+
+        /** The approximate number of bytes the message takes up. */
+        final int size;
+
+        Held(ConnectionMessage message, long heldAt, long expires, int size) {
+            this.message = message;
+            this.heldAt = heldAt;
+            this.expires = expires;
+            this.size = size;
+        }
+    }
+}
@@ -15,30 +15,568 @@
  */
 package dk.dma.navnet.server.store;
 
+import static java.util.Objects.requireNonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import jsr166e.ConcurrentHashMapV8;
+import jsr166e.LongAdder;
+
+import org.picocontainer.Startable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.dma.enav.util.function.Consumer;
+import dk.dma.navnet.messages.ConnectionMessage;
+import dk.dma.navnet.server.ServerConfiguration;
+import dk.dma.navnet.server.util.ThreadManager;
+
 /**
- * Stores messages, in case the server goes down.
+ * Stores all messages sent and received by the server, as an audit trail and in case the server goes down.
+ * <p>
+ * Storing a message never blocks. The message is put in a bounded queue, a background thread encodes it and appends
+ * it to a memory-mapped segment file in the store directory. A new segment is started when the current one is full
+ * or has been in use for the configured roll interval. Segments are flushed to disk in batches, whenever a number of
+ * bytes have been written or some time has passed. If the queue is full because the disk cannot keep up, the message
+ * is not stored and counted as dropped.
+ * <p>
+ * Only the configured number of segments are kept. When a new segment is started, the oldest segments are unmapped and
+ * their files deleted, including files written before the server was restarted.
+ * <p>
+ * A sparse index is kept in memory for every connection and direction, making it possible to find a stored message
+ * from its connection id and message id without reading every segment. Only segments written since the server started
+ * are indexed and can be read. Index entries pointing into deleted segments are dropped together with the segments, as
+ * is the index of a connection once none of its messages are kept.
  * 
  * @author Kasper Nielsen
  */
-public class MessageStore {
+public class MessageStore implements Startable {
+
+    /** The logger. */
+    static final Logger LOG = LoggerFactory.getLogger(MessageStore.class);
+
+    /** The number of messages that can be waiting to be written. */
+    static final int QUEUE_CAPACITY = 64 * 1024;
+
+    /** The maximum number of messages written before they are made available to readers. */
+    static final int MAX_BATCH = 256;
+
+    /** The number of bytes written before the current segment is flushed. */
+    static final int FLUSH_BYTES = 1024 * 1024;
+
+    /** The number of milliseconds before written messages are flushed. */
+    static final long FLUSH_INTERVAL = 1000;
+
+    /** Every n'th message of a connection and direction is indexed. */
+    static final int INDEX_INTERVAL = 64;
+
+    /** The directory the segments are written to, or null if messages are not stored. */
+    private final File directory;
+
+    private final int segmentSize;
+
+    /** The number of milliseconds before a new segment is started. */
+    private final long rollInterval;
+
+    /** The maximum number of segment files kept, including the one being written. */
+    private final int retainedSegments;
+
+    private final ThreadManager threadManager;
+
+    /** Messages waiting to be written. */
+    private final ArrayBlockingQueue<Record> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    /**
+     * All segments written since the server started, by their index. The last one is the one being written, deleted
+     * segments are replaced by null.
+     */
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+
+    /** The index of the oldest segment that has not been deleted. */
+    private volatile int firstSegment;
+
+    /**
+     * Held by readers while they access segments, and by the writer while it deletes segments. The writer only tries
+     * to acquire it, so a slow reader postpones the deletion instead of blocking the writer.
+     */
+    private final ReentrantReadWriteLock retentionLock = new ReentrantReadWriteLock();
+
+    /** Segment files written before the server started, oldest first, only used by the writer once started. */
+    private final ArrayDeque<File> olderFiles = new ArrayDeque<>();
+
+    /** The sparse indexes, by connection id and direction. */
+    private final ConcurrentHashMapV8<String, Index> indexes = new ConcurrentHashMapV8<>();
+
+    /** The position following the latest message that can be read, see {@link #position(Segment, int)}. */
+    private volatile long readable;
+
+    /** The number of messages that could not be stored because the queue was full. */
+    private final LongAdder dropped = new LongAdder();
+
+    /** The number of messages written, only updated by the writer. */
+    private volatile long recordCount;
+
+    /** The number of bytes written, only updated by the writer. */
+    private volatile long byteCount;
+
+    /** Released when the writer has written every queued message and stopped. */
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    private volatile boolean isStopped;
+
+    /** The number of the first segment file written since the server started. */
+    private int firstFileNumber;
+
+    /** The segment being written, only used by the writer. */
+    private Segment current;
+
+    /** The number of bytes written to the current segment since it was last flushed, only used by the writer. */
+    private int unflushed;
+
+    /** The time the current segment was last flushed, only used by the writer. */
+    private long lastFlush = System.currentTimeMillis();
+
+    public MessageStore(ServerConfiguration configuration, ThreadManager threadManager) {
+        String dir = configuration.getStoreDirectory();
+        this.directory = dir == null ? null : new File(dir);
+        this.segmentSize = configuration.getStoreSegmentSize();
+        this.rollInterval = TimeUnit.SECONDS.toMillis(configuration.getStoreRollInterval());
+        this.retainedSegments = configuration.getStoreRetainedSegments();
+        this.threadManager = requireNonNull(threadManager);
+    }
+
+    /**
+     * Returns whether or not messages are stored.
+     * 
+     * @return whether or not messages are stored
+     */
+    public boolean isEnabled() {
+        return directory != null;
+    }
+
+    /**
+     * Stores a message received from a client. The message is encoded by a background thread, so it must not be
+     * changed afterwards.
+     * 
+     * @param connectionId
+     *            the id of the connection the message was received on
+     * @param message
+     *            the message that was received
+     */
+    public void storeReceived(String connectionId, ConnectionMessage message) {
+        if (directory != null) {
+            add(new Record(connectionId, false, message.getMessageId(), message.getLatestReceivedId(), message));
+        }
+    }
+
+    /**
+     * Stores a message sent to a client. The message is encoded by a background thread, so it must not be changed
+     * afterwards. As the same message might be sent to several clients the ids are specified separately.
+     * 
+     * @param connectionId
+     *            the id of the connection the message was sent on
+     * @param messageId
+     *            the id of the message
+     * @param latestReceivedId
+     *            the latest received id sent with the message
+     * @param message
+     *            the message that was sent
+     */
+    public void storeSend(String connectionId, long messageId, long latestReceivedId, ConnectionMessage message) {
+        if (directory != null) {
+            add(new Record(connectionId, true, messageId, latestReceivedId, message));
+        }
+    }
+
+    private void add(Record r) {
+        if (isStopped || !queue.offer(r)) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Returns the number of messages that were not stored, because they were stored faster than they could be
+     * written.
+     * 
+     * @return the number of messages that were not stored
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Returns the number of messages that have been written.
+     * 
+     * @return the number of messages that have been written
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Returns the number of bytes that have been written.
+     * 
+     * @return the number of bytes that have been written
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * Finds a stored message.
+     * 
+     * @param connectionId
+     *            the id of the connection
+     * @param sent
+     *            true for a message sent by the server, false for a message received
+     * @param messageId
+     *            the id of the message
+     * @return the message, or null if no such message has been stored since the server was started, or it was stored
+     *         in a segment that has been deleted
+     */
+    public StoredMessage find(String connectionId, boolean sent, long messageId) {
+        retentionLock.readLock().lock();
+        try {
+            Index index = indexes.get(Index.key(connectionId, sent));
+            if (index == null) {
+                return null;
+            }
+            Map.Entry<Long, long[]> e = index.entries.floorEntry(messageId);
+            if (e == null) {
+                return null;
+            }
+            byte[] id = connectionId.getBytes(StandardCharsets.UTF_8);
+            // a resent message id has a position for every time it was indexed, the most recent is tried first
+            long[] positions = e.getValue();
+            for (int i = positions.length - 1; i >= 0; i--) {
+                StoredMessage m = scan(positions[i], id, sent, messageId);
+                if (m != null) {
+                    return m;
+                }
+            }
+            return null;
+        } finally {
+            retentionLock.readLock().unlock();
+        }
+    }
+
+    /** Looks for a message from the specified position, must be invoked with the read lock held. */
+    private StoredMessage scan(long from, byte[] id, boolean sent, long messageId) {
+        // the message is normally found within the next INDEX_INTERVAL messages of the connection and direction
+        int seen = 0;
+        long end = readable;
+        for (long p = from; p < end && seen <= 2 * INDEX_INTERVAL;) {
+            Segment s = segments.get(segment(p));
+            int offset = offset(p);
+            if (!s.hasRecord(offset)) {
+                p = position(segment(p) + 1, 0);
+            } else {
+                if (s.isSent(offset) == sent && s.isConnection(offset, id)) {
+                    if (s.messageId(offset) == messageId) {
+                        return s.read(offset);
+                    }
+                    seen++;
+                }
+                p = position(segment(p), s.next(offset));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Invokes the specified consumer for every message that has been stored since the server was started, and is
+     * still kept. Segments are not deleted while the consumer is being invoked.
+     * 
+     * @param consumer
+     *            the consumer to invoke
+     */
+    public void forEach(Consumer<StoredMessage> consumer) {
+        retentionLock.readLock().lock();
+        try {
+            long end = readable;
+            for (long p = position(firstSegment, 0); p < end;) {
+                Segment s = segments.get(segment(p));
+                int offset = offset(p);
+                if (!s.hasRecord(offset)) {
+                    p = position(segment(p) + 1, 0);
+                } else {
+                    consumer.accept(s.read(offset));
+                    p = position(segment(p), s.next(offset));
+                }
+            }
+        } finally {
+            retentionLock.readLock().unlock();
+        }
+    }
 
-    public void storeReceived(String id, String connectId, String transportId, long receiveTime, String message) {
+    /** Returns the number of segments written since the server started, including deleted segments. */
+    int getSegmentCount() {
+        return segments.size();
+    }
+
+    /** Returns the number of connections and directions that are indexed. */
+    int getIndexCount() {
+        return indexes.size();
+    }
 
+    static long position(int segment, int offset) {
+        return (long) segment << 32 | offset;
     }
 
-    public void storeSend(String id, String connectId, String transportId, long sendTime, String message) {
+    static int segment(long position) {
+        return (int) (position >>> 32);
+    }
+
+    static int offset(long position) {
+        return (int) position;
+    }
+
+    /** Writes queued messages until the store is stopped and the queue is empty. */
+    void writeLoop() {
+        List<Record> batch = new ArrayList<>(MAX_BATCH);
+        try {
+            while (!isStopped || !queue.isEmpty()) {
+                Record r = queue.poll(FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+                if (r != null) {
+                    batch.add(r);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    for (Record record : batch) {
+                        write(record);
+                    }
+                    batch.clear();
+                    // makes the batch visible to readers
+                    readable = position(current.index, current.position());
+                }
+                long now = System.currentTimeMillis();
+                if (unflushed >= FLUSH_BYTES || unflushed > 0 && now - lastFlush >= FLUSH_INTERVAL) {
+                    flush();
+                }
+                // retries a deletion that was postponed by a reader
+                expire();
+            }
+            flush();
+        } catch (InterruptedException e) {
+            LOG.warn("Message store interrupted, some messages might not have been written");
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Message store failed, no more messages will be stored", e);
+            isStopped = true;
+        } finally {
+            terminated.countDown();
+        }
+    }
+
+    private void write(Record r) throws IOException {
+        byte[] connectionId = r.connectionId.getBytes(StandardCharsets.UTF_8);
+        byte[] message = r.message.toJSON(r.messageId, r.latestReceivedId).getBytes(StandardCharsets.UTF_8);
+        int size = Segment.recordSize(connectionId, message);
+        if (current == null || !current.fits(size) || r.time - current.created >= rollInterval) {
+            roll(size);
+        }
+        int offset = current.append(r.sent, r.time, r.messageId, connectionId, message);
+
+        String key = Index.key(r.connectionId, r.sent);
+        Index index = indexes.get(key);
+        if (index == null) {
+            indexes.put(key, index = new Index());
+        }
+        if (index.segment != current.index) {
+            // the first message in every segment is indexed, so the index still works once older segments are deleted
+            index.segment = current.index;
+            index.count = 0;
+        }
+        if (index.count++ % INDEX_INTERVAL == 0) {
+            index.add(r.messageId, position(current.index, offset));
+        }
+        unflushed += size;
+        byteCount += size;
+        recordCount++;
+    }
 
+    private void roll(int recordSize) throws IOException {
+        if (current != null) {
+            flush();
+        }
+        int index = segments.size();
+        current = new Segment(directory, index, firstFileNumber + index, Math.max(segmentSize, recordSize));
+        segments.add(current);
+        LOG.info("Started writing messages to " + current.file);
+        expire();
     }
 
-    static class StoredMessage {
-        String id;
+    /** Deletes the oldest segment files, until no more than the retained number of files are kept. */
+    private void expire() {
+        int kept = segments.size() - firstSegment;
+        while (!olderFiles.isEmpty() && olderFiles.size() + kept > retainedSegments) {
+            delete(olderFiles.poll());
+        }
+        if (kept > retainedSegments && retentionLock.writeLock().tryLock()) {
+            try {
+                int first = segments.size() - retainedSegments;
+                for (int i = firstSegment; i < first; i++) {
+                    Segment s = segments.set(i, null);
+                    s.close();
+                    delete(s.file);
+                }
+                firstSegment = first;
+                for (Iterator<Index> iter = indexes.values().iterator(); iter.hasNext();) {
+                    Index index = iter.next();
+                    if (index.segment < first) {
+                        iter.remove(); // none of the messages of the connection and direction are kept
+                    } else {
+                        index.prune(first);
+                    }
+                }
+            } finally {
+                retentionLock.writeLock().unlock();
+            }
+        }
+    }
+
+    private static void delete(File file) {
+        if (file.delete()) {
+            LOG.info("Deleted " + file);
+        } else {
+            LOG.warn("Could not delete " + file);
+        }
+    }
+
+    private void flush() {
+        if (current != null && unflushed > 0) {
+            current.force();
+        }
+        unflushed = 0;
+        lastFlush = System.currentTimeMillis();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void start() {
+        if (directory != null) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IllegalStateException("Could not create message store directory " + directory);
+            }
+            // continue the numbering of the segments written before the server was restarted
+            String[] existing = directory.list();
+            existing = existing == null ? new String[0] : existing;
+            Arrays.sort(existing); // the names are zero padded numbers
+            for (String name : existing) {
+                int number = Segment.number(name);
+                if (number >= 0) {
+                    olderFiles.add(new File(directory, name));
+                    firstFileNumber = number + 1;
+                }
+            }
+            threadManager.daemonPool.execute(new Runnable() {
+                public void run() {
+                    writeLoop();
+                }
+            });
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void stop() {
+        isStopped = true;
+        if (directory != null) {
+            try {
+                if (!terminated.await(10, TimeUnit.SECONDS)) {
+                    LOG.error("Gave up waiting for the message store to write all messages");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** A message that has not yet been written. */
+    static final class Record {
+
+        final String connectionId;
+
+        final boolean sent;
+
+        final long time = System.currentTimeMillis();
+
+        final long messageId;
+
+        final long latestReceivedId;
+
+        final ConnectionMessage message;
+
+        Record(String connectionId, boolean sent, long messageId, long latestReceivedId, ConnectionMessage message) {
+            this.connectionId = requireNonNull(connectionId);
+            this.sent = sent;
+            this.messageId = messageId;
+            this.latestReceivedId = latestReceivedId;
+            this.message = requireNonNull(message);
+        }
+    }
+
+    /**
+     * A sparse index of the messages of a single connection in a single direction. The index is keyed by message id,
+     * the value is the position of every indexed record with that id, oldest first. An id is normally only stored
+     * once, but a message that is resent after the client reconnects is stored again with the same id. A message is
+     * found by scanning forward from the positions of the nearest indexed id at or below its own.
+     * <p>
+     * Every {@link MessageStore#INDEX_INTERVAL}'th message in a segment is indexed, starting with the first one.
+     */
+    static final class Index {
+
+        /** Message id to positions, written by the writer and read by anyone. */
+        final ConcurrentSkipListMap<Long, long[]> entries = new ConcurrentSkipListMap<>();
+
+        /** The number of messages written to the latest segment, only used by the writer. */
+        int count;
 
-        String conenctId;
+        /** The index of the latest segment a message was written to, only used by the writer. */
+        int segment = -1;
 
-        String transportId;
+        /** Adds the position of a record, only invoked by the writer. */
+        void add(long messageId, long position) {
+            long[] existing = entries.get(messageId);
+            if (existing == null) {
+                entries.put(messageId, new long[] { position });
+            } else {
+                long[] positions = Arrays.copyOf(existing, existing.length + 1);
+                positions[existing.length] = position;
+                entries.put(messageId, positions);
+            }
+        }
 
-        long receiveTime;
+        /** Removes the positions in segments before the specified segment, only invoked by the writer. */
+        void prune(int firstSegment) {
+            for (Iterator<Map.Entry<Long, long[]>> iter = entries.entrySet().iterator(); iter.hasNext();) {
+                Map.Entry<Long, long[]> e = iter.next();
+                long[] positions = e.getValue();
+                int deleted = 0;
+                while (deleted < positions.length && segment(positions[deleted]) < firstSegment) {
+                    deleted++;
+                }
+                if (deleted == positions.length) {
+                    iter.remove();
+                } else if (deleted > 0) {
+                    entries.put(e.getKey(), Arrays.copyOfRange(positions, deleted, positions.length));
+                }
+            }
+        }
 
-        String message;
+        static String key(String connectionId, boolean sent) {
+            return (sent ? "> " : "< ") + connectionId;
+        }
     }
 }
@@ -0,0 +1,201 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.server.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A memory-mapped file of length-prefixed records. A record is laid out as:
+ * 
+ * <pre>
+ * int    length of the rest of the record
+ * byte   1 if the message was sent, 0 if it was received
+ * long   the time the message was sent or received
+ * long   the id of the message
+ * short  length of the connection id
+ * byte[] the connection id in UTF-8
+ * byte[] the message in UTF-8
+ * </pre>
+ * 
+ * A length of 0, or the end of the file, marks the end of the records. The file is created with its full size, so
+ * the unused part is zero filled.
+ * 
+ * @author Kasper Nielsen
+ */
+class Segment {
+
+    /** The size of the fixed fields of a record, excluding the length prefix. */
+    static final int HEADER_SIZE = 1 + 8 + 8 + 2;
+
+    /** The suffix of segment files. */
+    static final String SUFFIX = ".seg";
+
+    /** The index of the segment among the segments written since the server started. */
+    final int index;
+
+    final File file;
+
+    /** The time in milliseconds the segment was created. */
+    final long created = System.currentTimeMillis();
+
+    /** Only used by the writer, readers use absolute gets. */
+    private final MappedByteBuffer buffer;
+
+    Segment(File directory, int index, int fileNumber, int size) throws IOException {
+        this.index = index;
+        this.file = new File(directory, name(fileNumber));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // the mapping stays valid after the channel has been closed
+            buffer = raf.getChannel().map(MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /** Returns the offset the next record will be written at. */
+    int position() {
+        return buffer.position();
+    }
+
+    /**
+     * Returns whether or not a record of the specified size fits in the segment.
+     * 
+     * @param recordSize
+     *            the size of the record as returned by {@link #recordSize(byte[], byte[])}
+     * @return whether or not the record fits in the segment
+     */
+    boolean fits(int recordSize) {
+        return buffer.remaining() >= recordSize;
+    }
+
+    /** Returns the total size of a record including the length prefix. */
+    static int recordSize(byte[] connectionId, byte[] message) {
+        return 4 + HEADER_SIZE + connectionId.length + message.length;
+    }
+
+    /**
+     * Appends a record. The caller must have checked that it {@link #fits(int)}.
+     * 
+     * @return the offset of the record
+     */
+    int append(boolean sent, long time, long messageId, byte[] connectionId, byte[] message) {
+        int offset = buffer.position();
+        buffer.putInt(HEADER_SIZE + connectionId.length + message.length);
+        buffer.put(sent ? (byte) 1 : (byte) 0);
+        buffer.putLong(time);
+        buffer.putLong(messageId);
+        buffer.putShort((short) connectionId.length);
+        buffer.put(connectionId);
+        buffer.put(message);
+        return offset;
+    }
+
+    /** Writes any changes to the file. */
+    void force() {
+        buffer.force();
+    }
+
+    /**
+     * Unmaps the segment, instead of waiting for the mapping to be garbage collected. The segment must not be used
+     * afterwards, any access to an unmapped buffer crashes the JVM. If the buffer cannot be unmapped explicitly on
+     * this JVM, it is left to the garbage collector.
+     */
+    void close() {
+        try {
+            Method cleaner = buffer.getClass().getMethod("cleaner");
+            cleaner.setAccessible(true);
+            Object c = cleaner.invoke(buffer);
+            if (c != null) {
+                c.getClass().getMethod("clean").invoke(c);
+            }
+        } catch (ReflectiveOperationException | RuntimeException ignore) {}
+    }
+
+    /** Returns the offset of the record following the record at the specified offset. */
+    int next(int offset) {
+        return offset + 4 + buffer.getInt(offset);
+    }
+
+    /** Returns whether or not there is a record at the specified offset. */
+    boolean hasRecord(int offset) {
+        return offset + 4 <= buffer.capacity() && buffer.getInt(offset) > 0;
+    }
+
+    /** Returns whether or not the record at the specified offset is a sent message. */
+    boolean isSent(int offset) {
+        return buffer.get(offset + 4) == 1;
+    }
+
+    /** Returns the id of the message stored at the specified offset. */
+    long messageId(int offset) {
+        return buffer.getLong(offset + 4 + 1 + 8);
+    }
+
+    /** Returns whether or not the record at the specified offset is for the specified connection. */
+    boolean isConnection(int offset, byte[] connectionId) {
+        int start = offset + 4 + HEADER_SIZE;
+        if (buffer.getShort(start - 2) != connectionId.length) {
+            return false;
+        }
+        for (int i = 0; i < connectionId.length; i++) {
+            if (buffer.get(start + i) != connectionId[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Reads the record at the specified offset. */
+    StoredMessage read(int offset) {
+        ByteBuffer b = buffer.duplicate();
+        b.position(offset);
+        int length = b.getInt();
+        boolean sent = b.get() == 1;
+        long time = b.getLong();
+        long messageId = b.getLong();
+        byte[] connectionId = new byte[b.getShort()];
+        b.get(connectionId);
+        byte[] message = new byte[length - HEADER_SIZE - connectionId.length];
+        b.get(message);
+        return new StoredMessage(new String(connectionId, StandardCharsets.UTF_8), sent, time, messageId, new String(
+                message, StandardCharsets.UTF_8));
+    }
+
+    static String name(int fileNumber) {
+        return String.format("%08d" + SUFFIX, fileNumber);
+    }
+
+    /**
+     * Returns the number of the segment file with the specified name.
+     * 
+     * @param name
+     *            the name of the file
+     * @return the number of the segment file, or -1 if the file is not a segment file
+     */
+    static int number(String name) {
+        if (name.length() == 8 + SUFFIX.length() && name.endsWith(SUFFIX)) {
+            try {
+                return Integer.parseInt(name.substring(0, 8));
+            } catch (NumberFormatException ignore) {}
+        }
+        return -1;
+    }
+}
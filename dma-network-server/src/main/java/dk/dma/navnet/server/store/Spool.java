@@ -0,0 +1,285 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.server.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import dk.dma.navnet.messages.ConnectionMessage;
+
+/**
+ * A durable queue of the messages sent to a single target, so messages that have not been delivered survive a
+ * restart of the server. The spool is a local append-only log with three kinds of records:
+ * 
+ * <pre>
+ * MESSAGE  seq, message    a message was queued, with the message encoded as JSON
+ * WRITTEN  seq, id         the message was written to the client with the specified message id
+ * DONE     seq             the message was acknowledged by the client, or dropped
+ * </pre>
+ * 
+ * Sequence numbers are assigned by the spool. Once every message in the log is done, the log is truncated. Records
+ * are buffered and written to the file when the buffer is full or when the spool is flushed, which the
+ * {@link SpoolManager} does periodically.
+ * <p>
+ * When the spool is opened, the log is scanned to find out which messages are not done. The scan keeps a bit per
+ * message and the latest id of messages that have been written but are not done, never the messages themselves.
+ * 
+ * @author Kasper Nielsen
+ */
+public class Spool {
+
+    static final byte MESSAGE = 1;
+
+    static final byte WRITTEN = 2;
+
+    static final byte DONE = 3;
+
+    final File file;
+
+    private final DataOutputStream out;
+
+    private final FileOutputStream fos;
+
+    /** The sequence number of the first message in the log. */
+    private long firstSeq;
+
+    /** The sequence number of the next message. */
+    private long nextSeq;
+
+    /** The sequence number following the last message that was in the log when it was opened. */
+    private final long recoveredSeq;
+
+    /** Messages in the log when it was opened that are done, relative to firstSeq. Null once recovered. */
+    private BitSet done = new BitSet();
+
+    /** The latest id of messages in the log when it was opened that have been written but are not done. */
+    private Map<Long, Long> writtenIds = new HashMap<>();
+
+    /** The number of messages in the log that are not done. */
+    private long pending;
+
+    /** Whether or not the log is being read by a replay, in which case it must not be truncated. */
+    private boolean isReplaying;
+
+    /**
+     * Opens the spool stored in the specified file, creating it if it does not exist.
+     * 
+     * @param file
+     *            the file of the spool
+     * @throws IOException
+     *             if the file could not be read or opened
+     */
+    Spool(File file) throws IOException {
+        this.file = file;
+        long length = file.exists() ? scan() : 0;
+        // start from scratch if every message is done, the server might have gone down before truncating the log
+        if (pending == 0) {
+            firstSeq = nextSeq;
+            done.clear();
+            writtenIds.clear();
+        }
+        recoveredSeq = nextSeq;
+        fos = new FileOutputStream(file, pending > 0);
+        if (pending > 0) {
+            fos.getChannel().truncate(length); // new records must not follow a partially written one
+        }
+        out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+    }
+
+    /**
+     * Reads the log, one record at a time. A partially written record at the end of the log is ignored.
+     * 
+     * @return the length of the log without any partially written record
+     */
+    private long scan() throws IOException {
+        long fileLength = file.length();
+        long length = 0;
+        boolean first = true;
+        try (DataInputStream in = open(file)) {
+            for (;;) {
+                byte type = in.readByte();
+                long seq = in.readLong();
+                if (first) {
+                    firstSeq = seq;
+                    first = false;
+                }
+                if (type == MESSAGE) {
+                    int len = in.readInt();
+                    if (length + 13 + len > fileLength) {
+                        break; // skipping does not detect the end of the file
+                    }
+                    in.skipBytes(len);
+                    nextSeq = seq + 1;
+                    pending++;
+                    length += 13 + len;
+                } else if (type == WRITTEN) {
+                    writtenIds.put(seq, in.readLong());
+                    length += 17;
+                } else if (type == DONE) {
+                    if (!done.get((int) (seq - firstSeq))) {
+                        done.set((int) (seq - firstSeq));
+                        writtenIds.remove(seq);
+                        pending--;
+                    }
+                    length += 9;
+                } else {
+                    throw new IOException("Unknown record type " + type + " in " + file);
+                }
+            }
+        } catch (EOFException ignore) {}
+        nextSeq = Math.max(nextSeq, firstSeq);
+        return length;
+    }
+
+    static DataInputStream open(File file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+    }
+
+    /**
+     * Finds the messages that were in the spool when it was opened, that have not been delivered. Can only be invoked
+     * once, before any message has been completed.
+     * 
+     * @param lastReceivedMessageId
+     *            the id of the latest message the client has received, messages written with an id up to and including
+     *            this id are not replayed
+     * @return a replay of the messages that have not been delivered, or null if all messages have been delivered
+     * @throws IOException
+     *             if the log could not be opened
+     */
+    public synchronized SpoolReplay recover(long lastReceivedMessageId) throws IOException {
+        BitSet skip = done;
+        for (Map.Entry<Long, Long> e : writtenIds.entrySet()) {
+            if (e.getValue() <= lastReceivedMessageId) {
+                done(e.getKey());
+            }
+        }
+        done = null;
+        writtenIds = null;
+        if (skip.cardinality() == recoveredSeq - firstSeq) {
+            return null;
+        }
+        flush(); // makes the records of the messages that are done visible to the replay
+        isReplaying = true;
+        return new SpoolReplay(this, firstSeq, recoveredSeq, skip);
+    }
+
+    /** Invoked by the replay when it has been closed. Truncates the log if every message is done. */
+    synchronized void replayClosed() throws IOException {
+        if (isReplaying) {
+            isReplaying = false;
+            if (pending == 0) {
+                truncate();
+            }
+        }
+    }
+
+    /**
+     * Appends a message to the spool.
+     * 
+     * @param message
+     *            the message to append
+     * @return the sequence number of the message
+     * @throws IOException
+     *             if the message could not be written
+     */
+    public synchronized long append(ConnectionMessage message) throws IOException {
+        byte[] bytes = message.toJSON(0, 0).getBytes(StandardCharsets.UTF_8);
+        long seq = nextSeq++;
+        if (pending++ == 0) {
+            firstSeq = seq;
+        }
+        out.writeByte(MESSAGE);
+        out.writeLong(seq);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        return seq;
+    }
+
+    /**
+     * Records that the message with the specified sequence number has been written with the specified id.
+     * 
+     * @param seq
+     *            the sequence number of the message
+     * @param id
+     *            the id the message was written with
+     * @throws IOException
+     *             if the record could not be written
+     */
+    public synchronized void written(long seq, long id) throws IOException {
+        out.writeByte(WRITTEN);
+        out.writeLong(seq);
+        out.writeLong(id);
+    }
+
+    /**
+     * Records that the message with the specified sequence number has been acknowledged or dropped. Truncates the log
+     * if this was the last message that was not done.
+     * 
+     * @param seq
+     *            the sequence number of the message
+     * @throws IOException
+     *             if the record could not be written
+     */
+    public synchronized void done(long seq) throws IOException {
+        if (done != null) {
+            // still recovering
+            if (done.get((int) (seq - firstSeq))) {
+                return;
+            }
+            done.set((int) (seq - firstSeq));
+        }
+        if (--pending == 0 && !isReplaying) {
+            truncate();
+        } else {
+            out.writeByte(DONE);
+            out.writeLong(seq);
+        }
+    }
+
+    private void truncate() throws IOException {
+        out.flush();
+        fos.getChannel().truncate(0);
+    }
+
+    /**
+     * Returns the number of messages in the spool that have not been acknowledged or dropped.
+     * 
+     * @return the number of messages in the spool that have not been acknowledged or dropped
+     */
+    public synchronized long getPendingCount() {
+        return pending;
+    }
+
+    /** Writes any buffered records to the file. */
+    synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    synchronized void close() throws IOException {
+        out.close();
+    }
+}
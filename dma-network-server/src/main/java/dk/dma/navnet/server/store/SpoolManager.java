@@ -0,0 +1,147 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.server.store;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import jsr166e.ConcurrentHashMapV8;
+
+import org.picocontainer.Startable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.dma.enav.model.MaritimeId;
+import dk.dma.navnet.server.ServerConfiguration;
+import dk.dma.navnet.server.util.ThreadManager;
+
+/**
+ * Keeps a {@link Spool} for every target, if a spool directory has been configured. Each spool is stored in its own
+ * file in the directory, named after the id of the target. Buffered records of all spools are written to disk
+ * periodically.
+ * 
+ * @author Kasper Nielsen
+ */
+public class SpoolManager implements Startable {
+
+    /** The logger. */
+    static final Logger LOG = LoggerFactory.getLogger(SpoolManager.class);
+
+    /** The number of milliseconds between writing buffered records to disk. */
+    static final long FLUSH_INTERVAL = 100;
+
+    /** The directory the spools are stored in, or null if messages are not spooled. */
+    private final File directory;
+
+    private final ThreadManager threadManager;
+
+    /** All spools that have been opened, by the id of the target. */
+    private final ConcurrentHashMapV8<MaritimeId, Spool> spools = new ConcurrentHashMapV8<>();
+
+    private volatile ScheduledFuture<?> flusher;
+
+    public SpoolManager(ServerConfiguration configuration, ThreadManager threadManager) {
+        String dir = configuration.getSpoolDirectory();
+        this.directory = dir == null ? null : new File(dir);
+        this.threadManager = requireNonNull(threadManager);
+    }
+
+    /**
+     * Returns whether or not messages are spooled.
+     * 
+     * @return whether or not messages are spooled
+     */
+    public boolean isEnabled() {
+        return directory != null;
+    }
+
+    /**
+     * Opens the spool of the specified target. Only a single connection per target may use the spool.
+     * 
+     * @param id
+     *            the id of the target
+     * @return the spool of the target, or null if messages are not spooled or the spool could not be opened
+     */
+    public Spool open(MaritimeId id) {
+        if (directory == null) {
+            return null;
+        }
+        Spool spool = spools.get(id);
+        if (spool == null) {
+            try {
+                spool = new Spool(new File(directory, URLEncoder.encode(id.toString(), "UTF-8") + ".spool"));
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            } catch (IOException e) {
+                LOG.error("Could not open spool for " + id + ", messages to it will not be spooled", e);
+                return null;
+            }
+            Spool existing = spools.putIfAbsent(id, spool);
+            if (existing != null) {
+                spool = existing; // never happens as targets only connect one at a time
+            }
+        }
+        return spool;
+    }
+
+    /** Writes the buffered records of every spool to disk. */
+    void flush() {
+        for (Spool spool : spools.values()) {
+            try {
+                spool.flush();
+            } catch (IOException e) {
+                LOG.error("Could not write to spool " + spool.file, e);
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void start() {
+        if (directory != null) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IllegalStateException("Could not create spool directory " + directory);
+            }
+            flusher = threadManager.scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    flush();
+                }
+            }, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void stop() {
+        ScheduledFuture<?> flusher = this.flusher;
+        if (flusher != null) {
+            flusher.cancel(false);
+        }
+        for (Spool spool : spools.values()) {
+            try {
+                spool.close();
+            } catch (IOException e) {
+                LOG.error("Could not close spool " + spool.file, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.server.store;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+
+import dk.dma.navnet.messages.ConnectionMessage;
+import dk.dma.navnet.messages.TransportMessage;
+
+/**
+ * Reads the messages of a {@link Spool} that had not been delivered when the spool was opened. The log is read one
+ * record at a time, so only the message being returned is on the heap. Not thread-safe.
+ * 
+ * @author Kasper Nielsen
+ */
+public class SpoolReplay implements Closeable {
+
+    /** The spool that is replayed. */
+    private final Spool spool;
+
+    /** The sequence number of the first message in the log. */
+    private final long firstSeq;
+
+    /** The sequence number following the last message to replay. */
+    private final long endSeq;
+
+    /** Messages that must not be replayed, relative to firstSeq. */
+    private final BitSet skip;
+
+    /** The log, or null if it has not been opened yet or has been closed. */
+    private DataInputStream in;
+
+    /** The sequence number of the message returned by the latest invocation of {@link #next()}. */
+    private long seq = -1;
+
+    private boolean isDone;
+
+    SpoolReplay(Spool spool, long firstSeq, long endSeq, BitSet skip) {
+        this.spool = requireNonNull(spool);
+        this.firstSeq = firstSeq;
+        this.endSeq = endSeq;
+        this.skip = requireNonNull(skip);
+    }
+
+    /**
+     * Returns the spool that is being replayed.
+     * 
+     * @return the spool that is being replayed
+     */
+    public Spool getSpool() {
+        return spool;
+    }
+
+    /**
+     * Reads the next message to replay.
+     * 
+     * @return the next message to replay, or null if there are no more messages
+     * @throws IOException
+     *             if the log could not be read
+     */
+    public ConnectionMessage next() throws IOException {
+        if (isDone) {
+            return null;
+        }
+        if (in == null) {
+            in = Spool.open(spool.file);
+        }
+        try {
+            for (;;) {
+                byte type = in.readByte();
+                long seq = in.readLong();
+                if (type == Spool.MESSAGE) {
+                    if (seq >= endSeq) {
+                        break; // queued after the spool was opened
+                    }
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    if (!skip.get((int) (seq - firstSeq))) {
+                        this.seq = seq;
+                        return (ConnectionMessage) TransportMessage.parseMessage(new String(bytes,
+                                StandardCharsets.UTF_8));
+                    }
+                } else if (type == Spool.WRITTEN) {
+                    in.readLong();
+                }
+            }
+        } catch (EOFException ignore) {}
+        close();
+        return null;
+    }
+
+    /**
+     * Returns the sequence number of the message returned by the latest invocation of {@link #next()}.
+     * 
+     * @return the sequence number of the message returned by the latest invocation of {@link #next()}
+     */
+    public long getSeq() {
+        return seq;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void close() throws IOException {
+        if (!isDone) {
+            isDone = true;
+            if (in != null) {
+                in.close();
+                in = null;
+            }
+            spool.replayClosed();
+        }
+    }
+}
@@ -0,0 +1,368 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.server.store;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jsr166e.ConcurrentHashMapV8;
+import jsr166e.ConcurrentHashMapV8.Fun;
+import jsr166e.LongAdder;
+
+import org.picocontainer.Startable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.dma.enav.model.MaritimeId;
+import dk.dma.enav.util.function.Consumer;
+import dk.dma.navnet.messages.ConnectionMessage;
+import dk.dma.navnet.messages.util.FrameStatistics;
+import dk.dma.navnet.server.ServerConfiguration;
+import dk.dma.navnet.server.connection.ServerConnection;
+import dk.dma.navnet.server.store.ForwardQueue.Held;
+import dk.dma.navnet.server.util.ThreadManager;
+
+/**
+ * Holds messages relayed to targets that are not connected, and forwards them when the target connects. Messages are
+ * held for a limited time, after which they expire. The number of bytes held for each target is bounded, as is the
+ * number of bytes held in memory for all targets. When the latter is reached messages spill to a file per target in
+ * the configured directory, or are rejected if there is none.
+ * <p>
+ * Held messages do not survive a restart of the server, any spill files left behind are deleted when it starts.
+ * 
+ * @author Kasper Nielsen
+ */
+public class StoreAndForward implements Startable {
+
+    /** The logger. */
+    static final Logger LOG = LoggerFactory.getLogger(StoreAndForward.class);
+
+    /** The number of milliseconds between removing expired messages. */
+    static final long EXPIRE_INTERVAL = 1000;
+
+    /** The suffix of spill files. */
+    static final String SUFFIX = ".forward";
+
+    /** The number of milliseconds a message is held before it expires. */
+    private final long ttl;
+
+    /** The maximum number of bytes held for a single target. */
+    private final long maxBytes;
+
+    /** The maximum number of bytes held in memory for all targets. */
+    private final long maxMemory;
+
+    /** The directory messages spill to, or null if they do not spill. */
+    private final File directory;
+
+    private final ThreadManager threadManager;
+
+    /** The held messages, by the id of their target. */
+    private final ConcurrentHashMapV8<MaritimeId, ForwardQueue> queues = new ConcurrentHashMapV8<>();
+
+    /** The number of bytes held in memory. */
+    private final AtomicLong memoryBytes = new AtomicLong();
+
+    /** The number of bytes held in memory or spilled. */
+    private final AtomicLong queuedBytes = new AtomicLong();
+
+    /** The number of messages that expired before their target connected. */
+    private final LongAdder expired = new LongAdder();
+
+    /** The number of messages that could not be held because a limit was reached. */
+    private final LongAdder rejected = new LongAdder();
+
+    /** The number of messages that were forwarded after their target connected. */
+    private final LongAdder forwarded = new LongAdder();
+
+    /** The time from a message was held until it was forwarded, only the latency histogram is used. */
+    private final FrameStatistics deliveries = new FrameStatistics();
+
+    private volatile ScheduledFuture<?> expirer;
+
+    public StoreAndForward(ServerConfiguration configuration, ThreadManager threadManager) {
+        this.ttl = TimeUnit.SECONDS.toMillis(configuration.getForwardTtl());
+        this.maxBytes = configuration.getForwardMaxBytes();
+        this.maxMemory = configuration.getForwardMemory();
+        String dir = configuration.getForwardDirectory();
+        this.directory = dir == null ? null : new File(dir);
+        this.threadManager = requireNonNull(threadManager);
+    }
+
+    /**
+     * Holds a message for a target that is not connected.
+     * 
+     * @param id
+     *            the id of the target
+     * @param message
+     *            the message to hold
+     * @return whether or not the message is held, false if a limit was reached
+     */
+    public boolean hold(final MaritimeId id, ConnectionMessage message) {
+        Held h = new Held(message, System.nanoTime(), System.currentTimeMillis() + ttl, message.getEncodedSize());
+        for (;;) {
+            ForwardQueue q = queues.computeIfAbsent(id, new Fun<MaritimeId, ForwardQueue>() {
+                public ForwardQueue apply(MaritimeId key) {
+                    return new ForwardQueue(directory == null ? null : new File(directory, fileName(key)));
+                }
+            });
+            synchronized (q) {
+                if (!q.isRemoved) {
+                    return add(q, h);
+                }
+            }
+        }
+    }
+
+    private boolean add(ForwardQueue q, Held h) {
+        if (q.bytes + h.size > maxBytes) {
+            rejected.increment();
+            return false;
+        }
+        // once a message has been spilled, the following ones must be too to keep them in order
+        if (!q.isSpilling() && memoryBytes.get() + h.size <= maxMemory) {
+            q.memory.add(h);
+            q.bytes += h.size;
+            memoryBytes.addAndGet(h.size);
+        } else if (directory != null) {
+            try {
+                q.spill(h);
+            } catch (IOException e) {
+                LOG.error("Could not spill message, it is rejected", e);
+                rejected.increment();
+                return false;
+            }
+        } else {
+            rejected.increment();
+            return false;
+        }
+        queuedBytes.addAndGet(h.size);
+        return true;
+    }
+
+    /**
+     * Forwards all messages held for the specified target to its connection, in the order they were held.
+     * 
+     * @param id
+     *            the id of the target
+     * @param connection
+     *            the connection of the target
+     */
+    public void release(MaritimeId id, final ServerConnection connection) {
+        for (;;) {
+            ForwardQueue q = queues.get(id);
+            if (q == null) {
+                return;
+            }
+            synchronized (q) {
+                if (!q.isRemoved) {
+                    final long now = System.currentTimeMillis();
+                    Held h;
+                    while ((h = q.memory.poll()) != null) {
+                        removed(q, h);
+                        forward(connection, h, now);
+                    }
+                    if (q.spilled > 0) {
+                        queuedBytes.addAndGet(-q.spilledBytes);
+                        try {
+                            q.unspill(new Consumer<Held>() {
+                                public void accept(Held h) {
+                                    forward(connection, h, now);
+                                }
+                            });
+                        } catch (IOException e) {
+                            LOG.error("Could not read spilled messages for " + id + ", they are lost", e);
+                        }
+                    }
+                    remove(id, q);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void forward(ServerConnection connection, Held h, long now) {
+        if (h.expires <= now) {
+            expired.increment();
+        } else {
+            connection.messageSend(h.message);
+            forwarded.increment();
+            deliveries.latency(System.nanoTime() - h.heldAt);
+        }
+    }
+
+    /** Accounts for a message that has been removed from the memory of the specified queue. */
+    private void removed(ForwardQueue q, Held h) {
+        q.bytes -= h.size;
+        memoryBytes.addAndGet(-h.size);
+        queuedBytes.addAndGet(-h.size);
+    }
+
+    /** Removes the specified empty queue, a new one is created if more messages are held for the target. */
+    private void remove(MaritimeId id, ForwardQueue q) {
+        q.isRemoved = true;
+        queues.remove(id, q);
+        if (q.isSpilling()) {
+            try {
+                q.deleteSpill();
+            } catch (IOException e) {
+                LOG.error("Could not delete spill file", e);
+            }
+        }
+    }
+
+    /** Removes all messages that have expired. */
+    void expire() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<MaritimeId, ForwardQueue> e : queues.entrySet()) {
+            ForwardQueue q = e.getValue();
+            synchronized (q) {
+                if (q.isRemoved) {
+                    continue;
+                }
+                // messages are held in the order they expire
+                Held h;
+                while ((h = q.memory.peek()) != null && h.expires <= now) {
+                    q.memory.poll();
+                    removed(q, h);
+                    expired.increment();
+                }
+                if (q.spilled > 0 && q.spillExpires <= now) {
+                    expired.add(q.spilled);
+                    queuedBytes.addAndGet(-q.spilledBytes);
+                    try {
+                        q.deleteSpill();
+                    } catch (IOException ex) {
+                        LOG.error("Could not delete spill file", ex);
+                    }
+                }
+                if (q.memory.isEmpty() && q.spilled == 0) {
+                    remove(e.getKey(), q);
+                }
+            }
+        }
+    }
+
+    static String fileName(MaritimeId id) {
+        try {
+            return URLEncoder.encode(id.toString(), "UTF-8") + SUFFIX;
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Returns the number of bytes held, in memory or spilled.
+     * 
+     * @return the number of bytes held, in memory or spilled
+     */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * Returns the number of bytes held in memory.
+     * 
+     * @return the number of bytes held in memory
+     */
+    public long getMemoryBytes() {
+        return memoryBytes.get();
+    }
+
+    /**
+     * Returns the number of messages that expired before their target connected.
+     * 
+     * @return the number of messages that expired before their target connected
+     */
+    public long getExpiredMessages() {
+        return expired.sum();
+    }
+
+    /**
+     * Returns the number of messages that could not be held because a limit was reached.
+     * 
+     * @return the number of messages that could not be held because a limit was reached
+     */
+    public long getRejectedMessages() {
+        return rejected.sum();
+    }
+
+    /**
+     * Returns the number of messages that have been forwarded after their target connected.
+     * 
+     * @return the number of messages that have been forwarded after their target connected
+     */
+    public long getForwardedMessages() {
+        return forwarded.sum();
+    }
+
+    /**
+     * Returns the time from a message was held until it was forwarded, that the specified fraction of forwarded
+     * messages are within.
+     * 
+     * @param percentile
+     *            the percentile, for example 0.99
+     * @param unit
+     *            the unit of the result
+     * @return the latency, or 0 if no messages have been forwarded
+     */
+    public long getDeliveryLatencyPercentile(double percentile, TimeUnit unit) {
+        return deliveries.getLatencyPercentile(percentile, unit);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void start() {
+        if (directory != null) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IllegalStateException("Could not create spill directory " + directory);
+            }
+            File[] existing = directory.listFiles();
+            for (File f : existing == null ? new File[0] : existing) {
+                if (f.getName().endsWith(SUFFIX) && !f.delete()) {
+                    LOG.warn("Could not delete old spill file " + f);
+                }
+            }
+        }
+        expirer = threadManager.scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                expire();
+            }
+        }, EXPIRE_INTERVAL, EXPIRE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void stop() {
+        ScheduledFuture<?> expirer = this.expirer;
+        if (expirer != null) {
+            expirer.cancel(false);
+        }
+        for (Map.Entry<MaritimeId, ForwardQueue> e : queues.entrySet()) {
+            synchronized (e.getValue()) {
+                remove(e.getKey(), e.getValue());
+            }
+        }
+    }
+}
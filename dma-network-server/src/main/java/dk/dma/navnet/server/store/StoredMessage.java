@@ -0,0 +1,85 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.server.store;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A message read from the {@link MessageStore}.
+ * 
+ * @author Kasper Nielsen
+ */
+public class StoredMessage {
+
+    private final String connectionId;
+
+    private final boolean isSent;
+
+    private final long time;
+
+    private final long messageId;
+
+    private final String message;
+
+    StoredMessage(String connectionId, boolean isSent, long time, long messageId, String message) {
+        this.connectionId = requireNonNull(connectionId);
+        this.isSent = isSent;
+        this.time = time;
+        this.messageId = messageId;
+        this.message = requireNonNull(message);
+    }
+
+    /**
+     * @return the id of the connection the message was sent or received on
+     */
+    public String getConnectionId() {
+        return connectionId;
+    }
+
+    /**
+     * @return true if the message was sent by the server, false if it was received
+     */
+    public boolean isSent() {
+        return isSent;
+    }
+
+    /**
+     * @return the time in milliseconds the message was sent or received
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @return the id of the message
+     */
+    public long getMessageId() {
+        return messageId;
+    }
+
+    /**
+     * @return the message as it was sent or received
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return time + (isSent ? " -> " : " <- ") + connectionId + " " + message;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2008 Kasper Nielsen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.navnet.server.targets;
+
+import static java.util.Objects.requireNonNull;
+
+import jsr166e.ConcurrentHashMapV8;
+import jsr166e.ConcurrentHashMapV8.Fun;
+import jsr166e.LongAdder;
+import dk.dma.enav.model.geometry.Position;
+import dk.dma.enav.util.function.Consumer;
+
+/**
+ * Partitions targets into shards by geographic region. The globe is divided into square regions of a fixed size in
+ * degrees, each region is a shard with its own {@link TargetGrid}. A target belongs to the shard of its latest
+ * reported position, and is handed off to another shard when it crosses the boundary of its region. Lookups only
+ * visit the shards whose regions intersect the area of interest, and only the cells of each shard within the area.
+ * <p>
+ * As traffic is strongly regional, most lookups only touch a single shard. Shards are the unit that can be owned by
+ * different threads or nodes. The number of hand-offs and of lookups spanning several shards tell how well the size
+ * of the regions fits the traffic.
+ *
+ * @author Kasper Nielsen
+ */
+public class GeoShards {
+
+    /** The default size of the region of a shard in degrees. */
+    public static final double DEFAULT_SHARD_SIZE = 5;
+
+    /** The size of the cells of each shard in degrees. */
+    private final double cellSize;
+
+    /** The size of the region of each shard in degrees. */
+    private final double shardSize;
+
+    /** Only used for finding the regions that intersect an area, never contains any targets. */
+    private final TargetGrid regions;
+
+    /** All non-empty shards, by the index of their region. */
+    private final ConcurrentHashMapV8<Integer, Shard> shards = new ConcurrentHashMapV8<>();
+
+    /** The number of times a target has moved from one shard to another. */
+    private final LongAdder handoffs = new LongAdder();
+
+    /** The number of lookups. */
+    private final LongAdder lookups = new LongAdder();
+
+    /** The number of lookups that visited more than one shard. */
+    private final LongAdder crossShardLookups = new LongAdder();
+
+    public GeoShards() {
+        this(TargetGrid.DEFAULT_CELL_SIZE, DEFAULT_SHARD_SIZE);
+    }
+
+    public GeoShards(double cellSize, double shardSize) {
+        if (shardSize < cellSize || Math.abs(shardSize / cellSize - Math.rint(shardSize / cellSize)) > 1e-9) {
+            throw new IllegalArgumentException("Shard size must be a multiple of the cell size " + cellSize
+                    + ", was " + shardSize);
+        }
+        this.cellSize = cellSize;
+        this.shardSize = shardSize;
+        this.regions = new TargetGrid(shardSize);
+    }
+
+    /**
+     * Returns the shard of the specified position.
+     *
+     * @param latitude
+     *            the latitude of the position
+     * @param longitude
+     *            the longitude of the position
+     * @return the index of the shard
+     */
+    public int shardOf(double latitude, double longitude) {
+        return regions.cellOf(latitude, longitude);
+    }
+
+    /**
+     * Returns the shard the specified target is currently placed in.
+     *
+     * @param target
+     *            the target
+     * @return the index of the shard, or -1 if the target has no position
+     */
+    public int shardOf(Target target) {
+        return target.shard;
+    }
+
+    /**
+     * Moves the target to the shard and cell of the specified position. Updates for a single target must not be made
+     * concurrently.
+     *
+     * @param target
+     *            the target that has moved
+     * @param position
+     *            the new position of the target
+     */
+    void update(Target target, Position position) {
+        int newShard = shardOf(position.getLatitude(), position.getLongitude());
+        int oldShard = target.shard;
+        if (oldShard != newShard) {
+            if (oldShard >= 0) {
+                handoffs.increment();
+                shards.get(oldShard).remove(target);
+            }
+            target.shard = newShard;
+        }
+        shards.computeIfAbsent(newShard, new Fun<Integer, Shard>() {
+            public Shard apply(Integer key) {
+                return new Shard(key);
+            }
+        }).grid.update(target, position);
+    }
+
+    /**
+     * Removes the target from its shard.
+     *
+     * @param target
+     *            the target to remove
+     */
+    void remove(Target target) {
+        int oldShard = target.shard;
+        if (oldShard >= 0) {
+            shards.get(oldShard).remove(target);
+            target.shard = -1;
+        }
+    }
+
+    /**
+     * Invokes the consumer for every target in a cell that intersects the circle with the specified center and
+     * radius, visiting only the shards whose regions intersect the circle.
+     *
+     * @param center
+     *            the center of the circle
+     * @param meters
+     *            the radius of the circle in meters
+     * @param consumer
+     *            the consumer to invoke
+     * @see TargetGrid#forEachCandidate(Position, double, Consumer)
+     */
+    public void forEachCandidate(Position center, double meters, Consumer<Target> consumer) {
+        requireNonNull(center);
+        requireNonNull(consumer);
+        int visited = 0;
+        for (int region : regions.cellsWithin(center, meters)) {
+            Shard s = shards.get(region);
+            if (s != null) {
+                s.lookups.increment();
+                s.grid.forEachCandidate(center, meters, consumer);
+                visited++;
+            }
+        }
+        lookups.increment();
+        if (visited > 1) {
+            crossShardLookups.increment();
+        }
+    }
+
+    /**
+     * Returns the number of shards that contain or have contained targets.
+     *
+     * @return the number of shards that contain or have contained targets
+     */
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * Returns the number of times a target has been handed off from one shard to another.
+     *
+     * @return the number of times a target has been handed off from one shard to another
+     */
+    public long getHandoffs() {
+        return handoffs.sum();
+    }
+
+    /**
+     * Returns the number of lookups.
+     *
+     * @return the number of lookups
+     */
+    public long getLookups() {
+        return lookups.sum();
+    }
+
+    /**
+     * Returns the number of lookups that visited more than one shard.
+     *
+     * @return the number of lookups that visited more than one shard
+     */
+    public long getCrossShardLookups() {
+        return crossShardLookups.sum();
+    }
+
+    /** A single region of the globe. */
+    final class Shard {
+
+        /** The targets in the region. */
+        final TargetGrid grid;
+
+        /** The number of lookups that have visited this shard. */
+        final LongAdder lookups = new LongAdder();
+
+        Shard(int index) {
+            int lonRegions = (int) Math.ceil(360 / shardSize);
+            double minLat = index / lonRegions * shardSize - 90;
+            double minLon = index % lonRegions * shardSize - 180;
+            this.grid = new TargetGrid(cellSize, minLat, minLon, Math.min(90, minLat + shardSize), Math.min(180,
+                    minLon + shardSize));
+        }
+
+        void remove(Target target) {
+            grid.remove(target);
+        }
+    }
+}
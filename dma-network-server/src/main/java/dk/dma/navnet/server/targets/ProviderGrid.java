@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2008 Kasper Nielsen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.navnet.server.targets;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.Collections;
+import java.util.Set;
+
+import jsr166e.ConcurrentHashMapV8;
+import dk.dma.enav.model.geometry.PositionTime;
+
+/**
+ * A live spatial index of the targets providing a single service. Unlike the grids of {@link GeoShards}, which hold
+ * every target with a position, a target can be placed in any number of provider grids. So each grid keeps track of
+ * its own targets and the cells they are placed in.
+ * <p>
+ * A target is a member of the grid from it is added until it is removed, but is only placed in a cell while it has a
+ * position. The grid reads the latest position of the target every time it is added or has moved. Changes for a
+ * single target are made while holding its lock, so a registration racing a position report always leaves the target
+ * in the cell of its latest position.
+ *
+ * @author Kasper Nielsen
+ */
+public class ProviderGrid extends TargetGrid {
+
+    /** The members of the grid, and the cell each is placed in or -1 if it has no position. */
+    private final ConcurrentHashMapV8<Target, Integer> members = new ConcurrentHashMapV8<>();
+
+    public ProviderGrid() {
+        super(DEFAULT_CELL_SIZE);
+    }
+
+    /**
+     * Adds the target to the grid, placing it in the cell of its latest position if it has one.
+     *
+     * @param target
+     *            the target to add
+     */
+    public void add(Target target) {
+        target.providerLock.lock();
+        try {
+            members.putIfAbsent(requireNonNull(target), -1);
+            place(target);
+        } finally {
+            target.providerLock.unlock();
+        }
+    }
+
+    /**
+     * Moves the target to the cell of its latest position, or out of the grid cells if it no longer has a position.
+     * Does nothing if the target is not a member of the grid.
+     *
+     * @param target
+     *            the target that has moved
+     */
+    public void moved(Target target) {
+        target.providerLock.lock();
+        try {
+            if (members.containsKey(target)) {
+                place(target);
+            }
+        } finally {
+            target.providerLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the target from the grid.
+     *
+     * @param target
+     *            the target to remove
+     */
+    @Override
+    public void remove(Target target) {
+        target.providerLock.lock();
+        try {
+            super.remove(target);
+            members.remove(target);
+        } finally {
+            target.providerLock.unlock();
+        }
+    }
+
+    private void place(Target target) {
+        PositionTime latest = target.getLatestPosition();
+        if (latest == null) {
+            super.remove(target);
+        } else {
+            update(target, latest);
+        }
+    }
+
+    /**
+     * Returns the targets in the grid, whether or not they have a position. The returned set is a live view.
+     *
+     * @return the targets in the grid
+     */
+    public Set<Target> getTargets() {
+        return Collections.unmodifiableSet(members.keySet());
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    int getCell(Target target) {
+        Integer cell = members.get(target);
+        return cell == null ? -1 : cell;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    void setCell(Target target, int cell) {
+        members.replace(target, cell);
+    }
+}
@@ -36,6 +36,21 @@ public class Target {
     /** The latest reported time and position. */
     private volatile PositionTime latestPosition;
 
+    /** The cluster node the target is connected to, or null if it is connected to this node or not at all. */
+    private volatile String node;
+
+    /** The epoch of the latest connection of the target to a node in the cluster, see {@link #getEpoch()}. */
+    private volatile long epoch;
+
+    /** The cell in {@link TargetGrid} the target is currently placed in, or -1 if it has no position. */
+    volatile int gridCell = -1;
+
+    /** The shard in {@link GeoShards} the target is currently placed in, or -1 if it has no position. */
+    volatile int shard = -1;
+
+    /** Guards the placement of the target in the {@link ProviderGrid} of each service it provides. */
+    final ReentrantLock providerLock = new ReentrantLock();
+
     final ReentrantLock retrieveLock = new ReentrantLock();
 
     final ReentrantLock sendLock = new ReentrantLock();
@@ -47,7 +62,7 @@ public class Target {
     public Target(TargetManager tm, MaritimeId id) {
         this.id = id;
         this.tm = tm;
-        serviceManager = new TargetServiceManager(this);
+        serviceManager = new TargetServiceManager(this, tm.serviceIndex);
     }
 
     public void fullyLock() {
@@ -105,6 +120,47 @@ public class Target {
         tm.reportPosition(this, latestPosition);
     }
 
+    /** Clears the latest position, removing the target from the spatial index. */
+    public void clearLatestPosition() {
+        this.latestPosition = null;
+        tm.removePosition(this);
+    }
+
+    /**
+     * Returns the cluster node the target is connected to.
+     * 
+     * @return the cluster node the target is connected to, or null if it is connected to this node or not at all, as
+     *         told by {@link #isConnected()}
+     */
+    public String getNode() {
+        return node;
+    }
+
+    /**
+     * Returns the epoch of the latest connection of the target to a node in the cluster. Every time the target
+     * connects to a node, the node gives the connection an epoch that is higher than any epoch it has seen for the
+     * target. So the most recent connection of a target is the one with the highest epoch, without depending on the
+     * clocks of the nodes.
+     * 
+     * @return the epoch of the latest connection of the target
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Sets the cluster node the target is connected to.
+     * 
+     * @param node
+     *            the node the target is connected to, or null if it is connected to this node or not at all
+     * @param epoch
+     *            the epoch of the connection to the node
+     */
+    public void setNode(String node, long epoch) {
+        this.node = node;
+        this.epoch = epoch;
+    }
+
     /**
      * @return
      */
@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2008 Kasper Nielsen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.navnet.server.targets;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.Collections;
+import java.util.Set;
+
+import jsr166e.ConcurrentHashMapV8;
+import jsr166e.ConcurrentHashMapV8.Fun;
+import dk.dma.enav.model.geometry.Position;
+import dk.dma.enav.util.function.Consumer;
+
+/**
+ * A live spatial index of targets. The globe is divided into cells of a fixed size in degrees. Each target is kept in
+ * the cell of its latest reported position, so lookups only need to visit the cells that intersect the area of
+ * interest instead of every target.
+ * <p>
+ * The grid only selects candidates. A lookup may visit targets that are slightly outside the requested distance,
+ * callers must still do an exact distance check.
+ *
+ * @author Kasper Nielsen
+ */
+public class TargetGrid {
+
+    /** The default size of a cell in degrees. */
+    public static final double DEFAULT_CELL_SIZE = 0.5;
+
+    /** A lower bound on the length of a degree of latitude (at the equator) on the WGS84 ellipsoid in meters. */
+    static final double MIN_METERS_PER_DEGREE = 110_574;
+
+    /** The size of each cell in degrees. */
+    private final double cellSize;
+
+    /** The number of cells along a parallel. */
+    private final int lonCells;
+
+    /** The number of cells along a meridian. */
+    private final int latCells;
+
+    /** The rows and columns of the cells that targets in this grid can be placed in, all of them by default. */
+    private final int minRow, maxRow, minCol, maxCol;
+
+    /** All non-empty cells. */
+    private final ConcurrentHashMapV8<Integer, Set<Target>> cells = new ConcurrentHashMapV8<>();
+
+    public TargetGrid() {
+        this(DEFAULT_CELL_SIZE);
+    }
+
+    public TargetGrid(double cellSize) {
+        this(cellSize, -90, -180, 90, 180);
+    }
+
+    /**
+     * Creates a grid that only covers the specified region, such as the region of a {@link GeoShards shard}. Lookups
+     * only visit the cells inside the region. The edges of the region must be multiples of the cell size.
+     */
+    TargetGrid(double cellSize, double minLat, double minLon, double maxLat, double maxLon) {
+        if (cellSize <= 0 || cellSize > 90) {
+            throw new IllegalArgumentException("Cell size must be in the range (0,90], was " + cellSize);
+        }
+        this.cellSize = cellSize;
+        this.latCells = (int) Math.ceil(180 / cellSize);
+        this.lonCells = (int) Math.ceil(360 / cellSize);
+        this.minRow = (int) Math.round((minLat + 90) / cellSize);
+        this.maxRow = Math.min(latCells, (int) Math.round((maxLat + 90) / cellSize)) - 1;
+        this.minCol = (int) Math.round((minLon + 180) / cellSize);
+        this.maxCol = Math.min(lonCells, (int) Math.round((maxLon + 180) / cellSize)) - 1;
+    }
+
+    int cellOf(double latitude, double longitude) {
+        return latIndex(latitude) * lonCells + lonIndex(longitude);
+    }
+
+    private int latIndex(double latitude) {
+        return Math.min(latCells - 1, Math.max(0, (int) Math.floor((latitude + 90) / cellSize)));
+    }
+
+    private int lonIndex(double longitude) {
+        int index = (int) Math.floor((longitude + 180) / cellSize) % lonCells;
+        return index < 0 ? index + lonCells : index;
+    }
+
+    /**
+     * Moves the target to the cell of the specified position. Updates for a single target must not be made
+     * concurrently. Which is the case as a target only reports its position from its own connection.
+     *
+     * @param target
+     *            the target that has moved
+     * @param position
+     *            the new position of the target
+     */
+    void update(Target target, Position position) {
+        int newCell = cellOf(position.getLatitude(), position.getLongitude());
+        int oldCell = getCell(target);
+        if (oldCell != newCell) {
+            // Remove before adding, a concurrent lookup might miss a target while it moves between cells. Just like
+            // it might miss a target that has just connected
+            if (oldCell >= 0) {
+                Set<Target> old = cells.get(oldCell);
+                if (old != null) {
+                    old.remove(target);
+                }
+            }
+            cells.computeIfAbsent(newCell, new Fun<Integer, Set<Target>>() {
+                public Set<Target> apply(Integer key) {
+                    return Collections.newSetFromMap(new ConcurrentHashMapV8<Target, Boolean>());
+                }
+            }).add(target);
+            setCell(target, newCell);
+        }
+    }
+
+    /**
+     * Removes the target from the grid.
+     *
+     * @param target
+     *            the target to remove
+     */
+    void remove(Target target) {
+        int oldCell = getCell(target);
+        if (oldCell >= 0) {
+            Set<Target> old = cells.get(oldCell);
+            if (old != null) {
+                old.remove(target);
+            }
+            setCell(target, -1);
+        }
+    }
+
+    /** Returns the cell the target is placed in, or -1 if it is not in this grid. */
+    int getCell(Target target) {
+        return target.gridCell;
+    }
+
+    /** Records the cell the target is placed in, or -1 if it has been removed from this grid. */
+    void setCell(Target target, int cell) {
+        target.gridCell = cell;
+    }
+
+    /**
+     * Returns the indexes of every cell that intersects the circle with the specified center and radius.
+     *
+     * @param center
+     *            the center of the circle
+     * @param meters
+     *            the radius of the circle in meters
+     * @return the indexes of the cells
+     */
+    int[] cellsWithin(Position center, double meters) {
+        int[] w = window(center, meters);
+        int[] result = new int[(w[1] - w[0] + 1) * w[3]];
+        int n = 0;
+        for (int row = w[0]; row <= w[1]; row++) {
+            for (int i = 0; i < w[3]; i++) {
+                result[n++] = row * lonCells + (w[2] + i) % lonCells;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of cells a lookup of the circle with the specified center and radius visits at most.
+     *
+     * @param center
+     *            the center of the circle
+     * @param meters
+     *            the radius of the circle in meters
+     * @return the number of cells that intersect the circle
+     */
+    public int countCellsWithin(Position center, double meters) {
+        int[] w = window(center, meters);
+        return (w[1] - w[0] + 1) * w[3];
+    }
+
+    /**
+     * Returns the cells that intersect the circle with the specified center and radius, as the first row, the last
+     * row, the first column and the number of columns. The columns wrap around the antimeridian.
+     */
+    private int[] window(Position center, double meters) {
+        double dLat = meters / MIN_METERS_PER_DEGREE;
+        double minLat = center.getLatitude() - dLat;
+        double maxLat = center.getLatitude() + dLat;
+
+        // A degree of longitude is at least cos(latitude) times a degree of latitude. Use the latitude closest to
+        // a pole within the circle. If the circle covers a pole every longitude must be visited.
+        double maxAbsLat = Math.max(Math.abs(minLat), Math.abs(maxLat));
+        int fromCol = 0;
+        int colCount = lonCells;
+        if (maxAbsLat < 90) {
+            double dLon = dLat / Math.cos(Math.toRadians(maxAbsLat));
+            if (2 * dLon + cellSize < 360) {
+                fromCol = lonIndex(center.getLongitude() - dLon);
+                int toCol = lonIndex(center.getLongitude() + dLon);
+                // wraps around the antimeridian if toCol < fromCol
+                colCount = Math.min(lonCells, (toCol - fromCol + lonCells) % lonCells + 1);
+            }
+        }
+        return new int[] { latIndex(minLat), latIndex(maxLat), fromCol, colCount };
+    }
+
+    /**
+     * Invokes the consumer for every target in a cell that intersects the circle with the specified center and
+     * radius. A target that moves to another cell while the lookup is in progress may be missed or visited twice.
+     *
+     * @param center
+     *            the center of the circle
+     * @param meters
+     *            the radius of the circle in meters
+     * @param consumer
+     *            the consumer to invoke
+     */
+    public void forEachCandidate(Position center, double meters, Consumer<Target> consumer) {
+        requireNonNull(center);
+        requireNonNull(consumer);
+        int[] w = window(center, meters);
+        int fromCol = w[2];
+        int toCol = fromCol + w[3] - 1;
+        for (int row = Math.max(w[0], minRow); row <= Math.min(w[1], maxRow); row++) {
+            visit(row, fromCol, Math.min(toCol, lonCells - 1), consumer);
+            if (toCol >= lonCells) { // the part east of the antimeridian
+                visit(row, 0, toCol - lonCells, consumer);
+            }
+        }
+    }
+
+    /** Visits the cells of the specified row, in the specified range of columns, that are inside this grid. */
+    private void visit(int row, int fromCol, int toCol, Consumer<Target> consumer) {
+        int rowStart = row * lonCells;
+        for (int col = Math.max(fromCol, minCol); col <= Math.min(toCol, maxCol); col++) {
+            Set<Target> cell = cells.get(rowStart + col);
+            if (cell != null) {
+                for (Target t : cell) {
+                    consumer.accept(t);
+                }
+            }
+        }
+    }
+}
@@ -19,8 +19,6 @@ import static java.util.Objects.requireNonNull;
 
 import java.util.Collections;
 import java.util.Iterator;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 
 import jsr166e.ConcurrentHashMapV8;
 import jsr166e.ConcurrentHashMapV8.Action;
@@ -28,15 +26,14 @@ import jsr166e.ConcurrentHashMapV8.Fun;
 
 import org.picocontainer.Startable;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
-
-import dk.dma.commons.tracker.PositionTracker;
 import dk.dma.enav.model.MaritimeId;
-import dk.dma.enav.model.geometry.Area;
+import dk.dma.enav.model.geometry.Position;
 import dk.dma.enav.model.geometry.PositionTime;
 import dk.dma.enav.util.function.BiConsumer;
 import dk.dma.enav.util.function.Consumer;
+import dk.dma.navnet.server.ServerConfiguration;
 import dk.dma.navnet.server.connection.ServerConnection;
+import dk.dma.navnet.server.services.ServiceIndex;
 
 /**
  * 
@@ -44,19 +41,33 @@ import dk.dma.navnet.server.connection.ServerConnection;
  */
 public class TargetManager implements Startable, Iterable<Target> {
 
-    private final ScheduledExecutorService ses = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
-            .setNameFormat("PositionTrackerUpdate").setDaemon(true).build());
-
     private final ConcurrentHashMapV8<String, Target> targets = new ConcurrentHashMapV8<>();
 
-    final PositionTracker<Target> tracker = new PositionTracker<>();
+    final GeoShards shards;
+
+    /** The targets providing each service. */
+    final ServiceIndex serviceIndex = new ServiceIndex();
+
+    public TargetManager() {
+        this(new ServerConfiguration());
+    }
+
+    public TargetManager(ServerConfiguration configuration) {
+        this.shards = new GeoShards(TargetGrid.DEFAULT_CELL_SIZE, configuration.getShardSize());
+    }
 
     public Target find(MaritimeId id) {
         return targets.get(id.toString());
     }
 
     public void reportPosition(Target target, PositionTime pt) {
-        tracker.update(target, pt);
+        shards.update(target, pt);
+        serviceIndex.moved(target);
+    }
+
+    public void removePosition(Target target) {
+        shards.remove(target);
+        serviceIndex.moved(target);
     }
 
     public void forEachTarget(final Consumer<Target> consumer) {
@@ -81,13 +92,45 @@ public class TargetManager implements Startable, Iterable<Target> {
     }
 
     /**
-     * @param shape
+     * Invokes the consumer for every target whose latest position is less than the specified number of meters from
+     * the specified position. Only targets in nearby cells of the shards intersecting the area are considered.
+     *
+     * @param position
+     *            the center position
+     * @param meters
+     *            the maximum distance in meters
      * @param block
-     * @see dk.dma.commons.tracker.PositionTracker#forEachWithinArea(dk.dma.enav.model.geometry.Area,
-     *      dk.dma.enav.util.function.BiConsumer)
+     *            the consumer to invoke with each target and its latest position
+     */
+    public void forEachWithinDistance(final Position position, final double meters,
+            final BiConsumer<Target, PositionTime> block) {
+        requireNonNull(block);
+        shards.forEachCandidate(position, meters, new Consumer<Target>() {
+            public void accept(Target t) {
+                PositionTime latest = t.getLatestPosition();
+                if (latest != null && position.geodesicDistanceTo(latest) < meters) {
+                    block.accept(t, latest);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the geographic shards of the targets.
+     *
+     * @return the geographic shards of the targets
      */
-    public void forEachWithinArea(Area shape, BiConsumer<Target, PositionTime> block) {
-        tracker.forEachWithinArea(shape, block);
+    public GeoShards getShards() {
+        return shards;
+    }
+
+    /**
+     * Returns the index of the targets providing each service.
+     *
+     * @return the index of the targets providing each service
+     */
+    public ServiceIndex getServiceIndex() {
+        return serviceIndex;
     }
 
     public Target getTarget(final MaritimeId id) {
@@ -107,13 +150,9 @@ public class TargetManager implements Startable, Iterable<Target> {
 
     /** {@inheritDoc} */
     @Override
-    public void start() {
-        tracker.schedule(ses, 1000);
-    }
+    public void start() {}
 
     /** {@inheritDoc} */
     @Override
-    public void stop() {
-        ses.shutdown();
-    }
+    public void stop() {}
 }
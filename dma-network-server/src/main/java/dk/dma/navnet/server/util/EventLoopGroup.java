@@ -0,0 +1,105 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.server.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A fixed number of event loops, each backed by a single thread. Tasks submitted to the same loop are executed in the
+ * order they were submitted. Connections are pinned to a single loop, so all work for a connection happens on the
+ * same thread without needing a thread per connection.
+ * 
+ * @author Kasper Nielsen
+ */
+public class EventLoopGroup {
+
+    /** The event loops. */
+    private final ExecutorService[] loops;
+
+    /** Used for assigning loops in a round robin fashion. */
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Creates a new group.
+     * 
+     * @param size
+     *            the number of event loops
+     * @param nameFormat
+     *            the name format of the threads, see {@link ThreadFactoryBuilder#setNameFormat(String)}
+     */
+    public EventLoopGroup(int size, String nameFormat) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Size must be positive, was " + size);
+        }
+        ThreadFactory tf = new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build();
+        loops = new ExecutorService[size];
+        for (int i = 0; i < size; i++) {
+            loops[i] = Executors.newSingleThreadExecutor(tf);
+        }
+    }
+
+    /**
+     * Returns the next event loop to pin a connection to.
+     * 
+     * @return the next event loop
+     */
+    public ExecutorService next() {
+        return loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+    }
+
+    /**
+     * Returns the number of event loops.
+     * 
+     * @return the number of event loops
+     */
+    public int size() {
+        return loops.length;
+    }
+
+    /** Shuts down all event loops, tasks that have already been submitted will still be executed. */
+    public void shutdown() {
+        for (ExecutorService e : loops) {
+            e.shutdown();
+        }
+    }
+
+    /**
+     * Blocks until all event loops have terminated after a shutdown, or the timeout occurs.
+     * 
+     * @param timeout
+     *            the maximum time to wait
+     * @param unit
+     *            the time unit of the timeout argument
+     * @return true if all event loops terminated and false if the timeout elapsed
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (ExecutorService e : loops) {
+            if (!e.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,98 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.server.util;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * An unbounded lock-free queue for handing elements from exactly one producer thread to exactly one consumer thread.
+ * Neither side ever blocks or retries, an offer is a single ordered store and a poll is a single volatile read.
+ * <p>
+ * The producer and the consumer may change over time, but there must be a happens-before relation between the last
+ * action of the previous producer (consumer) and the first action of the next one.
+ * 
+ * @author Kasper Nielsen
+ */
+public class SpscLinkedQueue<E> {
+
+    /** The node that was polled most recently, its value has already been taken. Only accessed by the consumer. */
+    private Node<E> head;
+
+    /** The node that was offered most recently. Only accessed by the producer. */
+    private Node<E> tail;
+
+    public SpscLinkedQueue() {
+        head = tail = new Node<>(null);
+    }
+
+    /**
+     * Adds the specified element to the queue. Must only be invoked by the producer.
+     * 
+     * @param element
+     *            the element to add
+     */
+    public void offer(E element) {
+        Node<E> node = new Node<>(requireNonNull(element));
+        tail.lazySetNext(node);
+        tail = node;
+    }
+
+    /**
+     * Removes the oldest element in the queue. Must only be invoked by the consumer.
+     * 
+     * @return the oldest element in the queue, or null if the queue is empty
+     */
+    public E poll() {
+        Node<E> next = head.next;
+        if (next == null) {
+            return null;
+        }
+        E element = next.value;
+        next.value = null; // the node is the new head, do not keep the element alive
+        head = next;
+        return element;
+    }
+
+    /**
+     * Returns whether or not the queue is empty. Must only be invoked by the consumer.
+     * 
+     * @return whether or not the queue is empty
+     */
+    public boolean isEmpty() {
+        return head.next == null;
+    }
+
+    static final class Node<E> {
+
+        @SuppressWarnings("rawtypes")
+        private static final AtomicReferenceFieldUpdater<Node, Node> NEXT = AtomicReferenceFieldUpdater.newUpdater(
+                Node.class, Node.class, "next");
+
+        E value;
+
+        volatile Node<E> next;
+
+        Node(E value) {
+            this.value = value;
+        }
+
+        void lazySetNext(Node<E> next) {
+            NEXT.lazySet(this, next);
+        }
+    }
+}
@@ -17,17 +17,46 @@ package dk.dma.navnet.server.util;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.picocontainer.Startable;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+import dk.dma.navnet.server.ServerConfiguration;
+
 /**
  * 
  * @author Kasper Nielsen
  */
-public class ThreadManager {
+public class ThreadManager implements Startable {
 
     /** An unbounded pool of daemon threads. */
     public final ExecutorService daemonPool = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
             .setNameFormat("daemonPool").setDaemon(true).build());
 
+    /** A single daemon thread for running delayed tasks, tasks must not block. */
+    public final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("scheduler").setDaemon(true).build());
+
+    /** The event loops that process the messages of all connections. */
+    public final EventLoopGroup eventLoops;
+
+    public ThreadManager(ServerConfiguration configuration) {
+        int size = configuration.getEventLoops();
+        eventLoops = new EventLoopGroup(size > 0 ? size : Runtime.getRuntime().availableProcessors(),
+                "eventLoop-%d");
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void start() {}
+
+    /** {@inheritDoc} */
+    @Override
+    public void stop() {
+        eventLoops.shutdown();
+        scheduler.shutdown();
+        daemonPool.shutdown();
+    }
 }
@@ -106,10 +106,6 @@ public abstract class AbstractServerConnectionTest {
     }
 
 
-    protected static String escape(String s) {
-        return s.replace("\\", "\\\\").replace("\"", "\\\"");
-    }
-
     protected static String persist(Object o) {
         ObjectMapper om = new ObjectMapper();
         om.disable(SerializationFeature.FAIL_ON_EMPTY_BEANS);
@@ -120,8 +116,4 @@ public abstract class AbstractServerConnectionTest {
         }
     }
 
-    protected static String persistAndEscape(Object o) {
-        return escape(persist(o));
-    }
-
 }
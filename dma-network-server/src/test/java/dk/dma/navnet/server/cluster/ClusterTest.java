@@ -0,0 +1,308 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.server.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dk.dma.enav.model.MaritimeId;
+import dk.dma.enav.model.geometry.Position;
+import dk.dma.enav.model.geometry.PositionTime;
+import dk.dma.enav.util.function.Consumer;
+import dk.dma.navnet.messages.c2c.service.InvokeService;
+import dk.dma.navnet.server.InternalServer;
+import dk.dma.navnet.server.ServerConfiguration;
+import dk.dma.navnet.server.connection.ServerConnection;
+import dk.dma.navnet.server.requests.ServerMessageBus;
+import dk.dma.navnet.server.services.ServiceManager;
+import dk.dma.navnet.server.store.StoreAndForward;
+import dk.dma.navnet.server.targets.Target;
+import dk.dma.navnet.server.targets.TargetManager;
+
+/**
+ * Tests two cluster nodes running in the same JVM on loopback.
+ * 
+ * @author Kasper Nielsen
+ */
+public class ClusterTest {
+
+    static final MaritimeId ID = MaritimeId.create("mmsi://9");
+
+    InternalServer a;
+
+    InternalServer b;
+
+    String nodeA;
+
+    String nodeB;
+
+    @Before
+    public void setup() throws IOException {
+        nodeA = "localhost:" + freePort();
+        nodeB = "localhost:" + freePort();
+        a = node(nodeA, nodeB);
+        b = node(nodeB, nodeA);
+        await(new Condition() {
+            public boolean isTrue() {
+                return a.getService(ClusterManager.class).getConnectedPeers() == 1
+                        && b.getService(ClusterManager.class).getConnectedPeers() == 1;
+            }
+        });
+    }
+
+    @After
+    public void teardown() {
+        a.getService(ClusterManager.class).stop();
+        b.getService(ClusterManager.class).stop();
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    static InternalServer node(String address, String peer) {
+        InternalServer server = new InternalServer(new ServerConfiguration().setClusterAddress(address)
+                .setClusterPeers(peer));
+        server.getService(ClusterManager.class).start();
+        return server;
+    }
+
+    static void await(Condition c) {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!c.isTrue()) {
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    /** Makes a target connected to node b, with a position and a service. */
+    Target connectToB() {
+        Target t = b.getService(TargetManager.class).getTarget(ID);
+        t.setLatestPosition(PositionTime.create(55, 12, 1000));
+        t.getServices().registerService("service");
+        b.getService(ClusterManager.class).connected(t);
+        return t;
+    }
+
+    /** Makes a target connected to node a, with a connection as if a client had connected. */
+    Target connectToA() throws Exception {
+        Target t = a.getService(TargetManager.class).getTarget(ID);
+        Constructor<ServerConnection> c = ServerConnection.class.getDeclaredConstructor(Target.class,
+                InternalServer.class);
+        c.setAccessible(true);
+        t.setConnection(c.newInstance(t, a));
+        a.getService(ClusterManager.class).connected(t);
+        return t;
+    }
+
+    Target awaitOnA() {
+        final TargetManager tm = a.getService(TargetManager.class);
+        await(new Condition() {
+            public boolean isTrue() {
+                Target t = tm.find(ID);
+                return t != null && t.getLatestPosition() != null && t.getServices().hasService("service");
+            }
+        });
+        return tm.find(ID);
+    }
+
+    /** Returns the number of targets in the spatial index of the node near the position of the target. */
+    static int indexed(InternalServer server) {
+        final AtomicInteger count = new AtomicInteger();
+        server.getService(TargetManager.class).getShards().forEachCandidate(Position.create(55, 12), 1000,
+                new Consumer<Target>() {
+                    public void accept(Target t) {
+                        count.incrementAndGet();
+                    }
+                });
+        return count.get();
+    }
+
+    @Test
+    public void targetState() {
+        connectToB();
+        Target t = awaitOnA();
+        assertEquals(nodeB, t.getNode());
+        assertEquals(PositionTime.create(55, 12, 1000), t.getLatestPosition());
+        assertEquals(1, indexed(a));
+
+        // newer positions replace older ones
+        Target tb = b.getService(TargetManager.class).find(ID);
+        tb.setLatestPosition(PositionTime.create(56, 12, 2000));
+        b.getService(ClusterManager.class).positionChanged(tb);
+        final Target ta = t;
+        await(new Condition() {
+            public boolean isTrue() {
+                return ta.getLatestPosition().getTime() == 2000;
+            }
+        });
+    }
+
+    @Test
+    public void relayToOwner() {
+        connectToB();
+        awaitOnA();
+        InvokeService is = new InvokeService(1, "c", "serviceType", "messageType", "message");
+        is.setSource("mmsi://1");
+        is.setDestination(ID.toString());
+        a.getService(ServerMessageBus.class).relay(is);
+
+        // the target is not really connected to b, so b holds the message
+        final StoreAndForward forward = b.getService(StoreAndForward.class);
+        await(new Condition() {
+            public boolean isTrue() {
+                return forward.getQueuedBytes() > 0;
+            }
+        });
+        assertEquals(0, a.getService(StoreAndForward.class).getQueuedBytes());
+    }
+
+    @Test
+    public void nodeLost() {
+        connectToB();
+        final Target t = awaitOnA();
+        b.getService(ClusterManager.class).stop();
+        await(new Condition() {
+            public boolean isTrue() {
+                return t.getNode() == null;
+            }
+        });
+        assertNull(t.getNode());
+        assertTrue(t.getServices().getServiceNames().isEmpty());
+        assertNull(t.getLatestPosition());
+        assertEquals(0, indexed(a));
+        assertTrue(a.getService(TargetManager.class).getServiceIndex().getProviders("service").isEmpty());
+    }
+
+    @Test
+    public void movedAndLost() throws Exception {
+        final Target ta = connectToA();
+        final Target tb = b.getService(TargetManager.class).getTarget(ID);
+        await(new Condition() {
+            public boolean isTrue() {
+                return nodeA.equals(tb.getNode());
+            }
+        });
+
+        // the target moves to b, so a detaches its own connection
+        connectToB();
+        await(new Condition() {
+            public boolean isTrue() {
+                return nodeB.equals(ta.getNode());
+            }
+        });
+        assertNull(ta.getConnection());
+
+        // once b is lost, a must not claim the target
+        b.getService(ClusterManager.class).stop();
+        await(new Condition() {
+            public boolean isTrue() {
+                return ta.getNode() == null;
+            }
+        });
+        assertFalse(ta.isConnected());
+        assertFalse(a.getService(ClusterManager.class).snapshot().iterator().hasNext());
+
+        // messages relayed to the target are held with their time to live
+        InvokeService is = new InvokeService(1, "c", "serviceType", "messageType", "message");
+        is.setSource("mmsi://1");
+        is.setDestination(ID.toString());
+        a.getService(ServerMessageBus.class).relay(is);
+        assertTrue(a.getService(StoreAndForward.class).getQueuedBytes() > 0);
+    }
+
+    @Test
+    public void disconnected() {
+        Target tb = connectToB();
+        final Target t = awaitOnA();
+        b.getService(ClusterManager.class).disconnected(tb);
+        await(new Condition() {
+            public boolean isTrue() {
+                return t.getNode() == null;
+            }
+        });
+        assertTrue(t.getServices().getServiceNames().isEmpty());
+        assertNull(t.getLatestPosition());
+        assertEquals(0, indexed(a));
+    }
+
+    @Test
+    public void serviceUnregistered() {
+        Target tb = connectToB();
+        final Target t = awaitOnA();
+        b.getService(ServiceManager.class).unregisterService(tb, "service");
+        await(new Condition() {
+            public boolean isTrue() {
+                return !t.getServices().hasService("service");
+            }
+        });
+        assertTrue(a.getService(TargetManager.class).getServiceIndex().getProviders("service").isEmpty());
+        assertEquals(nodeB, t.getNode());
+    }
+
+    @Test
+    public void reconnectToOtherNode() {
+        Target tb = connectToB();
+        Target ta = awaitOnA();
+        long epochB = tb.getEpoch(); // replaced once b sees the connection to a
+        // a has seen the epoch of the connection to b, so the connection to a is more recent
+        a.getService(ClusterManager.class).connected(ta);
+        assertTrue(ta.getEpoch() > epochB);
+        assertNull(ta.getNode());
+        final Target t = tb;
+        await(new Condition() {
+            public boolean isTrue() {
+                return nodeA.equals(t.getNode());
+            }
+        });
+    }
+
+    @Test
+    public void rejectsUnknownNode() throws IOException {
+        try (Socket s = new Socket()) {
+            s.connect(ClusterManager.parse(nodeA), 2000);
+            s.setSoTimeout(5000);
+            DataOutputStream out = new DataOutputStream(s.getOutputStream());
+            ClusterFrame.write(out, new ClusterFrame(ClusterFrame.HELLO).writeString("localhost:1").toByteArray());
+            out.flush();
+            // closed without a hello in return
+            assertEquals(-1, s.getInputStream().read());
+        }
+    }
+
+    interface Condition {
+        boolean isTrue();
+    }
+}
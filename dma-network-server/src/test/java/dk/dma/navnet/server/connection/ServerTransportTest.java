@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2008 Kasper Nielsen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.navnet.server.connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.Session;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dk.dma.navnet.messages.util.BufferPool;
+import dk.dma.navnet.server.InternalServer;
+import dk.dma.navnet.server.ServerConfiguration;
+
+/**
+ * 
+ * @author Kasper Nielsen
+ */
+public class ServerTransportTest {
+
+    InternalServer server;
+
+    @Before
+    public void setup() {
+        server = new InternalServer(new ServerConfiguration());
+    }
+
+    @After
+    public void teardown() {
+        server.shutdown();
+    }
+
+    /** Creates a session that throws on every send, as a closed session does. */
+    static Session failingSession() {
+        final RemoteEndpoint.Async remote = (RemoteEndpoint.Async) Proxy.newProxyInstance(
+                ServerTransportTest.class.getClassLoader(), new Class<?>[] { RemoteEndpoint.Async.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        throw new IllegalStateException("Session closed");
+                    }
+                });
+        return (Session) Proxy.newProxyInstance(ServerTransportTest.class.getClassLoader(),
+                new Class<?>[] { Session.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return method.getName().equals("getAsyncRemote") ? remote : null;
+                    }
+                });
+    }
+
+    @Test
+    public void failedSendIsNotPending() {
+        ServerTransport transport = new ServerTransport(server);
+        transport.onOpen(failingSession()); // the welcome message fails as well
+        assertTrue(transport.isWritable());
+
+        BufferPool pool = new BufferPool(1024, 4);
+        for (int i = 0; i < 10; i++) {
+            ByteBuffer buffer = pool.acquire((int) ServerTransport.MAX_PENDING_BYTES);
+            transport.sendBinary(buffer, pool);
+            transport.sendText(new String(new char[(int) ServerTransport.MAX_PENDING_BYTES]));
+            assertTrue(transport.isWritable());
+        }
+        assertEquals(0, pool.idleCount()); // oversized buffers are not kept
+
+        transport.sendBinary(pool.acquire(16), pool);
+        assertEquals(1, pool.idleCount());
+    }
+}
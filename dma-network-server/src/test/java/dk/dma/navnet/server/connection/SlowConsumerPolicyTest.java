@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2008 Kasper Nielsen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.navnet.server.connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import dk.dma.enav.model.MaritimeId;
+import dk.dma.enav.model.geometry.PositionTime;
+import dk.dma.navnet.messages.ConnectionMessage;
+import dk.dma.navnet.messages.auxiliary.PositionReportMessage;
+import dk.dma.navnet.messages.c2c.broadcast.BroadcastDeliver;
+import dk.dma.navnet.server.InternalServer;
+import dk.dma.navnet.server.ServerConfiguration;
+import dk.dma.navnet.server.targets.TargetManager;
+
+/**
+ * Tests the limits of a connection. The connections are never connected, so every message stays queued.
+ * 
+ * @author Kasper Nielsen
+ */
+public class SlowConsumerPolicyTest {
+
+    static ServerConnection connection(ServerConfiguration conf) {
+        InternalServer server = new InternalServer(conf);
+        TargetManager tm = server.getService(TargetManager.class);
+        return new ServerConnection(tm.getTarget(MaritimeId.create("mmsi://1")), server);
+    }
+
+    static ConnectionMessage broadcast() {
+        return new BroadcastDeliver(MaritimeId.create("mmsi://2"), PositionTime.create(1, 1, 1), "channel", "{}");
+    }
+
+    static ConnectionMessage position() {
+        return new PositionReportMessage(PositionTime.create(1, 1, 1));
+    }
+
+    @Test
+    public void dropOldestBroadcast() {
+        ServerConnection c = connection(new ServerConfiguration().setMaxQueuedMessages(3));
+        OutstandingMessage b1 = c.messageSend(broadcast());
+        OutstandingMessage p1 = c.messageSend(position());
+        OutstandingMessage b2 = c.messageSend(broadcast());
+        assertEquals(3, c.getQueuedMessages());
+
+        OutstandingMessage b3 = c.messageSend(broadcast());
+        assertTrue(b1.protocolAcked().isCompletedExceptionally());
+        assertFalse(b3.protocolAcked().isDone());
+        assertEquals(3, c.getQueuedMessages());
+        assertEquals(1, c.getDroppedMessages());
+
+        OutstandingMessage p2 = c.messageSend(position());
+        assertTrue(b2.protocolAcked().isCompletedExceptionally());
+        assertFalse(p1.protocolAcked().isDone());
+        assertFalse(p2.protocolAcked().isDone());
+        assertEquals(2, c.getDroppedMessages());
+        assertEquals(0, c.getRejectedMessages());
+    }
+
+    @Test
+    public void dropFallsBackToReject() {
+        ServerConnection c = connection(new ServerConfiguration().setMaxQueuedMessages(2));
+        c.messageSend(position());
+        c.messageSend(position());
+        OutstandingMessage b = c.messageSend(broadcast());
+        assertTrue(b.protocolAcked().isCompletedExceptionally());
+        assertEquals(2, c.getQueuedMessages());
+        assertEquals(0, c.getDroppedMessages());
+        assertEquals(1, c.getRejectedMessages());
+    }
+
+    @Test
+    public void reject() {
+        ServerConnection c = connection(new ServerConfiguration().setMaxQueuedMessages(2).setSlowConsumerPolicy(
+                SlowConsumerPolicy.REJECT));
+        OutstandingMessage b1 = c.messageSend(broadcast());
+        c.messageSend(broadcast());
+        OutstandingMessage b3 = c.messageSend(broadcast());
+        assertFalse(b1.protocolAcked().isDone());
+        assertTrue(b3.protocolAcked().isCompletedExceptionally());
+        assertEquals(2, c.getQueuedMessages());
+        assertEquals(1, c.getRejectedMessages());
+    }
+
+    @Test
+    public void byteLimit() {
+        int size = position().getEncodedSize();
+        ServerConnection c = connection(new ServerConfiguration().setMaxQueuedBytes(2 * size).setSlowConsumerPolicy(
+                SlowConsumerPolicy.REJECT));
+        c.messageSend(position());
+        c.messageSend(position());
+        assertEquals(2 * size, c.getQueuedBytes());
+        assertTrue(c.messageSend(position()).protocolAcked().isCompletedExceptionally());
+        assertEquals(2 * size, c.getQueuedBytes());
+    }
+
+    @Test
+    public void largeMessageAcceptedWhenEmpty() {
+        ServerConnection c = connection(new ServerConfiguration().setMaxQueuedBytes(1).setSlowConsumerPolicy(
+                SlowConsumerPolicy.REJECT));
+        assertFalse(c.messageSend(position()).protocolAcked().isDone());
+        assertTrue(c.messageSend(position()).protocolAcked().isCompletedExceptionally());
+        assertEquals(1, c.getQueuedMessages());
+    }
+}
@@ -0,0 +1,155 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.server.connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dk.dma.enav.model.MaritimeId;
+import dk.dma.navnet.messages.c2c.service.InvokeService;
+import dk.dma.navnet.server.InternalServer;
+import dk.dma.navnet.server.ServerConfiguration;
+import dk.dma.navnet.server.requests.ServerMessageBus;
+import dk.dma.navnet.server.store.StoreAndForward;
+import dk.dma.navnet.server.targets.TargetManager;
+
+/**
+ * Tests that messages relayed to targets without a connection are held and forwarded when they connect.
+ * 
+ * @author Kasper Nielsen
+ */
+public class StoreAndForwardTest {
+
+    static final MaritimeId ID = MaritimeId.create("mmsi://9");
+
+    File dir;
+
+    InternalServer server;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("forward").toFile();
+    }
+
+    @After
+    public void teardown() {
+        if (server != null) {
+            server.getService(StoreAndForward.class).stop();
+        }
+        File[] files = dir.listFiles();
+        for (File f : files == null ? new File[0] : files) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    StoreAndForward start(ServerConfiguration conf) {
+        server = new InternalServer(conf);
+        StoreAndForward forward = server.getService(StoreAndForward.class);
+        forward.start();
+        return forward;
+    }
+
+    void relay(int i) {
+        InvokeService is = new InvokeService(1, "c" + i, "serviceType", "messageType", "message");
+        is.setSource("mmsi://1");
+        is.setDestination(ID.toString());
+        server.getService(ServerMessageBus.class).relay(is);
+    }
+
+    ServerConnection connect() {
+        TargetManager tm = server.getService(TargetManager.class);
+        return new ServerConnection(tm.getTarget(ID), server);
+    }
+
+    @Test
+    public void holdAndForward() {
+        StoreAndForward forward = start(new ServerConfiguration());
+        relay(1);
+        relay(2);
+        assertTrue(forward.getQueuedBytes() > 0);
+        assertEquals(forward.getQueuedBytes(), forward.getMemoryBytes());
+
+        ServerConnection c = connect();
+        forward.release(ID, c);
+        assertEquals(2, c.getQueuedMessages());
+        assertEquals(2, forward.getForwardedMessages());
+        assertEquals(0, forward.getQueuedBytes());
+        assertEquals(0, forward.getMemoryBytes());
+
+        // nothing left to forward
+        forward.release(ID, c);
+        assertEquals(2, c.getQueuedMessages());
+    }
+
+    @Test
+    public void spillToDisk() {
+        StoreAndForward forward = start(new ServerConfiguration().setForwardMemory(0).setForwardDirectory(
+                dir.getPath()));
+        relay(1);
+        relay(2);
+        relay(3);
+        assertEquals(0, forward.getMemoryBytes());
+        assertTrue(forward.getQueuedBytes() > 0);
+        assertEquals(1, dir.listFiles().length);
+
+        ServerConnection c = connect();
+        forward.release(ID, c);
+        assertEquals(3, c.getQueuedMessages());
+        assertEquals(3, forward.getForwardedMessages());
+        assertEquals(0, forward.getQueuedBytes());
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    @Test
+    public void rejectedWhenFull() {
+        StoreAndForward forward = start(new ServerConfiguration().setForwardMemory(0));
+        relay(1);
+        assertEquals(1, forward.getRejectedMessages());
+        assertEquals(0, forward.getQueuedBytes());
+
+        forward = start(new ServerConfiguration().setForwardMaxBytes(150));
+        relay(1);
+        relay(2);
+        assertEquals(1, forward.getRejectedMessages());
+    }
+
+    @Test
+    public void expire() throws InterruptedException {
+        StoreAndForward forward = start(new ServerConfiguration().setForwardTtl(1));
+        relay(1);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (forward.getExpiredMessages() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(1, forward.getExpiredMessages());
+        assertEquals(0, forward.getQueuedBytes());
+
+        ServerConnection c = connect();
+        forward.release(ID, c);
+        assertEquals(0, c.getQueuedMessages());
+        assertFalse(forward.getForwardedMessages() > 0);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2008 Kasper Nielsen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.navnet.server.connection;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import dk.dma.enav.model.MaritimeId;
+import dk.dma.enav.model.geometry.PositionTime;
+import dk.dma.navnet.messages.auxiliary.PositionReportMessage;
+import dk.dma.navnet.server.InternalServer;
+import dk.dma.navnet.server.ServerConfiguration;
+import dk.dma.navnet.server.targets.TargetManager;
+
+/**
+ * Receives and sends messages on the same transport from two threads at the same time. Before the inbound path was
+ * made lock-free each received frame and each sent frame took a lock on the transport, and received messages took
+ * another lock on the worker.
+ * <p>
+ * The websocket session is a proxy that completes every send immediately, so only the transport and the worker are
+ * measured.
+ * <p>
+ * Run with <tt>java -cp target/test-classes:... org.openjdk.jmh.Main TransportContentionBenchmark</tt>.
+ * 
+ * @author Kasper Nielsen
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TransportContentionBenchmark {
+
+    InternalServer server;
+
+    ServerTransport transport;
+
+    String received;
+
+    String sent;
+
+    @Setup
+    public void setup() {
+        server = new InternalServer(new ServerConfiguration());
+        transport = new ServerTransport(server);
+        transport.onOpen(session());
+        TargetManager tm = server.getService(TargetManager.class);
+        ServerConnection connection = new ServerConnection(tm.getTarget(MaritimeId.create("mmsi://1")), server);
+        connection.transport = transport;
+        transport.connection = connection;
+        transport.connectFuture = null;
+        received = new PositionReportMessage(PositionTime.create(55.6761, 12.5683, 1)).toJSON();
+        sent = new PositionReportMessage(PositionTime.create(56.1629, 10.2039, 1)).toJSON();
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.shutdown();
+    }
+
+    @Benchmark
+    @Group("transport")
+    @GroupThreads(1)
+    public void receive() {
+        transport.onTextMessage(received);
+    }
+
+    @Benchmark
+    @Group("transport")
+    @GroupThreads(1)
+    public void send() {
+        transport.sendText(sent);
+    }
+
+    /** Creates a session where every send completes immediately. */
+    static Session session() {
+        final RemoteEndpoint.Async remote = (RemoteEndpoint.Async) Proxy.newProxyInstance(
+                TransportContentionBenchmark.class.getClassLoader(), new Class<?>[] { RemoteEndpoint.Async.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (args != null && args.length == 2 && args[1] instanceof SendHandler) {
+                            ((SendHandler) args[1]).onResult(new SendResult());
+                        }
+                        return null;
+                    }
+                });
+        return (Session) Proxy.newProxyInstance(TransportContentionBenchmark.class.getClassLoader(),
+                new Class<?>[] { Session.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return method.getName().equals("getAsyncRemote") ? remote : null;
+                    }
+                });
+    }
+}
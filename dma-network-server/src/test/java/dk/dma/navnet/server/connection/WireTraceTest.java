@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2008 Kasper Nielsen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.navnet.server.connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import dk.dma.enav.model.MaritimeId;
+import dk.dma.navnet.server.InternalServer;
+import dk.dma.navnet.server.ServerConfiguration;
+import dk.dma.navnet.server.targets.TargetManager;
+import dk.dma.navnet.server.util.ThreadManager;
+
+/**
+ * Tests {@link WireTrace}. The server is never started, so traced frames stay in the buffer.
+ * 
+ * @author Kasper Nielsen
+ */
+public class WireTraceTest {
+
+    InternalServer server;
+
+    WireTrace trace;
+
+    @Before
+    public void setup() {
+        server = new InternalServer(new ServerConfiguration());
+        trace = server.getService(WireTrace.class);
+    }
+
+    ServerTransport transport(String id) {
+        ServerTransport transport = new ServerTransport(server);
+        TargetManager tm = server.getService(TargetManager.class);
+        ServerConnection connection = new ServerConnection(tm.getTarget(MaritimeId.create(id)), server);
+        connection.transport = transport;
+        transport.connection = connection;
+        return transport;
+    }
+
+    @Test
+    public void disabledByDefault() {
+        assertFalse(trace.isEnabled());
+        ThreadManager tm = server.getService(ThreadManager.class);
+        assertTrue(new WireTrace(new ServerConfiguration().setWireTrace(true), tm).isEnabled());
+    }
+
+    @Test
+    public void traceTarget() {
+        ServerTransport t1 = transport("mmsi://1");
+        ServerTransport t2 = transport("mmsi://2");
+        trace.setTraceTarget(MaritimeId.create("mmsi://1"), true);
+        assertTrue(trace.isEnabled());
+        trace.received(t1, "[1]");
+        trace.sent(t2, "[2]");
+        trace.sent(new ServerTransport(server), "[3]"); // not connected yet
+        assertEquals(1, trace.getPendingFrames());
+
+        trace.setTraceTarget(MaritimeId.create("mmsi://1"), false);
+        assertFalse(trace.isEnabled());
+    }
+
+    @Test
+    public void traceConnection() {
+        ServerTransport t1 = transport("mmsi://1");
+        ServerTransport t2 = transport("mmsi://2");
+        trace.setTraceConnection(t2.connection.getId(), true);
+        trace.received(t1, "[1]");
+        trace.sent(t2, ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+        assertEquals(1, trace.getPendingFrames());
+    }
+
+    @Test
+    public void sampleRate() {
+        ServerTransport t = transport("mmsi://1");
+        trace.setTraceAll(true);
+        trace.setSampleRate(3);
+        for (int i = 0; i < 9; i++) {
+            trace.received(t, "[1]");
+        }
+        assertEquals(3, trace.getPendingFrames());
+        assertEquals(0, trace.getDroppedFrames());
+    }
+
+    @Test
+    public void rateLimit() {
+        ServerTransport t = transport("mmsi://1");
+        trace.setTraceAll(true);
+        trace.setMaxFramesPerSecond(5);
+        for (int i = 0; i < 10; i++) {
+            trace.received(t, "[1]");
+        }
+        // might be more if the second ended while we were tracing
+        assertTrue(trace.getPendingFrames() >= 5);
+        assertEquals(10, trace.getPendingFrames() + trace.getDroppedFrames());
+    }
+
+    @Test
+    public void format() {
+        ServerTransport t = transport("mmsi://1");
+        ByteBuffer b = ByteBuffer.wrap(new byte[] { 0, 1, 0x7f, (byte) 0xff });
+        b.get();
+        String binary = new WireTrace.Frame(t.connection, true, b).toString();
+        assertTrue(binary, binary.endsWith(" -> mmsi://1 " + t.connection.getId() + " binary 3 bytes 017fff"));
+        assertEquals(1, b.position());
+        String text = new WireTrace.Frame(null, false, "[1, 2]").toString();
+        assertTrue(text, text.endsWith(" <- null null [1, 2]"));
+    }
+}
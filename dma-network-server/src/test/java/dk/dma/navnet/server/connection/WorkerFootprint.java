@@ -0,0 +1,116 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.server.connection;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import dk.dma.enav.model.MaritimeId;
+import dk.dma.enav.model.geometry.PositionTime;
+import dk.dma.navnet.messages.auxiliary.PositionReportMessage;
+import dk.dma.navnet.server.InternalServer;
+import dk.dma.navnet.server.ServerConfiguration;
+import dk.dma.navnet.server.targets.TargetManager;
+import dk.dma.navnet.server.util.EventLoopGroup;
+import dk.dma.navnet.server.util.ThreadManager;
+
+/**
+ * Reports the number of threads and the memory used by a number of simulated connections. Usage:
+ * 
+ * <pre>
+ * WorkerFootprint &lt;connections&gt; [threads]
+ * </pre>
+ * 
+ * With {@code threads} every connection gets a thread blocked on a queue, which is how workers used to run. Otherwise
+ * the connections are created on the event loops of a server, and a message is queued for every connection.
+ * 
+ * @author Kasper Nielsen
+ */
+public class WorkerFootprint {
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        boolean threads = args.length > 1 && args[1].equals("threads");
+        long before = usedMemory();
+        List<Object> keepAlive = new ArrayList<>();
+        if (threads) {
+            for (int i = 0; i < count; i++) {
+                final LinkedBlockingQueue<Object> q = new LinkedBlockingQueue<>();
+                Thread t = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            q.take();
+                        } catch (InterruptedException ignore) {}
+                    }
+                });
+                t.setDaemon(true);
+                t.start();
+                keepAlive.add(q);
+            }
+        } else {
+            InternalServer server = new InternalServer(new ServerConfiguration());
+            TargetManager tm = server.getService(TargetManager.class);
+            PositionReportMessage m = new PositionReportMessage(PositionTime.create(1, 1, 1));
+            for (int i = 0; i < count; i++) {
+                ServerConnection c = new ServerConnection(tm.getTarget(MaritimeId.create("mmsi://" + i)), server);
+                c.messageSend(m);
+                keepAlive.add(c);
+            }
+            // wait for the event loops to process all messages, next() visits every loop once
+            EventLoopGroup loops = server.getService(ThreadManager.class).eventLoops;
+            final CountDownLatch latch = new CountDownLatch(loops.size());
+            for (int i = 0; i < loops.size(); i++) {
+                loops.next().execute(new Runnable() {
+                    public void run() {
+                        latch.countDown();
+                    }
+                });
+            }
+            latch.await();
+        }
+        long after = usedMemory();
+        System.out.println((threads ? "thread per connection" : "event loops") + ", " + count + " connections: "
+                + ManagementFactory.getThreadMXBean().getThreadCount() + " threads, " + (after - before) / 1024
+                + " KiB heap, " + rss() + " resident (" + keepAlive.size() + ")");
+    }
+
+    static long usedMemory() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime r = Runtime.getRuntime();
+        return r.totalMemory() - r.freeMemory();
+    }
+
+    static String rss() throws Exception {
+        Path p = Paths.get("/proc/self/status");
+        if (Files.exists(p)) {
+            for (String line : Files.readAllLines(p, StandardCharsets.UTF_8)) {
+                if (line.startsWith("VmRSS:")) {
+                    return line.substring(6).trim();
+                }
+            }
+        }
+        return "unknown";
+    }
+}
@@ -0,0 +1,90 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.server.services;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import dk.dma.enav.model.MaritimeId;
+import dk.dma.enav.model.geometry.PositionTime;
+import dk.dma.navnet.server.targets.Target;
+import dk.dma.navnet.server.targets.TargetManager;
+
+/**
+ * Compares finding the nearest providers of a service by sorting every provider within the distance against the
+ * search in {@link ServiceManager#findNearest}. 100,000 targets providing the service are spread over a 10x10 degree
+ * box, roughly the size of the Baltic Sea. Each lookup has no distance limit.
+ * <p>
+ * Run with <tt>java -cp target/test-classes:... org.openjdk.jmh.Main FindServiceBenchmark</tt>.
+ *
+ * @author Kasper Nielsen
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FindServiceBenchmark {
+
+    static final String SERVICE = "imo.routeexchange";
+
+    @Param({ "1", "10" })
+    int max;
+
+    TargetManager tm;
+
+    Target[] searchers;
+
+    int next;
+
+    @Setup
+    public void setup() {
+        tm = new TargetManager();
+        Random r = new Random(4321);
+        for (int i = 0; i < 100_000; i++) {
+            Target t = tm.getTarget(MaritimeId.create("mmsi://" + i));
+            t.setLatestPosition(PositionTime.create(53 + r.nextDouble() * 10, 10 + r.nextDouble() * 10, i));
+            t.getServices().registerService(SERVICE);
+        }
+        searchers = new Target[1024];
+        for (int i = 0; i < searchers.length; i++) {
+            searchers[i] = tm.getTarget(MaritimeId.create("mmsi://" + r.nextInt(100_000)));
+        }
+    }
+
+    Target nextSearcher() {
+        return searchers[next++ & (searchers.length - 1)];
+    }
+
+    @Benchmark
+    public Object sortAll() {
+        Target self = nextSearcher();
+        return FindServiceTest.scan(tm, self, self.getLatestPosition(), Double.MAX_VALUE, max, SERVICE);
+    }
+
+    @Benchmark
+    public Object nearest() {
+        Target self = nextSearcher();
+        return ServiceManager.findNearest(tm, self, self.getLatestPosition(), Double.MAX_VALUE, max, SERVICE);
+    }
+}
@@ -0,0 +1,106 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.server.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+
+import org.junit.Test;
+
+import dk.dma.enav.model.MaritimeId;
+import dk.dma.enav.model.geometry.PositionTime;
+import dk.dma.enav.util.function.Consumer;
+import dk.dma.navnet.server.targets.Target;
+import dk.dma.navnet.server.targets.TargetManager;
+
+/**
+ * 
+ * @author Kasper Nielsen
+ */
+public class FindServiceTest {
+
+    /** Finds the nearest targets by sorting every target that provides the service. */
+    static List<Target> scan(TargetManager tm, Target self, final PositionTime center, final double meters, int max,
+            final String serviceName) {
+        final List<Target> result = new ArrayList<>();
+        tm.forEachTarget(new Consumer<Target>() {
+            public void accept(Target t) {
+                PositionTime latest = t.getLatestPosition();
+                if (t.getServices().hasService(serviceName) && latest != null
+                        && center.geodesicDistanceTo(latest) < meters) {
+                    result.add(t);
+                }
+            }
+        });
+        result.remove(self);
+        Collections.sort(result, new Comparator<Target>() {
+            public int compare(Target o1, Target o2) {
+                return Double.compare(center.geodesicDistanceTo(o1.getLatestPosition()),
+                        center.geodesicDistanceTo(o2.getLatestPosition()));
+            }
+        });
+        return result.subList(0, Math.min(max, result.size()));
+    }
+
+    static List<Target> nearest(TargetManager tm, Target self, PositionTime center, double meters, int max,
+            String serviceName) {
+        List<Target> result = new ArrayList<>();
+        for (Entry<Target, PositionTime> e : ServiceManager.findNearest(tm, self, center, meters, max, serviceName)) {
+            result.add(e.getKey());
+        }
+        return result;
+    }
+
+    @Test
+    public void sameAsScan() {
+        TargetManager tm = new TargetManager();
+        Random r = new Random(12345);
+        List<Target> targets = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            Target t = tm.getTarget(MaritimeId.create("mmsi://" + i));
+            t.setLatestPosition(PositionTime.create(53 + r.nextDouble() * 10, 10 + r.nextDouble() * 10, i));
+            // few providers of "rare", so they are checked directly, the grid is searched for "common"
+            t.getServices().registerService(i % 100 == 0 ? "rare" : "common");
+            targets.add(t);
+        }
+        for (int i = 0; i < 200; i++) {
+            Target self = targets.get(r.nextInt(targets.size()));
+            PositionTime center = self.getLatestPosition();
+            int max = 1 + r.nextInt(20);
+            double meters = i % 4 == 0 ? Double.MAX_VALUE : r.nextInt(500_000) + 1;
+            for (String name : new String[] { "rare", "common" }) {
+                assertEquals(scan(tm, self, center, meters, max, name), nearest(tm, self, center, meters, max, name));
+            }
+        }
+    }
+
+    @Test
+    public void noProviders() {
+        TargetManager tm = new TargetManager();
+        Target self = tm.getTarget(MaritimeId.create("mmsi://1"));
+        self.setLatestPosition(PositionTime.create(55, 11, 1));
+        self.getServices().registerService("foo");
+        assertTrue(nearest(tm, self, self.getLatestPosition(), Double.MAX_VALUE, 10, "foo").isEmpty());
+        assertTrue(nearest(tm, self, self.getLatestPosition(), Double.MAX_VALUE, 10, "bar").isEmpty());
+    }
+}
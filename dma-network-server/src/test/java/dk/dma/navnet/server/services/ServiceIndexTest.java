@@ -0,0 +1,134 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.server.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import dk.dma.enav.model.MaritimeId;
+import dk.dma.enav.model.geometry.PositionTime;
+import dk.dma.enav.util.function.Consumer;
+import dk.dma.navnet.server.targets.Target;
+import dk.dma.navnet.server.targets.TargetManager;
+
+/**
+ * 
+ * @author Kasper Nielsen
+ */
+public class ServiceIndexTest {
+
+    @Test
+    public void registerAndUnregister() {
+        TargetManager tm = new TargetManager();
+        ServiceIndex index = tm.getServiceIndex();
+        Target t1 = tm.getTarget(MaritimeId.create("mmsi://1"));
+        Target t2 = tm.getTarget(MaritimeId.create("mmsi://2"));
+        assertTrue(index.getProviders("foo").isEmpty());
+
+        t1.getServices().registerService("foo");
+        t2.getServices().registerService("foo");
+        t2.getServices().registerService("bar");
+        assertEquals(2, index.getProviders("foo").size());
+        assertEquals(1, index.getProviders("bar").size());
+        assertTrue(t2.getServices().hasService("bar"));
+
+        t1.getServices().unregisterService("foo");
+        assertEquals(1, index.getProviders("foo").size());
+        assertTrue(index.getProviders("foo").contains(t2));
+        assertFalse(t1.getServices().hasService("foo"));
+
+        t2.getServices().clear();
+        assertTrue(index.getProviders("foo").isEmpty());
+        assertTrue(index.getProviders("bar").isEmpty());
+        assertFalse(t2.getServices().hasService("bar"));
+    }
+
+    @Test
+    public void sameAsScan() {
+        final TargetManager tm = new TargetManager();
+        for (int i = 0; i < 1000; i++) {
+            Target t = tm.getTarget(MaritimeId.create("mmsi://" + i));
+            t.getServices().registerService("service" + i % 7);
+            if (i % 3 == 0) {
+                t.getServices().unregisterService("service" + i % 7);
+            }
+        }
+        for (int s = 0; s < 7; s++) {
+            final String name = "service" + s;
+            final Set<Target> scan = new HashSet<>();
+            tm.forEachTarget(new Consumer<Target>() {
+                public void accept(Target t) {
+                    if (t.getServices().hasService(name)) {
+                        scan.add(t);
+                    }
+                }
+            });
+            assertEquals(scan, new HashSet<>(tm.getServiceIndex().getProviders(name)));
+        }
+    }
+
+    /** Returns the providers of the service that the grid finds within the specified distance. */
+    static Set<Target> near(TargetManager tm, String serviceName, PositionTime center, double meters) {
+        final Set<Target> result = new HashSet<>();
+        tm.getServiceIndex().getProviderGrid(serviceName).forEachCandidate(center, meters, new Consumer<Target>() {
+            public void accept(Target t) {
+                result.add(t);
+            }
+        });
+        return result;
+    }
+
+    @Test
+    public void providersFollowPositions() {
+        TargetManager tm = new TargetManager();
+        PositionTime copenhagen = PositionTime.create(55.7, 12.6, 1);
+        PositionTime oslo = PositionTime.create(59.9, 10.7, 2);
+        Target t1 = tm.getTarget(MaritimeId.create("mmsi://1"));
+        Target t2 = tm.getTarget(MaritimeId.create("mmsi://2"));
+
+        // a provider is placed by the position it had when registering, and by later reports
+        t1.setLatestPosition(copenhagen);
+        t1.getServices().registerService("foo");
+        t2.getServices().registerService("foo");
+        assertEquals(Collections.singleton(t1), near(tm, "foo", copenhagen, 10_000));
+        t2.setLatestPosition(copenhagen);
+        assertEquals(new HashSet<>(Arrays.asList(t1, t2)), near(tm, "foo", copenhagen, 10_000));
+
+        t1.setLatestPosition(oslo);
+        assertEquals(Collections.singleton(t2), near(tm, "foo", copenhagen, 10_000));
+        assertEquals(Collections.singleton(t1), near(tm, "foo", oslo, 10_000));
+
+        // still a provider, but without a position
+        t1.clearLatestPosition();
+        assertTrue(near(tm, "foo", oslo, 10_000).isEmpty());
+        assertTrue(tm.getServiceIndex().getProviders("foo").contains(t1));
+
+        // moving after unregistering does not place the target again
+        t2.getServices().unregisterService("foo");
+        t2.setLatestPosition(oslo);
+        t1.setLatestPosition(oslo);
+        assertEquals(Collections.singleton(t1), near(tm, "foo", oslo, 10_000));
+        assertEquals(Collections.singleton(t1), tm.getServiceIndex().getProviders("foo"));
+    }
+}
@@ -0,0 +1,205 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.server.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dk.dma.enav.model.geometry.PositionTime;
+import dk.dma.enav.util.function.Consumer;
+import dk.dma.navnet.messages.ConnectionMessage;
+import dk.dma.navnet.messages.auxiliary.PositionReportMessage;
+import dk.dma.navnet.server.ServerConfiguration;
+import dk.dma.navnet.server.util.ThreadManager;
+
+/**
+ * 
+ * @author Kasper Nielsen
+ */
+public class MessageStoreTest {
+
+    File dir;
+
+    ThreadManager tm;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("messagestore").toFile();
+        tm = new ThreadManager(new ServerConfiguration());
+    }
+
+    @After
+    public void teardown() {
+        tm.stop();
+        File[] files = dir.listFiles();
+        for (File f : files == null ? new File[0] : files) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    MessageStore store(ServerConfiguration conf) {
+        MessageStore store = new MessageStore(conf.setStoreDirectory(dir.getPath()), tm);
+        store.start();
+        return store;
+    }
+
+    static ConnectionMessage message(int i) {
+        return new PositionReportMessage(PositionTime.create(55, 12, i));
+    }
+
+    static List<StoredMessage> all(MessageStore store) {
+        final List<StoredMessage> result = new ArrayList<>();
+        store.forEach(new Consumer<StoredMessage>() {
+            public void accept(StoredMessage t) {
+                result.add(t);
+            }
+        });
+        return result;
+    }
+
+    @Test
+    public void disabled() {
+        MessageStore store = new MessageStore(new ServerConfiguration(), tm);
+        store.start();
+        assertFalse(store.isEnabled());
+        store.storeSend("a", 1, 0, message(1));
+        store.stop();
+        assertEquals(0, store.getRecordCount());
+        assertEquals(0, all(store).size());
+    }
+
+    @Test
+    public void storeAndRead() {
+        MessageStore store = store(new ServerConfiguration());
+        assertTrue(store.isEnabled());
+        for (int i = 1; i <= 1000; i++) {
+            store.storeSend("a", i, 0, message(i));
+            store.storeReceived("b", message(i).setMessageId(i).setLatestReceivedId(i - 1));
+        }
+        store.stop();
+        assertEquals(2000, store.getRecordCount());
+        assertEquals(0, store.getDroppedCount());
+
+        List<StoredMessage> all = all(store);
+        assertEquals(2000, all.size());
+        assertEquals("a", all.get(0).getConnectionId());
+        assertTrue(all.get(0).isSent());
+        assertEquals(1, all.get(0).getMessageId());
+        assertEquals(message(1).toJSON(1, 0), all.get(0).getMessage());
+        assertEquals("b", all.get(1).getConnectionId());
+        assertFalse(all.get(1).isSent());
+
+        StoredMessage m = store.find("b", false, 777);
+        assertEquals(777, m.getMessageId());
+        assertEquals(message(777).toJSON(777, 776), m.getMessage());
+        assertEquals(500, store.find("a", true, 500).getMessageId());
+        assertNull(store.find("a", false, 500));
+        assertNull(store.find("a", true, 1001));
+        assertNull(store.find("c", true, 1));
+    }
+
+    @Test
+    public void rollBySize() {
+        MessageStore store = store(new ServerConfiguration().setStoreSegmentSize(4096));
+        for (int i = 1; i <= 1000; i++) {
+            store.storeSend("a", i, 0, message(i));
+        }
+        store.stop();
+        assertTrue(store.getSegmentCount() > 10);
+        assertEquals(store.getSegmentCount(), dir.list().length);
+        assertEquals(1000, all(store).size());
+        for (int i = 1; i <= 1000; i++) {
+            assertEquals(i, store.find("a", true, i).getMessageId());
+        }
+
+        // a restarted store continues the numbering of the existing segments
+        MessageStore restarted = store(new ServerConfiguration().setStoreSegmentSize(4096));
+        restarted.storeSend("a", 1, 0, message(1));
+        restarted.stop();
+        assertEquals(store.getSegmentCount() + 1, dir.list().length);
+    }
+
+    @Test
+    public void retention() {
+        MessageStore store = store(new ServerConfiguration().setStoreSegmentSize(4096).setStoreRetainedSegments(3));
+        store.storeSend("old", 1, 0, message(1));
+        // every message is resent, so every id is stored twice
+        for (int round = 0; round < 2; round++) {
+            for (int i = 1; i <= 300; i++) {
+                store.storeSend("a", i, 0, message(i));
+            }
+        }
+        store.stop();
+        assertTrue(store.getSegmentCount() > 3);
+        assertEquals(3, dir.list().length);
+
+        List<StoredMessage> all = all(store);
+        assertTrue(all.size() < 601);
+        assertEquals(300, all.get(all.size() - 1).getMessageId());
+        // every message that is kept can be found, the index of the old connection has been dropped
+        for (StoredMessage m : all) {
+            assertEquals(m.getMessageId(), store.find("a", true, m.getMessageId()).getMessageId());
+        }
+        assertNull(store.find("old", true, 1));
+        assertEquals(1, store.getIndexCount());
+
+        // files from before a restart count towards the retained files
+        MessageStore restarted = store(new ServerConfiguration().setStoreRetainedSegments(2));
+        restarted.storeSend("a", 1, 0, message(1));
+        restarted.stop();
+        assertEquals(2, dir.list().length);
+    }
+
+    @Test
+    public void indexKeepsResentPositions() {
+        MessageStore.Index index = new MessageStore.Index();
+        index.add(1, MessageStore.position(0, 0));
+        index.add(2, MessageStore.position(0, 100));
+        index.add(1, MessageStore.position(2, 0));
+        assertTrue(Arrays.equals(new long[] { MessageStore.position(0, 0), MessageStore.position(2, 0) },
+                index.entries.get(1L)));
+
+        index.prune(1);
+        assertTrue(Arrays.equals(new long[] { MessageStore.position(2, 0) }, index.entries.get(1L)));
+        assertNull(index.entries.get(2L));
+        index.prune(3);
+        assertTrue(index.entries.isEmpty());
+    }
+
+    @Test
+    public void largeRecord() {
+        MessageStore store = store(new ServerConfiguration().setStoreSegmentSize(64));
+        store.storeSend("a", 1, 0, message(1));
+        store.storeSend("a", 2, 0, message(2));
+        store.stop();
+        assertEquals(2, store.getSegmentCount());
+        assertEquals(2, all(store).size());
+    }
+}
@@ -0,0 +1,80 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.server.store;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import dk.dma.enav.model.MaritimeId;
+import dk.dma.enav.model.geometry.PositionTime;
+import dk.dma.navnet.messages.c2c.broadcast.BroadcastDeliver;
+import dk.dma.navnet.server.ServerConfiguration;
+import dk.dma.navnet.server.util.ThreadManager;
+
+/**
+ * Measures how many records per second, and how many MB per second, the message store can write. The same broadcast
+ * is stored for 100 different connections over and over again. The producer backs off when the queue of the store is
+ * half full, so no messages are dropped. The time includes flushing the last segment to disk.
+ * 
+ * <pre>
+ * MessageStoreThroughput [records] [message size in characters]
+ * </pre>
+ * 
+ * @author Kasper Nielsen
+ */
+public class MessageStoreThroughput {
+
+    public static void main(String[] args) throws Exception {
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < size) {
+            sb.append("Vessel not under command ");
+        }
+        BroadcastDeliver bd = new BroadcastDeliver(MaritimeId.create("mmsi://219012345"), PositionTime.create(
+                55.6761234, 12.5683371, 1370000000000L), "channel", sb.substring(0, size));
+        String[] connections = new String[100];
+        for (int i = 0; i < connections.length; i++) {
+            connections[i] = "connection-" + i;
+        }
+
+        File dir = Files.createTempDirectory("messagestore").toFile();
+        ServerConfiguration conf = new ServerConfiguration().setStoreDirectory(dir.getPath());
+        ThreadManager tm = new ThreadManager(conf);
+        MessageStore store = new MessageStore(conf, tm);
+        store.start();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < records; i++) {
+            while (i - store.getRecordCount() > MessageStore.QUEUE_CAPACITY / 2) {
+                Thread.yield();
+            }
+            store.storeSend(connections[i % connections.length], i / connections.length, 0, bd);
+        }
+        store.stop();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%d records, %d bytes, %d dropped, %d segments in %.2f s%n", store.getRecordCount(),
+                store.getByteCount(), store.getDroppedCount(), store.getSegmentCount(), seconds);
+        System.out.printf("%.0f records/s, %.1f MB/s%n", store.getRecordCount() / seconds, store.getByteCount()
+                / seconds / 1024 / 1024);
+        tm.stop();
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+}
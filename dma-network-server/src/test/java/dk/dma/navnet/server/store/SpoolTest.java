@@ -0,0 +1,160 @@
+/* Copyright (c) 2011 Danish Maritime Authority
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dma.navnet.server.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dk.dma.enav.model.geometry.PositionTime;
+import dk.dma.navnet.messages.ConnectionMessage;
+import dk.dma.navnet.messages.auxiliary.PositionReportMessage;
+
+/**
+ * 
+ * @author Kasper Nielsen
+ */
+public class SpoolTest {
+
+    File file;
+
+    @Before
+    public void setup() throws IOException {
+        file = Files.createTempFile("spool", ".spool").toFile();
+    }
+
+    @After
+    public void teardown() {
+        file.delete();
+    }
+
+    static ConnectionMessage message(int i) {
+        return new PositionReportMessage(PositionTime.create(55, 12, i));
+    }
+
+    static void assertReplayed(SpoolReplay replay, int... expected) throws IOException {
+        for (int i : expected) {
+            assertEquals(message(i).toJSON(0, 0), replay.next().toJSON(0, 0));
+            assertEquals(i, replay.getSeq());
+        }
+        assertNull(replay.next());
+    }
+
+    @Test
+    public void replayAfterRestart() throws IOException {
+        Spool s = new Spool(file);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, s.append(message(i)));
+        }
+        s.close();
+
+        s = new Spool(file);
+        assertEquals(5, s.getPendingCount());
+        assertReplayed(s.recover(0), 0, 1, 2, 3, 4);
+    }
+
+    @Test
+    public void doneAndReceivedAreNotReplayed() throws IOException {
+        Spool s = new Spool(file);
+        for (int i = 0; i < 5; i++) {
+            s.append(message(i));
+        }
+        s.written(0, 1);
+        s.written(1, 2);
+        s.written(2, 3);
+        s.done(0);
+        s.done(3);
+        s.close();
+
+        // the client has received the message with id 2, but not acknowledged it
+        s = new Spool(file);
+        assertEquals(3, s.getPendingCount());
+        assertReplayed(s.recover(2), 2, 4);
+        assertEquals(2, s.getPendingCount());
+    }
+
+    @Test
+    public void replayIgnoresNewMessages() throws IOException {
+        Spool s = new Spool(file);
+        s.append(message(0));
+        s.close();
+
+        s = new Spool(file);
+        SpoolReplay replay = s.recover(0);
+        assertEquals(1, s.append(message(1)));
+        s.flush();
+        assertReplayed(replay, 0);
+        assertEquals(2, s.getPendingCount());
+    }
+
+    @Test
+    public void truncatedWhenAllDone() throws IOException {
+        Spool s = new Spool(file);
+        s.append(message(0));
+        s.append(message(1));
+        s.written(0, 1);
+        s.done(0);
+        s.done(1);
+        assertEquals(0, s.getPendingCount());
+        assertEquals(0, file.length());
+        s.close();
+
+        s = new Spool(file);
+        assertNull(s.recover(0));
+        s.close();
+    }
+
+    @Test
+    public void allReceivedBeforeRestart() throws IOException {
+        Spool s = new Spool(file);
+        s.append(message(0));
+        s.written(0, 7);
+        s.close();
+
+        s = new Spool(file);
+        assertNull(s.recover(7));
+        assertEquals(0, s.getPendingCount());
+        assertEquals(0, file.length());
+        s.close();
+    }
+
+    @Test
+    public void partialRecordIsIgnored() throws IOException {
+        Spool s = new Spool(file);
+        s.append(message(0));
+        s.append(message(1));
+        s.close();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+
+        s = new Spool(file);
+        assertEquals(1, s.getPendingCount());
+        assertEquals(1, s.append(message(1)));
+        s.close();
+
+        s = new Spool(file);
+        assertReplayed(s.recover(0), 0, 1);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2008 Kasper Nielsen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.navnet.server.targets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import dk.dma.enav.model.MaritimeId;
+import dk.dma.enav.model.geometry.PositionTime;
+import dk.dma.enav.util.function.Consumer;
+import dk.dma.navnet.server.ServerConfiguration;
+
+/**
+ * 
+ * @author Kasper Nielsen
+ */
+public class GeoShardsTest {
+
+    static Set<Target> candidates(GeoShards shards, PositionTime center, double meters) {
+        final Set<Target> result = new HashSet<>();
+        shards.forEachCandidate(center, meters, new Consumer<Target>() {
+            public void accept(Target t) {
+                result.add(t);
+            }
+        });
+        return result;
+    }
+
+    @Test
+    public void sameAsScan() {
+        TargetManager tm = new TargetManager(new ServerConfiguration().setShardSize(2.5));
+        Random r = new Random(54321);
+        for (int i = 0; i < 2000; i++) {
+            Target t = tm.getTarget(MaritimeId.create("mmsi://" + i));
+            t.setLatestPosition(PositionTime.create(r.nextDouble() * 180 - 90, r.nextDouble() * 360 - 180, i));
+        }
+        for (int i = 0; i < 200; i++) {
+            PositionTime center = PositionTime.create(r.nextDouble() * 180 - 90, r.nextDouble() * 360 - 180, i);
+            double meters = r.nextInt(2_000_000) + 1;
+            assertEquals(TargetGridTest.scan(tm, center, meters), TargetGridTest.indexed(tm, center, meters));
+        }
+    }
+
+    @Test
+    public void handoff() {
+        TargetManager tm = new TargetManager();
+        GeoShards shards = tm.getShards();
+        Target t = tm.getTarget(MaritimeId.create("mmsi://1"));
+        t.setLatestPosition(PositionTime.create(54.9, 11, 1));
+        int before = shards.shardOf(t);
+        t.setLatestPosition(PositionTime.create(54.95, 11, 2));
+        assertEquals(0, shards.getHandoffs());
+
+        // crosses 55 degrees north, the boundary between two shards
+        t.setLatestPosition(PositionTime.create(55.05, 11, 3));
+        assertEquals(1, shards.getHandoffs());
+        assertEquals(shards.shardOf(55.05, 11), shards.shardOf(t));
+        assertEquals(0, candidates(shards, PositionTime.create(54.9, 11, 1), 1000).size());
+        assertEquals(1, candidates(shards, PositionTime.create(55.05, 11, 1), 1000).size());
+        assertTrue(before != shards.shardOf(t));
+    }
+
+    @Test
+    public void onlyIntersectingShardsAreVisited() {
+        TargetManager tm = new TargetManager();
+        GeoShards shards = tm.getShards();
+        tm.getTarget(MaritimeId.create("mmsi://1")).setLatestPosition(PositionTime.create(57, 11, 1));
+        tm.getTarget(MaritimeId.create("mmsi://2")).setLatestPosition(PositionTime.create(52, 11, 1));
+        assertEquals(2, shards.getShardCount());
+
+        assertEquals(1, candidates(shards, PositionTime.create(57, 11, 1), 10_000).size());
+        assertEquals(0, shards.getCrossShardLookups());
+
+        // a circle around 55 degrees north reaches both shards
+        assertEquals(2, candidates(shards, PositionTime.create(55, 11, 1), 400_000).size());
+        assertEquals(1, shards.getCrossShardLookups());
+        assertEquals(2, shards.getLookups());
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2008 Kasper Nielsen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.navnet.server.targets;
+
+import java.util.Random;
+
+import dk.dma.enav.model.MaritimeId;
+import dk.dma.enav.model.geometry.PositionTime;
+import dk.dma.enav.util.function.BiConsumer;
+import dk.dma.navnet.server.ServerConfiguration;
+
+/**
+ * Replays synthetic ship tracks across the shards of a {@link TargetManager} and reports how often targets are handed
+ * off between shards, and how many broadcasts and messages cross shard boundaries, for different shard sizes.
+ * <p>
+ * Ships sail straight tracks at 5-20 knots in a box covering the Danish straits and the Baltic Sea, turning around at
+ * the edges. Every ship reports its position every 10 seconds and broadcasts to everybody within 20 nautical miles
+ * once a minute.
+ * <p>
+ * Run with <tt>java -cp target/test-classes:... dk.dma.navnet.server.targets.ShardSimulation [ships] [hours]</tt>.
+ *
+ * @author Kasper Nielsen
+ */
+public class ShardSimulation {
+
+    static final double MIN_LAT = 53.5, MAX_LAT = 60, MIN_LON = 9, MAX_LON = 25;
+
+    static final double METERS_PER_DEGREE = 111_120;
+
+    static final double KNOT = 1852 / 3600d;
+
+    static final int REPORT_INTERVAL = 10;
+
+    static final int BROADCAST_INTERVAL = 60;
+
+    static final double BROADCAST_DISTANCE = 20 * 1852;
+
+    public static void main(String[] args) {
+        int ships = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int hours = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        System.out.println(ships + " ships, " + hours + " hours");
+        System.out.println("shard size, shards, handoffs/hour, cross-shard broadcasts, cross-shard messages");
+        for (double shardSize : new double[] { 1, 2.5, 5, 10 }) {
+            simulate(shardSize, ships, hours);
+        }
+    }
+
+    static void simulate(double shardSize, int ships, int hours) {
+        TargetManager tm = new TargetManager(new ServerConfiguration().setShardSize(shardSize));
+        final GeoShards shards = tm.getShards();
+        Random r = new Random(1234);
+        Target[] targets = new Target[ships];
+        double[] lat = new double[ships];
+        double[] lon = new double[ships];
+        double[] heading = new double[ships];
+        double[] speed = new double[ships];
+        for (int i = 0; i < ships; i++) {
+            targets[i] = tm.getTarget(MaritimeId.create("mmsi://" + i));
+            lat[i] = MIN_LAT + r.nextDouble() * (MAX_LAT - MIN_LAT);
+            lon[i] = MIN_LON + r.nextDouble() * (MAX_LON - MIN_LON);
+            heading[i] = r.nextDouble() * 2 * Math.PI;
+            speed[i] = (5 + r.nextDouble() * 15) * KNOT;
+            targets[i].setLatestPosition(PositionTime.create(lat[i], lon[i], 0));
+        }
+        long handoffsBefore = shards.getHandoffs();
+        final long[] messages = new long[2]; // all, cross shard
+        for (int second = REPORT_INTERVAL; second <= hours * 3600; second += REPORT_INTERVAL) {
+            for (int i = 0; i < ships; i++) {
+                double meters = speed[i] * REPORT_INTERVAL;
+                lat[i] += Math.cos(heading[i]) * meters / METERS_PER_DEGREE;
+                lon[i] += Math.sin(heading[i]) * meters / METERS_PER_DEGREE / Math.cos(Math.toRadians(lat[i]));
+                if (lat[i] < MIN_LAT || lat[i] > MAX_LAT || lon[i] < MIN_LON || lon[i] > MAX_LON) {
+                    heading[i] += Math.PI;
+                    lat[i] = Math.max(MIN_LAT, Math.min(MAX_LAT, lat[i]));
+                    lon[i] = Math.max(MIN_LON, Math.min(MAX_LON, lon[i]));
+                }
+                targets[i].setLatestPosition(PositionTime.create(lat[i], lon[i], second * 1000L));
+            }
+            if (second % BROADCAST_INTERVAL == 0) {
+                for (int i = 0; i < ships; i++) {
+                    final int sourceShard = shards.shardOf(targets[i]);
+                    tm.forEachWithinDistance(targets[i].getLatestPosition(), BROADCAST_DISTANCE,
+                            new BiConsumer<Target, PositionTime>() {
+                                public void accept(Target t, PositionTime latest) {
+                                    messages[0]++;
+                                    if (shards.shardOf(t) != sourceShard) {
+                                        messages[1]++;
+                                    }
+                                }
+                            });
+                }
+            }
+        }
+        long handoffs = shards.getHandoffs() - handoffsBefore;
+        System.out.printf("%10.1f, %6d, %14d, %21.1f%%, %20.1f%%%n", shardSize, shards.getShardCount(), handoffs
+                / hours, 100d * shards.getCrossShardLookups() / shards.getLookups(), 100d * messages[1]
+                / Math.max(1, messages[0]));
+    }
+}
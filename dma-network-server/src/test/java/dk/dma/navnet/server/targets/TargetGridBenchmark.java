@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2008 Kasper Nielsen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.navnet.server.targets;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import dk.dma.enav.model.MaritimeId;
+import dk.dma.enav.model.geometry.PositionTime;
+import dk.dma.enav.util.function.BiConsumer;
+import dk.dma.enav.util.function.Consumer;
+
+/**
+ * Compares finding the targets within broadcast distance by scanning every target against using the grid in
+ * {@link TargetManager}. Targets are spread over a 10x10 degree box, roughly the size of the Baltic Sea. Each lookup
+ * uses a radius of 20 nautical miles.
+ * <p>
+ * Run with <tt>java -cp target/test-classes:... org.openjdk.jmh.Main TargetGridBenchmark</tt>.
+ *
+ * @author Kasper Nielsen
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TargetGridBenchmark {
+
+    static final double DISTANCE = 37_040;
+
+    @Param({ "1000", "10000", "100000" })
+    int targets;
+
+    TargetManager tm;
+
+    PositionTime[] centers;
+
+    int next;
+
+    @Setup
+    public void setup() {
+        tm = new TargetManager();
+        Random r = new Random(4321);
+        for (int i = 0; i < targets; i++) {
+            Target t = tm.getTarget(MaritimeId.create("mmsi://" + i));
+            t.setLatestPosition(PositionTime.create(53 + r.nextDouble() * 10, 10 + r.nextDouble() * 10, i));
+        }
+        centers = new PositionTime[1024];
+        for (int i = 0; i < centers.length; i++) {
+            centers[i] = PositionTime.create(53 + r.nextDouble() * 10, 10 + r.nextDouble() * 10, i);
+        }
+    }
+
+    PositionTime nextCenter() {
+        return centers[next++ & (centers.length - 1)];
+    }
+
+    @Benchmark
+    public void scan(final Blackhole bh) {
+        final PositionTime center = nextCenter();
+        tm.forEachTarget(new Consumer<Target>() {
+            public void accept(Target t) {
+                PositionTime latest = t.getLatestPosition();
+                if (latest != null && center.geodesicDistanceTo(latest) < DISTANCE) {
+                    bh.consume(t);
+                }
+            }
+        });
+    }
+
+    @Benchmark
+    public void indexed(final Blackhole bh) {
+        tm.forEachWithinDistance(nextCenter(), DISTANCE, new BiConsumer<Target, PositionTime>() {
+            public void accept(Target t, PositionTime latest) {
+                bh.consume(t);
+            }
+        });
+    }
+}
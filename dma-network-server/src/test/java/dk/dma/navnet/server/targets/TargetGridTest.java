@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2008 Kasper Nielsen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.navnet.server.targets;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import dk.dma.enav.model.MaritimeId;
+import dk.dma.enav.model.geometry.PositionTime;
+import dk.dma.enav.util.function.BiConsumer;
+import dk.dma.enav.util.function.Consumer;
+
+/**
+ * 
+ * @author Kasper Nielsen
+ */
+public class TargetGridTest {
+
+    static Set<Target> scan(TargetManager tm, final PositionTime center, final double meters) {
+        final Set<Target> result = Collections.synchronizedSet(new HashSet<Target>());
+        tm.forEachTarget(new Consumer<Target>() {
+            public void accept(Target t) {
+                PositionTime latest = t.getLatestPosition();
+                if (latest != null && center.geodesicDistanceTo(latest) < meters) {
+                    result.add(t);
+                }
+            }
+        });
+        return result;
+    }
+
+    static Set<Target> indexed(TargetManager tm, PositionTime center, double meters) {
+        final Set<Target> result = new HashSet<>();
+        tm.forEachWithinDistance(center, meters, new BiConsumer<Target, PositionTime>() {
+            public void accept(Target t, PositionTime latest) {
+                result.add(t);
+            }
+        });
+        return result;
+    }
+
+    @Test
+    public void sameAsScan() {
+        TargetManager tm = new TargetManager();
+        Random r = new Random(12345);
+        for (int i = 0; i < 2000; i++) {
+            Target t = tm.getTarget(MaritimeId.create("mmsi://" + i));
+            t.setLatestPosition(PositionTime.create(r.nextDouble() * 180 - 90, r.nextDouble() * 360 - 180, i));
+        }
+        for (int i = 0; i < 200; i++) {
+            PositionTime center = PositionTime.create(r.nextDouble() * 180 - 90, r.nextDouble() * 360 - 180, i);
+            double meters = r.nextInt(2_000_000) + 1;
+            assertEquals(scan(tm, center, meters), indexed(tm, center, meters));
+        }
+    }
+
+    @Test
+    public void antimeridianAndPoles() {
+        TargetManager tm = new TargetManager();
+        Target east = tm.getTarget(MaritimeId.create("mmsi://1"));
+        east.setLatestPosition(PositionTime.create(10, 179.9, 1));
+        Target west = tm.getTarget(MaritimeId.create("mmsi://2"));
+        west.setLatestPosition(PositionTime.create(10, -179.9, 1));
+        Target north = tm.getTarget(MaritimeId.create("mmsi://3"));
+        north.setLatestPosition(PositionTime.create(89.9, 0, 1));
+        Target otherSideOfPole = tm.getTarget(MaritimeId.create("mmsi://4"));
+        otherSideOfPole.setLatestPosition(PositionTime.create(89.9, 180, 1));
+
+        assertEquals(2, indexed(tm, PositionTime.create(10, 180, 1), 50_000).size());
+        assertEquals(2, indexed(tm, PositionTime.create(89.95, 90, 1), 50_000).size());
+    }
+
+    @Test
+    public void moveBetweenCells() {
+        TargetManager tm = new TargetManager();
+        Target t = tm.getTarget(MaritimeId.create("mmsi://1"));
+        t.setLatestPosition(PositionTime.create(10, 10, 1));
+        assertEquals(1, indexed(tm, PositionTime.create(10, 10, 1), 10_000).size());
+
+        t.setLatestPosition(PositionTime.create(20, 20, 2));
+        assertEquals(0, indexed(tm, PositionTime.create(10, 10, 1), 10_000).size());
+        assertEquals(1, indexed(tm, PositionTime.create(20, 20, 1), 10_000).size());
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2008 Kasper Nielsen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.navnet.server.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author Kasper Nielsen
+ */
+public class SpscLinkedQueueTest {
+
+    @Test
+    public void fifo() {
+        SpscLinkedQueue<Integer> q = new SpscLinkedQueue<>();
+        assertTrue(q.isEmpty());
+        assertNull(q.poll());
+        for (int i = 0; i < 10; i++) {
+            q.offer(i);
+        }
+        assertFalse(q.isEmpty());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, q.poll().intValue());
+        }
+        assertTrue(q.isEmpty());
+        assertNull(q.poll());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void offerNull() {
+        new SpscLinkedQueue<Integer>().offer(null);
+    }
+
+    @Test
+    public void producerAndConsumer() throws InterruptedException {
+        final SpscLinkedQueue<Integer> q = new SpscLinkedQueue<>();
+        final int count = 1_000_000;
+        Thread producer = new Thread() {
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    q.offer(i);
+                }
+            }
+        };
+        producer.start();
+        for (int i = 0; i < count;) {
+            Integer e = q.poll();
+            if (e != null) {
+                assertEquals(i++, e.intValue());
+            }
+        }
+        producer.join();
+        assertTrue(q.isEmpty());
+    }
+}